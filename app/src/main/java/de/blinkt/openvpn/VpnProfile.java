@@ -28,6 +28,7 @@ import androidx.annotation.Nullable;
 
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
+import com.google.gson.JsonObject;
 
 import org.spongycastle.util.io.pem.PemObject;
 import org.spongycastle.util.io.pem.PemWriter;
@@ -64,6 +65,7 @@ import javax.crypto.Cipher;
 import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.NoSuchPaddingException;
 
+import de.blinkt.openvpn.core.CertificateStore;
 import de.blinkt.openvpn.core.ExtAuthHelper;
 import de.blinkt.openvpn.core.NativeUtils;
 import de.blinkt.openvpn.core.OpenVPNManagement;
@@ -243,6 +245,7 @@ public class VpnProfile implements Serializable, Cloneable {
 
     //! Put inline data inline and other data as normal escaped filename
     public static String insertFileData(String cfgentry, String filedata) {
+        filedata = CertificateStore.resolve(filedata);
         if (filedata == null) {
             return String.format("# %s %s\n", cfgentry, "file missing in config profile");
         } else if (isEmbedded(filedata)) {
@@ -922,7 +925,7 @@ public class VpnProfile implements Serializable, Cloneable {
             String caout = null;
             if (!TextUtils.isEmpty(mCaFilename)) {
                 try {
-                    Certificate[] cacerts = X509Utils.getCertificatesFromFile(mCaFilename);
+                    Certificate[] cacerts = X509Utils.getCertificatesFromFile(CertificateStore.resolve(mCaFilename));
                     StringWriter caoutWriter = new StringWriter();
                     PemWriter pw = new PemWriter(caoutWriter);
 
@@ -1169,27 +1172,53 @@ public class VpnProfile implements Serializable, Cloneable {
         return mName;
     }
 
+    /**
+     * Serializes the profile with its certificates inlined, so that it can be restored in a
+     * process that doesn't know the referenced certificates.
+     */
     public String toJson() {
         Gson gson = new Gson();
         try {
-            return gson.toJson(this);
+            JsonObject json = gson.toJsonTree(this).getAsJsonObject();
+            inlineCertificate(json, "mCaFilename", mCaFilename);
+            inlineCertificate(json, "mClientCertFilename", mClientCertFilename);
+            return gson.toJson(json);
         } catch (Exception e) {
             e.printStackTrace();
         }
         return null;
     }
 
+    private static void inlineCertificate(JsonObject json, String field, String data) {
+        if (CertificateStore.isReference(data)) {
+            json.addProperty(field, CertificateStore.resolve(data));
+        }
+    }
+
     public static VpnProfile fromJson(String json) {
         try {
             GsonBuilder builder = new GsonBuilder();
             builder.registerTypeAdapter(Connection.class, new ConnectionAdapter());
-            return builder.create().fromJson(json, VpnProfile.class);
+            VpnProfile profile = builder.create().fromJson(json, VpnProfile.class);
+            if (profile != null) {
+                profile.shareCertificates();
+            }
+            return profile;
         } catch (Exception e) {
             e.printStackTrace();
         }
         return null;
     }
 
+    /**
+     * Replaces the embedded CA and client certificate by references into the
+     * {@link CertificateStore}, profiles of the same provider then share a single copy.
+     */
+    public void shareCertificates() {
+        mCaFilename = CertificateStore.store(mCaFilename);
+        mClientCertFilename = CertificateStore.store(mClientCertFilename);
+    }
+
     public String getUUIDString() {
         return mUuid.toString().toLowerCase(Locale.ENGLISH);
     }
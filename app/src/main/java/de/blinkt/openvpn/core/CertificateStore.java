@@ -0,0 +1,89 @@
+/*
+ * Copyright (c) 2023 LEAP Encryption Access Project and contributers
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.blinkt.openvpn.core;
+
+import androidx.annotation.Nullable;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import de.blinkt.openvpn.VpnProfile;
+
+/**
+ * Keeps embedded certificate material that is shared by many profiles, e.g. the provider's CA
+ * and client certificate, only once in memory. Profiles reference an entry by the SHA-256
+ * fingerprint of its content instead of carrying their own copy. The content is inlined again
+ * when the OpenVPN configuration is written, see {@link VpnProfile#insertFileData(String, String)}.
+ */
+public class CertificateStore {
+
+    public static final String REFERENCE_TAG = "[[CERTIFICATE]]";
+
+    private static final Map<String, String> entries = new ConcurrentHashMap<>();
+
+    /**
+     * Stores embedded data and returns a reference to it. Data that is neither embedded nor
+     * a reference (e.g. a file name or null) is returned unchanged.
+     */
+    public static String store(@Nullable String data) {
+        if (!VpnProfile.isEmbedded(data)) {
+            return data;
+        }
+        String fingerprint = fingerprint(data);
+        if (fingerprint == null) {
+            return data;
+        }
+        entries.putIfAbsent(fingerprint, data);
+        return REFERENCE_TAG + fingerprint;
+    }
+
+    public static boolean isReference(@Nullable String data) {
+        return data != null && data.startsWith(REFERENCE_TAG);
+    }
+
+    /**
+     * @return the embedded data a reference points to, data that is no reference unchanged or
+     * null if the referenced data is unknown in this process
+     */
+    @Nullable
+    public static String resolve(@Nullable String data) {
+        if (!isReference(data)) {
+            return data;
+        }
+        return entries.get(data.substring(REFERENCE_TAG.length()));
+    }
+
+    @Nullable
+    private static String fingerprint(String data) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(data.getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                hex.append(Character.forDigit((b >> 4) & 0xf, 16));
+                hex.append(Character.forDigit(b & 0xf, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+}
@@ -934,7 +934,7 @@ public class ConfigParser {
             np.mUseDefaultRoute = true;
     }
 
-    private boolean isUdpProto(String proto) throws ConfigParseError {
+    public static boolean isUdpProto(String proto) throws ConfigParseError {
         boolean isudp;
         if (proto.equals("udp") || proto.equals("udp4") || proto.equals("udp6"))
             isudp = true;
@@ -16,6 +16,7 @@ import android.net.NetworkInfo;
 import android.net.NetworkInfo.State;
 import android.os.Handler;
 import android.os.Looper;
+import android.os.PowerManager;
 
 import java.util.LinkedList;
 
@@ -33,6 +34,8 @@ public class DeviceStateReceiver extends BroadcastReceiver implements ByteCountL
     private final int TRAFFIC_WINDOW = 60;
     // Data traffic limit in bytes
     private final long TRAFFIC_LIMIT = 64 * 1024;
+    // Byte count interval in s while the traffic window is watched
+    private final int TRAFFIC_WINDOW_BYTECOUNT_INTERVAL = 10;
 
     // Time to wait after network disconnect to pause the VPN
     private final int DISCONNECT_WAIT = 20;
@@ -59,6 +62,7 @@ public class DeviceStateReceiver extends BroadcastReceiver implements ByteCountL
         }
     };
     private NetworkInfo lastConnectedNetwork;
+    private static volatile String lastNetworkType = "NONE";
 
     @Override
     public boolean shouldBeRunning() {
@@ -106,9 +110,29 @@ public class DeviceStateReceiver extends BroadcastReceiver implements ByteCountL
                     "64 kB", TRAFFIC_WINDOW);
 
             mManagement.pause(getPauseReason());
+            updateByteCountInterval();
         }
     }
 
+    /**
+     * Byte counts are only needed here while deciding whether to pause the VPN after the screen
+     * was turned off
+     */
+    private void updateByteCountInterval() {
+        if (screen == connectState.PENDINGDISCONNECT)
+            VpnStatus.requestByteCountInterval(this, TRAFFIC_WINDOW_BYTECOUNT_INTERVAL, false);
+        else
+            VpnStatus.releaseByteCountInterval(this);
+    }
+
+    public void powerStateChange(Context context) {
+        PowerManager powerManager = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
+        if (powerManager == null)
+            return;
+        VpnStatus.setScreenOn(powerManager.isInteractive());
+        VpnStatus.setPowerSaveMode(powerManager.isPowerSaveMode());
+    }
+
 
     public void userPause(boolean pause) {
         if (pause) {
@@ -139,7 +163,10 @@ public class DeviceStateReceiver extends BroadcastReceiver implements ByteCountL
     public void onReceive(Context context, Intent intent) {
         if (ConnectivityManager.CONNECTIVITY_ACTION.equals(intent.getAction())) {
             networkStateChange(context);
+        } else if (PowerManager.ACTION_POWER_SAVE_MODE_CHANGED.equals(intent.getAction())) {
+            powerStateChange(context);
         } else if (Intent.ACTION_SCREEN_OFF.equals(intent.getAction())) {
+            VpnStatus.setScreenOn(false);
             boolean screenOffPause = PreferenceHelper.getSaveBattery();
             boolean isTethering = TetheringObservable.getInstance().getTetheringState().isVpnTetheringRunning();
             if (screenOffPause && !isTethering) {
@@ -150,11 +177,14 @@ public class DeviceStateReceiver extends BroadcastReceiver implements ByteCountL
                 fillTrafficData();
                 if (network == connectState.DISCONNECTED || userpause == connectState.DISCONNECTED)
                     screen = connectState.DISCONNECTED;
+                updateByteCountInterval();
             }
         } else if (Intent.ACTION_SCREEN_ON.equals(intent.getAction())) {
+            VpnStatus.setScreenOn(true);
             // Network was disabled because screen off
             boolean connected = shouldBeConnected();
             screen = connectState.SHOULDBECONNECTED;
+            updateByteCountInterval();
 
             /* We should connect now, cancel any outstanding disconnect timer */
             mDisconnectHandler.removeCallbacks(mDelayDisconnectRunnable);
@@ -211,6 +241,9 @@ public class DeviceStateReceiver extends BroadcastReceiver implements ByteCountL
 
         if (networkInfo != null && networkInfo.getState() == State.CONNECTED) {
             int newnet = networkInfo.getType();
+            if (newnet != ConnectivityManager.TYPE_VPN) {
+                lastNetworkType = networkInfo.getTypeName();
+            }
 
             boolean pendingDisconnect = (network == connectState.PENDINGDISCONNECT);
             network = connectState.SHOULDBECONNECTED;
@@ -232,8 +265,10 @@ public class DeviceStateReceiver extends BroadcastReceiver implements ByteCountL
             } else {
                 /* Different network or connection not established anymore */
 
-                if (screen == connectState.PENDINGDISCONNECT)
+                if (screen == connectState.PENDINGDISCONNECT) {
                     screen = connectState.DISCONNECTED;
+                    updateByteCountInterval();
+                }
 
                 if (shouldBeConnected()) {
                     mDisconnectHandler.removeCallbacks(mDelayDisconnectRunnable);
@@ -289,7 +324,19 @@ public class DeviceStateReceiver extends BroadcastReceiver implements ByteCountL
         return pauseReason.userPause;
     }
 
-    private NetworkInfo getCurrentNetworkInfo(Context context) {
+    /**
+     * @return the type name of the active network, e.g. WIFI or MOBILE. While a VPN is active the
+     * type of the last underlying network is returned.
+     */
+    public static String getNetworkType(Context context) {
+        NetworkInfo networkInfo = getCurrentNetworkInfo(context);
+        if (networkInfo != null && networkInfo.getType() != ConnectivityManager.TYPE_VPN) {
+            lastNetworkType = networkInfo.getTypeName();
+        }
+        return lastNetworkType;
+    }
+
+    private static NetworkInfo getCurrentNetworkInfo(Context context) {
         ConnectivityManager conn = (ConnectivityManager)
                 context.getSystemService(Context.CONNECTIVITY_SERVICE);
 
@@ -9,18 +9,21 @@ import android.os.Handler;
 import android.os.Looper;
 import android.os.Message;
 
+import androidx.annotation.VisibleForTesting;
+
 import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
+import java.io.RandomAccessFile;
 import java.io.UnsupportedEncodingException;
 import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.Locale;
+import java.util.zip.CRC32;
 
 import se.leap.bitmaskclient.R;
 
@@ -33,13 +36,52 @@ class LogFileHandler extends Handler {
     static final int LOG_INIT = 102;
     public static final int LOG_MESSAGE = 103;
     public static final int MAGIC_BYTE = 0x55;
-    protected OutputStream mLogFile;
 
+    /**
+     * Legacy cache of escaped, length prefixed LogItems. Only read once to migrate it to the
+     * ring segment format.
+     */
     public static final String LOGFILE_NAME = "logcache.dat";
+    public static final String RING_LOGFILE_NAME = "logcache.ring";
+
+    /*
+     * The ring segment is a fixed-size memory-mapped file: a header followed by a data region that
+     * is used as a ring buffer of records. Each record is a 4 byte payload length, a 4 byte CRC32 of
+     * the payload and the marshalled LogItem. head and tail are monotonically growing logical
+     * offsets into the data region, the physical offset is the logical offset modulo its capacity.
+     * Records that don't fit anymore are dropped by moving the head, nothing is ever rewritten.
+     */
+    private static final int RING_MAGIC = 0x4C4F4752; // "LOGR"
+    private static final int RING_VERSION = 1;
+    static final int HEADER_SIZE = 32;
+    private static final int HEADER_MAGIC = 0;
+    private static final int HEADER_VERSION = 4;
+    private static final int HEADER_CAPACITY = 8;
+    private static final int HEADER_COUNT = 12;
+    private static final int HEADER_HEAD = 16;
+    private static final int HEADER_TAIL = 24;
+    static final int RECORD_HEADER_SIZE = 8;
+    static final int MAX_RECORD_SIZE = 16384;
+    static final int RING_CAPACITY = 2 * 1024 * 1024;
+
+    protected MappedByteBuffer mLogFile;
+    private final int mCapacity;
+    private long mHead;
+    private long mTail;
+    private int mCount;
+
+    private final ByteBuffer mRecordBuffer = ByteBuffer.allocate(RECORD_HEADER_SIZE + MAX_RECORD_SIZE);
+    private final CRC32 mCrc = new CRC32();
 
 
     public LogFileHandler(Looper looper) {
+        this(looper, RING_CAPACITY);
+    }
+
+    @VisibleForTesting
+    LogFileHandler(Looper looper, int capacity) {
         super(looper);
+        mCapacity = capacity;
     }
 
 
@@ -49,17 +91,16 @@ class LogFileHandler extends Handler {
             if (msg.what == LOG_INIT) {
                 if (mLogFile != null)
                     throw new RuntimeException("mLogFile not null");
-                readLogCache((File) msg.obj);
-                openLogFile((File) msg.obj);
+                initLogCache((File) msg.obj);
             } else if (msg.what == LOG_MESSAGE && msg.obj instanceof LogItem) {
                 // Ignore log messages if not yet initialized
                 if (mLogFile == null)
                     return;
                 writeLogItemToDisk((LogItem) msg.obj);
             } else if (msg.what == TRIM_LOG_FILE) {
-                trimLogFile();
-                for (LogItem li : VpnStatus.getlogbuffer())
-                    writeLogItemToDisk(li);
+                if (mLogFile == null)
+                    return;
+                trimLogFile(VpnStatus.getlogbuffer().length);
             } else if (msg.what == FLUSH_TO_DISK) {
                 flushToDisk();
             }
@@ -72,17 +113,52 @@ class LogFileHandler extends Handler {
 
     }
 
-    private void flushToDisk() throws IOException {
-        mLogFile.flush();
+    private void initLogCache(File cacheDir) throws IOException {
+        File legacyLogfile = new File(cacheDir, LOGFILE_NAME);
+        File logfile = new File(cacheDir, RING_LOGFILE_NAME);
+        boolean migrate = !logfile.exists() && legacyLogfile.exists();
+        try {
+            if (migrate) {
+                readLegacyLogCache(legacyLogfile);
+            }
+            openLogFile(logfile);
+            if (migrate) {
+                for (LogItem li : VpnStatus.getlogbuffer())
+                    writeLogItemToDisk(li);
+                if (!legacyLogfile.delete()) {
+                    VpnStatus.logDebug("Could not delete legacy log cache");
+                }
+            } else {
+                readLogCache();
+            }
+        } finally {
+            synchronized (VpnStatus.readFileLock) {
+                VpnStatus.readFileLog = true;
+                VpnStatus.readFileLock.notifyAll();
+            }
+        }
     }
 
-    private void trimLogFile() {
-        try {
-            mLogFile.flush();
-            ((FileOutputStream) mLogFile).getChannel().truncate(0);
-        } catch (IOException e) {
-            e.printStackTrace();
+    private void flushToDisk() {
+        if (mLogFile != null)
+            mLogFile.force();
+    }
+
+    /**
+     * Drops the oldest records until at most keep records are left
+     */
+    @VisibleForTesting
+    void trimLogFile(int keep) {
+        while (mCount > keep && mHead < mTail) {
+            dropOldestRecord();
         }
+        writeHeader();
+    }
+
+    private void dropOldestRecord() {
+        int len = getIntAt(mHead);
+        mHead += RECORD_HEADER_SIZE + len;
+        mCount--;
     }
 
     private void writeLogItemToDisk(LogItem li) throws IOException {
@@ -90,48 +166,150 @@ class LogFileHandler extends Handler {
         // We do not really care if the log cache breaks between Android upgrades,
         // write binary format to disc
 
-        byte[] liBytes = li.getMarschaledBytes();
-
-        writeEscapedBytes(liBytes);
-    }
+        ByteBuffer record = mRecordBuffer;
+        record.clear();
+        record.position(RECORD_HEADER_SIZE);
+        li.marschalTo(record);
+        int len = record.position() - RECORD_HEADER_SIZE;
 
-    public void writeEscapedBytes(byte[] bytes) throws IOException {
-        int magic = 0;
-        for (byte b : bytes)
-            if (b == MAGIC_BYTE || b == MAGIC_BYTE + 1)
-                magic++;
+        mCrc.reset();
+        mCrc.update(record.array(), RECORD_HEADER_SIZE, len);
+        record.putInt(0, len);
+        record.putInt(4, (int) mCrc.getValue());
 
-        byte eBytes[] = new byte[bytes.length + magic];
+        int recordSize = RECORD_HEADER_SIZE + len;
+        while (mTail + recordSize - mHead > mCapacity) {
+            dropOldestRecord();
+        }
+        // move the head before the old records get overwritten
+        writeHeader();
+        putAt(mTail, record.array(), 0, recordSize);
+        mTail += recordSize;
+        mCount++;
+        writeHeader();
+    }
 
-        int i = 0;
-        for (byte b : bytes) {
-            if (b == MAGIC_BYTE || b == MAGIC_BYTE + 1) {
-                eBytes[i++] = MAGIC_BYTE + 1;
-                eBytes[i++] = (byte) (b - MAGIC_BYTE);
-            } else {
-                eBytes[i++] = b;
+    private void openLogFile(File logfile) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(logfile, "rw")) {
+            boolean fresh = file.length() != HEADER_SIZE + mCapacity;
+            if (fresh) {
+                file.setLength(HEADER_SIZE + mCapacity);
+            }
+            // the mapping stays valid after the channel is closed
+            mLogFile = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + mCapacity);
+            if (fresh || !readHeader()) {
+                resetLogFile();
             }
         }
+    }
 
-        byte[] lenBytes = ByteBuffer.allocate(4).putInt(bytes.length).array();
-        synchronized (mLogFile) {
-            mLogFile.write(MAGIC_BYTE);
-            mLogFile.write(lenBytes);
-            mLogFile.write(eBytes);
+    private boolean readHeader() {
+        if (mLogFile.getInt(HEADER_MAGIC) != RING_MAGIC
+                || mLogFile.getInt(HEADER_VERSION) != RING_VERSION
+                || mLogFile.getInt(HEADER_CAPACITY) != mCapacity) {
+            return false;
         }
+        mCount = mLogFile.getInt(HEADER_COUNT);
+        mHead = mLogFile.getLong(HEADER_HEAD);
+        mTail = mLogFile.getLong(HEADER_TAIL);
+        return mCount >= 0 && mHead >= 0 && mTail >= mHead && mTail - mHead <= mCapacity;
+    }
+
+    private void writeHeader() {
+        mLogFile.putInt(HEADER_MAGIC, RING_MAGIC);
+        mLogFile.putInt(HEADER_VERSION, RING_VERSION);
+        mLogFile.putInt(HEADER_CAPACITY, mCapacity);
+        mLogFile.putInt(HEADER_COUNT, mCount);
+        mLogFile.putLong(HEADER_HEAD, mHead);
+        mLogFile.putLong(HEADER_TAIL, mTail);
     }
 
-    private void openLogFile(File cacheDir) throws FileNotFoundException {
-        File logfile = new File(cacheDir, LOGFILE_NAME);
-        mLogFile = new FileOutputStream(logfile);
+    private void resetLogFile() {
+        mHead = 0;
+        mTail = 0;
+        mCount = 0;
+        writeHeader();
     }
 
-    private void readLogCache(File cacheDir) {
+    /**
+     * Replays all records between head and tail. Scanning stops at the first corrupt record,
+     * which becomes the new tail.
+     */
+    private void readLogCache() {
+        byte[] payload = new byte[MAX_RECORD_SIZE];
+        long pos = mHead;
+        int itemsRead = 0;
         try {
-            File logfile = new File(cacheDir, LOGFILE_NAME);
+            while (pos < mTail) {
+                if (mTail - pos < RECORD_HEADER_SIZE) {
+                    VpnStatus.logDebug("Truncated log cache record header");
+                    break;
+                }
+                int len = getIntAt(pos);
+                int crc = getIntAt(pos + 4);
+                if (len <= 0 || len > MAX_RECORD_SIZE || pos + RECORD_HEADER_SIZE + len > mTail) {
+                    VpnStatus.logDebug(String.format(Locale.US, "Invalid log cache record length %d", len));
+                    break;
+                }
+                getAt(pos + RECORD_HEADER_SIZE, payload, 0, len);
+                mCrc.reset();
+                mCrc.update(payload, 0, len);
+                if ((int) mCrc.getValue() != crc) {
+                    VpnStatus.logDebug("Log cache record checksum mismatch");
+                    break;
+                }
+                restoreLogItem(payload, len);
+                pos += RECORD_HEADER_SIZE + len;
+                itemsRead++;
+            }
+        } catch (UnsupportedEncodingException | RuntimeException e) {
+            VpnStatus.logError("Reading cached logfile failed");
+            VpnStatus.logException(e);
+            e.printStackTrace();
+        }
+        if (pos != mTail) {
+            mTail = pos;
+            mCount = itemsRead;
+            writeHeader();
+        }
+        VpnStatus.logDebug(R.string.reread_log, itemsRead);
+    }
+
+    private int getIntAt(long logicalPos) {
+        int offset = (int) (logicalPos % mCapacity);
+        if (offset + 4 <= mCapacity) {
+            return mLogFile.getInt(HEADER_SIZE + offset);
+        }
+        byte[] bytes = new byte[4];
+        getAt(logicalPos, bytes, 0, 4);
+        return ByteBuffer.wrap(bytes).getInt();
+    }
 
+    private void getAt(long logicalPos, byte[] dst, int off, int len) {
+        int offset = (int) (logicalPos % mCapacity);
+        int first = Math.min(len, mCapacity - offset);
+        mLogFile.position(HEADER_SIZE + offset);
+        mLogFile.get(dst, off, first);
+        if (first < len) {
+            mLogFile.position(HEADER_SIZE);
+            mLogFile.get(dst, off + first, len - first);
+        }
+    }
 
-            if (!logfile.exists() || !logfile.canRead())
+    private void putAt(long logicalPos, byte[] src, int off, int len) {
+        int offset = (int) (logicalPos % mCapacity);
+        int first = Math.min(len, mCapacity - offset);
+        mLogFile.position(HEADER_SIZE + offset);
+        mLogFile.put(src, off, first);
+        if (first < len) {
+            mLogFile.position(HEADER_SIZE);
+            mLogFile.put(src, off + first, len - first);
+        }
+    }
+
+    private void readLegacyLogCache(File logfile) {
+        try {
+            if (!logfile.canRead())
                 return;
 
             FileInputStream log = new FileInputStream(logfile);
@@ -143,11 +321,6 @@ class LogFileHandler extends Handler {
             VpnStatus.logException(e);
             e.printStackTrace();
             // ignore reading file error
-        } finally {
-            synchronized (VpnStatus.readFileLock) {
-                VpnStatus.readFileLog = true;
-                VpnStatus.readFileLock.notifyAll();
-            }
         }
     }
 
@@ -91,8 +91,16 @@ public class LogItem implements Parcelable {
 
     public byte[] getMarschaledBytes() throws UnsupportedEncodingException, BufferOverflowException {
         ByteBuffer bb = ByteBuffer.allocate(16384);
+        marschalTo(bb);
+        int pos = bb.position();
+        bb.rewind();
+        return Arrays.copyOf(bb.array(), pos);
+    }
 
-
+    /**
+     * Writes the marshalled LogItem into bb, starting at its current position
+     */
+    void marschalTo(ByteBuffer bb) throws UnsupportedEncodingException, BufferOverflowException {
         bb.put((byte) 0x0);               //version
         bb.putLong(logtime);              //8
         bb.putInt(mVerbosityLevel);      //4
@@ -133,11 +141,6 @@ public class LogItem implements Parcelable {
 
             }
         }
-
-        int pos = bb.position();
-        bb.rewind();
-        return Arrays.copyOf(bb.array(), pos);
-
     }
 
     public LogItem(byte[] in, int length) throws UnsupportedEncodingException {
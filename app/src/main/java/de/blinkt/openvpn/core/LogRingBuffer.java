@@ -0,0 +1,137 @@
+/*
+ * Copyright (c) 2023 LEAP Encryption Access Project and contributers
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.blinkt.openvpn.core;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Fixed-capacity ring buffer of LogItems that never blocks.
+ *
+ * Every added item gets a sequence number. Writers claim a sequence from the cursor and publish the
+ * item in its slot afterwards. Readers copy the slots between a start sequence and the cursor and
+ * use the per-slot sequence to skip items that have been overwritten in the meantime. They stop at
+ * the first item that is claimed but not published yet and return its sequence to resume from, so
+ * that no item is lost to a slow writer. The oldest items are overwritten once more than capacity
+ * items have been added.
+ */
+class LogRingBuffer {
+
+    private final int capacity;
+    private final AtomicReferenceArray<LogItem> items;
+    // sequence of the item currently stored in a slot, -1 if the slot is empty or being written
+    private final AtomicLongArray published;
+    // next sequence to be claimed
+    private final AtomicLong cursor = new AtomicLong();
+    // items with a lower sequence have been cleared
+    private volatile long start = 0;
+
+    LogRingBuffer(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        this.capacity = capacity;
+        this.items = new AtomicReferenceArray<>(capacity);
+        this.published = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            published.set(i, -1);
+        }
+    }
+
+    /**
+     * @return the sequence number of the added item
+     */
+    long add(LogItem item) {
+        long sequence = cursor.getAndIncrement();
+        int index = (int) (sequence % capacity);
+        published.set(index, -1);
+        items.set(index, item);
+        published.set(index, sequence);
+        return sequence;
+    }
+
+    /**
+     * @return the sequence the next added item will get
+     */
+    long getCursor() {
+        return cursor.get();
+    }
+
+    int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Drops all items added so far
+     */
+    void clear() {
+        start = cursor.get();
+    }
+
+    /**
+     * @return all items that are still in the buffer, oldest first
+     */
+    LogItem[] snapshot() {
+        return readFrom(0).items.toArray(new LogItem[0]);
+    }
+
+    /**
+     * Reads the items with a sequence of at least from that are still in the buffer, oldest first,
+     * up to the first item that isn't published yet.
+     * @return the items and the sequence to continue reading from
+     */
+    Batch readFrom(long from) {
+        long end = cursor.get();
+        long first = Math.max(Math.max(from, start), end - capacity);
+        List<LogItem> result = new ArrayList<>((int) Math.max(0, end - first));
+        long sequence = first;
+        for (; sequence < end; sequence++) {
+            int index = (int) (sequence % capacity);
+            long slotSequence = published.get(index);
+            if (slotSequence > sequence) {
+                // overwritten before we got to read it
+                continue;
+            }
+            if (slotSequence != sequence) {
+                // claimed but not published yet, or the slot is being reused right now
+                break;
+            }
+            LogItem item = items.get(index);
+            if (published.get(index) != sequence) {
+                // overwritten while we read it
+                continue;
+            }
+            result.add(item);
+        }
+        return new Batch(result, sequence);
+    }
+
+    static final class Batch {
+        final List<LogItem> items;
+        // sequence to pass to the next readFrom() call
+        final long next;
+
+        Batch(List<LogItem> items, long next) {
+            this.items = items;
+            this.next = next;
+        }
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright (c) 2023 LEAP Encryption Access Project and contributers
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.blinkt.openvpn.core;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Splits the byte stream of the OpenVPN management interface into lines without creating
+ * intermediate Strings. Input is read into one reusable buffer, complete lines are handed to a
+ * LineListener as a range of that buffer. The range is only valid during the callback.
+ */
+class ManagementLineReader {
+
+    interface LineListener {
+        /**
+         * @param buffer contains the line in [start, end), without the trailing \r\n or \n
+         */
+        void onLine(byte[] buffer, int start, int end);
+    }
+
+    private static final int INITIAL_SIZE = 4096;
+    private static final int MIN_READ_SIZE = 1024;
+
+    private byte[] buffer;
+    private int length;
+    // bytes before this index have been scanned for line ends already
+    private int scanned;
+
+    ManagementLineReader() {
+        this(INITIAL_SIZE);
+    }
+
+    ManagementLineReader(int initialSize) {
+        buffer = new byte[initialSize];
+    }
+
+    /**
+     * Reads once from in into the buffer. Call {@link #processLines(LineListener)} afterwards.
+     * @return the number of bytes read or -1 at the end of the stream
+     */
+    int readFrom(InputStream in) throws IOException {
+        ensureFreeSpace(MIN_READ_SIZE);
+        int read = in.read(buffer, length, buffer.length - length);
+        if (read > 0) {
+            length += read;
+        }
+        return read;
+    }
+
+    /**
+     * Appends count bytes of data and passes all completed lines to listener.
+     */
+    void feed(byte[] data, int offset, int count, LineListener listener) {
+        ensureFreeSpace(count);
+        System.arraycopy(data, offset, buffer, length, count);
+        length += count;
+        processLines(listener);
+    }
+
+    /**
+     * Passes all completed lines to listener and keeps the incomplete rest for the next read.
+     */
+    void processLines(LineListener listener) {
+        int lineStart = 0;
+        for (int i = scanned; i < length; i++) {
+            if (buffer[i] == '\n') {
+                int lineEnd = i;
+                if (lineEnd > lineStart && buffer[lineEnd - 1] == '\r') {
+                    lineEnd--;
+                }
+                listener.onLine(buffer, lineStart, lineEnd);
+                lineStart = i + 1;
+            }
+        }
+        if (lineStart > 0) {
+            // move the incomplete line to the beginning
+            length -= lineStart;
+            System.arraycopy(buffer, lineStart, buffer, 0, length);
+        }
+        scanned = length;
+    }
+
+    private void ensureFreeSpace(int needed) {
+        if (buffer.length - length >= needed) {
+            return;
+        }
+        int newSize = buffer.length * 2;
+        while (newSize - length < needed) {
+            newSize *= 2;
+        }
+        byte[] newBuffer = new byte[newSize];
+        System.arraycopy(buffer, 0, newBuffer, 0, length);
+        buffer = newBuffer;
+    }
+
+    static boolean startsWith(byte[] buffer, int start, int end, byte[] prefix) {
+        if (end - start < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (buffer[start + i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static boolean rangeEquals(byte[] buffer, int start, int end, byte[] other) {
+        return end - start == other.length && startsWith(buffer, start, end, other);
+    }
+
+    /**
+     * @return the index of the first occurrence of b in [start, end) or -1
+     */
+    static int indexOf(byte[] buffer, int start, int end, byte b) {
+        for (int i = start; i < end; i++) {
+            if (buffer[i] == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Parses a non-negative decimal number from [start, end)
+     * @throws NumberFormatException if the range is empty, contains other characters than digits
+     * or overflows a long
+     */
+    static long parseLong(byte[] buffer, int start, int end) {
+        if (start >= end) {
+            throw new NumberFormatException("empty number");
+        }
+        long result = 0;
+        for (int i = start; i < end; i++) {
+            int digit = buffer[i] - '0';
+            if (digit < 0 || digit > 9) {
+                throw new NumberFormatException("invalid digit at position " + (i - start));
+            }
+            if (result > (Long.MAX_VALUE - digit) / 10) {
+                throw new NumberFormatException("number too large");
+            }
+            result = result * 10 + digit;
+        }
+        return result;
+    }
+}
@@ -26,6 +26,7 @@ import android.os.Handler.Callback;
 import android.os.IBinder;
 import android.os.Message;
 import android.os.ParcelFileDescriptor;
+import android.os.PowerManager;
 import android.os.RemoteException;
 import android.system.OsConstants;
 import android.text.TextUtils;
@@ -42,6 +43,10 @@ import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.util.Collection;
 import java.util.Vector;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import de.blinkt.openvpn.VpnProfile;
 import de.blinkt.openvpn.core.VpnStatus.ByteCountListener;
@@ -66,6 +71,7 @@ public class OpenVPNService extends VpnService implements StateListener, Callbac
     public final static String ORBOT_PACKAGE_NAME = "org.torproject.android";
     private static final String PAUSE_VPN = "de.blinkt.openvpn.PAUSE_VPN";
     private static final String RESUME_VPN = "se.leap.bitmaskclient.RESUME_VPN";
+    private static final long OBFSVPN_STARTUP_TIMEOUT_MS = 5000;
     private static boolean mNotificationAlwaysVisible = false;
     private final Vector<String> mDnslist = new Vector<>();
     private final NetworkSpace mRoutes = new NetworkSpace();
@@ -183,6 +189,7 @@ public class OpenVPNService extends VpnService implements StateListener, Callbac
             mProcessThread = null;
         }
         VpnStatus.removeByteCountListener(this);
+        VpnStatus.releaseByteCountInterval(this);
         unregisterDeviceStateReceiver(mDeviceStateReceiver);
         mDeviceStateReceiver = null;
         mOpenVPNThread = null;
@@ -203,9 +210,11 @@ public class OpenVPNService extends VpnService implements StateListener, Callbac
         filter.addAction(ConnectivityManager.CONNECTIVITY_ACTION);
         filter.addAction(Intent.ACTION_SCREEN_OFF);
         filter.addAction(Intent.ACTION_SCREEN_ON);
+        filter.addAction(PowerManager.ACTION_POWER_SAVE_MODE_CHANGED);
 
         // Fetch initial network state
         newDeviceStateReceiver.networkStateChange(this);
+        newDeviceStateReceiver.powerStateChange(this);
 
         registerReceiver(newDeviceStateReceiver, filter);
         VpnStatus.addByteCountListener(newDeviceStateReceiver);
@@ -215,6 +224,7 @@ public class OpenVPNService extends VpnService implements StateListener, Callbac
         if (mDeviceStateReceiver != null)
             try {
                 VpnStatus.removeByteCountListener(deviceStateReceiver);
+                VpnStatus.releaseByteCountInterval(deviceStateReceiver);
                 this.unregisterReceiver(deviceStateReceiver);
             } catch (IllegalArgumentException iae) {
                 // I don't know why  this happens:
@@ -376,6 +386,13 @@ public class OpenVPNService extends VpnService implements StateListener, Callbac
 
         Connection connection = mProfile.mConnections[0];
         VpnStatus.setCurrentlyConnectingProfile(mProfile);
+        Connection.TransportType transportType = connection.getTransportType();
+        boolean usePluggableTransport = mProfile.usePluggableTransports() && transportType.isPluggableTransport();
+        String network = DeviceStateReceiver.getNetworkType(this);
+        if (usePluggableTransport) {
+            // no-op if the client was already prepared when the profile was selected
+            ObfsvpnClient.prepare(((Obfs4Connection) connection).getObfs4Options(), mProfile.mGatewayIp, network);
+        }
 
         VpnStatus.logInfo(R.string.building_configration);
         VpnStatus.updateStateString("VPN_GENERATE_CONFIG", "", R.string.building_configration, ConnectionStatus.LEVEL_START);
@@ -407,14 +424,18 @@ public class OpenVPNService extends VpnService implements StateListener, Callbac
         stopOldOpenVPNProcess();
         // An old running VPN should now be exited
         mStarting = false;
-        Connection.TransportType transportType = connection.getTransportType();
-        if (mProfile.usePluggableTransports() && transportType.isPluggableTransport()) {
+        Future<Integer> obfsVpnClientReady = null;
+        if (usePluggableTransport) {
             if (obfsVpnClient != null && obfsVpnClient.isStarted()) {
                 obfsVpnClient.stop();
             }
-            obfsVpnClient = new ObfsvpnClient(((Obfs4Connection) connection).getObfs4Options());
-            obfsVpnClient.start();
-            Log.d(TAG, "obfsvpn client started");
+            try {
+                obfsVpnClient = ObfsvpnClient.obtain(((Obfs4Connection) connection).getObfs4Options(), mProfile.mGatewayIp, network);
+                obfsVpnClientReady = obfsVpnClient.start();
+                Log.d(TAG, "obfsvpn client starting");
+            } catch (IllegalStateException e) {
+                VpnStatus.logException("Error creating obfsvpn client", e);
+            }
         }
 
 
@@ -447,6 +468,11 @@ public class OpenVPNService extends VpnService implements StateListener, Callbac
             mOpenVPNThread = processThread;
         }
 
+        if (obfsVpnClientReady != null) {
+            // OpenVPN connects to the local proxy right away
+            awaitObfsvpnClient(obfsVpnClientReady);
+        }
+
         synchronized (mProcessLock)
         {
             mProcessThread = new Thread(processThread, "OpenVPNProcessThread");
@@ -465,6 +491,19 @@ public class OpenVPNService extends VpnService implements StateListener, Callbac
         });
     }
 
+    private void awaitObfsvpnClient(Future<Integer> ready) {
+        try {
+            ready.get(OBFSVPN_STARTUP_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            Log.d(TAG, "obfsvpn client started");
+        } catch (TimeoutException e) {
+            VpnStatus.logWarning("obfsvpn client not running after " + OBFSVPN_STARTUP_TIMEOUT_MS + " ms, starting OpenVPN anyway");
+        } catch (ExecutionException e) {
+            VpnStatus.logError("Error starting obfsvpn client: " + e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
     private void stopOldOpenVPNProcess() {
         Log.d(TAG, "stopOldVPNProcess");
         if (mManagement != null) {
@@ -996,8 +1035,11 @@ public class OpenVPNService extends VpnService implements StateListener, Callbac
             mDisplayBytecount = true;
             mConnecttime = System.currentTimeMillis();
             firewallManager.start();
+            // the notification shows the current speed
+            VpnStatus.requestByteCountInterval(this, VpnStatus.BYTECOUNT_INTERVAL_FAST, true);
         } else {
             mDisplayBytecount = false;
+            VpnStatus.releaseByteCountInterval(this);
         }
 
         notificationManager.buildOpenVpnNotification(
@@ -1028,9 +1070,9 @@ public class OpenVPNService extends VpnService implements StateListener, Callbac
         if (mDisplayBytecount) {
             String netstat = String.format(getString(R.string.statusline_bytecount),
                     humanReadableByteCount(in, false, getResources()),
-                    humanReadableByteCount(diffIn / OpenVPNManagement.mBytecountInterval, true, getResources()),
+                    humanReadableByteCount(diffIn / VpnStatus.getLastByteCountPeriod(), true, getResources()),
                     humanReadableByteCount(out, false, getResources()),
-                    humanReadableByteCount(diffOut / OpenVPNManagement.mBytecountInterval, true, getResources()));
+                    humanReadableByteCount(diffOut / VpnStatus.getLastByteCountPeriod(), true, getResources()));
             notificationManager.buildOpenVpnNotification(
                     mProfile != null ? mProfile.mName : "",
                     mProfile != null && mProfile.usePluggableTransports(),
@@ -29,13 +29,25 @@ import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 
-public class OpenVpnManagementThread implements Runnable, OpenVPNManagement {
+public class OpenVpnManagementThread implements Runnable, OpenVPNManagement, VpnStatus.ByteCountIntervalListener {
 
     public static final int ORBOT_TIMEOUT_MS = 20 * 1000;
     private static final String TAG = "openvpn";
     private static final Vector<OpenVpnManagementThread> active = new Vector<>();
+    private static final byte[] BYTECOUNT_PREFIX = ">BYTECOUNT:".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] STATE_PREFIX = ">STATE:".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] EMPTY_STATE_DETAILS = ",,".getBytes(StandardCharsets.US_ASCII);
+    private static final String[] KNOWN_STATES = {"CONNECTING", "WAIT", "AUTH", "GET_CONFIG", "ASSIGN_IP",
+            "ADD_ROUTES", "CONNECTED", "RECONNECTING", "EXITING", "RESOLVE", "TCP_CONNECT", "AUTH_PENDING"};
+    private static final byte[][] KNOWN_STATE_BYTES = new byte[KNOWN_STATES.length][];
+    static {
+        for (int i = 0; i < KNOWN_STATES.length; i++) {
+            KNOWN_STATE_BYTES[i] = KNOWN_STATES[i].getBytes(StandardCharsets.US_ASCII);
+        }
+    }
     private final Handler mResumeHandler;
     private LocalSocket mSocket;
     private VpnProfile mProfile;
@@ -48,6 +60,8 @@ public class OpenVpnManagementThread implements Runnable, OpenVPNManagement {
     private pauseReason lastPauseReason = pauseReason.noNetwork;
     private PausedStateCallback mPauseCallback;
     private boolean mShuttingDown;
+    private volatile boolean mByteCountEnabled;
+    private int mSentByteCountInterval = -1;
     private Runnable mResumeHoldRunnable = () -> {
         if (shouldBeRunning()) {
             releaseHoldCmd();
@@ -171,10 +185,10 @@ public class OpenVpnManagementThread implements Runnable, OpenVPNManagement {
 
     @Override
     public void run() {
-        byte[] buffer = new byte[2048];
+        ManagementLineReader lineReader = new ManagementLineReader();
+        ManagementLineReader.LineListener lineListener = this::processLine;
         //	mSocket.setSoTimeout(5); // Setting a timeout cannot be that bad
 
-        String pendingInput = "";
         synchronized (active) {
             active.add(this);
         }
@@ -198,7 +212,7 @@ public class OpenVpnManagementThread implements Runnable, OpenVPNManagement {
 
             while (true) {
 
-                int numbytesread = instream.read(buffer);
+                int numbytesread = lineReader.readFrom(instream);
                 if (numbytesread == -1)
                     return;
 
@@ -212,18 +226,13 @@ public class OpenVpnManagementThread implements Runnable, OpenVPNManagement {
                     Collections.addAll(mFDList, fds);
                 }
 
-                String input = new String(buffer, 0, numbytesread, "UTF-8");
-
-                pendingInput += input;
-
-                pendingInput = processInput(pendingInput);
-
-
+                lineReader.processLines(lineListener);
             }
         } catch (IOException e) {
             if (!e.getMessage().equals("socket closed") && !e.getMessage().equals("Connection reset by peer"))
                 VpnStatus.logException(e);
         }
+        VpnStatus.removeByteCountIntervalListener(this);
         synchronized (active) {
             active.remove(this);
         }
@@ -256,28 +265,30 @@ public class OpenVpnManagementThread implements Runnable, OpenVPNManagement {
 
     }
 
-    private String processInput(String pendingInput) {
-
-
-        while (pendingInput.contains("\n")) {
-            String[] tokens = pendingInput.split("\\r?\\n", 2);
-            processCommand(tokens[0]);
-            if (tokens.length == 1)
-                // No second part, newline was at the end
-                pendingInput = "";
-            else
-                pendingInput = tokens[1];
+    /**
+     * Handles one line from the management interface. BYTECOUNT and STATE lines are parsed
+     * directly from the read buffer, everything else is decoded and passed to processCommand.
+     */
+    private void processLine(byte[] buffer, int start, int end) {
+        if (ManagementLineReader.startsWith(buffer, start, end, BYTECOUNT_PREFIX)) {
+            processByteCount(buffer, start + BYTECOUNT_PREFIX.length, end);
+            return;
+        }
+        if (ManagementLineReader.startsWith(buffer, start, end, STATE_PREFIX)) {
+            if (!mShuttingDown)
+                processState(buffer, start + STATE_PREFIX.length, end);
+            return;
         }
-        return pendingInput;
+        processCommand(new String(buffer, start, end - start, StandardCharsets.UTF_8));
     }
 
     private void processCommand(String command) {
         //Log.i(TAG, "Line from managment" + command);
 
-        if (command.startsWith(">") && command.contains(":")) {
-            String[] parts = command.split(":", 2);
-            String cmd = parts[0].substring(1);
-            String argument = parts[1];
+        int colon = command.indexOf(':');
+        if (command.startsWith(">") && colon != -1) {
+            String cmd = command.substring(1, colon);
+            String argument = command.substring(colon + 1);
 
 
             switch (cmd) {
@@ -293,13 +304,6 @@ public class OpenVpnManagementThread implements Runnable, OpenVPNManagement {
                 case "NEED-OK":
                     processNeedCommand(argument);
                     break;
-                case "BYTECOUNT":
-                    processByteCount(argument);
-                    break;
-                case "STATE":
-                    if (!mShuttingDown)
-                        processState(argument);
-                    break;
                 case "PROXY":
                     processProxyCMD(argument);
                     break;
@@ -339,7 +343,9 @@ public class OpenVpnManagementThread implements Runnable, OpenVPNManagement {
     }
 
     private void processLogMessage(String argument) {
-        String[] args = argument.split(",", 4);
+        int levelStart = argument.indexOf(',') + 1;
+        int levelEnd = argument.indexOf(',', levelStart);
+        int ovpnlevelEnd = argument.indexOf(',', levelEnd + 1);
         // 0 unix time stamp
         // 1 log level N,I,E etc.
                 /*
@@ -355,7 +361,7 @@ public class OpenVpnManagementThread implements Runnable, OpenVPNManagement {
         Log.d("OpenVPN", argument);
 
         VpnStatus.LogLevel level;
-        switch (args[1]) {
+        switch (argument.substring(levelStart, levelEnd)) {
             case "I":
                 level = VpnStatus.LogLevel.INFO;
                 break;
@@ -373,8 +379,8 @@ public class OpenVpnManagementThread implements Runnable, OpenVPNManagement {
                 break;
         }
 
-        int ovpnlevel = Integer.parseInt(args[2]) & 0x0F;
-        String msg = args[3];
+        int ovpnlevel = Integer.parseInt(argument.substring(levelEnd + 1, ovpnlevelEnd)) & 0x0F;
+        String msg = argument.substring(ovpnlevelEnd + 1);
 
         if (msg.startsWith("MANAGEMENT: CMD"))
             ovpnlevel = Math.max(4, ovpnlevel);
@@ -411,11 +417,25 @@ public class OpenVpnManagementThread implements Runnable, OpenVPNManagement {
         mResumeHandler.removeCallbacks(mResumeHoldRunnable);
         mWaitingForRelease = false;
         managmentCommand("hold release\n");
-        managmentCommand("bytecount " + mBytecountInterval + "\n");
+        mByteCountEnabled = true;
+        // sends the bytecount command with the currently needed interval
+        VpnStatus.setByteCountIntervalListener(this);
         managmentCommand("state on\n");
         //managmentCommand("log on all\n");
     }
 
+    /**
+     * Renegotiates how often OpenVPN reports the byte count, so it doesn't wake us up every
+     * few seconds if nobody looks at the traffic
+     */
+    @Override
+    public synchronized void onByteCountIntervalChanged(int seconds) {
+        if (!mByteCountEnabled || seconds == mSentByteCountInterval)
+            return;
+        if (managmentCommand("bytecount " + seconds + "\n"))
+            mSentByteCountInterval = seconds;
+    }
+
     public void releaseHold() {
         if (mWaitingForRelease)
             releaseHoldCmd();
@@ -500,21 +520,44 @@ public class OpenVpnManagementThread implements Runnable, OpenVPNManagement {
         }
     }
 
-    private void processState(String argument) {
-        String[] args = argument.split(",", 3);
-        String currentstate = args[1];
+    private void processState(byte[] buffer, int start, int end) {
+        //   >STATE:{TIMESTAMP},{STATE},{DESCRIPTION},...
+        int stateStart = ManagementLineReader.indexOf(buffer, start, end, (byte) ',') + 1;
+        int stateEnd = stateStart == 0 ? -1 : ManagementLineReader.indexOf(buffer, stateStart, end, (byte) ',');
+        if (stateEnd == -1) {
+            String line = new String(buffer, start, end - start, StandardCharsets.UTF_8);
+            VpnStatus.logWarning("MGMT: Got malformed state:" + line);
+            return;
+        }
+        String currentstate = getStateString(buffer, stateStart, stateEnd);
 
-        if (args[2].equals(",,"))
+        if (ManagementLineReader.rangeEquals(buffer, stateEnd + 1, end, EMPTY_STATE_DETAILS))
             VpnStatus.updateStateString(currentstate, "");
         else
-            VpnStatus.updateStateString(currentstate, args[2]);
+            VpnStatus.updateStateString(currentstate, new String(buffer, stateEnd + 1, end - stateEnd - 1, StandardCharsets.UTF_8));
     }
 
-    private void processByteCount(String argument) {
+    /**
+     * @return the shared String constant for well known states, a new String otherwise
+     */
+    private static String getStateString(byte[] buffer, int start, int end) {
+        for (int i = 0; i < KNOWN_STATES.length; i++) {
+            if (ManagementLineReader.rangeEquals(buffer, start, end, KNOWN_STATE_BYTES[i])) {
+                return KNOWN_STATES[i];
+            }
+        }
+        return new String(buffer, start, end - start, StandardCharsets.UTF_8);
+    }
+
+    private void processByteCount(byte[] buffer, int start, int end) {
         //   >BYTECOUNT:{BYTES_IN},{BYTES_OUT}
-        int comma = argument.indexOf(',');
-        long in = Long.parseLong(argument.substring(0, comma));
-        long out = Long.parseLong(argument.substring(comma + 1));
+        int comma = ManagementLineReader.indexOf(buffer, start, end, (byte) ',');
+        if (comma == -1) {
+            VpnStatus.logWarning("MGMT: Got malformed byte count");
+            return;
+        }
+        long in = ManagementLineReader.parseLong(buffer, start, comma);
+        long out = ManagementLineReader.parseLong(buffer, comma + 1, end);
 
         VpnStatus.updateByteCount(in, out);
 
@@ -8,9 +8,7 @@ package de.blinkt.openvpn.core;
 import android.os.Parcel;
 import android.os.Parcelable;
 
-import java.util.HashSet;
-import java.util.LinkedList;
-import java.util.Vector;
+import java.util.Arrays;
 
 import static java.lang.Math.max;
 
@@ -23,23 +21,37 @@ public class TrafficHistory implements Parcelable {
     public static final long PERIODS_TO_KEEP = 5;
     public static final int TIME_PERIOD_MINTUES = 60 * 1000;
     public static final int TIME_PERIOD_HOURS = 3600 * 1000;
-    private LinkedList<TrafficDatapoint> trafficHistorySeconds = new LinkedList<>();
-    private LinkedList<TrafficDatapoint> trafficHistoryMinutes = new LinkedList<>();
-    private LinkedList<TrafficDatapoint> trafficHistoryHours = new LinkedList<>();
 
-    private TrafficDatapoint lastSecondUsedForMinute;
-    private TrafficDatapoint lastMinuteUsedForHours;
+    // samples are kept for PERIODS_TO_KEEP + 1 minutes before they are expired, at the 1 second
+    // bytecount interval that's at most 360 samples. If samples arrive faster the oldest are overwritten.
+    static final int SECONDS_CAPACITY = 512;
+    // minutes are expired after PERIODS_TO_KEEP + 1 hours
+    static final int MINUTES_CAPACITY = 512;
+    // hours are never expired, the series grows beyond its initial capacity
+    static final int HOURS_CAPACITY = 64;
 
-    public TrafficHistory() {
+    private final Series trafficHistorySeconds;
+    private final Series trafficHistoryMinutes;
+    private final Series trafficHistoryHours;
+
+    private long lastSecondUsedForMinute;
+    private long lastMinuteUsedForHours;
 
+    // returned by add(), reused to avoid an allocation per sample
+    private final LastDiff lastDiff = new LastDiff();
+
+    public TrafficHistory() {
+        trafficHistorySeconds = new Series(SECONDS_CAPACITY);
+        trafficHistoryMinutes = new Series(MINUTES_CAPACITY);
+        trafficHistoryHours = new Series(HOURS_CAPACITY, true);
     }
 
     protected TrafficHistory(Parcel in) {
-        in.readList(trafficHistorySeconds, getClass().getClassLoader());
-        in.readList(trafficHistoryMinutes, getClass().getClassLoader());
-        in.readList(trafficHistoryHours, getClass().getClassLoader());
-        lastSecondUsedForMinute = in.readParcelable(getClass().getClassLoader());
-        lastMinuteUsedForHours = in.readParcelable(getClass().getClassLoader());
+        trafficHistorySeconds = new Series(SECONDS_CAPACITY, false, in);
+        trafficHistoryMinutes = new Series(MINUTES_CAPACITY, false, in);
+        trafficHistoryHours = new Series(HOURS_CAPACITY, true, in);
+        lastSecondUsedForMinute = in.readLong();
+        lastMinuteUsedForHours = in.readLong();
     }
 
     public static final Creator<TrafficHistory> CREATOR = new Creator<TrafficHistory>() {
@@ -54,28 +66,28 @@ public class TrafficHistory implements Parcelable {
         }
     };
 
-    public LastDiff getLastDiff(TrafficDatapoint tdp) {
-
-        TrafficDatapoint lasttdp;
-
-
-        if (trafficHistorySeconds.size() == 0)
-            lasttdp = new TrafficDatapoint(0, 0, System.currentTimeMillis());
-
-        else
-            lasttdp = trafficHistorySeconds.getLast();
-
-        if (tdp == null) {
-            tdp = lasttdp;
-            if (trafficHistorySeconds.size() < 2)
-                lasttdp = tdp;
-            else {
-                trafficHistorySeconds.descendingIterator().next();
-                tdp = trafficHistorySeconds.descendingIterator().next();
-            }
+    /**
+     * @return the total traffic of the latest sample, without a difference to its predecessor
+     */
+    public LastDiff getLastDiff() {
+        LastDiff diff = new LastDiff();
+        Series seconds = trafficHistorySeconds;
+        if (seconds.size() == 0) {
+            diff.set(0, 0, 0, 0, 0, 0);
+        } else {
+            int last = seconds.size() - 1;
+            long timestamp = seconds.getTimestamp(last);
+            diff.set(timestamp, seconds.getIn(last), seconds.getOut(last), timestamp, seconds.getIn(last), seconds.getOut(last));
         }
+        return diff;
+    }
 
-        return new LastDiff(lasttdp, tdp);
+    /**
+     * @return the highest rate of in and outgoing traffic in bytes per second between two
+     * samples taken at or after since, or 0 if there are not enough samples
+     */
+    public long getPeakRate(long since) {
+        return Math.max(trafficHistorySeconds.getPeakRate(since), trafficHistoryMinutes.getPeakRate(since));
     }
 
     @Override
@@ -85,156 +97,228 @@ public class TrafficHistory implements Parcelable {
 
     @Override
     public void writeToParcel(Parcel dest, int flags) {
-        dest.writeList(trafficHistorySeconds);
-        dest.writeList(trafficHistoryMinutes);
-        dest.writeList(trafficHistoryHours);
-        dest.writeParcelable(lastSecondUsedForMinute, 0);
-        dest.writeParcelable(lastMinuteUsedForHours, 0);
-
+        trafficHistorySeconds.writeToParcel(dest);
+        trafficHistoryMinutes.writeToParcel(dest);
+        trafficHistoryHours.writeToParcel(dest);
+        dest.writeLong(lastSecondUsedForMinute);
+        dest.writeLong(lastMinuteUsedForHours);
     }
 
-    public LinkedList<TrafficDatapoint> getHours() {
+    public Series getHours() {
         return trafficHistoryHours;
     }
 
-    public LinkedList<TrafficDatapoint> getMinutes() {
+    public Series getMinutes() {
         return trafficHistoryMinutes;
     }
 
-    public LinkedList<TrafficDatapoint> getSeconds() {
+    public Series getSeconds() {
         return trafficHistorySeconds;
     }
 
-    public static LinkedList<TrafficDatapoint> getDummyList() {
-        LinkedList<TrafficDatapoint> list = new LinkedList<>();
-        list.add(new TrafficDatapoint(0, 0, System.currentTimeMillis()));
-        return list;
+    /**
+     * Adds a sample and returns its difference to the previous one. The returned LastDiff is
+     * reused and only valid until the next call.
+     */
+    LastDiff add(long in, long out) {
+        return add(in, out, System.currentTimeMillis());
     }
 
-
-    public static class TrafficDatapoint implements Parcelable {
-        private TrafficDatapoint(long inBytes, long outBytes, long timestamp) {
-            this.in = inBytes;
-            this.out = outBytes;
-            this.timestamp = timestamp;
+    LastDiff add(long in, long out, long timestamp) {
+        Series seconds = trafficHistorySeconds;
+        if (seconds.size() == 0) {
+            lastDiff.set(0, 0, 0, timestamp, in, out);
+        } else {
+            int last = seconds.size() - 1;
+            lastDiff.set(seconds.getTimestamp(last), seconds.getIn(last), seconds.getOut(last), timestamp, in, out);
         }
 
-        public final long timestamp;
-        public final long in;
-        public final long out;
+        seconds.add(timestamp, in, out);
+        if (timestamp / TIME_PERIOD_MINTUES > lastSecondUsedForMinute / TIME_PERIOD_MINTUES) {
+            trafficHistoryMinutes.add(timestamp, in, out);
+            lastSecondUsedForMinute = timestamp;
+            if (timestamp / TIME_PERIOD_HOURS > lastMinuteUsedForHours / TIME_PERIOD_HOURS) {
+                trafficHistoryHours.add(timestamp, in, out);
+                lastMinuteUsedForHours = timestamp;
+                trafficHistoryMinutes.expire(timestamp, TIME_PERIOD_HOURS);
+            }
+            seconds.expire(timestamp, TIME_PERIOD_MINTUES);
+        }
+        return lastDiff;
+    }
 
-        private TrafficDatapoint(Parcel in) {
-            timestamp = in.readLong();
-            this.in = in.readLong();
-            out = in.readLong();
+    /**
+     * Circular series of samples, oldest first. When full, adding a sample overwrites the oldest
+     * one, unless the series is growable, then its capacity is doubled.
+     */
+    public static class Series {
+        private final boolean growable;
+        private long[] timestamps;
+        private long[] in;
+        private long[] out;
+        private int head;
+        private int size;
+
+        Series(int capacity) {
+            this(capacity, false);
         }
 
-        public static final Creator<TrafficDatapoint> CREATOR = new Creator<TrafficDatapoint>() {
-            @Override
-            public TrafficDatapoint createFromParcel(Parcel in) {
-                return new TrafficDatapoint(in);
-            }
+        Series(int capacity, boolean growable) {
+            this.growable = growable;
+            timestamps = new long[capacity];
+            in = new long[capacity];
+            out = new long[capacity];
+        }
 
-            @Override
-            public TrafficDatapoint[] newArray(int size) {
-                return new TrafficDatapoint[size];
+        Series(int capacity, boolean growable, Parcel parcel) {
+            this.growable = growable;
+            long[] parcelTimestamps = parcel.createLongArray();
+            long[] parcelIn = parcel.createLongArray();
+            long[] parcelOut = parcel.createLongArray();
+            if (growable) {
+                capacity = Math.max(capacity, parcelTimestamps.length);
             }
-        };
-
-        @Override
-        public int describeContents() {
-            return 0;
+            timestamps = new long[capacity];
+            in = new long[capacity];
+            out = new long[capacity];
+            // keep the newest samples if the sender kept more than we can
+            int count = Math.min(parcelTimestamps.length, capacity);
+            int offset = parcelTimestamps.length - count;
+            System.arraycopy(parcelTimestamps, offset, timestamps, 0, count);
+            System.arraycopy(parcelIn, offset, in, 0, count);
+            System.arraycopy(parcelOut, offset, out, 0, count);
+            size = count;
         }
 
-        @Override
-        public void writeToParcel(Parcel dest, int flags) {
-            dest.writeLong(timestamp);
-            dest.writeLong(in);
-            dest.writeLong(out);
+        public int size() {
+            return size;
         }
-    }
-
-    LastDiff add(long in, long out) {
-        TrafficDatapoint tdp = new TrafficDatapoint(in, out, System.currentTimeMillis());
 
-        LastDiff diff = getLastDiff(tdp);
-        addDataPoint(tdp);
-        return diff;
-    }
+        public long getTimestamp(int index) {
+            return timestamps[physicalIndex(index)];
+        }
 
-    private void addDataPoint(TrafficDatapoint tdp) {
-        trafficHistorySeconds.add(tdp);
+        public long getIn(int index) {
+            return in[physicalIndex(index)];
+        }
 
-        if (lastSecondUsedForMinute == null) {
-            lastSecondUsedForMinute = new TrafficDatapoint(0, 0, 0);
-            lastMinuteUsedForHours = new TrafficDatapoint(0, 0, 0);
+        public long getOut(int index) {
+            return out[physicalIndex(index)];
         }
 
-        removeAndAverage(tdp, true);
-    }
+        void add(long timestamp, long inBytes, long outBytes) {
+            if (growable && size == timestamps.length) {
+                grow();
+            }
+            int capacity = timestamps.length;
+            int index = (head + size) % capacity;
+            timestamps[index] = timestamp;
+            in[index] = inBytes;
+            out[index] = outBytes;
+            if (size < capacity) {
+                size++;
+            } else {
+                head = (head + 1) % capacity;
+            }
+        }
 
-    private void removeAndAverage(TrafficDatapoint newTdp, boolean seconds) {
-        HashSet<TrafficDatapoint> toRemove = new HashSet<>();
-        Vector<TrafficDatapoint> toAverage = new Vector<>();
+        long getPeakRate(long since) {
+            long peak = 0;
+            for (int i = 1; i < size; i++) {
+                long previousTimestamp = getTimestamp(i - 1);
+                long millis = getTimestamp(i) - previousTimestamp;
+                if (previousTimestamp < since || millis <= 0) {
+                    continue;
+                }
+                long bytes = getIn(i) - getIn(i - 1) + getOut(i) - getOut(i - 1);
+                peak = Math.max(peak, bytes * 1000 / millis);
+            }
+            return peak;
+        }
 
-        long timePeriod;
-        LinkedList<TrafficDatapoint> tpList, nextList;
-        TrafficDatapoint lastTsPeriod;
+        /**
+         * Drops samples that are PERIODS_TO_KEEP or more periods older than now. Samples are
+         * ordered by time, so only the expired ones are visited.
+         */
+        void expire(long now, long timePeriod) {
+            while (size > 0 && (now - timestamps[head]) / timePeriod >= PERIODS_TO_KEEP) {
+                head = (head + 1) % timestamps.length;
+                size--;
+            }
+        }
 
-        if (seconds) {
-            timePeriod = TIME_PERIOD_MINTUES;
-            tpList = trafficHistorySeconds;
-            nextList = trafficHistoryMinutes;
-            lastTsPeriod = lastSecondUsedForMinute;
-        } else {
-            timePeriod = TIME_PERIOD_HOURS;
-            tpList = trafficHistoryMinutes;
-            nextList = trafficHistoryHours;
-            lastTsPeriod = lastMinuteUsedForHours;
+        private void grow() {
+            int capacity = timestamps.length * 2;
+            timestamps = Arrays.copyOf(linearize(timestamps), capacity);
+            in = Arrays.copyOf(linearize(in), capacity);
+            out = Arrays.copyOf(linearize(out), capacity);
+            head = 0;
         }
 
-        if (newTdp.timestamp / timePeriod > (lastTsPeriod.timestamp / timePeriod)) {
-            nextList.add(newTdp);
+        private int physicalIndex(int index) {
+            if (index < 0 || index >= size) {
+                throw new IndexOutOfBoundsException("index " + index + ", size " + size);
+            }
+            return (head + index) % timestamps.length;
+        }
 
-            if (seconds) {
-                lastSecondUsedForMinute = newTdp;
-                removeAndAverage(newTdp, false);
-            } else
-                lastMinuteUsedForHours = newTdp;
+        void writeToParcel(Parcel dest) {
+            dest.writeLongArray(linearize(timestamps));
+            dest.writeLongArray(linearize(in));
+            dest.writeLongArray(linearize(out));
+        }
 
-            for (TrafficDatapoint tph : tpList) {
-                // List is iteratered from oldest to newest, remembert first one that we did not
-                if ((newTdp.timestamp - tph.timestamp) / timePeriod >= PERIODS_TO_KEEP)
-                    toRemove.add(tph);
-            }
-            tpList.removeAll(toRemove);
+        private long[] linearize(long[] values) {
+            long[] result = new long[size];
+            int first = Math.min(size, values.length - head);
+            System.arraycopy(values, head, result, 0, first);
+            System.arraycopy(values, 0, result, first, size - first);
+            return result;
         }
     }
 
     static class LastDiff {
 
-        final private TrafficDatapoint tdp;
-        final private TrafficDatapoint lasttdp;
+        private long lastTimestamp;
+        private long lastIn;
+        private long lastOut;
+        private long timestamp;
+        private long in;
+        private long out;
+
+        private LastDiff() {
+        }
+
+        private void set(long lastTimestamp, long lastIn, long lastOut, long timestamp, long in, long out) {
+            this.lastTimestamp = lastTimestamp;
+            this.lastIn = lastIn;
+            this.lastOut = lastOut;
+            this.timestamp = timestamp;
+            this.in = in;
+            this.out = out;
+        }
 
-        private LastDiff(TrafficDatapoint lasttdp, TrafficDatapoint tdp) {
-            this.lasttdp = lasttdp;
-            this.tdp = tdp;
+        /**
+         * @return the milliseconds between both samples, 0 if there is no previous sample
+         */
+        public long getDiffMillis() {
+            return lastTimestamp == 0 ? 0 : max(0, timestamp - lastTimestamp);
         }
 
         public long getDiffOut() {
-            return max(0, tdp.out - lasttdp.out);
+            return max(0, out - lastOut);
         }
 
         public long getDiffIn() {
-            return max(0, tdp.in - lasttdp.in);
+            return max(0, in - lastIn);
         }
 
         public long getIn() {
-            return tdp.in;
+            return in;
         }
 
         public long getOut() {
-            return tdp.out;
+            return out;
         }
 
     }
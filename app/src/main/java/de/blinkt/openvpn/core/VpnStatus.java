@@ -15,9 +15,10 @@ import android.os.Message;
 import java.io.File;
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.Locale;
-import java.util.Vector;
+import java.util.Map;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.atomic.AtomicBoolean;
 
@@ -28,11 +29,28 @@ import se.leap.bitmaskclient.base.utils.PreferenceHelper;
 public class VpnStatus {
 
 
-    private static final LinkedList<LogItem> logbuffer;
+    private static final LogRingBuffer logbuffer;
+    // log items restored from the log cache, they are shown before the items of this session
+    private static final LinkedList<LogItem> cachedLogbuffer;
 
-    private static Vector<LogListener> logListener;
+    private static CopyOnWriteArrayList<LogListener> logListener;
     private static CopyOnWriteArrayList<StateListener> stateListener;
-    private static Vector<ByteCountListener> byteCountListener;
+    private static CopyOnWriteArrayList<ByteCountListener> byteCountListener;
+
+    private static final Object stateLock = new Object();
+    private static final Object byteCountLock = new Object();
+
+    // bytecount intervals in seconds
+    public static final int BYTECOUNT_INTERVAL_FAST = OpenVPNManagement.mBytecountInterval;
+    public static final int BYTECOUNT_INTERVAL_POWER_SAVE = 5;
+    public static final int BYTECOUNT_INTERVAL_IDLE = 60;
+
+    private static final Map<Object, ByteCountIntervalRequest> byteCountIntervalRequests = new HashMap<>();
+    private static boolean screenOn = true;
+    private static boolean powerSaveMode = false;
+    private static int byteCountInterval = BYTECOUNT_INTERVAL_IDLE;
+    private static ByteCountIntervalListener byteCountIntervalListener;
+    private static volatile long lastByteCountPeriodMillis = BYTECOUNT_INTERVAL_FAST * 1000L;
 
     private static AtomicBoolean isAlwaysOnBooting = new AtomicBoolean(false);
 
@@ -238,10 +256,11 @@ public class VpnStatus {
     private static LogFileHandler mLogFileHandler;
 
     static {
-        logbuffer = new LinkedList<>();
-        logListener = new Vector<>();
+        logbuffer = new LogRingBuffer(MAXLOGENTRIES);
+        cachedLogbuffer = new LinkedList<>();
+        logListener = new CopyOnWriteArrayList<>();
         stateListener = new CopyOnWriteArrayList<>();
-        byteCountListener = new Vector<>();
+        byteCountListener = new CopyOnWriteArrayList<>();
         trafficHistory = new TrafficHistory();
 
         logInformation();
@@ -263,12 +282,29 @@ public class VpnStatus {
         void updateByteCount(long in, long out, long diffIn, long diffOut);
     }
 
-    public synchronized static void logMessage(LogLevel level, String prefix, String message) {
+    public interface ByteCountIntervalListener {
+        void onByteCountIntervalChanged(int seconds);
+    }
+
+    private static class ByteCountIntervalRequest {
+        final int seconds;
+        final boolean onlyWhileScreenOn;
+
+        ByteCountIntervalRequest(int seconds, boolean onlyWhileScreenOn) {
+            this.seconds = seconds;
+            this.onlyWhileScreenOn = onlyWhileScreenOn;
+        }
+    }
+
+    public static void logMessage(LogLevel level, String prefix, String message) {
         newLogItem(new LogItem(level, prefix + message));
 
     }
 
-    public synchronized static void clearLog() {
+    public static void clearLog() {
+        synchronized (cachedLogbuffer) {
+            cachedLogbuffer.clear();
+        }
         logbuffer.clear();
         logInformation();
         if (mLogFileHandler != null)
@@ -287,30 +323,130 @@ public class VpnStatus {
                 nativeAPI, Build.VERSION.RELEASE, Build.ID, Build.FINGERPRINT, "", "");
     }
 
-    public synchronized static void addLogListener(LogListener ll) {
+    public static void addLogListener(LogListener ll) {
         logListener.add(ll);
     }
 
-    public synchronized static void removeLogListener(LogListener ll) {
+    public static void removeLogListener(LogListener ll) {
         logListener.remove(ll);
     }
 
-    public synchronized static void addByteCountListener(ByteCountListener bcl) {
-        TrafficHistory.LastDiff diff = trafficHistory.getLastDiff(null);
-        bcl.updateByteCount(diff.getIn(), diff.getOut(), diff.getDiffIn(),diff.getDiffOut());
-        byteCountListener.add(bcl);
+    public static void addByteCountListener(ByteCountListener bcl) {
+        synchronized (byteCountLock) {
+            TrafficHistory.LastDiff diff = trafficHistory.getLastDiff();
+            bcl.updateByteCount(diff.getIn(), diff.getOut(), diff.getDiffIn(), diff.getDiffOut());
+            byteCountListener.add(bcl);
+        }
     }
 
-    public synchronized static void removeByteCountListener(ByteCountListener bcl) {
+    public static void removeByteCountListener(ByteCountListener bcl) {
         byteCountListener.remove(bcl);
     }
 
+    /**
+     * Asks for byte count updates at least every seconds. OpenVPN reports byte counts at the
+     * shortest requested interval, or every BYTECOUNT_INTERVAL_IDLE seconds if nobody asks.
+     * @param onlyWhileScreenOn true if the updates are only shown to the user, e.g. in a
+     *                          visible fragment or the notification
+     */
+    public static void requestByteCountInterval(Object requester, int seconds, boolean onlyWhileScreenOn) {
+        synchronized (byteCountIntervalRequests) {
+            byteCountIntervalRequests.put(requester, new ByteCountIntervalRequest(seconds, onlyWhileScreenOn));
+            updateByteCountInterval();
+        }
+    }
+
+    public static void releaseByteCountInterval(Object requester) {
+        synchronized (byteCountIntervalRequests) {
+            if (byteCountIntervalRequests.remove(requester) != null) {
+                updateByteCountInterval();
+            }
+        }
+    }
+
+    public static void setScreenOn(boolean isScreenOn) {
+        synchronized (byteCountIntervalRequests) {
+            screenOn = isScreenOn;
+            updateByteCountInterval();
+        }
+    }
+
+    public static void setPowerSaveMode(boolean isPowerSaveMode) {
+        synchronized (byteCountIntervalRequests) {
+            powerSaveMode = isPowerSaveMode;
+            updateByteCountInterval();
+        }
+    }
 
-    public synchronized static void addStateListener(StateListener sl) {
-        if (!stateListener.contains(sl)) {
-            stateListener.add(sl);
-            if (mLaststate != null)
-                    sl.updateState(mLaststate, mLaststatemsg, mLastStateresid, mLastLevel);
+    /**
+     * Sets the listener that applies the byte count interval, usually the management thread of
+     * the running OpenVPN process. It's called with the current interval right away.
+     */
+    public static void setByteCountIntervalListener(ByteCountIntervalListener listener) {
+        synchronized (byteCountIntervalRequests) {
+            byteCountIntervalListener = listener;
+            if (listener != null) {
+                listener.onByteCountIntervalChanged(byteCountInterval);
+            }
+        }
+    }
+
+    public static void removeByteCountIntervalListener(ByteCountIntervalListener listener) {
+        synchronized (byteCountIntervalRequests) {
+            if (byteCountIntervalListener == listener) {
+                byteCountIntervalListener = null;
+            }
+        }
+    }
+
+    public static int getByteCountInterval() {
+        synchronized (byteCountIntervalRequests) {
+            return byteCountInterval;
+        }
+    }
+
+    /**
+     * @return the seconds covered by the diffs of the last byte count update, use it to
+     * calculate the current speed
+     */
+    public static long getLastByteCountPeriod() {
+        return Math.max(1, Math.round(lastByteCountPeriodMillis / 1000.0));
+    }
+
+    /**
+     * @return the highest observed throughput in bytes per second since the given time
+     */
+    public static long getPeakThroughput(long since) {
+        synchronized (byteCountLock) {
+            return trafficHistory.getPeakRate(since);
+        }
+    }
+
+    private static void updateByteCountInterval() {
+        int interval = BYTECOUNT_INTERVAL_IDLE;
+        for (ByteCountIntervalRequest request : byteCountIntervalRequests.values()) {
+            if (request.onlyWhileScreenOn && !screenOn) {
+                continue;
+            }
+            interval = Math.min(interval, request.seconds);
+        }
+        if (powerSaveMode) {
+            interval = Math.max(interval, BYTECOUNT_INTERVAL_POWER_SAVE);
+        }
+        if (interval != byteCountInterval) {
+            byteCountInterval = interval;
+            if (byteCountIntervalListener != null) {
+                byteCountIntervalListener.onByteCountIntervalChanged(interval);
+            }
+        }
+    }
+
+
+    public static void addStateListener(StateListener sl) {
+        synchronized (stateLock) {
+            if (stateListener.addIfAbsent(sl) && mLaststate != null) {
+                sl.updateState(mLaststate, mLaststatemsg, mLastStateresid, mLastLevel);
+            }
         }
     }
 
@@ -397,17 +533,28 @@ public class VpnStatus {
     }
 
 
-    public synchronized static void removeStateListener(StateListener sl) {
+    public static void removeStateListener(StateListener sl) {
         stateListener.remove(sl);
     }
 
 
-    synchronized public static LogItem[] getlogbuffer() {
-
-        // The stoned way of java to return an array from a vector
-        // brought to you by eclipse auto complete
-        return logbuffer.toArray(new LogItem[logbuffer.size()]);
-
+    /**
+     * @return a snapshot of the log, oldest items first. Doesn't block concurrent logging.
+     */
+    public static LogItem[] getlogbuffer() {
+        LogItem[] items = logbuffer.snapshot();
+        synchronized (cachedLogbuffer) {
+            if (cachedLogbuffer.isEmpty()) {
+                return items;
+            }
+            LogItem[] result = new LogItem[cachedLogbuffer.size() + items.length];
+            int i = 0;
+            for (LogItem li : cachedLogbuffer) {
+                result[i++] = li;
+            }
+            System.arraycopy(items, 0, result, i, items.length);
+            return result;
+        }
     }
 
     static void updateStateString(String state, String msg) {
@@ -416,7 +563,13 @@ public class VpnStatus {
         updateStateString(state, msg, rid, level);
     }
 
-    public synchronized static void updateStateString(String state, String msg, int resid, ConnectionStatus level) {
+    public static void updateStateString(String state, String msg, int resid, ConnectionStatus level) {
+        synchronized (stateLock) {
+            updateStateStringLocked(state, msg, resid, level);
+        }
+    }
+
+    private static void updateStateStringLocked(String state, String msg, int resid, ConnectionStatus level) {
         // Workound for OpenVPN doing AUTH and wait and being connected
         // Simply ignore these state
         if (mLastLevel == ConnectionStatus.LEVEL_CONNECTED &&
@@ -449,6 +602,15 @@ public class VpnStatus {
         newLogItem(new LogItem(LogLevel.DEBUG, message));
     }
 
+    /**
+     * Reports the outcome of a reachability check that was done before a gateway was launched
+     * @param durationMs time until the gateway answered or the check failed
+     */
+    public static void logGatewayAttempt(String gatewayIp, String transport, long durationMs, boolean reachable) {
+        logDebug(String.format(Locale.US, "Gateway %s (%s) %s after %d ms", gatewayIp, transport,
+                reachable ? "reachable" : "unreachable", durationMs));
+    }
+
     public static void logInfo(int resourceId, Object... args) {
         newLogItem(new LogItem(LogLevel.INFO, resourceId, args));
     }
@@ -462,22 +624,30 @@ public class VpnStatus {
     }
 
 
-    synchronized static void newLogItem(LogItem logItem, boolean cachedLine) {
+    static void newLogItem(LogItem logItem, boolean cachedLine) {
         if (cachedLine) {
-            logbuffer.addFirst(logItem);
+            synchronized (cachedLogbuffer) {
+                cachedLogbuffer.addFirst(logItem);
+                if (cachedLogbuffer.size() > MAXLOGENTRIES) {
+                    cachedLogbuffer.removeLast();
+                }
+            }
         } else {
-            logbuffer.addLast(logItem);
+            long sequence = logbuffer.add(logItem);
             if (mLogFileHandler != null) {
                 Message m = mLogFileHandler.obtainMessage(LogFileHandler.LOG_MESSAGE, logItem);
                 mLogFileHandler.sendMessage(m);
             }
-        }
 
-        if (logbuffer.size() > MAXLOGENTRIES + MAXLOGENTRIES / 2) {
-            while (logbuffer.size() > MAXLOGENTRIES)
-                logbuffer.removeFirst();
-            if (mLogFileHandler != null)
-                mLogFileHandler.sendMessage(mLogFileHandler.obtainMessage(LogFileHandler.TRIM_LOG_FILE));
+            // the ring overwrites old items by itself, drop cached lines once this session filled
+            // the log and let the log cache catch up every MAXLOGENTRIES / 2 items
+            if (sequence + 1 >= MAXLOGENTRIES && (sequence + 1) % (MAXLOGENTRIES / 2) == 0) {
+                synchronized (cachedLogbuffer) {
+                    cachedLogbuffer.clear();
+                }
+                if (mLogFileHandler != null)
+                    mLogFileHandler.sendMessage(mLogFileHandler.obtainMessage(LogFileHandler.TRIM_LOG_FILE));
+            }
         }
 
         for (LogListener ll : logListener) {
@@ -517,11 +687,16 @@ public class VpnStatus {
 
     }
 
-    public static synchronized void updateByteCount(long in, long out) {
-        TrafficHistory.LastDiff diff = trafficHistory.add(in, out);
+    public static void updateByteCount(long in, long out) {
+        synchronized (byteCountLock) {
+            TrafficHistory.LastDiff diff = trafficHistory.add(in, out);
+            if (diff.getDiffMillis() > 0) {
+                lastByteCountPeriodMillis = diff.getDiffMillis();
+            }
 
-        for (ByteCountListener bcl : byteCountListener) {
-            bcl.updateByteCount(in, out, diff.getDiffIn(), diff.getDiffOut());
+            for (ByteCountListener bcl : byteCountListener) {
+                bcl.updateByteCount(in, out, diff.getDiffIn(), diff.getDiffOut());
+            }
         }
     }
 
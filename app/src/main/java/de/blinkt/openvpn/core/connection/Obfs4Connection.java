@@ -33,6 +33,15 @@ public class Obfs4Connection extends Connection {
         return connection;
     }
 
+    /**
+     * @return a copy of this connection that uses the given obfs4 options
+     */
+    public Obfs4Connection copy(Obfs4Options options) throws CloneNotSupportedException {
+        Obfs4Connection connection = (Obfs4Connection) clone();
+        connection.options = options;
+        return connection;
+    }
+
     @Override
     public TransportType getTransportType() {
         return options.transport.getTransportType();
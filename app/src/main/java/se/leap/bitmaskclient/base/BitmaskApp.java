@@ -23,7 +23,6 @@ import static se.leap.bitmaskclient.appUpdate.DownloadServiceCommand.CHECK_VERSI
 import static se.leap.bitmaskclient.appUpdate.DownloadServiceCommand.DOWNLOAD_UPDATE;
 import static se.leap.bitmaskclient.base.models.Constants.BROADCAST_DOWNLOAD_SERVICE_EVENT;
 import static se.leap.bitmaskclient.base.utils.ConfigHelper.isCalyxOSWithTetheringSupport;
-import static se.leap.bitmaskclient.base.utils.PreferenceHelper.getSavedProviderFromSharedPreferences;
 
 import android.content.IntentFilter;
 
@@ -44,8 +43,11 @@ import se.leap.bitmaskclient.appUpdate.DownloadBroadcastReceiver;
 import se.leap.bitmaskclient.base.models.ProviderObservable;
 import se.leap.bitmaskclient.base.utils.PRNGFixes;
 import se.leap.bitmaskclient.base.utils.PreferenceHelper;
+import se.leap.bitmaskclient.base.utils.ProviderSnapshot;
 import se.leap.bitmaskclient.eip.EipSetupObserver;
+import se.leap.bitmaskclient.eip.GatewayHistory;
 import se.leap.bitmaskclient.providersetup.ProviderSetupObservable;
+import se.leap.bitmaskclient.providersetup.connectivity.DnsCacheInvalidator;
 import se.leap.bitmaskclient.tethering.TetheringStateManager;
 import se.leap.bitmaskclient.tor.TorStatusObservable;
 
@@ -73,10 +75,14 @@ public class BitmaskApp extends MultiDexApplication implements DefaultLifecycleO
         Security.insertProviderAt(Conscrypt.newProvider(), 1);
         preferenceHelper = new PreferenceHelper(this);
         providerObservable = ProviderObservable.getInstance();
-        providerObservable.updateProvider(getSavedProviderFromSharedPreferences());
+        // restored in the background, see ProviderObservable.whenRestored()
+        ProviderSnapshot.init(this);
+        ProviderSnapshot.getInstance().restoreCurrentProvider(providerObservable);
         torStatusObservable = TorStatusObservable.getInstance();
         providerSetupObservable = ProviderSetupObservable.getInstance();
         EipSetupObserver.init(this);
+        GatewayHistory.init(this);
+        DnsCacheInvalidator.init(this);
         AppCompatDelegate.setCompatVectorFromResourcesEnabled(true);
         ProcessLifecycleOwner.get().getLifecycle().addObserver(this);
         if (!isCalyxOSWithTetheringSupport(this)) {
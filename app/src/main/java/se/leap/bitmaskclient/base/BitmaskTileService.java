@@ -8,6 +8,8 @@ import android.os.Build;
 import android.service.quicksettings.Tile;
 import android.service.quicksettings.TileService;
 
+import androidx.core.content.ContextCompat;
+
 import java.beans.PropertyChangeEvent;
 import java.beans.PropertyChangeListener;
 import java.util.Observable;
@@ -28,6 +30,11 @@ public class BitmaskTileService extends TileService implements PropertyChangeLis
     @Override
     public void onClick() {
         super.onClick();
+        // the tile may be tapped while the app process is starting
+        ProviderObservable.getInstance().whenRestored(ContextCompat.getMainExecutor(this), this::onRestoredClick);
+    }
+
+    private void onRestoredClick() {
         Provider provider = ProviderObservable.getInstance().getCurrentProvider();
         if (provider.isConfigured()) {
             if (!isLocked()) {
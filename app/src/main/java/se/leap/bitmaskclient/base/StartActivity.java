@@ -82,6 +82,14 @@ public class StartActivity extends Activity{
 
         Log.d(TAG, "Started");
 
+        // upgrades and the decision to set up a provider depend on the provider saved on disk
+        ProviderObservable.getInstance().whenRestored(this::runOnUiThread, this::onProviderRestored);
+    }
+
+    private void onProviderRestored() {
+        if (isFinishing() || isDestroyed()) {
+            return;
+        }
         switch (checkAppStart()) {
             case NORMAL:
                 break;
@@ -99,7 +99,6 @@ public class EipFragment extends Fragment implements PropertyChangeListener {
     private TorStatusObservable torStatusObservable;
 
     private @DrawableRes int pendingAnimationState;
-    private GatewaysManager gatewaysManager;
 
     //---saved Instance -------
     private final String KEY_SHOW_PENDING_START_CANCELLATION = "KEY_SHOW_PENDING_START_CANCELLATION";
@@ -138,8 +137,6 @@ public class EipFragment extends Fragment implements PropertyChangeListener {
         eipStatus = EipStatus.getInstance();
         providerObservable = ProviderObservable.getInstance();
         torStatusObservable = TorStatusObservable.getInstance();
-
-        gatewaysManager = new GatewaysManager(getContext());
     }
 
     @Override
@@ -200,6 +197,7 @@ public class EipFragment extends Fragment implements PropertyChangeListener {
     public void onResume() {
         super.onResume();
         Log.d(TAG, "onResume");
+        VpnStatus.requestByteCountInterval(this, VpnStatus.BYTECOUNT_INTERVAL_FAST, true);
         handleNewState();
     }
 
@@ -207,6 +205,7 @@ public class EipFragment extends Fragment implements PropertyChangeListener {
     public void onPause() {
         super.onPause();
         Log.d(TAG, "onPause");
+        VpnStatus.releaseByteCountInterval(this);
         if (stateView.getDrawable() instanceof Animatable) {
             Animatable animatedDrawable = (Animatable) stateView.getDrawable();
             if (animatedDrawable.isRunning()) {
@@ -464,7 +463,7 @@ public class EipFragment extends Fragment implements PropertyChangeListener {
             setMainButtonEnabled(true);
             mainButton.updateState(true, false);
             Connection.TransportType transportType = PreferenceHelper.getUseBridges() ? Connection.TransportType.OBFS4 : Connection.TransportType.OPENVPN;
-            locationButton.setLocationLoad(PreferenceHelper.useObfuscationPinning() ? GatewaysManager.Load.UNKNOWN : gatewaysManager.getLoadForLocation(VpnStatus.getLastConnectedVpnName(), transportType));
+            locationButton.setLocationLoad(PreferenceHelper.useObfuscationPinning() ? GatewaysManager.Load.UNKNOWN : GatewaysManager.getInstance(activity).getLoadForLocation(VpnStatus.getLastConnectedVpnName(), transportType));
             locationButton.setText(VpnStatus.getLastConnectedVpnName());
             locationButton.showBridgeIndicator(VpnStatus.isUsingBridges());
             locationButton.showRecommendedIndicator(getPreferredCity() == null);
@@ -87,7 +87,7 @@ public class GatewaySelectionFragment extends Fragment implements PropertyChange
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
-        gatewaysManager = new GatewaysManager(getContext());
+        gatewaysManager = GatewaysManager.getInstance(getContext());
         eipStatus = EipStatus.getInstance();
     }
 
@@ -214,6 +214,7 @@ public class GatewaySelectionFragment extends Fragment implements PropertyChange
         if (key.equals(USE_BRIDGES)) {
             boolean showBridges = getUseBridges();
             selectedTransport = showBridges ? PT : OPENVPN;
+            gatewaysManager = GatewaysManager.getInstance(getContext());
             gatewaysManager.updateTransport(selectedTransport);
             locationListAdapter.updateTransport(selectedTransport, gatewaysManager);
             bridgesHint.setVisibility(showBridges ? VISIBLE : GONE);
@@ -54,7 +54,6 @@ import java.util.Vector;
 import de.blinkt.openvpn.VpnProfile;
 import de.blinkt.openvpn.core.ConnectionStatus;
 import de.blinkt.openvpn.core.LogItem;
-import de.blinkt.openvpn.core.OpenVPNManagement;
 import de.blinkt.openvpn.core.OpenVPNService;
 import de.blinkt.openvpn.core.VpnStatus;
 import de.blinkt.openvpn.core.VpnStatus.LogListener;
@@ -112,8 +111,8 @@ public class LogFragment extends ListFragment implements StateListener, SeekBar.
     public void updateByteCount(long in, long out, long diffIn, long diffOut) {
         //%2$s/s %1$s - ↑%4$s/s %3$s
         Resources res = getActivity().getResources();
-        final String down = String.format("%2$s %1$s", humanReadableByteCount(in, false, res), humanReadableByteCount(diffIn / OpenVPNManagement.mBytecountInterval, true, res));
-        final String up = String.format("%2$s %1$s", humanReadableByteCount(out, false, res), humanReadableByteCount(diffOut / OpenVPNManagement.mBytecountInterval, true, res));
+        final String down = String.format("%2$s %1$s", humanReadableByteCount(in, false, res), humanReadableByteCount(diffIn / VpnStatus.getLastByteCountPeriod(), true, res));
+        final String up = String.format("%2$s %1$s", humanReadableByteCount(out, false, res), humanReadableByteCount(diffOut / VpnStatus.getLastByteCountPeriod(), true, res));
 
         if (mUpStatus != null && mDownStatus != null) {
             if (getActivity() != null) {
@@ -451,6 +450,7 @@ public class LogFragment extends ListFragment implements StateListener, SeekBar.
         super.onStart();
         VpnStatus.addStateListener(this);
         VpnStatus.addByteCountListener(this);
+        VpnStatus.requestByteCountInterval(this, VpnStatus.BYTECOUNT_INTERVAL_FAST, true);
     }
 
     @Override
@@ -458,6 +458,7 @@ public class LogFragment extends ListFragment implements StateListener, SeekBar.
         super.onStop();
         VpnStatus.removeStateListener(this);
         VpnStatus.removeByteCountListener(this);
+        VpnStatus.releaseByteCountInterval(this);
 
         getActivity().getPreferences(0).edit().putInt(LOGTIMEFORMAT, ladapter.mTimeFormat)
                 .putInt(VERBOSITYLEVEL, ladapter.mLogLevel).apply();
@@ -53,7 +53,7 @@ public class ObfuscationProxyDialog extends AppCompatDialogFragment {
         certificateField.setText(PreferenceHelper.getObfuscationPinningCert());
         kcpSwitch.setChecked(PreferenceHelper.getObfuscationPinningKCP());
 
-        GatewaysManager gatewaysManager = new GatewaysManager(getContext());
+        GatewaysManager gatewaysManager = GatewaysManager.getInstance(getContext());
 
         saveButton.setOnClickListener(v -> {
             String ip = TextUtils.isEmpty(ipField.getText()) ? null : ipField.getText().toString();
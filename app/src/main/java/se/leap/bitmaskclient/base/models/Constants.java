@@ -45,6 +45,7 @@ public interface Constants {
     String USE_SNOWFLAKE = "use_snowflake";
     String PREFER_UDP = "prefer_UDP";
     String GATEWAY_PINNING = "gateway_pinning";
+    String GATEWAY_RACING = "gateway_racing";
     String ALLOW_EXPERIMENTAL_TRANSPORTS = "allow_experimental_transports";
     String USE_OBFUSCATION_PINNING = "use_obfuscation_pinning";
     String OBFUSCATION_PINNING_IP = "obfuscation_pinning_ip";
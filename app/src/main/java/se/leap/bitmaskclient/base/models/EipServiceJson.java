@@ -0,0 +1,323 @@
+package se.leap.bitmaskclient.base.models;
+
+import static se.leap.bitmaskclient.base.models.Constants.GATEWAYS;
+import static se.leap.bitmaskclient.base.models.Constants.LOCATIONS;
+import static se.leap.bitmaskclient.base.models.Constants.NAME;
+import static se.leap.bitmaskclient.base.models.Constants.OPENVPN_CONFIGURATION;
+import static se.leap.bitmaskclient.base.models.Constants.TIMEZONE;
+import static se.leap.bitmaskclient.base.models.Constants.VERSION;
+import static se.leap.bitmaskclient.providersetup.ProviderAPI.ERRORS;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.google.gson.FieldNamingPolicy;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.google.gson.TypeAdapter;
+import com.google.gson.TypeAdapterFactory;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Typed model of a provider's eip-service.json. It is read with a streaming JsonReader, so
+ * the parsed values can be accessed without keeping a JSON tree of the whole document around.
+ * Unknown fields are skipped, gateways that can't be parsed are left out.
+ *
+ * The Provider parses it once from the downloaded or persisted json and keeps it, see
+ * {@link Provider#getEipService()}.
+ */
+public class EipServiceJson {
+
+    // snake case names of the transport options, the other fields are annotated
+    static final Gson GSON = new GsonBuilder().
+            setFieldNamingPolicy(FieldNamingPolicy.LOWER_CASE_WITH_UNDERSCORES).
+            registerTypeAdapterFactory(new LegacyTransportAdapterFactory()).
+            create();
+
+    private int version;
+    private boolean isEmpty = true;
+    private boolean hasErrors;
+    private final Map<String, GatewayLocation> locations = new HashMap<>();
+    private final Map<String, String> openvpnConfiguration = new LinkedHashMap<>();
+    private final List<GatewayJson> gateways = new ArrayList<>();
+
+    public static class GatewayLocation {
+        private final String name;
+        private final int timezone;
+
+        public GatewayLocation(String name, int timezone) {
+            this.name = name;
+            this.timezone = timezone;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public int getTimezone() {
+            return timezone;
+        }
+    }
+
+    /**
+     * API v1 gateways list their transports by name only. Those transports are not needed to
+     * configure the gateway, they are read as null instead of failing the whole gateway.
+     */
+    private static class LegacyTransportAdapterFactory implements TypeAdapterFactory {
+        @Override
+        public <T> TypeAdapter<T> create(Gson gson, TypeToken<T> type) {
+            if (type.getRawType() != Transport.class) {
+                return null;
+            }
+            TypeAdapter<T> delegate = gson.getDelegateAdapter(this, type);
+            return new TypeAdapter<T>() {
+                @Override
+                public void write(JsonWriter out, T value) throws IOException {
+                    delegate.write(out, value);
+                }
+
+                @Override
+                public T read(JsonReader in) throws IOException {
+                    if (in.peek() == JsonToken.STRING) {
+                        in.skipValue();
+                        return null;
+                    }
+                    return delegate.read(in);
+                }
+            };
+        }
+    }
+
+    /**
+     * Only for callers that hold a JSONObject anyway, otherwise parse the json string
+     */
+    public static EipServiceJson fromJson(JSONObject json) throws IOException {
+        return parse(new StringReader(json.toString()));
+    }
+
+    public static EipServiceJson parse(Reader reader) throws IOException {
+        EipServiceJson eipService = new EipServiceJson();
+        JsonReader in = new JsonReader(reader);
+        try {
+            in.beginObject();
+            while (in.hasNext()) {
+                String name = in.nextName();
+                eipService.isEmpty = false;
+                switch (name) {
+                    case VERSION:
+                        eipService.version = readInt(in);
+                        break;
+                    case LOCATIONS:
+                        readLocations(in, eipService.locations);
+                        break;
+                    case OPENVPN_CONFIGURATION:
+                        readConfiguration(in, eipService.openvpnConfiguration);
+                        break;
+                    case GATEWAYS:
+                        readGateways(in, eipService.gateways);
+                        break;
+                    case ERRORS:
+                        eipService.hasErrors = true;
+                        in.skipValue();
+                        break;
+                    default:
+                        in.skipValue();
+                }
+            }
+            in.endObject();
+        } catch (IllegalStateException | NumberFormatException | JsonParseException e) {
+            throw new IOException("Invalid eip-service.json", e);
+        }
+        return eipService;
+    }
+
+    private static void readLocations(JsonReader in, Map<String, GatewayLocation> locations) throws IOException {
+        if (in.peek() != JsonToken.BEGIN_OBJECT) {
+            in.skipValue();
+            return;
+        }
+        in.beginObject();
+        while (in.hasNext()) {
+            String key = in.nextName();
+            if (in.peek() != JsonToken.BEGIN_OBJECT) {
+                in.skipValue();
+                continue;
+            }
+            String name = "";
+            int timezone = 0;
+            in.beginObject();
+            while (in.hasNext()) {
+                switch (in.nextName()) {
+                    case NAME:
+                        name = readString(in);
+                        break;
+                    case TIMEZONE:
+                        timezone = readInt(in);
+                        break;
+                    default:
+                        in.skipValue();
+                }
+            }
+            in.endObject();
+            locations.put(key, new GatewayLocation(name, timezone));
+        }
+        in.endObject();
+    }
+
+    private static void readConfiguration(JsonReader in, Map<String, String> configuration) throws IOException {
+        if (in.peek() != JsonToken.BEGIN_OBJECT) {
+            in.skipValue();
+            return;
+        }
+        in.beginObject();
+        while (in.hasNext()) {
+            String key = in.nextName();
+            configuration.put(key, readString(in));
+        }
+        in.endObject();
+    }
+
+    private static void readGateways(JsonReader in, List<GatewayJson> gateways) throws IOException {
+        if (in.peek() != JsonToken.BEGIN_ARRAY) {
+            in.skipValue();
+            return;
+        }
+        TypeAdapter<GatewayJson> adapter = GSON.getAdapter(GatewayJson.class);
+        in.beginArray();
+        while (in.hasNext()) {
+            String gatewayPath = in.getPath();
+            try {
+                GatewayJson gatewayJson = adapter.read(in);
+                if (gatewayJson != null) {
+                    gateways.add(gatewayJson);
+                }
+            } catch (JsonParseException | IllegalStateException | NumberFormatException e) {
+                e.printStackTrace();
+                skipRemainder(in, gatewayPath);
+            }
+        }
+        in.endArray();
+    }
+
+    /**
+     * Skips what's left of a value the reader failed to read at the given path, so that the
+     * values following it can still be read. Type mismatches are thrown before the mismatching
+     * token is consumed.
+     */
+    private static void skipRemainder(JsonReader in, String path) throws IOException {
+        while (in.getPath().startsWith(path + ".") || in.getPath().startsWith(path + "[")) {
+            switch (in.peek()) {
+                case END_OBJECT:
+                    in.endObject();
+                    break;
+                case END_ARRAY:
+                    in.endArray();
+                    break;
+                default:
+                    in.skipValue();
+            }
+        }
+        if (in.getPath().equals(path)) {
+            // the value itself had an unexpected type
+            in.skipValue();
+        }
+    }
+
+    /**
+     * Reads any primitive as String, like JSONObject.optString() does
+     */
+    static String readString(JsonReader in) throws IOException {
+        switch (in.peek()) {
+            case NULL:
+                in.nextNull();
+                return "";
+            case BOOLEAN:
+                return String.valueOf(in.nextBoolean());
+            case BEGIN_OBJECT:
+            case BEGIN_ARRAY:
+                return JsonParser.parseReader(in).toString();
+            default:
+                return in.nextString();
+        }
+    }
+
+    /**
+     * Reads numbers and numeric strings, like JSONObject.optInt() does
+     */
+    static int readInt(JsonReader in) throws IOException {
+        String value = readString(in);
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            try {
+                return (int) Double.parseDouble(value);
+            } catch (NumberFormatException nfe) {
+                return 0;
+            }
+        }
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    /**
+     * @return true if the json didn't contain any field
+     */
+    public boolean isEmpty() {
+        return isEmpty;
+    }
+
+    /**
+     * @return true if the provider answered with errors instead of its eip service
+     */
+    public boolean hasErrors() {
+        return hasErrors;
+    }
+
+    public int getLocationCount() {
+        return locations.size();
+    }
+
+    /**
+     * @return the location of a gateway or null if the provider didn't define it
+     */
+    @Nullable
+    public GatewayLocation getLocation(@Nullable String location) {
+        return location == null ? null : locations.get(location);
+    }
+
+    /**
+     * @return the general openvpn options in the order the provider defined them
+     */
+    public Map<String, String> getOpenvpnConfiguration() {
+        return Collections.unmodifiableMap(openvpnConfiguration);
+    }
+
+    public List<GatewayJson> getGateways() {
+        return Collections.unmodifiableList(gateways);
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return new Gson().toJson(this);
+    }
+}
@@ -1,9 +1,9 @@
 package se.leap.bitmaskclient.base.models;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 
 import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
 import com.google.gson.annotations.SerializedName;
 
 import org.json.JSONObject;
@@ -25,6 +25,27 @@ public class GatewayJson {
         this.capabilities = capabilities;
     }
 
+    public String getLocation() {
+        return location;
+    }
+
+    public String getIpAddress() {
+        return ipAddress;
+    }
+
+    public String getIpAddress6() {
+        return ipAddress6;
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    @Nullable
+    public Capabilities getCapabilities() {
+        return capabilities;
+    }
+
     @NonNull
     @Override
     public String toString() {
@@ -32,8 +53,7 @@ public class GatewayJson {
     }
 
     public static GatewayJson fromJson(JSONObject json) {
-        GsonBuilder builder = new GsonBuilder();
-        return builder.create().fromJson(json.toString(), GatewayJson.class);
+        return EipServiceJson.GSON.fromJson(json.toString(), GatewayJson.class);
     }
 
     public static class Capabilities {
@@ -44,6 +64,9 @@ public class GatewayJson {
         private Transport[] transport;
         @SerializedName(value = "user_ips")
         private Boolean userIps;
+        // API v1 only
+        private String[] ports;
+        private String[] protocols;
 
         public Capabilities(Boolean adblock, Boolean filterDns, Boolean limited, Transport[] transport, Boolean userIps) {
             this.adblock = adblock;
@@ -52,6 +75,22 @@ public class GatewayJson {
             this.transport = transport;
             this.userIps = userIps;
         }
+
+        @Nullable
+        public Transport[] getTransport() {
+            return transport;
+        }
+
+        @Nullable
+        public String[] getPorts() {
+            return ports;
+        }
+
+        @Nullable
+        public String[] getProtocols() {
+            return protocols;
+        }
+
         @NonNull
         @Override
         public String toString() {
@@ -0,0 +1,189 @@
+package se.leap.bitmaskclient.base.models;
+
+import static se.leap.bitmaskclient.base.models.Constants.FULLNESS;
+import static se.leap.bitmaskclient.base.models.Constants.GATEWAYS;
+import static se.leap.bitmaskclient.base.models.Constants.HOST;
+import static se.leap.bitmaskclient.base.models.Constants.OVERLOAD;
+import static se.leap.bitmaskclient.base.models.Constants.SORTED_GATEWAYS;
+import static se.leap.bitmaskclient.providersetup.ProviderAPI.ERRORS;
+
+import androidx.annotation.NonNull;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Typed model of the menshen geoip response: the gateway hosts sorted by distance, optionally
+ * together with their load. Read with a streaming JsonReader, unknown fields are skipped.
+ */
+public class GeoIpJson {
+
+    private final List<String> gateways = new ArrayList<>();
+    private final List<GatewayLoad> sortedGateways = new ArrayList<>();
+    private boolean hasSortedGateways;
+    private boolean isEmpty = true;
+    private boolean hasErrors;
+
+    public static class GatewayLoad {
+        private final String host;
+        private final double fullness;
+        private final boolean overload;
+
+        public GatewayLoad(String host, double fullness, boolean overload) {
+            this.host = host;
+            this.fullness = fullness;
+            this.overload = overload;
+        }
+
+        public String getHost() {
+            return host;
+        }
+
+        /**
+         * @return the load of the gateway between 0 and 1 or NaN if unknown
+         */
+        public double getFullness() {
+            return fullness;
+        }
+
+        public boolean isOverloaded() {
+            return overload;
+        }
+    }
+
+    public static GeoIpJson parse(Reader reader) throws IOException {
+        GeoIpJson geoIp = new GeoIpJson();
+        JsonReader in = new JsonReader(reader);
+        try {
+            in.beginObject();
+            while (in.hasNext()) {
+                String name = in.nextName();
+                geoIp.isEmpty = false;
+                switch (name) {
+                    case GATEWAYS:
+                        readHosts(in, geoIp.gateways);
+                        break;
+                    case SORTED_GATEWAYS:
+                        geoIp.hasSortedGateways = true;
+                        readLoads(in, geoIp.sortedGateways);
+                        break;
+                    case ERRORS:
+                        geoIp.hasErrors = true;
+                        in.skipValue();
+                        break;
+                    default:
+                        in.skipValue();
+                }
+            }
+            in.endObject();
+        } catch (IllegalStateException | NumberFormatException | JsonParseException e) {
+            throw new IOException("Invalid geoip json", e);
+        }
+        return geoIp;
+    }
+
+    private static void readHosts(JsonReader in, List<String> hosts) throws IOException {
+        if (in.peek() != JsonToken.BEGIN_ARRAY) {
+            in.skipValue();
+            return;
+        }
+        in.beginArray();
+        while (in.hasNext()) {
+            if (in.peek() == JsonToken.STRING) {
+                hosts.add(in.nextString());
+            } else {
+                in.skipValue();
+            }
+        }
+        in.endArray();
+    }
+
+    private static void readLoads(JsonReader in, List<GatewayLoad> loads) throws IOException {
+        if (in.peek() != JsonToken.BEGIN_ARRAY) {
+            in.skipValue();
+            return;
+        }
+        in.beginArray();
+        while (in.hasNext()) {
+            if (in.peek() != JsonToken.BEGIN_OBJECT) {
+                in.skipValue();
+                continue;
+            }
+            String host = null;
+            double fullness = Double.NaN;
+            boolean overload = false;
+            in.beginObject();
+            while (in.hasNext()) {
+                switch (in.nextName()) {
+                    case HOST:
+                        host = EipServiceJson.readString(in);
+                        break;
+                    case FULLNESS:
+                        fullness = readDouble(in);
+                        break;
+                    case OVERLOAD:
+                        overload = Boolean.parseBoolean(EipServiceJson.readString(in));
+                        break;
+                    default:
+                        in.skipValue();
+                }
+            }
+            in.endObject();
+            if (host != null) {
+                loads.add(new GatewayLoad(host, fullness, overload));
+            }
+        }
+        in.endArray();
+    }
+
+    private static double readDouble(JsonReader in) throws IOException {
+        try {
+            return Double.parseDouble(EipServiceJson.readString(in));
+        } catch (NumberFormatException e) {
+            return Double.NaN;
+        }
+    }
+
+    /**
+     * @return true if the json didn't contain any field
+     */
+    public boolean isEmpty() {
+        return isEmpty;
+    }
+
+    public boolean hasErrors() {
+        return hasErrors;
+    }
+
+    /**
+     * @return gateway hosts sorted by distance
+     */
+    public List<String> getGateways() {
+        return Collections.unmodifiableList(gateways);
+    }
+
+    public boolean hasSortedGateways() {
+        return hasSortedGateways;
+    }
+
+    /**
+     * @return gateway hosts sorted by distance and load, together with their load
+     */
+    public List<GatewayLoad> getSortedGateways() {
+        return Collections.unmodifiableList(sortedGateways);
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return new Gson().toJson(this);
+    }
+}
@@ -20,14 +20,8 @@ import static de.blinkt.openvpn.core.connection.Connection.TransportProtocol.KCP
 import static de.blinkt.openvpn.core.connection.Connection.TransportProtocol.TCP;
 import static de.blinkt.openvpn.core.connection.Connection.TransportType.OBFS4;
 import static de.blinkt.openvpn.core.connection.Connection.TransportType.OBFS4_HOP;
-import static se.leap.bitmaskclient.base.models.Constants.CAPABILITIES;
-import static se.leap.bitmaskclient.base.models.Constants.GATEWAYS;
-import static se.leap.bitmaskclient.base.models.Constants.LOCATIONS;
-import static se.leap.bitmaskclient.base.models.Constants.PROTOCOLS;
 import static se.leap.bitmaskclient.base.models.Constants.PROVIDER_ALLOWED_REGISTERED;
 import static se.leap.bitmaskclient.base.models.Constants.PROVIDER_ALLOW_ANONYMOUS;
-import static se.leap.bitmaskclient.base.models.Constants.TRANSPORT;
-import static se.leap.bitmaskclient.base.models.Constants.TYPE;
 import static se.leap.bitmaskclient.base.utils.PrivateKeyHelper.parsePrivateKeyFromString;
 import static se.leap.bitmaskclient.providersetup.ProviderAPI.ERRORS;
 
@@ -35,13 +29,17 @@ import android.os.Parcel;
 import android.os.Parcelable;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
 
 import com.google.gson.Gson;
 
-import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.security.PrivateKey;
@@ -65,8 +63,10 @@ public final class Provider implements Parcelable {
     private static final long GEOIP_SERVICE_TIMEOUT = 1000 * 60 * 60;
     private static final long MOTD_TIMEOUT = 1000 * 60 * 60 * 24;
     private JSONObject definition = new JSONObject(); // Represents our Provider's provider.json
-    private JSONObject eipServiceJson = new JSONObject();
-    private JSONObject geoIpJson = new JSONObject();
+    // eip-service.json and geoip json as downloaded or persisted. The typed models are parsed
+    // from them once, JSONObjects only for callers asking for them.
+    private volatile ParsedJson<EipServiceJson> eipService = new ParsedJson<>(EMPTY_JSON, EipServiceJson::parse);
+    private volatile ParsedJson<GeoIpJson> geoIp = new ParsedJson<>(EMPTY_JSON, GeoIpJson::parse);
     private JSONObject motdJson = new JSONObject();
     private DefaultedURL mainUrl = new DefaultedURL();
     private DefaultedURL apiUrl = new DefaultedURL();
@@ -112,6 +112,7 @@ public final class Provider implements Parcelable {
             MOTD_URL = "motd_url";
 
     private static final String API_TERM_NAME = "name";
+    private static final String EMPTY_JSON = "{}";
 
     public Provider() { }
 
@@ -196,27 +197,28 @@ public final class Provider implements Parcelable {
     }
 
     private boolean supportsTransports(Pair<TransportType, TransportProtocol>[] transportTypes) {
-        try {
-            JSONArray gatewayJsons = eipServiceJson.getJSONArray(GATEWAYS);
-            for (int i = 0; i < gatewayJsons.length(); i++) {
-                JSONArray transports = gatewayJsons.getJSONObject(i).
-                        getJSONObject(CAPABILITIES).
-                        getJSONArray(TRANSPORT);
-                for (int j = 0; j < transports.length(); j++) {
-                    String supportedTransportType = transports.getJSONObject(j).getString(TYPE);
-                    JSONArray transportProtocols = transports.getJSONObject(j).getJSONArray(PROTOCOLS);
-                    for (Pair<TransportType, TransportProtocol> transportPair : transportTypes) {
-                        for (int k = 0; k < transportProtocols.length(); k++) {
-                            if (transportPair.first.toString().equals(supportedTransportType) &&
-                                transportPair.second.toString().equals(transportProtocols.getString(k))) {
-                                return true;
-                            }
+        EipServiceJson eipService = getEipService();
+        if (eipService == null) {
+            return false;
+        }
+        for (GatewayJson gateway : eipService.getGateways()) {
+            GatewayJson.Capabilities capabilities = gateway.getCapabilities();
+            if (capabilities == null || capabilities.getTransport() == null) {
+                continue;
+            }
+            for (Transport transport : capabilities.getTransport()) {
+                if (transport == null || transport.getProtocols() == null) {
+                    continue;
+                }
+                for (Pair<TransportType, TransportProtocol> transportPair : transportTypes) {
+                    for (String protocol : transport.getProtocols()) {
+                        if (transportPair.first.toString().equals(transport.getType()) &&
+                            transportPair.second.toString().equals(protocol)) {
+                            return true;
                         }
                     }
                 }
             }
-        } catch (Exception e) {
-            // ignore
         }
         return false;
     }
@@ -337,7 +339,8 @@ public final class Provider implements Parcelable {
     }
 
     public boolean hasGeoIpJson() {
-        return geoIpJson != null && geoIpJson.length() > 0;
+        GeoIpJson geoIp = getGeoIp();
+        return geoIp != null && !geoIp.isEmpty();
     }
 
 
@@ -385,16 +388,13 @@ public final class Provider implements Parcelable {
     }
 
     public boolean hasEIP() {
-        return getEipServiceJson() != null && getEipServiceJson().length() > 0
-                && !getEipServiceJson().has(ERRORS);
+        EipServiceJson eipService = getEipService();
+        return eipService != null && !eipService.isEmpty() && !eipService.hasErrors();
     }
 
     public boolean hasGatewaysInDifferentLocations() {
-        try {
-            return getEipServiceJson().getJSONObject(LOCATIONS).length() > 1;
-        } catch (NullPointerException | JSONException e) {
-            return false;
-        }
+        EipServiceJson eipService = getEipService();
+        return eipService != null && eipService.getLocationCount() > 1;
     }
 
     @Override
@@ -458,11 +458,11 @@ public final class Provider implements Parcelable {
             }
             tmpString = in.readString();
             if (!tmpString.isEmpty()) {
-                this.setEipServiceJson(new JSONObject(tmpString));
+                this.setEipServiceJson(tmpString);
             }
             tmpString = in.readString();
             if (!tmpString.isEmpty()) {
-                this.setGeoIpJson(new JSONObject(tmpString));
+                this.setGeoIpJson(tmpString);
             }
             tmpString = in.readString();
             if (!tmpString.isEmpty()) {
@@ -497,8 +497,8 @@ public final class Provider implements Parcelable {
             return getDomain().equals(p.getDomain()) &&
             mainUrl.getDomain().equals(p.mainUrl.getDomain()) &&
             definition.toString().equals(p.getDefinition().toString()) &&
-            eipServiceJson.toString().equals(p.getEipServiceJsonString()) &&
-            geoIpJson.toString().equals(p.getGeoIpJsonString()) &&
+            getEipServiceJsonString().equals(p.getEipServiceJsonString()) &&
+            getGeoIpJsonString().equals(p.getGeoIpJsonString()) &&
             motdJson.toString().equals(p.getMotdJsonString()) &&
             providerIp.equals(p.getProviderIp()) &&
             providerApiIp.equals(p.getProviderApiIp()) &&
@@ -659,32 +659,82 @@ public final class Provider implements Parcelable {
         if (eipServiceJson.has(ERRORS)) {
             return false;
         }
-        this.eipServiceJson = eipServiceJson;
+        eipService = new ParsedJson<>(eipServiceJson.toString(), EipServiceJson::parse, null, eipServiceJson);
         return true;
     }
 
+    /**
+     * Sets a persisted eip-service.json, it is parsed when it's needed for the first time
+     */
+    public void setEipServiceJson(@NonNull String eipServiceJson) {
+        setEipServiceJson(eipServiceJson, null);
+    }
+
+    /**
+     * @param eipService the model parsed from eipServiceJson or null to parse it lazily
+     */
+    public void setEipServiceJson(@NonNull String eipServiceJson, @Nullable EipServiceJson eipService) {
+        this.eipService = new ParsedJson<>(eipServiceJson.isEmpty() ? EMPTY_JSON : eipServiceJson, EipServiceJson::parse, eipService, null);
+    }
+
     public boolean setGeoIpJson(JSONObject geoIpJson) {
         if (geoIpJson.has(ERRORS)) {
             return false;
         }
-        this.geoIpJson = geoIpJson;
+        geoIp = new ParsedJson<>(geoIpJson.toString(), GeoIpJson::parse, null, geoIpJson);
         return true;
     }
 
+    /**
+     * Sets a persisted geoip json, it is parsed when it's needed for the first time
+     */
+    public void setGeoIpJson(@NonNull String geoIpJson) {
+        setGeoIpJson(geoIpJson, null);
+    }
+
+    /**
+     * @param geoIp the model parsed from geoIpJson or null to parse it lazily
+     */
+    public void setGeoIpJson(@NonNull String geoIpJson, @Nullable GeoIpJson geoIp) {
+        this.geoIp = new ParsedJson<>(geoIpJson.isEmpty() ? EMPTY_JSON : geoIpJson, GeoIpJson::parse, geoIp, null);
+    }
+
+    /**
+     * @return the parsed eip-service.json or null if it's invalid
+     */
+    @Nullable
+    public EipServiceJson getEipService() {
+        return eipService.getModel();
+    }
+
+    /**
+     * @return the parsed geoip json or null if it's invalid
+     */
+    @Nullable
+    public GeoIpJson getGeoIp() {
+        return geoIp.getModel();
+    }
+
+    /**
+     * Prefer {@link #getEipService()}, the JSONObject is parsed on the first call.
+     */
     public JSONObject getEipServiceJson() {
-        return eipServiceJson;
+        return eipService.getJsonObject();
     }
 
+    /**
+     * Prefer {@link #getGeoIp()}, the JSONObject is parsed on the first call.
+     */
     public JSONObject getGeoIpJson() {
-        return geoIpJson;
+        return geoIp.getJsonObject();
     }
 
     public String getGeoIpJsonString() {
-        return geoIpJson.toString();
+        return geoIp.getJson();
     }
 
     public String getEipServiceJsonString() {
-        return getEipServiceJson().toString();
+        return eipService.getJson();
     }
 
     public boolean isDefault() {
@@ -745,8 +795,8 @@ public final class Provider implements Parcelable {
      */
     public void reset() {
         definition = new JSONObject();
-        eipServiceJson = new JSONObject();
-        geoIpJson = new JSONObject();
+        setEipServiceJson(EMPTY_JSON);
+        setGeoIpJson(EMPTY_JSON);
         motdJson = new JSONObject();
         apiUrl = new DefaultedURL();
         certificatePin = "";
@@ -760,4 +810,74 @@ public final class Provider implements Parcelable {
         lastGeoIpUpdate = 0L;
         lastEipServiceUpdate = 0L;
     }
+
+    /**
+     * A json document as downloaded or persisted and the models parsed from it. It's replaced as
+     * a whole if the document changes. Each model is parsed at most once, an invalid document is
+     * remembered as such instead of being parsed again on every call.
+     */
+    @VisibleForTesting
+    static final class ParsedJson<T> {
+
+        interface Parser<T> {
+            T parse(Reader reader) throws IOException;
+        }
+
+        private final String json;
+        private final transient Parser<T> parser;
+        private transient volatile T model;
+        private transient volatile boolean invalid;
+        private transient volatile JSONObject jsonObject;
+
+        ParsedJson(@NonNull String json, @NonNull Parser<T> parser) {
+            this(json, parser, null, null);
+        }
+
+        ParsedJson(@NonNull String json, @NonNull Parser<T> parser, @Nullable T model, @Nullable JSONObject jsonObject) {
+            this.json = json;
+            this.parser = parser;
+            this.model = model;
+            this.jsonObject = jsonObject;
+        }
+
+        String getJson() {
+            return json;
+        }
+
+        @Nullable
+        T getModel() {
+            if (model == null && !invalid) {
+                synchronized (this) {
+                    if (model == null && !invalid) {
+                        T parsed = null;
+                        try {
+                            parsed = parser.parse(new StringReader(json));
+                        } catch (IOException e) {
+                            e.printStackTrace();
+                        }
+                        invalid = parsed == null;
+                        model = parsed;
+                    }
+                }
+            }
+            return model;
+        }
+
+        @NonNull
+        JSONObject getJsonObject() {
+            if (jsonObject == null) {
+                synchronized (this) {
+                    if (jsonObject == null) {
+                        try {
+                            jsonObject = new JSONObject(json);
+                        } catch (JSONException e) {
+                            e.printStackTrace();
+                            jsonObject = new JSONObject();
+                        }
+                    }
+                }
+            }
+            return jsonObject;
+        }
+    }
 }
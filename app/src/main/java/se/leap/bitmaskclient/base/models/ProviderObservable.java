@@ -1,20 +1,34 @@
 package se.leap.bitmaskclient.base.models;
 
+import android.util.Log;
+
 import androidx.annotation.NonNull;
+import androidx.annotation.WorkerThread;
 
 import java.beans.PropertyChangeListener;
 import java.beans.PropertyChangeSupport;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
 
 /**
  * Created by cyberta on 05.12.18.
  */
 public class ProviderObservable {
+    private static final String TAG = ProviderObservable.class.getSimpleName();
     private static ProviderObservable instance;
     private final PropertyChangeSupport changeSupport;
     public static final String PROPERTY_CHANGE = "ProviderObservable";
 
     private Provider currentProvider;
     private Provider providerForDns;
+    // set while the provider saved on disk is being restored
+    private volatile CountDownLatch restoreLatch;
+    // actions waiting for the restore, see whenRestored()
+    private List<Runnable> restoreActions = new ArrayList<>();
 
     public static ProviderObservable getInstance() {
         if (instance == null) {
@@ -36,16 +50,125 @@ public class ProviderObservable {
         changeSupport.removePropertyChangeListener(propertyChangeListener);
     }
 
-    public synchronized void updateProvider(@NonNull Provider provider) {
+    public void updateProvider(@NonNull Provider provider) {
+        List<Runnable> actions;
+        synchronized (this) {
+            actions = setProvider(provider);
+        }
+        runAll(actions);
+    }
+
+    /**
+     * Must be called holding the lock of the observable.
+     * @return the actions waiting for the restore, to be run without holding the lock
+     */
+    private List<Runnable> setProvider(@NonNull Provider provider) {
         instance.currentProvider = provider;
         instance.providerForDns = null;
+        List<Runnable> actions = finishRestore();
         instance.changeSupport.firePropertyChange(PROPERTY_CHANGE, null, provider);
+        return actions;
+    }
+
+    /**
+     * Restores the provider saved on disk in the background and publishes it once it's loaded,
+     * unless the provider is updated in the meantime, which takes precedence over the restored
+     * one. Until then getCurrentProvider() returns an unconfigured provider and isRestoring()
+     * is true, callers that depend on the saved provider use whenRestored() or, on a worker
+     * thread, awaitCurrentProvider().
+     * @param executor executor the loader runs on
+     * @param loader loads the provider, may return null if there's none
+     */
+    public void restoreProvider(@NonNull Executor executor, @NonNull Callable<Provider> loader) {
+        CountDownLatch latch = new CountDownLatch(1);
+        synchronized (this) {
+            instance.restoreLatch = latch;
+        }
+        executor.execute(() -> {
+            Provider provider = null;
+            try {
+                provider = loader.call();
+            } catch (Exception e) {
+                Log.e(TAG, "could not restore provider", e);
+            }
+            List<Runnable> actions = Collections.emptyList();
+            synchronized (this) {
+                if (instance.restoreLatch == latch) {
+                    actions = provider != null ? setProvider(provider) : finishRestore();
+                }
+            }
+            runAll(actions);
+            latch.countDown();
+        });
+    }
+
+    /**
+     * Must be called holding the lock of the observable.
+     * @return the actions waiting for the restore
+     */
+    private List<Runnable> finishRestore() {
+        CountDownLatch latch = instance.restoreLatch;
+        if (latch == null) {
+            return Collections.emptyList();
+        }
+        instance.restoreLatch = null;
+        latch.countDown();
+        List<Runnable> actions = instance.restoreActions;
+        instance.restoreActions = new ArrayList<>();
+        return actions;
+    }
+
+    private static void runAll(List<Runnable> actions) {
+        for (Runnable action : actions) {
+            action.run();
+        }
+    }
+
+    /**
+     * @return true while the provider saved on disk is being restored
+     */
+    public boolean isRestoring() {
+        return instance.restoreLatch != null;
     }
 
+    /**
+     * Runs the action on the executor once the provider saved on disk is restored, or right
+     * away if it isn't being restored.
+     */
+    public void whenRestored(@NonNull Executor executor, @NonNull Runnable action) {
+        synchronized (this) {
+            if (instance.restoreLatch != null) {
+                instance.restoreActions.add(() -> executor.execute(action));
+                return;
+            }
+        }
+        executor.execute(action);
+    }
+
+    /**
+     * Never blocks. While the provider saved on disk is being restored, see isRestoring(), it
+     * returns an unconfigured provider.
+     */
     public Provider getCurrentProvider() {
         return instance.currentProvider;
     }
 
+    /**
+     * Waits until the provider saved on disk is restored, if it is being restored.
+     */
+    @WorkerThread
+    public Provider awaitCurrentProvider() {
+        CountDownLatch latch = instance.restoreLatch;
+        if (latch != null) {
+            try {
+                latch.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return instance.currentProvider;
+    }
+
     public void setProviderForDns(Provider provider) {
         this.providerForDns = provider;
     }
@@ -82,6 +82,9 @@ public class Transport implements Serializable {
 
         private int portCount;
 
+        // name of the KCP preset the provider recommends, see KcpConfig.Preset
+        @Nullable
+        private String kcpProfile;
 
         public Options(String cert, String iatMode) {
             this.cert = cert;
@@ -128,6 +131,11 @@ public class Transport implements Serializable {
             return portCount;
         }
 
+        @Nullable
+        public String getKcpProfile() {
+            return kcpProfile;
+        }
+
         @Override
         public String toString() {
             return new Gson().toJson(this);
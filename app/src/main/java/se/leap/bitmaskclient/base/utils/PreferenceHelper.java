@@ -14,6 +14,7 @@ import static se.leap.bitmaskclient.base.models.Constants.EIP_RESTART_ON_BOOT;
 import static se.leap.bitmaskclient.base.models.Constants.EXCLUDED_APPS;
 import static se.leap.bitmaskclient.base.models.Constants.FIRST_TIME_USER_DATE;
 import static se.leap.bitmaskclient.base.models.Constants.GATEWAY_PINNING;
+import static se.leap.bitmaskclient.base.models.Constants.GATEWAY_RACING;
 import static se.leap.bitmaskclient.base.models.Constants.LAST_DONATION_REMINDER_DATE;
 import static se.leap.bitmaskclient.base.models.Constants.LAST_UPDATE_CHECK;
 import static se.leap.bitmaskclient.base.models.Constants.LAST_USED_PROFILE;
@@ -48,6 +49,7 @@ import android.content.SharedPreferences;
 import android.text.TextUtils;
 import android.util.Log;
 
+import androidx.annotation.Nullable;
 import androidx.annotation.VisibleForTesting;
 import androidx.annotation.WorkerThread;
 import androidx.security.crypto.EncryptedSharedPreferences;
@@ -60,15 +62,24 @@ import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import de.blinkt.openvpn.VpnProfile;
 import de.blinkt.openvpn.core.NativeUtils;
 import se.leap.bitmaskclient.BuildConfig;
 import se.leap.bitmaskclient.base.models.Provider;
+import se.leap.bitmaskclient.eip.GatewaysManager;
 import se.leap.bitmaskclient.tor.TorStatusObservable;
 
 /**
@@ -80,7 +91,41 @@ public class PreferenceHelper {
     private static final String TAG = PreferenceHelper.class.getSimpleName();
 
     private static SharedPreferences preferences;
+    // Guards the fields below. It is only held to update them, never while the preferences are
+    // decrypted, encrypted or written.
     private static final Object LOCK = new Object();
+    // serializes writing batches of changes, so that they reach the preferences in order
+    private static final Object WRITE_LOCK = new Object();
+
+    // Decrypted copy of all preferences. Reading EncryptedSharedPreferences decrypts the key and
+    // the value each time, so getters read this snapshot without locking instead. It is never
+    // modified but replaced as a whole on each change.
+    private static volatile Map<String, Object> mirror = Collections.emptyMap();
+    // Counted down once the mirror was loaded by the writer. Until then getters read single
+    // values from the preferences instead of waiting for all of them to be decrypted.
+    private static final CountDownLatch mirrorLoaded = new CountDownLatch(1);
+    // Applied transactions that aren't written to the preferences yet, null values for removed
+    // keys. They are batched and written with a single editor by the writer.
+    private static final HashMap<String, Object> unwrittenChanges = new HashMap<>();
+    // the batch that is currently being written
+    private static final HashMap<String, Object> inFlightChanges = new HashMap<>();
+    // number of written batches, tells a reload that the preferences changed while they were read
+    private static int writtenBatches;
+    private static boolean writeScheduled;
+    private static boolean reloadScheduled;
+    private static Executor writer = createWriter();
+    // number of change notifications per key caused by writes that are already in the mirror
+    private static final HashMap<String, Integer> pendingWrites = new HashMap<>();
+    // keeps the mirror coherent with changes that didn't go through a Transaction, SharedPreferences only hold weak references to listeners
+    private static final SharedPreferences.OnSharedPreferenceChangeListener mirrorUpdater = (sharedPreferences, key) -> {
+        synchronized (LOCK) {
+            if (sharedPreferences != preferences || (key != null && consumePendingWrite(key))) {
+                return;
+            }
+        }
+        // notifications arrive on the main thread, decrypting all preferences there would block it
+        scheduleReload();
+    };
 
     private SharedPreferences initSharedPreferences(Context appContext) {
         Log.d(TAG, "getSharedPreferences is null");
@@ -106,16 +151,298 @@ public class PreferenceHelper {
     }
 
     public PreferenceHelper(SharedPreferences preferences) {
+        // unit tests expect changes to reach the injected preferences right away
+        this(preferences, Runnable::run);
+    }
+
+    @VisibleForTesting
+    PreferenceHelper(SharedPreferences preferences, Executor writer) {
         if (!NativeUtils.isUnitTest()) {
             throw new IllegalStateException("PreferenceHelper injected with shared preference outside of an unit test");
         }
         synchronized (LOCK) {
-            PreferenceHelper.preferences = preferences;
+            PreferenceHelper.writer = writer;
+            setPreferences(preferences);
         }
+        reloadMirror();
     }
     public PreferenceHelper(Context context) {
+        SharedPreferences preferences = initSharedPreferences(context.getApplicationContext());
+        synchronized (LOCK) {
+            setPreferences(preferences);
+        }
+        // called from Application.onCreate(), the writer decrypts all preferences in the background
+        scheduleReload();
+    }
+
+    private static Executor createWriter() {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 30L, TimeUnit.SECONDS, new LinkedBlockingQueue<>());
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    private static void setPreferences(SharedPreferences sharedPreferences) {
+        if (preferences != null) {
+            preferences.unregisterOnSharedPreferenceChangeListener(mirrorUpdater);
+        }
+        preferences = sharedPreferences;
+        preferences.registerOnSharedPreferenceChangeListener(mirrorUpdater);
+    }
+
+    /**
+     * Reloads the mirror on the writer thread, reloads requested before it ran are coalesced.
+     * Must not be called holding LOCK, the writer of unit tests reloads right away.
+     */
+    private static void scheduleReload() {
+        Executor executor;
         synchronized (LOCK) {
-            preferences = initSharedPreferences(context.getApplicationContext());
+            if (reloadScheduled) {
+                return;
+            }
+            reloadScheduled = true;
+            executor = writer;
+        }
+        executor.execute(PreferenceHelper::reloadMirror);
+    }
+
+    /**
+     * Decrypts all preferences into a new mirror, changes that aren't written yet are kept.
+     * Must not be called holding LOCK.
+     */
+    @WorkerThread
+    private static void reloadMirror() {
+        synchronized (LOCK) {
+            reloadScheduled = false;
+        }
+        while (true) {
+            SharedPreferences sharedPreferences;
+            int batches;
+            synchronized (LOCK) {
+                sharedPreferences = preferences;
+                batches = writtenBatches;
+            }
+            HashMap<String, Object> loaded = new HashMap<>();
+            Map<String, ?> all = sharedPreferences.getAll();
+            if (all != null) {
+                for (Map.Entry<String, ?> entry : all.entrySet()) {
+                    if (entry.getValue() != null) {
+                        loaded.put(entry.getKey(), mirrorValue(entry.getValue()));
+                    }
+                }
+            }
+            synchronized (LOCK) {
+                if (sharedPreferences != preferences || batches != writtenBatches) {
+                    // a batch may have been written after the preferences were read
+                    continue;
+                }
+                applyChanges(loaded, inFlightChanges);
+                applyChanges(loaded, unwrittenChanges);
+                // pendingWrites are kept, the notifications of written batches may still arrive
+                mirror = Collections.unmodifiableMap(loaded);
+            }
+            mirrorLoaded.countDown();
+            return;
+        }
+    }
+
+    /**
+     * @return the mirror, waiting for it to be loaded if the preferences are still decrypted
+     */
+    private static Map<String, Object> awaitMirror() {
+        synchronized (LOCK) {
+            if (preferences == null) {
+                return mirror;
+            }
+        }
+        try {
+            mirrorLoaded.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return mirror;
+    }
+
+    private interface DirectRead<T> {
+        T read(SharedPreferences sharedPreferences);
+    }
+
+    /**
+     * Reads a single value before the mirror is loaded: from the changes that aren't written
+     * yet or, if there are none for the key, directly from the preferences.
+     */
+    private static <T> T readDirectly(String key, Class<T> type, T defValue, DirectRead<T> read) {
+        SharedPreferences sharedPreferences;
+        synchronized (LOCK) {
+            Map<String, Object> changes = unwrittenChangesOf(key);
+            if (changes != null) {
+                Object value = changes.get(key);
+                return type.isInstance(value) ? type.cast(value) : defValue;
+            }
+            sharedPreferences = preferences;
+        }
+        if (sharedPreferences == null) {
+            // not initialized yet, like the empty mirror
+            return defValue;
+        }
+        try {
+            return read.read(sharedPreferences);
+        } catch (ClassCastException e) {
+            // stored with another type, the mirror would return the default value as well
+            return defValue;
+        }
+    }
+
+    /**
+     * @return the changes holding the latest value of the key that isn't written yet, null if
+     * there are none. Must be called holding LOCK.
+     */
+    @Nullable
+    private static Map<String, Object> unwrittenChangesOf(String key) {
+        if (unwrittenChanges.containsKey(key)) {
+            return unwrittenChanges;
+        }
+        return inFlightChanges.containsKey(key) ? inFlightChanges : null;
+    }
+
+    private static boolean isMirrorLoaded() {
+        return mirrorLoaded.getCount() == 0;
+    }
+
+    private static void applyChanges(Map<String, Object> values, Map<String, Object> changes) {
+        for (Map.Entry<String, Object> change : changes.entrySet()) {
+            if (change.getValue() == null) {
+                values.remove(change.getKey());
+            } else {
+                values.put(change.getKey(), change.getValue());
+            }
+        }
+    }
+
+    private static Object mirrorValue(Object value) {
+        if (value instanceof Set<?>) {
+            return Collections.unmodifiableSet(new HashSet<>((Set<?>) value));
+        }
+        return value;
+    }
+
+    private static boolean consumePendingWrite(String key) {
+        Integer count = pendingWrites.get(key);
+        if (count == null) {
+            return false;
+        }
+        if (count > 1) {
+            pendingWrites.put(key, count - 1);
+        } else {
+            pendingWrites.remove(key);
+        }
+        return true;
+    }
+
+    private static void countPendingWrite(String key) {
+        Integer count = pendingWrites.get(key);
+        pendingWrites.put(key, count == null ? 1 : count + 1);
+    }
+
+    /**
+     * @return a new transaction collecting changes of the preferences
+     */
+    public static Transaction beginTransaction() {
+        return new Transaction();
+    }
+
+    /**
+     * Blocks until all changes applied so far are written to disk. Only needed if the changes
+     * have to survive a crash or kill of the process right after.
+     */
+    @WorkerThread
+    public static void flush() {
+        SharedPreferences sharedPreferences;
+        synchronized (WRITE_LOCK) {
+            writeChanges();
+            synchronized (LOCK) {
+                sharedPreferences = preferences;
+            }
+        }
+        // committing waits for all writes queued before and writes the current state if it's not on disk yet
+        sharedPreferences.edit().commit();
+    }
+
+    /**
+     * Must not be called holding LOCK, the writer of unit tests writes right away.
+     */
+    private static void scheduleWrite() {
+        Executor executor;
+        synchronized (LOCK) {
+            if (writeScheduled) {
+                return;
+            }
+            writeScheduled = true;
+            executor = writer;
+        }
+        executor.execute(PreferenceHelper::writeChanges);
+    }
+
+    /**
+     * Writes all unwritten changes with a single editor, so that EncryptedSharedPreferences
+     * encrypts them and the preferences file is written once per batch. LOCK is only held to
+     * take the batch, readers and writers of the mirror don't wait for encrypting and writing it.
+     */
+    private static void writeChanges() {
+        synchronized (WRITE_LOCK) {
+            SharedPreferences sharedPreferences;
+            synchronized (LOCK) {
+                writeScheduled = false;
+                if (unwrittenChanges.isEmpty()) {
+                    return;
+                }
+                inFlightChanges.putAll(unwrittenChanges);
+                unwrittenChanges.clear();
+                sharedPreferences = preferences;
+            }
+
+            // EncryptedSharedPreferences notifies about every written key, other SharedPreferences
+            // only about keys whose value changed
+            boolean notifiesEveryWrite = sharedPreferences instanceof EncryptedSharedPreferences;
+            Map<String, ?> persisted = notifiesEveryWrite ? null : sharedPreferences.getAll();
+            synchronized (LOCK) {
+                for (Map.Entry<String, Object> change : inFlightChanges.entrySet()) {
+                    String key = change.getKey();
+                    if (notifiesEveryWrite || persisted == null || !Objects.equals(persisted.get(key), change.getValue())) {
+                        countPendingWrite(key);
+                    }
+                }
+            }
+
+            // only the writer thread and flush() modify inFlightChanges, both holding WRITE_LOCK
+            SharedPreferences.Editor editor = sharedPreferences.edit();
+            for (Map.Entry<String, Object> change : inFlightChanges.entrySet()) {
+                putValue(editor, change.getKey(), change.getValue());
+            }
+            editor.apply();
+
+            synchronized (LOCK) {
+                inFlightChanges.clear();
+                writtenBatches++;
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void putValue(SharedPreferences.Editor editor, String key, @Nullable Object value) {
+        if (value instanceof String) {
+            editor.putString(key, (String) value);
+        } else if (value instanceof Boolean) {
+            editor.putBoolean(key, (Boolean) value);
+        } else if (value instanceof Integer) {
+            editor.putInt(key, (Integer) value);
+        } else if (value instanceof Long) {
+            editor.putLong(key, (Long) value);
+        } else if (value instanceof Float) {
+            editor.putFloat(key, (Float) value);
+        } else if (value instanceof Set<?>) {
+            editor.putStringSet(key, (Set<String>) value);
+        } else {
+            editor.remove(key);
         }
     }
 
@@ -133,58 +460,48 @@ public class PreferenceHelper {
 
     public static Provider getSavedProviderFromSharedPreferences() {
         Provider provider = new Provider();
-        synchronized (LOCK) {
-            try {
-                provider.setMainUrl(new URL(preferences.getString(Provider.MAIN_URL, "")));
-                provider.setProviderIp(preferences.getString(Provider.PROVIDER_IP, ""));
-                provider.setProviderApiIp(preferences.getString(Provider.PROVIDER_API_IP, ""));
-                provider.setGeoipUrl(preferences.getString(Provider.GEOIP_URL, ""));
-                provider.setMotdUrl(preferences.getString(Provider.MOTD_URL, ""));
-                provider.define(new JSONObject(preferences.getString(Provider.KEY, "")));
-                provider.setCaCert(preferences.getString(Provider.CA_CERT, ""));
-                provider.setVpnCertificate(preferences.getString(PROVIDER_VPN_CERTIFICATE, ""));
-                provider.setPrivateKeyString(preferences.getString(PROVIDER_PRIVATE_KEY, ""));
-                provider.setEipServiceJson(new JSONObject(preferences.getString(PROVIDER_EIP_DEFINITION, "")));
-                provider.setMotdJson(new JSONObject(preferences.getString(PROVIDER_MOTD, "")));
-                provider.setLastMotdSeen(preferences.getLong(PROVIDER_MOTD_LAST_SEEN, 0L));
-                provider.setLastMotdUpdate(preferences.getLong(PROVIDER_MOTD_LAST_UPDATED, 0L));
-                provider.setMotdLastSeenHashes(preferences.getStringSet(PROVIDER_MOTD_HASHES, new HashSet<>()));
-            } catch (MalformedURLException | JSONException e) {
-                e.printStackTrace();
-            }
+        // a single mirror, so that a concurrently stored provider isn't read partially
+        Map<String, Object> values = awaitMirror();
+        try {
+            provider.setMainUrl(new URL(getString(values, Provider.MAIN_URL, "")));
+            provider.setProviderIp(getString(values, Provider.PROVIDER_IP, ""));
+            provider.setProviderApiIp(getString(values, Provider.PROVIDER_API_IP, ""));
+            provider.setGeoipUrl(getString(values, Provider.GEOIP_URL, ""));
+            provider.setMotdUrl(getString(values, Provider.MOTD_URL, ""));
+            provider.define(new JSONObject(getString(values, Provider.KEY, "")));
+            provider.setCaCert(getString(values, Provider.CA_CERT, ""));
+            provider.setVpnCertificate(getString(values, PROVIDER_VPN_CERTIFICATE, ""));
+            provider.setPrivateKeyString(getString(values, PROVIDER_PRIVATE_KEY, ""));
+            provider.setEipServiceJson(getString(values, PROVIDER_EIP_DEFINITION, ""));
+            provider.setMotdJson(new JSONObject(getString(values, PROVIDER_MOTD, "")));
+            provider.setLastMotdSeen(getLong(values, PROVIDER_MOTD_LAST_SEEN, 0L));
+            provider.setLastMotdUpdate(getLong(values, PROVIDER_MOTD_LAST_UPDATED, 0L));
+            provider.setMotdLastSeenHashes(getStringSet(values, PROVIDER_MOTD_HASHES));
+        } catch (MalformedURLException | JSONException e) {
+            e.printStackTrace();
         }
 
         return provider;
     }
 
     public static String getFromPersistedProvider(String toFetch, String providerDomain) {
-        synchronized (LOCK) {
-            return preferences.getString(toFetch + "." + providerDomain, "");
-        }
+        return getString(toFetch + "." + providerDomain, "");
     }
 
     public static long getLongFromPersistedProvider(String toFetch, String providerDomain) {
-        synchronized (LOCK) {
-            return preferences.getLong(toFetch + "." + providerDomain, 0L);
-        }
+        return getLong(toFetch + "." + providerDomain, 0L);
     }
 
     public static Set<String> getStringSetFromPersistedProvider(String toFetch, String providerDomain) {
-        synchronized (LOCK) {
-            return preferences.getStringSet(toFetch + "." + providerDomain, new HashSet<>());
-        }
+        return getStringSet(toFetch + "." + providerDomain);
     }
 
     public static void persistProviderAsync(Provider provider) {
-        synchronized (LOCK) {
-            storeProviderInPreferences(provider, true);
-        }
+        storeProviderInPreferences(provider, true);
     }
 
     public static void storeProviderInPreferences(Provider provider) {
-        synchronized (LOCK) {
-            storeProviderInPreferences(provider, false);
-        }
+        storeProviderInPreferences(provider, false);
     }
 
     /**
@@ -195,7 +512,7 @@ public class PreferenceHelper {
         Set<String> providerDomains = getCustomProviderDomains();
         HashMap<String, Provider> customProviders = new HashMap<>();
         for (String domain : providerDomains) {
-            String mainURL = preferences.getString(Provider.MAIN_URL + "." + domain, null);
+            String mainURL = getString(Provider.MAIN_URL + "." + domain, null);
             if (mainURL != null) {
                 customProviders.put(mainURL, Provider.createCustomProvider(mainURL, domain));
             }
@@ -207,10 +524,10 @@ public class PreferenceHelper {
         Set<String> newProviderDomains = new HashSet<>();
 
         // add
-        SharedPreferences.Editor editor = preferences.edit();
+        Transaction transaction = beginTransaction();
         for (Provider provider : providers) {
             String providerDomain = provider.getDomain();
-                    editor.putString(Provider.MAIN_URL + "." + providerDomain, provider.getMainUrlString());
+            transaction.putString(Provider.MAIN_URL + "." + providerDomain, provider.getMainUrlString());
             newProviderDomains.add(providerDomain);
         }
 
@@ -218,22 +535,23 @@ public class PreferenceHelper {
         Set<String> removedProviderDomains = getCustomProviderDomains();
         removedProviderDomains.removeAll(newProviderDomains);
         for (String providerDomain : removedProviderDomains) {
-            editor.remove(Provider.MAIN_URL + "." + providerDomain);
+            transaction.remove(Provider.MAIN_URL + "." + providerDomain);
         }
 
-        editor.putStringSet(CUSTOM_PROVIDER_DOMAINS, newProviderDomains);
-        editor.apply();
+        transaction.putStringSet(CUSTOM_PROVIDER_DOMAINS, newProviderDomains);
+        transaction.apply();
     }
 
     static Set<String> getCustomProviderDomains() {
-        return preferences.getStringSet(CUSTOM_PROVIDER_DOMAINS, new HashSet<>());
+        return getStringSet(CUSTOM_PROVIDER_DOMAINS);
     }
 
-    // TODO: replace commit with apply after refactoring EIP
+    // TODO: remove the durable write after refactoring EIP
     public static void storeProviderInPreferences(Provider provider, boolean async) {
-        synchronized (LOCK) {
-            SharedPreferences.Editor editor = preferences.edit();
-            editor.putBoolean(PROVIDER_CONFIGURED, true).
+        String providerDomain = provider.getDomain();
+        // a single transaction, so that readers never see a partially stored provider
+        Transaction transaction = beginTransaction().
+                    putBoolean(PROVIDER_CONFIGURED, true).
                     putString(Provider.PROVIDER_IP, provider.getProviderIp()).
                     putString(Provider.GEOIP_URL, provider.getGeoipUrl().toString()).
                     putString(Provider.MOTD_URL, provider.getMotdUrl().toString()).
@@ -247,15 +565,7 @@ public class PreferenceHelper {
                     putString(PROVIDER_MOTD, provider.getMotdJsonString()).
                     putStringSet(PROVIDER_MOTD_HASHES, provider.getMotdLastSeenHashes()).
                     putLong(PROVIDER_MOTD_LAST_SEEN, provider.getLastMotdSeen()).
-                    putLong(PROVIDER_MOTD_LAST_UPDATED, provider.getLastMotdUpdate());
-            if (async) {
-                editor.apply();
-            } else {
-                editor.commit();
-            }
-
-            String providerDomain = provider.getDomain();
-            preferences.edit().putBoolean(PROVIDER_CONFIGURED, true).
+                    putLong(PROVIDER_MOTD_LAST_UPDATED, provider.getLastMotdUpdate()).
                     putString(Provider.PROVIDER_IP + "." + providerDomain, provider.getProviderIp()).
                     putString(Provider.PROVIDER_API_IP + "." + providerDomain, provider.getProviderApiIp()).
                     putString(Provider.MAIN_URL + "." + providerDomain, provider.getMainUrlString()).
@@ -267,40 +577,39 @@ public class PreferenceHelper {
                     putString(PROVIDER_MOTD + "." + providerDomain, provider.getMotdJsonString()).
                     putStringSet(PROVIDER_MOTD_HASHES + "." + providerDomain, provider.getMotdLastSeenHashes()).
                     putLong(PROVIDER_MOTD_LAST_SEEN + "." + providerDomain, provider.getLastMotdSeen()).
-                    putLong(PROVIDER_MOTD_LAST_UPDATED + "." + providerDomain, provider.getLastMotdUpdate()).
-                    apply();
+                    putLong(PROVIDER_MOTD_LAST_UPDATED + "." + providerDomain, provider.getLastMotdUpdate());
+        if (async) {
+            transaction.apply();
+        } else {
+            transaction.commit();
+        }
+
+        ProviderSnapshot snapshot = ProviderSnapshot.getInstance();
+        if (snapshot != null) {
+            snapshot.save(provider);
         }
     }
 
     public static void putProviderString(String providerDomain, String key, String value) {
-        synchronized (LOCK) {
-            putString(key+"."+providerDomain, value);
-        }
+        putString(key+"."+providerDomain, value);
     }
 
     /**
      * Sets the profile that is connected (to connect if the service restarts)
      */
     public static void setLastUsedVpnProfile(VpnProfile connectedProfile) {
-        synchronized (LOCK) {
-            preferences.edit().putString(LAST_USED_PROFILE, connectedProfile.toJson()).apply();
-        }
+        putString(LAST_USED_PROFILE, connectedProfile.toJson());
     }
 
     /**
      * Returns the profile that was last connected (to connect if the service restarts)
      */
     public static VpnProfile getLastConnectedVpnProfile() {
-        String lastConnectedProfileJson = null;
-        synchronized (LOCK) {
-            lastConnectedProfileJson = preferences.getString(LAST_USED_PROFILE, null);
-        }
-        return VpnProfile.fromJson(lastConnectedProfileJson);
+        return VpnProfile.fromJson(getString(LAST_USED_PROFILE, null));
     }
 
     public static void deleteProviderDetailsFromPreferences(String providerDomain) {
-        synchronized (LOCK) {
-            preferences.edit().
+        beginTransaction().
                     remove(Provider.KEY + "." + providerDomain).
                     remove(Provider.CA_CERT + "." + providerDomain).
                     remove(Provider.PROVIDER_IP + "." + providerDomain).
@@ -316,12 +625,10 @@ public class PreferenceHelper {
                     remove(PROVIDER_MOTD_LAST_SEEN + "." + providerDomain).
                     remove(PROVIDER_MOTD_LAST_UPDATED + "." + providerDomain).
                     apply();
-        }
     }
 
     public static void deleteCurrentProviderDetailsFromPreferences() {
-        synchronized (LOCK) {
-            preferences.edit().
+        beginTransaction().
                     remove(Provider.KEY).
                     remove(Provider.CA_CERT).
                     remove(Provider.PROVIDER_IP).
@@ -337,6 +644,38 @@ public class PreferenceHelper {
                     remove(PROVIDER_MOTD_LAST_SEEN).
                     remove(PROVIDER_MOTD_LAST_UPDATED).
                     apply();
+    }
+
+    // keys of the current provider, the snapshot of it is outdated once one of them changes
+    private static final Set<String> CURRENT_PROVIDER_KEYS = new HashSet<>(Arrays.asList(
+            Provider.KEY,
+            Provider.CA_CERT,
+            Provider.PROVIDER_IP,
+            Provider.PROVIDER_API_IP,
+            Provider.MAIN_URL,
+            Provider.GEOIP_URL,
+            Provider.MOTD_URL,
+            PROVIDER_EIP_DEFINITION,
+            PROVIDER_PRIVATE_KEY,
+            PROVIDER_VPN_CERTIFICATE,
+            PROVIDER_MOTD,
+            PROVIDER_MOTD_HASHES,
+            PROVIDER_MOTD_LAST_SEEN,
+            PROVIDER_MOTD_LAST_UPDATED));
+
+    private static boolean changesCurrentProvider(Set<String> keys) {
+        for (String key : keys) {
+            if (CURRENT_PROVIDER_KEYS.contains(key)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void deleteProviderSnapshot() {
+        ProviderSnapshot snapshot = ProviderSnapshot.getInstance();
+        if (snapshot != null) {
+            snapshot.delete();
         }
     }
 
@@ -433,6 +772,14 @@ public class PreferenceHelper {
         putString(GATEWAY_PINNING, value);
     }
 
+    public static boolean useGatewayRacing() {
+        return getBoolean(GATEWAY_RACING, true);
+    }
+
+    public static void setUseGatewayRacing(boolean isEnabled) {
+        putBoolean(GATEWAY_RACING, isEnabled);
+    }
+
     public static boolean getUseBridges() {
         return getBoolean(USE_BRIDGES, false);
     }
@@ -590,9 +937,7 @@ public class PreferenceHelper {
         JSONObject result = new JSONObject();
         String eipDefinitionString = "";
         try {
-            synchronized (LOCK) {
-                eipDefinitionString = preferences.getString(PROVIDER_EIP_DEFINITION, "");
-            }
+            eipDefinitionString = preferences.getString(PROVIDER_EIP_DEFINITION, "");
             if (!eipDefinitionString.isEmpty()) {
                 result = new JSONObject(eipDefinitionString);
             }
@@ -607,9 +952,7 @@ public class PreferenceHelper {
         JSONObject result = new JSONObject();
         String eipDefinitionString = "";
         try {
-            synchronized (LOCK) {
-                eipDefinitionString = preferences.getString(PROVIDER_EIP_DEFINITION, "");
-            }
+            eipDefinitionString = getString(PROVIDER_EIP_DEFINITION, "");
             if (!eipDefinitionString.isEmpty()) {
                 result = new JSONObject(eipDefinitionString);
             }
@@ -625,82 +968,109 @@ public class PreferenceHelper {
     }
 
     public static Set<String> getExcludedApps() {
-        synchronized (LOCK) {
-            return preferences.getStringSet(EXCLUDED_APPS, new HashSet<>());
-        }
+        return getStringSet(EXCLUDED_APPS);
     }
 
     public static long getLong(String key, long defValue) {
-        synchronized (LOCK) {
-            return preferences.getLong(key, defValue);
+        if (!isMirrorLoaded()) {
+            return readDirectly(key, Long.class, defValue, sharedPreferences -> sharedPreferences.getLong(key, defValue));
         }
+        return getLong(mirror, key, defValue);
+    }
+
+    private static long getLong(Map<String, Object> values, String key, long defValue) {
+        Object value = values.get(key);
+        return value instanceof Long ? (Long) value : defValue;
     }
 
     public static void putLong(String key, long value) {
-        synchronized (LOCK) {
-            preferences.edit().putLong(key, value).apply();
-        }
+        beginTransaction().putLong(key, value).apply();
     }
 
     public static int getInt(String key, int defValue) {
-        synchronized (LOCK) {
-            return preferences.getInt(key, defValue);
+        if (!isMirrorLoaded()) {
+            return readDirectly(key, Integer.class, defValue, sharedPreferences -> sharedPreferences.getInt(key, defValue));
         }
+        Object value = mirror.get(key);
+        return value instanceof Integer ? (Integer) value : defValue;
     }
 
     public static void putInt(String key, int value) {
-        synchronized (LOCK) {
-            preferences.edit().putInt(key, value).apply();
-        }
+        beginTransaction().putInt(key, value).apply();
     }
 
     public static String getString(String key, String defValue) {
-        synchronized (LOCK) {
-            return preferences.getString(key, defValue);
+        if (!isMirrorLoaded()) {
+            return readDirectly(key, String.class, defValue, sharedPreferences -> sharedPreferences.getString(key, defValue));
+        }
+        return getString(mirror, key, defValue);
+    }
+
+    private static String getString(Map<String, Object> values, String key, String defValue) {
+        Object value = values.get(key);
+        return value instanceof String ? (String) value : defValue;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Set<String> getStringSet(String key) {
+        if (!isMirrorLoaded()) {
+            Set<?> value = readDirectly(key, Set.class, null, sharedPreferences -> sharedPreferences.getStringSet(key, null));
+            return value != null ? new HashSet<>((Set<String>) value) : new HashSet<>();
         }
+        return getStringSet(mirror, key);
+    }
+
+    /**
+     * @return a modifiable copy of the string set, an empty set if there's none
+     */
+    @SuppressWarnings("unchecked")
+    private static Set<String> getStringSet(Map<String, Object> values, String key) {
+        Object value = values.get(key);
+        return value instanceof Set<?> ? new HashSet<>((Set<String>) value) : new HashSet<>();
     }
 
     @WorkerThread
     public static void putStringSync(String key, String value) {
-        synchronized (LOCK) {
-            preferences.edit().putString(key, value).commit();
-        }
+        beginTransaction().putString(key, value).commit();
     }
 
     public static void putString(String key, String value) {
-        synchronized (LOCK) {
-            preferences.edit().putString(key, value).apply();
-        }
+        beginTransaction().putString(key, value).apply();
     }
 
     public static void putStringSet(String key, Set<String> value) {
-        synchronized (LOCK) {
-            preferences.edit().putStringSet(key, value).apply();
-        }
+        beginTransaction().putStringSet(key, value).apply();
     }
 
     public static boolean getBoolean(String key, Boolean defValue) {
-        synchronized (LOCK) {
-            return preferences.getBoolean(key, defValue);
+        if (!isMirrorLoaded()) {
+            return readDirectly(key, Boolean.class, defValue, sharedPreferences -> sharedPreferences.getBoolean(key, defValue));
         }
+        Object value = mirror.get(key);
+        return value instanceof Boolean ? (Boolean) value : defValue;
     }
 
     public static void putBoolean(String key, Boolean value) {
-        synchronized (LOCK) {
-            preferences.edit().putBoolean(key, value).apply();
-        }
+        beginTransaction().putBoolean(key, value).apply();
     }
 
     public static void putBooleanSync(String key, Boolean value) {
-        synchronized (LOCK) {
-            preferences.edit().putBoolean(key, value).commit();
-        }
+        beginTransaction().putBoolean(key, value).commit();
     }
 
     public static Boolean hasKey(String key) {
-        synchronized (LOCK) {
-            return preferences.contains(key);
+        if (!isMirrorLoaded()) {
+            SharedPreferences sharedPreferences;
+            synchronized (LOCK) {
+                Map<String, Object> changes = unwrittenChangesOf(key);
+                if (changes != null) {
+                    return changes.get(key) != null;
+                }
+                sharedPreferences = preferences;
+            }
+            return sharedPreferences != null && sharedPreferences.contains(key);
         }
+        return mirror.containsKey(key);
     }
 
     public static void migrateToEncryptedPrefs(Context context) {
@@ -709,32 +1079,111 @@ public class PreferenceHelper {
                 Log.e(TAG, "Failed to migrate shared preferences");
                 return;
             }
-            SharedPreferences.Editor encryptedEditor = preferences.edit();
-            SharedPreferences preferences = context.getSharedPreferences(SHARED_PREFERENCES, MODE_PRIVATE);
-            Map<String,?> keys = preferences.getAll();
-
-            for(Map.Entry<String,?> entry : keys.entrySet()){
-                try {
-                    Object value = entry.getValue();
-                    if (value instanceof String) {
-                        encryptedEditor.putString(entry.getKey(), (String) value);
-                    } else if (value instanceof Boolean) {
-                        encryptedEditor.putBoolean(entry.getKey(), (Boolean) value);
-                    } else if (value instanceof Integer) {
-                        encryptedEditor.putInt(entry.getKey(), (Integer) value);
-                    } else if (value instanceof Set<?>) {
-                        encryptedEditor.putStringSet(entry.getKey(), (Set<String>) value);
-                    } else if (value instanceof Long) {
-                        encryptedEditor.putLong(entry.getKey(), (Long) value);
-                    } else if (value instanceof Float) {
-                        encryptedEditor.putFloat(entry.getKey(), (Float) value);
-                    }
-                } catch (ClassCastException e) {
-                    e.printStackTrace();
+        }
+        // the transaction only holds LOCK to update the mirror, committing it happens outside of it
+        Transaction encryptedTransaction = beginTransaction();
+        SharedPreferences preferences = context.getSharedPreferences(SHARED_PREFERENCES, MODE_PRIVATE);
+        Map<String,?> keys = preferences.getAll();
+
+        for(Map.Entry<String,?> entry : keys.entrySet()){
+            try {
+                Object value = entry.getValue();
+                if (value instanceof String) {
+                    encryptedTransaction.putString(entry.getKey(), (String) value);
+                } else if (value instanceof Boolean) {
+                    encryptedTransaction.putBoolean(entry.getKey(), (Boolean) value);
+                } else if (value instanceof Integer) {
+                    encryptedTransaction.putInt(entry.getKey(), (Integer) value);
+                } else if (value instanceof Set<?>) {
+                    encryptedTransaction.putStringSet(entry.getKey(), (Set<String>) value);
+                } else if (value instanceof Long) {
+                    encryptedTransaction.putLong(entry.getKey(), (Long) value);
+                } else if (value instanceof Float) {
+                    encryptedTransaction.putFloat(entry.getKey(), (Float) value);
                 }
+            } catch (ClassCastException e) {
+                e.printStackTrace();
             }
-            encryptedEditor.commit();
-            preferences.edit().clear().apply();
         }
+        encryptedTransaction.commit();
+        preferences.edit().clear().apply();
+    }
+
+    /**
+     * Collects typed changes of the preferences. Applied changes are visible to readers right
+     * away and written in the background, together with all other changes applied until the
+     * writer gets to them.
+     */
+    public static final class Transaction {
+
+        // changed keys and their new values, null for removed keys
+        private final HashMap<String, Object> changes = new HashMap<>();
+
+        private Transaction() {
+        }
+
+        public Transaction putString(String key, @Nullable String value) {
+            changes.put(key, value);
+            return this;
+        }
+
+        public Transaction putStringSet(String key, @Nullable Set<String> values) {
+            changes.put(key, values == null ? null : mirrorValue(values));
+            return this;
+        }
+
+        public Transaction putInt(String key, int value) {
+            changes.put(key, value);
+            return this;
+        }
+
+        public Transaction putLong(String key, long value) {
+            changes.put(key, value);
+            return this;
         }
+
+        public Transaction putFloat(String key, float value) {
+            changes.put(key, value);
+            return this;
+        }
+
+        public Transaction putBoolean(String key, boolean value) {
+            changes.put(key, value);
+            return this;
+        }
+
+        public Transaction remove(String key) {
+            changes.put(key, null);
+            return this;
+        }
+
+        /**
+         * Applies the changes to the mirror atomically and schedules writing them. Changes of the
+         * current provider delete its snapshot, storeProviderInPreferences() writes a new one.
+         * The gateway snapshot is invalidated right away, SharedPreference listeners are only
+         * notified once the changes are written.
+         */
+        public void apply() {
+            synchronized (LOCK) {
+                HashMap<String, Object> updated = new HashMap<>(mirror);
+                applyChanges(updated, changes);
+                mirror = Collections.unmodifiableMap(updated);
+                unwrittenChanges.putAll(changes);
+            }
+            scheduleWrite();
+            GatewaysManager.onPreferencesChanged(changes.keySet());
+            if (changesCurrentProvider(changes.keySet())) {
+                deleteProviderSnapshot();
+            }
+        }
+
+        /**
+         * Applies the changes and blocks until they are written to disk, see flush()
+         */
+        @WorkerThread
+        public void commit() {
+            apply();
+            flush();
+        }
+    }
 }
@@ -0,0 +1,290 @@
+/**
+ * Copyright (c) 2023 LEAP Encryption Access Project and contributors
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.leap.bitmaskclient.base.utils;
+
+import android.content.Context;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+import androidx.annotation.WorkerThread;
+import androidx.security.crypto.EncryptedFile;
+import androidx.security.crypto.MasterKey;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import se.leap.bitmaskclient.base.models.Provider;
+import se.leap.bitmaskclient.base.models.ProviderObservable;
+
+/**
+ * Keeps a binary snapshot of the current provider in a single encrypted file in the app's files
+ * directory. At app start the provider is restored from it with one read instead of a dozen
+ * reads of the encrypted preferences.
+ *
+ * The snapshot is updated whenever the current provider is stored in the preferences, which stay
+ * the source of truth: if the snapshot is missing, unreadable or of an older version, the
+ * provider is restored from the preferences and the snapshot is written again.
+ */
+public class ProviderSnapshot {
+
+    private static final String TAG = ProviderSnapshot.class.getSimpleName();
+
+    static final String FILE_NAME = "provider_snapshot.bin";
+    private static final int MAGIC = 0x50525631; // PRV1
+    private static final int VERSION = 1;
+
+    private static ProviderSnapshot instance;
+
+    private final Context appContext;
+    private final File file;
+    private final ThreadPoolExecutor writer;
+
+    public static synchronized void init(Context context) {
+        if (instance == null) {
+            Context appContext = context.getApplicationContext();
+            instance = new ProviderSnapshot(appContext, new File(appContext.getFilesDir(), FILE_NAME));
+        }
+    }
+
+    /**
+     * @return the snapshot or null if it hasn't been initialized
+     */
+    public static synchronized @Nullable ProviderSnapshot getInstance() {
+        return instance;
+    }
+
+    private ProviderSnapshot(Context appContext, File file) {
+        this.appContext = appContext;
+        this.file = file;
+        writer = new ThreadPoolExecutor(1, 1, 30L, TimeUnit.SECONDS, new LinkedBlockingQueue<>());
+        writer.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Restores the current provider in the background and publishes it to the observable. Without
+     * a snapshot the provider is read from the preferences, also in the background.
+     */
+    public void restoreCurrentProvider(ProviderObservable providerObservable) {
+        providerObservable.restoreProvider(writer, this::load);
+    }
+
+    /**
+     * Serializes the provider right away, so that later changes of it aren't written, and
+     * writes the snapshot in the background.
+     */
+    public void save(@NonNull Provider provider) {
+        byte[] snapshot;
+        try {
+            snapshot = serialize(provider);
+        } catch (IOException e) {
+            Log.e(TAG, "could not serialize provider", e);
+            delete();
+            return;
+        }
+        writer.execute(() -> write(snapshot));
+    }
+
+    public void delete() {
+        writer.execute(file::delete);
+    }
+
+    @WorkerThread
+    private Provider load() {
+        byte[] snapshot = read();
+        if (snapshot != null) {
+            try {
+                Provider provider = deserialize(snapshot);
+                if (provider != null) {
+                    return provider;
+                }
+                Log.w(TAG, "ignoring provider snapshot in unknown format");
+            } catch (IOException e) {
+                Log.e(TAG, "could not parse provider snapshot", e);
+            }
+        }
+        Provider provider = PreferenceHelper.getSavedProviderFromSharedPreferences();
+        if (provider.isConfigured()) {
+            save(provider);
+        }
+        return provider;
+    }
+
+    private EncryptedFile getEncryptedFile() throws GeneralSecurityException, IOException {
+        MasterKey masterKey = new MasterKey.Builder(appContext)
+                .setKeyScheme(MasterKey.KeyScheme.AES256_GCM)
+                .build();
+        return new EncryptedFile.Builder(
+                appContext,
+                file,
+                masterKey,
+                EncryptedFile.FileEncryptionScheme.AES256_GCM_HKDF_4KB).build();
+    }
+
+    private @Nullable byte[] read() {
+        if (!file.exists()) {
+            return null;
+        }
+        try (InputStream in = getEncryptedFile().openFileInput()) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return out.toByteArray();
+        } catch (GeneralSecurityException | IOException e) {
+            // e.g. a snapshot that was only partially written
+            Log.e(TAG, "could not read provider snapshot", e);
+            file.delete();
+            return null;
+        }
+    }
+
+    private void write(byte[] snapshot) {
+        // EncryptedFile doesn't overwrite files and binds the content to the file name, so
+        // the snapshot can't be replaced atomically by renaming a temporary file
+        file.delete();
+        try (OutputStream out = getEncryptedFile().openFileOutput()) {
+            out.write(snapshot);
+        } catch (GeneralSecurityException | IOException e) {
+            Log.e(TAG, "could not save provider snapshot", e);
+            file.delete();
+        }
+    }
+
+    /**
+     * Serializes the fields PreferenceHelper.storeProviderInPreferences() persists
+     */
+    @VisibleForTesting
+    static byte[] serialize(@NonNull Provider provider) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            writeString(out, provider.getMainUrlString());
+            writeString(out, provider.getProviderIp());
+            writeString(out, provider.getProviderApiIp());
+            writeString(out, provider.getGeoipUrl().toString());
+            writeString(out, provider.getMotdUrl().toString());
+            writeString(out, provider.getDefinitionString());
+            writeString(out, provider.getCaCert());
+            writeString(out, provider.getVpnCertificate());
+            writeString(out, provider.getPrivateKeyString());
+            writeString(out, provider.getEipServiceJsonString());
+            writeString(out, provider.getMotdJsonString());
+            out.writeLong(provider.getLastMotdSeen());
+            out.writeLong(provider.getLastMotdUpdate());
+            Set<String> hashes = provider.getMotdLastSeenHashes();
+            out.writeInt(hashes != null ? hashes.size() : 0);
+            if (hashes != null) {
+                for (String hash : hashes) {
+                    writeString(out, hash);
+                }
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Restores the provider the same way PreferenceHelper.getSavedProviderFromSharedPreferences() does
+     * @return the provider or null if the snapshot has an unknown format
+     */
+    @VisibleForTesting
+    static @Nullable Provider deserialize(byte[] snapshot) throws IOException {
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(snapshot))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return null;
+            }
+            String mainUrl = readString(in);
+            String providerIp = readString(in);
+            String providerApiIp = readString(in);
+            String geoipUrl = readString(in);
+            String motdUrl = readString(in);
+            String definition = readString(in);
+            String caCert = readString(in);
+            String vpnCertificate = readString(in);
+            String privateKey = readString(in);
+            String eipServiceJson = readString(in);
+            String motdJson = readString(in);
+            long lastMotdSeen = in.readLong();
+            long lastMotdUpdate = in.readLong();
+            int hashCount = in.readInt();
+            Set<String> hashes = new HashSet<>();
+            for (int i = 0; i < hashCount; i++) {
+                hashes.add(readString(in));
+            }
+
+            Provider provider = new Provider();
+            try {
+                provider.setMainUrl(new URL(mainUrl));
+                provider.setProviderIp(providerIp);
+                provider.setProviderApiIp(providerApiIp);
+                provider.setGeoipUrl(geoipUrl);
+                provider.setMotdUrl(motdUrl);
+                provider.define(new JSONObject(definition));
+                provider.setCaCert(caCert);
+                provider.setVpnCertificate(vpnCertificate);
+                provider.setPrivateKeyString(privateKey);
+                provider.setEipServiceJson(eipServiceJson);
+                provider.setMotdJson(new JSONObject(motdJson));
+                provider.setLastMotdSeen(lastMotdSeen);
+                provider.setLastMotdUpdate(lastMotdUpdate);
+                provider.setMotdLastSeenHashes(hashes);
+            } catch (MalformedURLException | JSONException e) {
+                e.printStackTrace();
+            }
+            return provider;
+        }
+    }
+
+    // DataOutputStream.writeUTF() is limited to 64 kB, too little for some eip-service.json files
+    private static void writeString(DataOutputStream out, @Nullable String value) throws IOException {
+        byte[] bytes = (value != null ? value : "").getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > in.available()) {
+            throw new IOException("invalid string length " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
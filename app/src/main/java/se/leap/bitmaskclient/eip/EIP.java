@@ -75,6 +75,7 @@ import java.util.concurrent.LinkedBlockingQueue;
 import de.blinkt.openvpn.LaunchVPN;
 import de.blinkt.openvpn.VpnProfile;
 import de.blinkt.openvpn.core.ConnectionStatus;
+import de.blinkt.openvpn.core.DeviceStateReceiver;
 import de.blinkt.openvpn.core.IOpenVPNServiceInternal;
 import de.blinkt.openvpn.core.OpenVPNService;
 import de.blinkt.openvpn.core.VpnStatus;
@@ -83,6 +84,8 @@ import se.leap.bitmaskclient.base.OnBootReceiver;
 import se.leap.bitmaskclient.base.models.Provider;
 import se.leap.bitmaskclient.base.models.ProviderObservable;
 import se.leap.bitmaskclient.base.utils.PreferenceHelper;
+import se.leap.bitmaskclient.pluggableTransports.ObfsvpnClient;
+import se.leap.bitmaskclient.pluggableTransports.models.Obfs4Options;
 
 /**
  * EIP is the abstract base class for interacting with and managing the Encrypted
@@ -177,6 +180,8 @@ public final class EIP extends JobIntentService implements PropertyChangeListene
         if (intent.getParcelableExtra(EIP_RECEIVER) != null) {
             mResultRef = new WeakReference<>((ResultReceiver) intent.getParcelableExtra(EIP_RECEIVER));
         }
+        // all actions depend on the provider saved on disk, e.g. after a reboot
+        ProviderObservable.getInstance().awaitCurrentProvider();
         int nClosestGateway;
         switch (action) {
             case EIP_ACTION_START:
@@ -239,14 +244,18 @@ public final class EIP extends JobIntentService implements PropertyChangeListene
             ProviderObservable.getInstance().updateProvider(p);
         }
 
-        GatewaysManager gatewaysManager = new GatewaysManager(getApplicationContext());
+        GatewaysManager gatewaysManager = GatewaysManager.getInstance(getApplicationContext());
         if (gatewaysManager.isEmpty()) {
             setErrorResult(result, warning_client_parsing_error_gateways, null);
             tellToReceiverOrBroadcast(this, EIP_ACTION_START, RESULT_CANCELED, result);
             return;
         }
 
-        VpnProfile gatewayOptions = gatewaysManager.selectVpnProfile(nClosestGateway);
+        if (nClosestGateway == 0) {
+            // measurements finishing after the gateway was selected rank the gateways of the next connection
+            gatewaysManager.probeGatewayLatencies();
+        }
+        VpnProfile gatewayOptions = gatewaysManager.selectVpnProfileToLaunch(nClosestGateway);
         launchProfile(gatewayOptions, nClosestGateway, result);
         if (result.containsKey(BROADCAST_RESULT_KEY) && !result.getBoolean(BROADCAST_RESULT_KEY)) {
             tellToReceiverOrBroadcast(this, EIP_ACTION_START, RESULT_CANCELED, result);
@@ -260,7 +269,7 @@ public final class EIP extends JobIntentService implements PropertyChangeListene
      * The {@link OnBootReceiver} will care if there is no profile.
      */
     private void startEIPAlwaysOnVpn() {
-        GatewaysManager gatewaysManager = new GatewaysManager(getApplicationContext());
+        GatewaysManager gatewaysManager = GatewaysManager.getInstance(getApplicationContext());
         VpnProfile vpnProfile = gatewaysManager.selectVpnProfile(0);
         Bundle result = new Bundle();
 
@@ -350,6 +359,8 @@ public final class EIP extends JobIntentService implements PropertyChangeListene
                 VpnStatus.clearLog();
             }
 
+            prepareObfsvpnClient(profile);
+
             // check profile configuration
             int vpnok = profile.checkProfile(this);
             if (vpnok != R.string.no_error_found) {
@@ -373,6 +384,19 @@ public final class EIP extends JobIntentService implements PropertyChangeListene
         }
     }
 
+    /**
+     * Creates the obfsvpn client of a bridge profile while the VPN service is set up
+     */
+    private void prepareObfsvpnClient(VpnProfile profile) {
+        if (!profile.usePluggableTransports()) {
+            return;
+        }
+        Obfs4Options options = profile.getObfs4Options();
+        if (options != null) {
+            ObfsvpnClient.prepare(options, profile.mGatewayIp, DeviceStateReceiver.getNetworkType(getApplicationContext()));
+        }
+    }
+
     /**
      * Stop VPN
      * First checks if the OpenVpnConnection is open then
@@ -58,6 +58,7 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.util.Log;
 
 import androidx.localbroadcastmanager.content.LocalBroadcastManager;
@@ -71,6 +72,7 @@ import java.util.concurrent.atomic.AtomicInteger;
 
 import de.blinkt.openvpn.VpnProfile;
 import de.blinkt.openvpn.core.ConnectionStatus;
+import de.blinkt.openvpn.core.DeviceStateReceiver;
 import de.blinkt.openvpn.core.LogItem;
 import de.blinkt.openvpn.core.VpnStatus;
 import se.leap.bitmaskclient.BuildConfig;
@@ -94,12 +96,16 @@ public class EipSetupObserver extends BroadcastReceiver implements VpnStatus.Sta
     private static final int UPDATE_CHECK_TIMEOUT = 1000*60*60*24*7;
     private final Context appContext;
     private VpnProfile setupVpnProfile;
+    private long setupStartTime;
+    private String setupNetwork;
     private String observedProfileFromVpnStatus;
     AtomicInteger reconnectTry = new AtomicInteger();
     AtomicBoolean changingGateway = new AtomicBoolean(false);
 
     AtomicBoolean activityForeground = new AtomicBoolean(false);
     AtomicInteger setupNClosestGateway = new AtomicInteger();
+    // true while the same gateway is retried with the other transport layer protocol
+    AtomicBoolean fallingBackToOtherTransportLayer = new AtomicBoolean(false);
     private Vector<EipSetupListener> listeners = new Vector<>();
     private static EipSetupObserver instance;
 
@@ -349,6 +355,8 @@ public class EipSetupObserver extends BroadcastReceiver implements VpnStatus.Sta
             return;
         }
         setupVpnProfile = vpnProfile;
+        setupStartTime = SystemClock.elapsedRealtime();
+        setupNetwork = DeviceStateReceiver.getNetworkType(appContext);
         setupNClosestGateway.set(event.getIntExtra(EIP_N_CLOSEST_GATEWAY, 0));
         Log.d(TAG, "bitmaskapp add state listener");
         VpnStatus.addStateListener(this);
@@ -375,12 +383,30 @@ public class EipSetupObserver extends BroadcastReceiver implements VpnStatus.Sta
             if (reconnectTry.addAndGet(1) == setupVpnProfile.mConnections.length) {
                 Log.e(TAG, "Timeout reached! Try next gateway!");
                 VpnStatus.logError("Timeout reached! Try next gateway!");
-                selectNextGateway();
+                GatewayHistory history = GatewayHistory.getInstance();
+                if (history != null) {
+                    history.recordFailure(setupVpnProfile, setupNetwork);
+                }
+                if (!fallingBackToOtherTransportLayer.get() &&
+                        GatewaysManager.getInstance(appContext).prepareTransportLayerFallback(setupVpnProfile, setupNClosestGateway.get())) {
+                    Log.d(TAG, "Try other transport layer protocol of the same gateway.");
+                    fallingBackToOtherTransportLayer.set(true);
+                    retryGateway();
+                } else {
+                    fallingBackToOtherTransportLayer.set(false);
+                    selectNextGateway();
+                }
             }
         } else if ("NOPROCESS".equals(state) && LEVEL_NOTCONNECTED == level) {
             //??
         } else if ("CONNECTED".equals(state)) {
             //saveLastProfile(context.getApplicationContext(), setupVpnProfile.getUUIDString());
+            fallingBackToOtherTransportLayer.set(false);
+            GatewayHistory history = GatewayHistory.getInstance();
+            if (history != null) {
+                history.recordSuccess(setupVpnProfile, setupNetwork, SystemClock.elapsedRealtime() - setupStartTime);
+                history.startSession(setupVpnProfile, setupNetwork);
+            }
             Provider provider = ProviderObservable.getInstance().getCurrentProvider();
             if (setupNClosestGateway.get() > 0 || provider.shouldUpdateEipServiceJson()) {
                 //setupNClostestGateway > 0: at least one failed gateway -> did the provider change it's gateways?
@@ -416,6 +442,12 @@ public class EipSetupObserver extends BroadcastReceiver implements VpnStatus.Sta
         return System.currentTimeMillis() - PreferenceHelper.getLastAppUpdateCheck() >= UPDATE_CHECK_TIMEOUT;
     }
 
+    private void retryGateway() {
+        changingGateway.set(true);
+        reconnectTry.set(0);
+        EipCommand.startVPN(appContext, false, setupNClosestGateway.get());
+    }
+
     private void selectNextGateway() {
         changingGateway.set(true);
         reconnectTry.set(0);
@@ -18,15 +18,8 @@ package se.leap.bitmaskclient.eip;
 
 import static de.blinkt.openvpn.core.connection.Connection.TransportType.PT;
 import static se.leap.bitmaskclient.base.models.Constants.FULLNESS;
-import static se.leap.bitmaskclient.base.models.Constants.HOST;
-import static se.leap.bitmaskclient.base.models.Constants.IP_ADDRESS;
-import static se.leap.bitmaskclient.base.models.Constants.LOCATION;
-import static se.leap.bitmaskclient.base.models.Constants.LOCATIONS;
-import static se.leap.bitmaskclient.base.models.Constants.NAME;
-import static se.leap.bitmaskclient.base.models.Constants.OPENVPN_CONFIGURATION;
 import static se.leap.bitmaskclient.base.models.Constants.OVERLOAD;
-import static se.leap.bitmaskclient.base.models.Constants.TIMEZONE;
-import static se.leap.bitmaskclient.base.models.Constants.VERSION;
+import static se.leap.bitmaskclient.base.models.Constants.TCP;
 import static se.leap.bitmaskclient.base.utils.PreferenceHelper.allowExperimentalTransports;
 import static se.leap.bitmaskclient.base.utils.PreferenceHelper.getExcludedApps;
 import static se.leap.bitmaskclient.base.utils.PreferenceHelper.getObfuscationPinningCert;
@@ -37,28 +30,37 @@ import static se.leap.bitmaskclient.base.utils.PreferenceHelper.getObfuscationPi
 import static se.leap.bitmaskclient.base.utils.PreferenceHelper.getPreferUDP;
 import static se.leap.bitmaskclient.base.utils.PreferenceHelper.useObfuscationPinning;
 
-import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
 import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
 
 import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 import java.util.Vector;
 
 import de.blinkt.openvpn.VpnProfile;
 import de.blinkt.openvpn.core.ConfigParser;
+import de.blinkt.openvpn.core.VpnStatus;
 import de.blinkt.openvpn.core.connection.Connection;
+import se.leap.bitmaskclient.base.models.EipServiceJson;
+import se.leap.bitmaskclient.base.models.GatewayJson;
+import se.leap.bitmaskclient.base.models.GeoIpJson;
+import se.leap.bitmaskclient.base.models.Transport;
 import se.leap.bitmaskclient.base.utils.ConfigHelper;
 
 /**
  * Gateway provides objects defining gateways and their metadata.
- * Each instance contains a VpnProfile for OpenVPN specific data and member
- * variables describing capabilities and location (name)
+ * Each instance contains the transports the gateway supports, member variables describing
+ * capabilities and location (name) and lazily creates a VpnProfile for OpenVPN specific data
+ * once a transport is requested.
  *
  * @author Sean Leonard <meanderingcode@aetherislands.net>
  * @author Parménides GV <parmegv@sdf.org>
@@ -68,20 +70,26 @@ public class Gateway {
 
     public final static String TAG = Gateway.class.getSimpleName();
 
-    private JSONObject generalConfiguration;
-    private JSONObject secrets;
-    private JSONObject gateway;
-    private JSONObject load;
-
     // the location of a gateway is its name
     private String name;
     private int timezone;
     private int apiVersion;
-    private Vector<VpnProfile> vpnProfiles;
+    private String host;
+    private String remoteGatewayIP;
+    private boolean hasLoad;
+    private double fullness;
+    private boolean overloaded;
+    private transient VpnConfigGenerator vpnConfigGenerator;
+    // supported transports and the transport layer protocols their profiles will use,
+    // vpnProfiles holds the lazily created profile at the same index
+    private Vector<Transport> transports;
+    private String[] transportLayerProtocols;
+    private VpnProfile[] vpnProfiles;
+    private boolean[] failedProfiles;
 
     /**
      * Build a gateway object from a JSON OpenVPN gateway definition in eip-service.json
-     * and create a VpnProfile belonging to it.
+     * and determine the transports VpnProfiles can be created for.
      */
     public Gateway(JSONObject eipDefinition, JSONObject secrets, JSONObject gateway)
             throws ConfigParser.ConfigParseError, JSONException, IOException {
@@ -90,29 +98,47 @@ public class Gateway {
 
     public Gateway(JSONObject eipDefinition, JSONObject secrets, JSONObject gateway, JSONObject load)
             throws ConfigParser.ConfigParseError, JSONException, IOException {
+        this(EipServiceJson.fromJson(eipDefinition), secrets, parseGateway(gateway));
+        if (load != null) {
+            updateLoad(new GeoIpJson.GatewayLoad(host, load.optDouble(FULLNESS), load.optBoolean(OVERLOAD)));
+        }
+    }
 
-        this.gateway = gateway;
-        this.secrets = secrets;
-        this.load = load;
-
-        apiVersion = getApiVersion(eipDefinition);
-        VpnConfigGenerator.Configuration configuration = getProfileConfig(eipDefinition, apiVersion);
-        generalConfiguration = getGeneralConfiguration(eipDefinition);
-        timezone = getTimezone(eipDefinition);
+    /**
+     * Build a gateway object from the parsed gateway definition of eip-service.json
+     * and determine the transports VpnProfiles can be created for.
+     */
+    public Gateway(EipServiceJson eipService, JSONObject secrets, GatewayJson gateway)
+            throws ConfigParser.ConfigParseError {
+        apiVersion = eipService.getVersion();
+        EipServiceJson.GatewayLocation location = eipService.getLocation(gateway.getLocation());
+        timezone = location != null ? location.getTimezone() : 0;
+        host = gateway.getHost() != null ? gateway.getHost() : "";
+        VpnConfigGenerator.Configuration configuration = getProfileConfig(gateway, location, apiVersion);
         name = configuration.profileName;
-        vpnProfiles = createVPNProfiles(configuration);
+        remoteGatewayIP = configuration.remoteGatewayIP;
+        initTransports(eipService, secrets, gateway, configuration);
+    }
+
+    private static GatewayJson parseGateway(JSONObject gateway) throws ConfigParser.ConfigParseError {
+        try {
+            return GatewayJson.fromJson(gateway);
+        } catch (JsonParseException e) {
+            throw new ConfigParser.ConfigParseError("Invalid gateway definition: " + e.getLocalizedMessage());
+        }
     }
 
-    private VpnConfigGenerator.Configuration getProfileConfig(JSONObject eipDefinition, int apiVersion) {
+    private VpnConfigGenerator.Configuration getProfileConfig(GatewayJson gateway, @Nullable EipServiceJson.GatewayLocation location, int apiVersion) {
         VpnConfigGenerator.Configuration config = new VpnConfigGenerator.Configuration();
         config.apiVersion = apiVersion;
         config.preferUDP = getPreferUDP();
         config.experimentalTransports = allowExperimentalTransports();
         config.excludedApps = getExcludedApps();
 
-        config.remoteGatewayIP = config.useObfuscationPinning ? getObfuscationPinningIP() : gateway.optString(IP_ADDRESS);
+        config.remoteGatewayIP = gateway.getIpAddress() != null ? gateway.getIpAddress() : "";
         config.useObfuscationPinning = useObfuscationPinning();
-        config.profileName = config.useObfuscationPinning ? getObfuscationPinningGatewayLocation() : locationAsName(eipDefinition);
+        config.profileName = config.useObfuscationPinning ? getObfuscationPinningGatewayLocation() :
+                location != null ? location.getName() : "";
         if (config.useObfuscationPinning) {
             config.obfuscationProxyIP = getObfuscationPinningIP();
             config.obfuscationProxyPort = getObfuscationPinningPort();
@@ -122,86 +148,92 @@ public class Gateway {
         return config;
     }
 
-    public void updateLoad(JSONObject load) {
-        this.load = load;
-    }
-
-    private JSONObject getGeneralConfiguration(JSONObject eipDefinition) {
-        try {
-            return eipDefinition.getJSONObject(OPENVPN_CONFIGURATION);
-        } catch (JSONException e) {
-            return new JSONObject();
-        }
-    }
-
-    private int getTimezone(JSONObject eipDefinition) {
-        JSONObject location = getLocationInfo(eipDefinition);
-        return location.optInt(TIMEZONE);
-    }
-
-    private int getApiVersion(JSONObject eipDefinition) {
-        return eipDefinition.optInt(VERSION);
+    public void updateLoad(GeoIpJson.GatewayLoad load) {
+        hasLoad = true;
+        fullness = load.getFullness();
+        overloaded = load.isOverloaded();
     }
 
     public String getRemoteIP() {
-        return gateway.optString(IP_ADDRESS);
+        return remoteGatewayIP;
     }
 
     public String getHost() {
-        return gateway.optString(HOST);
-    }
-
-    private String locationAsName(JSONObject eipDefinition) {
-        JSONObject location = getLocationInfo(eipDefinition);
-        return location.optString(NAME);
-    }
-
-    private JSONObject getLocationInfo(JSONObject eipDefinition) {
-        try {
-            JSONObject locations = eipDefinition.getJSONObject(LOCATIONS);
-
-            return locations.getJSONObject(gateway.getString(LOCATION));
-        } catch (JSONException e) {
-            return new JSONObject();
-        }
+        return host;
     }
 
     public boolean hasLoadInfo() {
-        return load != null;
+        return hasLoad;
     }
 
     public double getFullness() {
-        try {
-            return load.getDouble(FULLNESS);
-        } catch (JSONException | NullPointerException e) {
+        if (!hasLoad || Double.isNaN(fullness)) {
             return ConfigHelper.getConnectionQualityFromTimezoneDistance(timezone);
         }
+        return fullness;
     }
 
     public boolean isOverloaded() {
-        try {
-            return load.getBoolean(OVERLOAD);
-        } catch (JSONException | NullPointerException e) {
-            return false;
+        return overloaded;
+    }
+
+    /**
+     * Parse the capabilities of our gateway object. VpnProfiles are created on demand.
+     */
+    private void initTransports(EipServiceJson eipService, JSONObject secrets, GatewayJson gateway, VpnConfigGenerator.Configuration profileConfig) throws ConfigParser.ConfigParseError {
+        vpnConfigGenerator = new VpnConfigGenerator(eipService.getOpenvpnConfiguration(), secrets, gateway, profileConfig);
+        transports = vpnConfigGenerator.getSupportedTransports();
+        transportLayerProtocols = new String[transports.size()];
+        for (int i = 0; i < transports.size(); i++) {
+            transportLayerProtocols[i] = vpnConfigGenerator.getObfuscationTransportLayerProtocol(transports.get(i));
         }
+        vpnProfiles = new VpnProfile[transports.size()];
+        failedProfiles = new boolean[transports.size()];
     }
 
     /**
-     * Create and attach the VpnProfile to our gateway object
+     * Returns the memoized VpnProfile for the transport at the given index, creates it if necessary.
+     * @return VpnProfile or null if the profile couldn't be created
      */
-    private @NonNull Vector<VpnProfile> createVPNProfiles(VpnConfigGenerator.Configuration profileConfig)
-            throws ConfigParser.ConfigParseError, IOException, JSONException {
-        VpnConfigGenerator vpnConfigurationGenerator = new VpnConfigGenerator(generalConfiguration, secrets, gateway, profileConfig);
-        Vector<VpnProfile> profiles = vpnConfigurationGenerator.generateVpnProfiles();
-        return profiles;
+    private synchronized @Nullable VpnProfile getOrCreateProfile(int index) {
+        if (vpnProfiles[index] == null && !failedProfiles[index]) {
+            try {
+                vpnProfiles[index] = vpnConfigGenerator.createVpnProfile(transports.get(index));
+            } catch (ConfigParser.ConfigParseError | NumberFormatException | JSONException | IOException e) {
+                e.printStackTrace();
+                VpnStatus.logError("Unable to create " + transports.get(index).getType() + " profile for gateway " + getHost() + ": " + e.getLocalizedMessage());
+                failedProfiles[index] = true;
+            }
+        }
+        return vpnProfiles[index];
+    }
+
+    private boolean matches(int index, Connection.TransportType transportType, @Nullable Set<String> obfuscationTransportLayerProtocols) {
+        Connection.TransportType supportedTransportType = transports.get(index).getTransportType();
+        return !failedProfiles[index] &&
+                supportedTransportType == transportType &&
+                (!supportedTransportType.isPluggableTransport() ||
+                        obfuscationTransportLayerProtocols == null ||
+                        obfuscationTransportLayerProtocols.contains(transportLayerProtocols[index]));
     }
 
     public String getName() {
         return name;
     }
 
+    /**
+     * Creates all VpnProfiles of the gateway. Prefer {@link #getProfile(Connection.TransportType, Set)},
+     * which only creates the requested profile.
+     */
     public Vector<VpnProfile> getProfiles() {
-        return vpnProfiles;
+        Vector<VpnProfile> profiles = new Vector<>();
+        for (int i = 0; i < transports.size(); i++) {
+            VpnProfile profile = getOrCreateProfile(i);
+            if (profile != null) {
+                profiles.add(profile);
+            }
+        }
+        return profiles;
     }
 
     /**
@@ -213,25 +245,48 @@ public class Gateway {
      * @return
      */
     public @Nullable VpnProfile getProfile(Connection.TransportType transportType, @Nullable Set<String> obfuscationTransportLayerProtocols) {
-        Vector<VpnProfile> results = new Vector<>();
-        for (VpnProfile vpnProfile : vpnProfiles) {
-            if (vpnProfile.getTransportType() == transportType) {
-                if (!vpnProfile.usePluggableTransports() ||
-                        obfuscationTransportLayerProtocols == null ||
-                        obfuscationTransportLayerProtocols.contains(vpnProfile.getObfuscationTransportLayerProtocol())) {
-                    results.add(vpnProfile);
-                }
+        return getProfile(transportType, obfuscationTransportLayerProtocols, null);
+    }
+
+    /**
+     * Like {@link #getProfile(Connection.TransportType, Set)}, but if multiple VpnProfiles fulfill
+     * the requirements, the transport layer protocol that worked best on the current network is
+     * chosen. Profiles the selector can't tell apart are chosen randomly.
+     * @param transportLayerSelector ranks the transport layer protocols, random selection if null
+     */
+    @Nullable VpnProfile getProfile(Connection.TransportType transportType, @Nullable Set<String> obfuscationTransportLayerProtocols, @Nullable TransportLayerSelector transportLayerSelector) {
+        List<Integer> results = new ArrayList<>();
+        for (int i = 0; i < transports.size(); i++) {
+            if (matches(i, transportType, obfuscationTransportLayerProtocols)) {
+                results.add(i);
             }
         }
-        if (results.size() == 0) {
-            return null;
+        Collections.shuffle(results);
+        if (transportLayerSelector != null && results.size() > 1) {
+            // stable sort, the random order is kept for equally ranked profiles
+            Collections.sort(results, (index1, index2) -> transportLayerSelector.compare(remoteGatewayIP, transportType,
+                    transportLayerProtocols[index1], transportLayerProtocols[index2]));
         }
-        int randomIndex = (int) (Math.random() * (results.size()));
-        return results.get(randomIndex);
+        for (int index : results) {
+            VpnProfile profile = getOrCreateProfile(index);
+            if (profile != null) {
+                return profile;
+            }
+        }
+        return null;
     }
 
     public boolean hasProfile(VpnProfile profile) {
-        return vpnProfiles.contains(profile);
+        if (profile == null || (remoteGatewayIP != null && !remoteGatewayIP.equals(profile.mGatewayIp))) {
+            return false;
+        }
+        for (int i = 0; i < transports.size(); i++) {
+            if (transports.get(i).getTransportType() == profile.getTransportType() &&
+                    profile.equals(getOrCreateProfile(i))) {
+                return true;
+            }
+        }
+        return false;
     }
 
     /**
@@ -247,21 +302,27 @@ public class Gateway {
         if (transportType == PT) {
             return supportsPluggableTransports();
         }
-        return getProfile(transportType, obfuscationTransportLayerProtocols) != null;
+        for (int i = 0; i < transports.size(); i++) {
+            if (matches(i, transportType, obfuscationTransportLayerProtocols)) {
+                return true;
+            }
+        }
+        return false;
     }
 
     public HashSet<Connection.TransportType> getSupportedTransports() {
         HashSet<Connection.TransportType> transportTypes = new HashSet<>();
-        for (VpnProfile p : vpnProfiles) {
-            transportTypes.add(p.getTransportType());
+        for (int i = 0; i < transports.size(); i++) {
+            if (!failedProfiles[i]) {
+                transportTypes.add(transports.get(i).getTransportType());
+            }
         }
         return transportTypes;
     }
 
     public boolean supportsPluggableTransports() {
-        for (VpnProfile profile : vpnProfiles) {
-            Connection.TransportType transportType = profile.getTransportType();
-            if (transportType.isPluggableTransport()) {
+        for (int i = 0; i < transports.size(); i++) {
+            if (!failedProfiles[i] && transports.get(i).getTransportType().isPluggableTransport()) {
                 return true;
             }
         }
@@ -272,6 +333,32 @@ public class Gateway {
         return timezone;
     }
 
+    /**
+     * @return a TCP port of the gateway's OpenVPN transport to measure the latency with, -1 if
+     * the gateway has none
+     */
+    public int getProbePort() {
+        for (Transport transport : transports) {
+            if (transport.getTransportType() != Connection.TransportType.OPENVPN || transport.getPorts() == null) {
+                continue;
+            }
+            String[] protocols = transport.getProtocols();
+            if (protocols == null) {
+                continue;
+            }
+            for (String protocol : protocols) {
+                if (TCP.equals(protocol) && transport.getPorts().length > 0) {
+                    try {
+                        return Integer.parseInt(transport.getPorts()[0]);
+                    } catch (NumberFormatException e) {
+                        return -1;
+                    }
+                }
+            }
+        }
+        return -1;
+    }
+
     @Override
     public String toString() {
         return new Gson().toJson(this, Gateway.class);
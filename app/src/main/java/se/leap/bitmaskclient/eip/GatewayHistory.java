@@ -0,0 +1,509 @@
+/**
+ * Copyright (c) 2023 LEAP Encryption Access Project and contributors
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.leap.bitmaskclient.eip;
+
+import static de.blinkt.openvpn.core.ConnectionStatus.LEVEL_CONNECTED;
+import static se.leap.bitmaskclient.base.models.Constants.KCP;
+import static se.leap.bitmaskclient.base.models.Constants.TCP;
+
+import android.content.Context;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import de.blinkt.openvpn.VpnProfile;
+import de.blinkt.openvpn.core.ConnectionStatus;
+import de.blinkt.openvpn.core.VpnStatus;
+import de.blinkt.openvpn.core.connection.Connection.TransportType;
+
+/**
+ * Remembers the outcome of connection attempts per gateway, transport and network type across
+ * sessions. Obfuscated transports are tracked per transport layer protocol (TCP or KCP).
+ * Success rates decay exponentially with HALF_LIFE_MS, so that old outcomes count less than
+ * recent ones. The GatewaySelector uses the history to rank gateways that worked on the current
+ * network before the ones that didn't.
+ *
+ * The history is kept in a small binary file in the app's files directory.
+ */
+public class GatewayHistory {
+
+    private static final String TAG = GatewayHistory.class.getSimpleName();
+
+    static final String FILE_NAME = "gateway_history.bin";
+    private static final int MAGIC = 0x47574831; // GWH1
+    private static final int VERSION = 1;
+
+    static final int MAX_RECORDS = 256;
+    static final long HALF_LIFE_MS = TimeUnit.DAYS.toMillis(7);
+    static final int CONNECT_TIME_SAMPLES = 8;
+    // gateways that failed that often in a row on a network are ranked last on it
+    static final int MAX_CONSECUTIVE_FAILURES = 3;
+    // weight of the newest session in the throughput average
+    private static final double THROUGHPUT_ALPHA = 0.3;
+
+    // transport layer protocols a transport's records can be split into, null for none
+    private static final String[] TRANSPORT_LAYER_PROTOCOLS = {null, TCP, KCP};
+
+    private static GatewayHistory instance;
+
+    private final File file;
+    private final Map<String, Record> records = new HashMap<>();
+    private final ThreadPoolExecutor writer;
+    private final AtomicBoolean savePending = new AtomicBoolean(false);
+    // increased on every change, rankings based on an older generation are stale
+    private int generation;
+
+    private Session session;
+
+    static class Record {
+        final String host;
+        final String transport;
+        final String network;
+        double successes;
+        double attempts;
+        long lastUpdate;
+        int consecutiveFailures;
+        final int[] connectTimes = new int[CONNECT_TIME_SAMPLES];
+        int connectTimeCount;
+        int nextConnectTime;
+        long throughput;
+
+        Record(String host, String transport, String network) {
+            this.host = host;
+            this.transport = transport;
+            this.network = network;
+        }
+
+        void decay(long now) {
+            if (now > lastUpdate && lastUpdate > 0) {
+                double factor = Math.pow(0.5, (double) (now - lastUpdate) / HALF_LIFE_MS);
+                successes *= factor;
+                attempts *= factor;
+            }
+            lastUpdate = now;
+        }
+
+        void addConnectTime(long millis) {
+            connectTimes[nextConnectTime] = (int) Math.min(Integer.MAX_VALUE, millis);
+            nextConnectTime = (nextConnectTime + 1) % CONNECT_TIME_SAMPLES;
+            connectTimeCount = Math.min(connectTimeCount + 1, CONNECT_TIME_SAMPLES);
+        }
+
+        /**
+         * Adds the outcomes of an older record of the same gateway, transport and network, e.g.
+         * one that was loaded from disk after this one was created.
+         */
+        void mergeOlder(Record older) {
+            boolean succeeded = successes > 0;
+            older.decay(lastUpdate);
+            successes += older.successes;
+            attempts += older.attempts;
+            if (!succeeded) {
+                // no success since the older record, the failures continue its streak
+                consecutiveFailures += older.consecutiveFailures;
+            }
+            if (throughput == 0) {
+                throughput = older.throughput;
+            }
+            int[] newer = new int[connectTimeCount];
+            for (int i = 0; i < connectTimeCount; i++) {
+                newer[i] = connectTimes[(nextConnectTime - connectTimeCount + i + CONNECT_TIME_SAMPLES) % CONNECT_TIME_SAMPLES];
+            }
+            connectTimeCount = 0;
+            nextConnectTime = 0;
+            for (int i = 0; i < older.connectTimeCount; i++) {
+                addConnectTime(older.connectTimes[(older.nextConnectTime - older.connectTimeCount + i + CONNECT_TIME_SAMPLES) % CONNECT_TIME_SAMPLES]);
+            }
+            for (int time : newer) {
+                addConnectTime(time);
+            }
+        }
+
+        long getMedianConnectTime() {
+            if (connectTimeCount == 0) {
+                return -1;
+            }
+            int[] sorted = Arrays.copyOf(connectTimes, connectTimeCount);
+            Arrays.sort(sorted);
+            return sorted[connectTimeCount / 2];
+        }
+    }
+
+    /**
+     * Creates the history and loads it from disk in the background
+     */
+    public static synchronized void init(Context context) {
+        if (instance == null) {
+            instance = new GatewayHistory(new File(context.getFilesDir(), FILE_NAME));
+            instance.writer.execute(instance::load);
+        }
+    }
+
+    /**
+     * @return the history or null if it hasn't been initialized
+     */
+    public static synchronized @Nullable GatewayHistory getInstance() {
+        return instance;
+    }
+
+    @VisibleForTesting
+    GatewayHistory(File file) {
+        this.file = file;
+        writer = new ThreadPoolExecutor(1, 1, 30L, TimeUnit.SECONDS, new LinkedBlockingQueue<>());
+        writer.allowCoreThreadTimeOut(true);
+    }
+
+    public synchronized int getGeneration() {
+        return generation;
+    }
+
+    public void recordSuccess(@NonNull VpnProfile profile, String network, long connectTimeMs) {
+        synchronized (this) {
+            Record record = getOrCreateRecord(profile, network);
+            record.decay(System.currentTimeMillis());
+            record.successes++;
+            record.attempts++;
+            record.consecutiveFailures = 0;
+            record.addConnectTime(connectTimeMs);
+            generation++;
+        }
+        scheduleSave();
+    }
+
+    public void recordFailure(@NonNull VpnProfile profile, String network) {
+        synchronized (this) {
+            Record record = getOrCreateRecord(profile, network);
+            record.decay(System.currentTimeMillis());
+            record.attempts++;
+            record.consecutiveFailures++;
+            generation++;
+        }
+        scheduleSave();
+    }
+
+    public void recordThroughput(@NonNull VpnProfile profile, String network, long bytesPerSecond) {
+        if (bytesPerSecond <= 0) {
+            return;
+        }
+        synchronized (this) {
+            Record record = getOrCreateRecord(profile, network);
+            record.throughput = record.throughput == 0 ? bytesPerSecond :
+                    Math.round(THROUGHPUT_ALPHA * bytesPerSecond + (1 - THROUGHPUT_ALPHA) * record.throughput);
+        }
+        scheduleSave();
+    }
+
+    /**
+     * @return the decayed success rate of the gateway on the given network and transports. Without
+     * any history the rate is 0.5, every outcome moves it towards 0 or 1.
+     */
+    public synchronized double getSuccessRate(String ip, String network, Collection<TransportType> transports) {
+        double successes = 0;
+        double attempts = 0;
+        long now = System.currentTimeMillis();
+        for (Record record : getRecords(ip, network, transports)) {
+            double factor = now > record.lastUpdate ? Math.pow(0.5, (double) (now - record.lastUpdate) / HALF_LIFE_MS) : 1;
+            successes += record.successes * factor;
+            attempts += record.attempts * factor;
+        }
+        return (successes + 1) / (attempts + 2);
+    }
+
+    /**
+     * @return true if the last MAX_CONSECUTIVE_FAILURES attempts to connect to the gateway with
+     * one of the transports failed on the given network
+     */
+    public synchronized boolean isFailingRepeatedly(String ip, String network, Collection<TransportType> transports) {
+        for (TransportType transport : transports) {
+            // a transport fails if none of its transport layer protocols works
+            List<Record> transportRecords = getRecords(ip, network, Collections.singletonList(transport));
+            boolean failing = !transportRecords.isEmpty();
+            for (Record record : transportRecords) {
+                failing &= record.consecutiveFailures >= MAX_CONSECUTIVE_FAILURES;
+            }
+            if (failing) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the median of the last CONNECT_TIME_SAMPLES times to connect in ms or -1
+     */
+    public long getMedianConnectTime(String ip, TransportType transport, String network) {
+        return getMedianConnectTime(ip, transport, null, network);
+    }
+
+    /**
+     * @param protocol transport layer protocol of an obfuscated transport or null
+     * @return the median of the last CONNECT_TIME_SAMPLES times to connect in ms or -1
+     */
+    public synchronized long getMedianConnectTime(String ip, TransportType transport, @Nullable String protocol, String network) {
+        Record record = records.get(key(ip, transportKey(transport, protocol), network));
+        return record == null ? -1 : record.getMedianConnectTime();
+    }
+
+    /**
+     * @return the average peak throughput of the last sessions in bytes per second or 0
+     */
+    public long getThroughput(String ip, TransportType transport, String network) {
+        return getThroughput(ip, transport, null, network);
+    }
+
+    /**
+     * @param protocol transport layer protocol of an obfuscated transport or null
+     * @return the average peak throughput of the last sessions in bytes per second or 0
+     */
+    public synchronized long getThroughput(String ip, TransportType transport, @Nullable String protocol, String network) {
+        Record record = records.get(key(ip, transportKey(transport, protocol), network));
+        return record == null ? 0 : record.throughput;
+    }
+
+    /**
+     * @param protocol transport layer protocol of an obfuscated transport or null
+     * @return the number of failed attempts since the last successful one or -1 if the
+     * transport wasn't used yet on the network
+     */
+    public synchronized int getConsecutiveFailures(String ip, TransportType transport, @Nullable String protocol, String network) {
+        Record record = records.get(key(ip, transportKey(transport, protocol), network));
+        return record == null ? -1 : record.consecutiveFailures;
+    }
+
+    /**
+     * Starts observing a connected session to record its throughput once it ends.
+     */
+    public void startSession(@NonNull VpnProfile profile, String network) {
+        Session newSession = new Session(profile, network);
+        Session oldSession;
+        synchronized (this) {
+            oldSession = session;
+            session = newSession;
+        }
+        if (oldSession != null) {
+            oldSession.finish();
+        }
+        VpnStatus.addStateListener(newSession);
+    }
+
+    private class Session implements VpnStatus.StateListener {
+        private final VpnProfile profile;
+        private final String network;
+        private final long start = System.currentTimeMillis();
+        private final AtomicBoolean finished = new AtomicBoolean(false);
+
+        Session(VpnProfile profile, String network) {
+            this.profile = profile;
+            this.network = network;
+        }
+
+        @Override
+        public void updateState(String state, String logmessage, int localizedResId, ConnectionStatus level) {
+            if (level != LEVEL_CONNECTED) {
+                finish();
+            }
+        }
+
+        @Override
+        public void setConnectedVPN(String uuid) {
+        }
+
+        void finish() {
+            if (!finished.compareAndSet(false, true)) {
+                return;
+            }
+            VpnStatus.removeStateListener(this);
+            recordThroughput(profile, network, VpnStatus.getPeakThroughput(start));
+            synchronized (GatewayHistory.this) {
+                if (session == this) {
+                    session = null;
+                }
+            }
+        }
+    }
+
+    private List<Record> getRecords(String ip, String network, Collection<TransportType> transports) {
+        List<Record> result = new ArrayList<>();
+        for (TransportType transport : transports) {
+            for (String protocol : TRANSPORT_LAYER_PROTOCOLS) {
+                Record record = records.get(key(ip, transportKey(transport, protocol), network));
+                if (record != null) {
+                    result.add(record);
+                }
+            }
+        }
+        return result;
+    }
+
+    private Record getOrCreateRecord(VpnProfile profile, String network) {
+        String transport = transportKey(profile.getTransportType(), profile.getObfuscationTransportLayerProtocol());
+        String key = key(profile.mGatewayIp, transport, network);
+        Record record = records.get(key);
+        if (record == null) {
+            if (records.size() >= MAX_RECORDS) {
+                evictOldest();
+            }
+            record = new Record(profile.mGatewayIp, transport, network);
+            records.put(key, record);
+        }
+        return record;
+    }
+
+    private void evictOldest() {
+        String oldestKey = null;
+        long oldest = Long.MAX_VALUE;
+        for (Map.Entry<String, Record> entry : records.entrySet()) {
+            if (entry.getValue().lastUpdate < oldest) {
+                oldest = entry.getValue().lastUpdate;
+                oldestKey = entry.getKey();
+            }
+        }
+        records.remove(oldestKey);
+    }
+
+    private static String transportKey(TransportType transport, @Nullable String protocol) {
+        return protocol == null ? transport.toString() : transport + "/" + protocol;
+    }
+
+    private static String key(@Nullable String ip, String transport, String network) {
+        return ip + "|" + transport + "|" + network;
+    }
+
+    private void scheduleSave() {
+        if (!savePending.compareAndSet(false, true)) {
+            return;
+        }
+        writer.execute(() -> {
+            savePending.set(false);
+            save();
+        });
+    }
+
+    @VisibleForTesting
+    synchronized List<Record> getRecords() {
+        return Collections.unmodifiableList(new ArrayList<>(records.values()));
+    }
+
+    @VisibleForTesting
+    void save() {
+        synchronized (file) {
+            writeFile();
+        }
+    }
+
+    private void writeFile() {
+        File tmp = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            synchronized (this) {
+                out.writeInt(records.size());
+                for (Record record : records.values()) {
+                    writeRecord(out, record);
+                }
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "could not save gateway history", e);
+            tmp.delete();
+            return;
+        }
+        if (!tmp.renameTo(file)) {
+            Log.e(TAG, "could not replace gateway history");
+            tmp.delete();
+        }
+    }
+
+    private static void writeRecord(DataOutputStream out, Record record) throws IOException {
+        out.writeUTF(String.valueOf(record.host));
+        out.writeUTF(record.transport);
+        out.writeUTF(record.network);
+        out.writeDouble(record.successes);
+        out.writeDouble(record.attempts);
+        out.writeLong(record.lastUpdate);
+        out.writeInt(record.consecutiveFailures);
+        out.writeLong(record.throughput);
+        out.writeByte(record.connectTimeCount);
+        for (int i = 0; i < record.connectTimeCount; i++) {
+            // oldest first, so that the ring continues where it left off after loading
+            int index = (record.nextConnectTime - record.connectTimeCount + i + CONNECT_TIME_SAMPLES) % CONNECT_TIME_SAMPLES;
+            out.writeInt(record.connectTimes[index]);
+        }
+    }
+
+    @VisibleForTesting
+    synchronized void load() {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                Log.w(TAG, "ignoring gateway history in unknown format");
+                return;
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count && i < MAX_RECORDS; i++) {
+                Record record = new Record(in.readUTF(), in.readUTF(), in.readUTF());
+                record.successes = in.readDouble();
+                record.attempts = in.readDouble();
+                record.lastUpdate = in.readLong();
+                record.consecutiveFailures = in.readInt();
+                record.throughput = in.readLong();
+                int connectTimeCount = Math.min(in.readByte(), CONNECT_TIME_SAMPLES);
+                for (int j = 0; j < connectTimeCount; j++) {
+                    record.addConnectTime(in.readInt());
+                }
+                String key = key(record.host, record.transport, record.network);
+                Record recorded = records.get(key);
+                if (recorded != null) {
+                    // outcomes recorded before the history was loaded are newer
+                    recorded.mergeOlder(record);
+                } else {
+                    if (records.size() >= MAX_RECORDS) {
+                        evictOldest();
+                    }
+                    records.put(key, record);
+                }
+            }
+        } catch (FileNotFoundException e) {
+            // no history yet
+        } catch (IOException e) {
+            // a truncated file keeps the records read so far
+            Log.e(TAG, "could not read gateway history", e);
+        }
+        generation++;
+    }
+}
@@ -0,0 +1,186 @@
+/**
+ * Copyright (c) 2023 LEAP Encryption Access Project and contributors
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.leap.bitmaskclient.eip;
+
+import android.util.Log;
+
+import androidx.annotation.VisibleForTesting;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Measures the TCP connect round trip time to gateways in the background.
+ * Results are cached per IP address for LATENCY_TTL_MS and used by the GatewaySelector to rank
+ * gateways if the provider doesn't send a sorted list of gateways.
+ */
+public class GatewayLatencyProber {
+
+    private static final String TAG = GatewayLatencyProber.class.getSimpleName();
+
+    public static final long UNKNOWN = -1;
+    public static final long UNREACHABLE = Long.MAX_VALUE;
+
+    static final long LATENCY_TTL_MS = TimeUnit.MINUTES.toMillis(10);
+    static final int CONNECT_TIMEOUT_MS = 2000;
+    private static final int MAX_CONCURRENT_PROBES = 4;
+
+    private static GatewayLatencyProber instance;
+
+    private final Map<String, Measurement> measurements = new ConcurrentHashMap<>();
+    private final Set<String> inFlight = ConcurrentHashMap.newKeySet();
+    // increased whenever new measurements are available, rankings based on an older generation are stale
+    private final AtomicInteger generation = new AtomicInteger();
+    private final ThreadPoolExecutor executor;
+
+    private static class Measurement {
+        final long latency;
+        final long measuredAt;
+
+        Measurement(long latency, long measuredAt) {
+            this.latency = latency;
+            this.measuredAt = measuredAt;
+        }
+    }
+
+    public static synchronized GatewayLatencyProber getInstance() {
+        if (instance == null) {
+            instance = new GatewayLatencyProber();
+        }
+        return instance;
+    }
+
+    @VisibleForTesting
+    public static synchronized void setInstance(GatewayLatencyProber prober) {
+        instance = prober;
+    }
+
+    @VisibleForTesting
+    protected GatewayLatencyProber() {
+        executor = new ThreadPoolExecutor(MAX_CONCURRENT_PROBES, MAX_CONCURRENT_PROBES, 30L, TimeUnit.SECONDS, new LinkedBlockingQueue<>());
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * @return the measured round trip time in ms, UNKNOWN if there's no fresh measurement or
+     * UNREACHABLE if the gateway didn't answer in time
+     */
+    public long getLatency(Gateway gateway) {
+        Measurement measurement = measurements.get(gateway.getRemoteIP());
+        if (measurement == null || isExpired(measurement)) {
+            return UNKNOWN;
+        }
+        return measurement.latency;
+    }
+
+    public int getGeneration() {
+        return generation.get();
+    }
+
+    /**
+     * Probes all gateways without a fresh measurement in the background
+     * @return a latch that counts down as the started probes finish
+     */
+    public CountDownLatch probe(Collection<Gateway> gateways) {
+        List<Gateway> toProbe = new ArrayList<>();
+        for (Gateway gateway : gateways) {
+            String ip = gateway.getRemoteIP();
+            if (ip.isEmpty() || gateway.getProbePort() == -1 || getLatency(gateway) != UNKNOWN) {
+                continue;
+            }
+            if (inFlight.add(ip)) {
+                toProbe.add(gateway);
+            }
+        }
+
+        CountDownLatch latch = new CountDownLatch(toProbe.size());
+        for (Gateway gateway : toProbe) {
+            String ip = gateway.getRemoteIP();
+            int port = gateway.getProbePort();
+            try {
+                executor.execute(() -> {
+                    try {
+                        probe(ip, port);
+                    } finally {
+                        inFlight.remove(ip);
+                        latch.countDown();
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                inFlight.remove(ip);
+                latch.countDown();
+            }
+        }
+        return latch;
+    }
+
+    public void clear() {
+        measurements.clear();
+        generation.incrementAndGet();
+    }
+
+    private void probe(String ip, int port) {
+        long latency;
+        try {
+            latency = measure(ip, port);
+        } catch (SocketTimeoutException e) {
+            latency = UNREACHABLE;
+        } catch (IOException e) {
+            // no route, no network etc. say nothing about the gateway
+            Log.d(TAG, "probing " + ip + " failed: " + e.getMessage());
+            return;
+        }
+        measurements.put(ip, new Measurement(latency, System.currentTimeMillis()));
+        generation.incrementAndGet();
+    }
+
+    /**
+     * @return the time in ms it took to establish a TCP connection to ip:port. A refused connection
+     * still took a full round trip and is measured as well.
+     */
+    @VisibleForTesting
+    protected long measure(String ip, int port) throws IOException {
+        long start = System.nanoTime();
+        try (Socket socket = new Socket()) {
+            socket.connect(new InetSocketAddress(ip, port), CONNECT_TIMEOUT_MS);
+        } catch (ConnectException e) {
+            if (e.getMessage() == null || !e.getMessage().contains("refused")) {
+                throw e;
+            }
+        }
+        return Math.max(1, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    }
+
+    private boolean isExpired(Measurement measurement) {
+        return System.currentTimeMillis() - measurement.measuredAt > LATENCY_TTL_MS;
+    }
+}
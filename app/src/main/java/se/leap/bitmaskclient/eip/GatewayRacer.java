@@ -0,0 +1,274 @@
+/**
+ * Copyright (c) 2023 LEAP Encryption Access Project and contributors
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.leap.bitmaskclient.eip;
+
+import static de.blinkt.openvpn.core.connection.Connection.TransportType.OBFS4;
+import static de.blinkt.openvpn.core.connection.Connection.TransportType.OPENVPN;
+import static se.leap.bitmaskclient.base.models.Constants.TCP;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import de.blinkt.openvpn.VpnProfile;
+import de.blinkt.openvpn.core.VpnStatus;
+import de.blinkt.openvpn.core.connection.Connection;
+import se.leap.bitmaskclient.pluggableTransports.models.Obfs4Options;
+
+/**
+ * Races the next RACE_SIZE candidate gateways against each other before a profile is handed to
+ * OpenVPN. Each candidate gets a TCP reachability check, the first reachable one is launched
+ * immediately and the others are kept as ranked fallbacks for the following attempts, so that a
+ * failing gateway doesn't cost a full OpenVPN timeout per remaining candidate.
+ *
+ * Attempts are counted like nClosestGateway in {@link EIP}: attempt 0 starts a new race, every
+ * failed attempt asks for the next one.
+ */
+public class GatewayRacer {
+
+    private static final String TAG = GatewayRacer.class.getSimpleName();
+
+    static final int RACE_SIZE = 3;
+    static final int CONNECT_TIMEOUT_MS = 3000;
+
+    private static GatewayRacer instance;
+
+    private final ThreadPoolExecutor executor;
+
+    // ranked candidates of the current race, attempt n is rankedProfiles.get(n - firstAttempt)
+    private List<VpnProfile> rankedProfiles = Collections.emptyList();
+    private int firstAttempt;
+    // index of the first candidate that hasn't been raced yet
+    private int nextCandidate;
+
+    public interface CandidateSource {
+        /**
+         * @return the VpnProfile of the n closest gateway or null if there are no more gateways
+         */
+        @Nullable VpnProfile select(int nClosestGateway);
+    }
+
+    enum Reachability {
+        REACHABLE,
+        // the transport can't be checked without a full handshake, e.g. UDP
+        UNVERIFIED,
+        UNREACHABLE
+    }
+
+    static class Attempt {
+        final VpnProfile profile;
+        Reachability reachability = Reachability.UNVERIFIED;
+        long durationMs = -1;
+
+        Attempt(VpnProfile profile) {
+            this.profile = profile;
+        }
+    }
+
+    public static synchronized GatewayRacer getInstance() {
+        if (instance == null) {
+            instance = new GatewayRacer();
+        }
+        return instance;
+    }
+
+    @VisibleForTesting
+    public static synchronized void setInstance(GatewayRacer racer) {
+        instance = racer;
+    }
+
+    @VisibleForTesting
+    protected GatewayRacer() {
+        executor = new ThreadPoolExecutor(RACE_SIZE, RACE_SIZE, 30L, TimeUnit.SECONDS, new LinkedBlockingQueue<>());
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * @param attempt the number of the connection attempt, 0 for a new connection
+     * @return the profile to launch for this attempt or null if there are no more gateways
+     */
+    public synchronized @Nullable VpnProfile select(int attempt, @NonNull CandidateSource source) {
+        if (attempt == 0 || attempt < firstAttempt || attempt > firstAttempt + rankedProfiles.size()) {
+            // new connection or the race state doesn't belong to this sequence of attempts
+            firstAttempt = attempt;
+            nextCandidate = attempt;
+            rankedProfiles = Collections.emptyList();
+        }
+        if (attempt == firstAttempt + rankedProfiles.size()) {
+            rankedProfiles = race(collectCandidates(source));
+            firstAttempt = attempt;
+        }
+        int index = attempt - firstAttempt;
+        return index < rankedProfiles.size() ? rankedProfiles.get(index) : null;
+    }
+
+    public synchronized void reset() {
+        rankedProfiles = Collections.emptyList();
+        firstAttempt = 0;
+        nextCandidate = 0;
+    }
+
+    private List<Attempt> collectCandidates(CandidateSource source) {
+        List<Attempt> candidates = new ArrayList<>(RACE_SIZE);
+        for (int i = 0; i < RACE_SIZE; i++) {
+            VpnProfile profile = source.select(nextCandidate);
+            if (profile == null) {
+                break;
+            }
+            candidates.add(new Attempt(profile));
+            nextCandidate++;
+        }
+        return candidates;
+    }
+
+    /**
+     * Checks all candidates concurrently and returns as soon as the first one is reachable.
+     * @return the candidates ordered by reachability, the winner first
+     */
+    @VisibleForTesting
+    List<VpnProfile> race(List<Attempt> candidates) {
+        List<Attempt> verifiable = new ArrayList<>();
+        for (Attempt attempt : candidates) {
+            if (getProbeAddress(attempt.profile) != null) {
+                verifiable.add(attempt);
+            }
+        }
+
+        List<Attempt> finished = new ArrayList<>();
+        if (!verifiable.isEmpty()) {
+            ExecutorCompletionService<Attempt> completionService = new ExecutorCompletionService<>(executor);
+            int started = 0;
+            for (Attempt attempt : verifiable) {
+                try {
+                    completionService.submit(() -> check(attempt));
+                    started++;
+                } catch (RejectedExecutionException e) {
+                    Log.e(TAG, "could not start reachability check", e);
+                }
+            }
+            long deadline = System.currentTimeMillis() + CONNECT_TIMEOUT_MS;
+            try {
+                for (int i = 0; i < started; i++) {
+                    long remaining = deadline - System.currentTimeMillis();
+                    Future<Attempt> future = completionService.poll(Math.max(0, remaining), TimeUnit.MILLISECONDS);
+                    if (future == null) {
+                        break;
+                    }
+                    Attempt attempt = future.get();
+                    finished.add(attempt);
+                    if (attempt.reachability == Reachability.REACHABLE) {
+                        // launch the winner, slower candidates keep their original order
+                        break;
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (Exception e) {
+                Log.e(TAG, "reachability check failed", e);
+            }
+        }
+        return rank(candidates, finished);
+    }
+
+    /**
+     * Reachable candidates come first, ordered by the time they needed. Candidates that couldn't
+     * be checked or didn't answer yet keep their original order, unreachable ones come last.
+     */
+    @VisibleForTesting
+    static List<VpnProfile> rank(List<Attempt> candidates, List<Attempt> finished) {
+        List<VpnProfile> ranked = new ArrayList<>(candidates.size());
+        List<VpnProfile> unreachable = new ArrayList<>();
+        for (Attempt attempt : finished) {
+            if (attempt.reachability == Reachability.REACHABLE) {
+                ranked.add(attempt.profile);
+            }
+        }
+        for (Attempt attempt : candidates) {
+            if (finished.contains(attempt) && attempt.reachability == Reachability.UNREACHABLE) {
+                unreachable.add(attempt.profile);
+            } else if (!ranked.contains(attempt.profile)) {
+                ranked.add(attempt.profile);
+            }
+        }
+        ranked.addAll(unreachable);
+        return ranked;
+    }
+
+    private Attempt check(Attempt attempt) {
+        InetSocketAddress address = getProbeAddress(attempt.profile);
+        long start = System.nanoTime();
+        try {
+            connect(address);
+            attempt.reachability = Reachability.REACHABLE;
+        } catch (IOException e) {
+            attempt.reachability = Reachability.UNREACHABLE;
+        }
+        attempt.durationMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        VpnStatus.logGatewayAttempt(attempt.profile.mGatewayIp, attempt.profile.getTransportType().toString(),
+                attempt.durationMs, attempt.reachability == Reachability.REACHABLE);
+        return attempt;
+    }
+
+    @VisibleForTesting
+    protected void connect(InetSocketAddress address) throws IOException {
+        try (Socket socket = new Socket()) {
+            socket.connect(new InetSocketAddress(address.getHostString(), address.getPort()), CONNECT_TIMEOUT_MS);
+        }
+    }
+
+    /**
+     * @return the TCP endpoint to check for the given profile or null if the profile can only
+     * be reached by UDP
+     */
+    @VisibleForTesting
+    static @Nullable InetSocketAddress getProbeAddress(VpnProfile profile) {
+        try {
+            if (profile.getTransportType() == OPENVPN) {
+                for (Connection connection : profile.mConnections) {
+                    if (connection.isEnabled() && !connection.isUseUdp()) {
+                        return InetSocketAddress.createUnresolved(connection.getServerName(), Integer.parseInt(connection.getServerPort()));
+                    }
+                }
+            } else if (profile.getTransportType() == OBFS4) {
+                // obfsvpn listens on a single local port, so the obfs4 handshake itself can't be
+                // raced. Check if the bridge accepts TCP connections instead.
+                Obfs4Options options = profile.getObfs4Options();
+                if (options != null && TCP.equals(profile.getObfuscationTransportLayerProtocol())) {
+                    return InetSocketAddress.createUnresolved(options.bridgeIP, Integer.parseInt(options.transport.getPorts()[0]));
+                }
+            }
+        } catch (NumberFormatException | NullPointerException | ArrayIndexOutOfBoundsException e) {
+            Log.w(TAG, "invalid remote in profile " + profile.getName());
+        }
+        return null;
+    }
+}
@@ -5,31 +5,70 @@ import static se.leap.bitmaskclient.base.utils.TimezoneHelper.getCurrentTimezone
 
 import android.util.Log;
 
+import androidx.annotation.Nullable;
+
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
-import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
 
+import de.blinkt.openvpn.core.connection.Connection.TransportType;
+
 public class GatewaySelector {
     private final static String TAG = GatewaySelector.class.getSimpleName();
+
+    // gateways without a latency measurement are ranked by an estimation based on the timezone distance
+    static final int ESTIMATED_BASE_LATENCY_MS = 20;
+    static final int ESTIMATED_LATENCY_PER_TIMEZONE_MS = 20;
+    // a completely full gateway is ranked as if its latency was (1 + LOAD_WEIGHT) times higher
+    static final double LOAD_WEIGHT = 1.0;
+    // gateways within the same bucket are considered equally good and get shuffled
+    static final int SCORE_BUCKET_MS = 10;
+    // a gateway that never connected is ranked as if its latency was (1 + HISTORY_WEIGHT) times
+    // higher than a gateway that always connected on the current network
+    static final double HISTORY_WEIGHT = 1.0;
+    private static final int UNREACHABLE_SCORE = Integer.MAX_VALUE / SCORE_BUCKET_MS;
+    // gateways that failed repeatedly on the current network are ranked after all others
+    private static final int FAILING_SCORE = UNREACHABLE_SCORE / 2;
+
     List<Gateway> gateways;
     TreeMap<Integer, Set<Gateway>> offsets;
+    private final ArrayList<Gateway> ranked = new ArrayList<>();
+    private final GatewayLatencyProber latencyProber;
+    private final @Nullable GatewayHistory history;
+    private final String network;
+    private final Collection<TransportType> transports;
 
     public GatewaySelector(List<Gateway> gateways) {
+        this(gateways, GatewayLatencyProber.getInstance());
+    }
+
+    public GatewaySelector(List<Gateway> gateways, GatewayLatencyProber latencyProber) {
+        this(gateways, latencyProber, null, null, Collections.emptyList());
+    }
+
+    /**
+     * @param history connection history used to rank gateways that worked before on the given
+     *                network and transports first, or null to ignore the history
+     */
+    public GatewaySelector(List<Gateway> gateways, GatewayLatencyProber latencyProber, @Nullable GatewayHistory history,
+                           String network, Collection<TransportType> transports) {
         this.gateways = gateways;
+        this.latencyProber = latencyProber;
+        this.history = history;
+        this.network = network;
+        this.transports = transports;
         this.offsets = calculateOffsets();
+        for (Collection<Gateway> gatewayCollection : offsets.values()) {
+            ranked.addAll(gatewayCollection);
+        }
     }
 
     public ArrayList<Gateway> getGatewaysSortedByDistance() {
-        ArrayList<Gateway> list = new ArrayList<>();
-        int i = 0;
-        for (Collection<Gateway> gatewayCollection : offsets.values()) {
-            list.addAll(gatewayCollection);
-        }
-        return list;
+        return new ArrayList<>(ranked);
     }
 
     public Gateway select() {
@@ -37,14 +76,8 @@ public class GatewaySelector {
     }
 
     public Gateway select(int nClosest) {
-        int i = 0;
-        for (Map.Entry<Integer,Set<Gateway>> entrySet : offsets.entrySet()) {
-            for (Gateway gateway : entrySet.getValue()) {
-                if (i == nClosest) {
-                    return gateway;
-                }
-                i = i + 1;
-            }
+        if (nClosest >= 0 && nClosest < ranked.size()) {
+            return ranked.get(nClosest);
         }
 
         Log.e(TAG, "There are less than " + (nClosest + 1) + " Gateways available.");
@@ -52,21 +85,57 @@ public class GatewaySelector {
     }
 
     private Gateway closestGateway() {
-        return offsets.isEmpty() ? null : offsets.firstEntry().getValue().iterator().next();
+        return ranked.isEmpty() ? null : ranked.get(0);
     }
 
-    // calculateOffsets randomizes the order of Gateways with the same distance, e.g. from the same location
+    // calculateOffsets randomizes the order of Gateways with the same score, e.g. from the same location
     private TreeMap<Integer, Set<Gateway>> calculateOffsets() {
         TreeMap<Integer, Set<Gateway>> offsets = new TreeMap<Integer, Set<Gateway>>();
         int localOffset = getCurrentTimezone();
         for (Gateway gateway : gateways) {
-            int dist = timezoneDistance(localOffset, gateway.getTimezone());
-            Set<Gateway> set = (offsets.get(dist) != null) ?
-                    offsets.get(dist) : new HashSet<Gateway>();
+            int score = getScore(gateway, localOffset);
+            Set<Gateway> set = (offsets.get(score) != null) ?
+                    offsets.get(score) : new HashSet<Gateway>();
             set.add(gateway);
-            offsets.put(dist, set);
+            offsets.put(score, set);
         }
         return offsets;
     }
 
+    /**
+     * Ranks a gateway by its latency score, weighted with the decayed success rate of earlier
+     * connections on the current network.
+     * @return the score bucket of the gateway, lower is better
+     */
+    private int getScore(Gateway gateway, int localOffset) {
+        int score = getLatencyScore(gateway, localOffset);
+        if (history == null || score == UNREACHABLE_SCORE) {
+            return score;
+        }
+        String ip = gateway.getRemoteIP();
+        if (history.isFailingRepeatedly(ip, network, transports)) {
+            return Math.min(FAILING_SCORE + score, UNREACHABLE_SCORE - 1);
+        }
+        double successRate = history.getSuccessRate(ip, network, transports);
+        return (int) Math.min(score * (1 + HISTORY_WEIGHT * (1 - successRate)), FAILING_SCORE - 1);
+    }
+
+    /**
+     * Ranks a gateway by its measured latency blended with its reported load. Gateways that
+     * haven't been measured yet fall back to an estimated latency based on the timezone distance.
+     */
+    private int getLatencyScore(Gateway gateway, int localOffset) {
+        long latency = latencyProber.getLatency(gateway);
+        if (latency == GatewayLatencyProber.UNREACHABLE) {
+            return UNREACHABLE_SCORE;
+        }
+        if (latency == GatewayLatencyProber.UNKNOWN) {
+            int dist = timezoneDistance(localOffset, gateway.getTimezone());
+            return (ESTIMATED_BASE_LATENCY_MS + dist * ESTIMATED_LATENCY_PER_TIMEZONE_MS) / SCORE_BUCKET_MS;
+        }
+        double load = gateway.hasLoadInfo() ? gateway.getFullness() : 0;
+        double score = latency * (1 + LOAD_WEIGHT * load) / SCORE_BUCKET_MS;
+        return (int) Math.min(score, UNREACHABLE_SCORE - 1);
+    }
+
 }
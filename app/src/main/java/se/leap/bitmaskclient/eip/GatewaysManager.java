@@ -20,35 +20,52 @@ import static de.blinkt.openvpn.core.connection.Connection.TransportType.OBFS4;
 import static de.blinkt.openvpn.core.connection.Connection.TransportType.OBFS4_HOP;
 import static de.blinkt.openvpn.core.connection.Connection.TransportType.OPENVPN;
 import static de.blinkt.openvpn.core.connection.Connection.TransportType.PT;
-import static se.leap.bitmaskclient.base.models.Constants.GATEWAYS;
-import static se.leap.bitmaskclient.base.models.Constants.HOST;
+import static se.leap.bitmaskclient.base.models.Constants.ALLOW_EXPERIMENTAL_TRANSPORTS;
+import static se.leap.bitmaskclient.base.models.Constants.EXCLUDED_APPS;
+import static se.leap.bitmaskclient.base.models.Constants.GATEWAY_PINNING;
 import static se.leap.bitmaskclient.base.models.Constants.KCP;
+import static se.leap.bitmaskclient.base.models.Constants.OBFUSCATION_PINNING_CERT;
+import static se.leap.bitmaskclient.base.models.Constants.OBFUSCATION_PINNING_IP;
+import static se.leap.bitmaskclient.base.models.Constants.OBFUSCATION_PINNING_KCP;
+import static se.leap.bitmaskclient.base.models.Constants.OBFUSCATION_PINNING_LOCATION;
+import static se.leap.bitmaskclient.base.models.Constants.OBFUSCATION_PINNING_PORT;
+import static se.leap.bitmaskclient.base.models.Constants.PREFERRED_CITY;
+import static se.leap.bitmaskclient.base.models.Constants.PREFER_UDP;
 import static se.leap.bitmaskclient.base.models.Constants.PROVIDER_VPN_CERTIFICATE;
-import static se.leap.bitmaskclient.base.models.Constants.SORTED_GATEWAYS;
 import static se.leap.bitmaskclient.base.models.Constants.TCP;
+import static se.leap.bitmaskclient.base.models.Constants.USE_BRIDGES;
+import static se.leap.bitmaskclient.base.models.Constants.USE_OBFUSCATION_PINNING;
+import static se.leap.bitmaskclient.base.utils.PreferenceHelper.allowExperimentalTransports;
+import static se.leap.bitmaskclient.base.utils.PreferenceHelper.getExcludedApps;
 import static se.leap.bitmaskclient.base.utils.PreferenceHelper.getObfuscationPinningCert;
+import static se.leap.bitmaskclient.base.utils.PreferenceHelper.getObfuscationPinningGatewayLocation;
 import static se.leap.bitmaskclient.base.utils.PreferenceHelper.getObfuscationPinningIP;
 import static se.leap.bitmaskclient.base.utils.PreferenceHelper.getObfuscationPinningKCP;
 import static se.leap.bitmaskclient.base.utils.PreferenceHelper.getObfuscationPinningPort;
+import static se.leap.bitmaskclient.base.utils.PreferenceHelper.getPinnedGateway;
+import static se.leap.bitmaskclient.base.utils.PreferenceHelper.getPreferUDP;
 import static se.leap.bitmaskclient.base.utils.PreferenceHelper.getPreferredCity;
 import static se.leap.bitmaskclient.base.utils.PreferenceHelper.getUseBridges;
+import static se.leap.bitmaskclient.base.utils.PreferenceHelper.useObfuscationPinning;
 
 import android.content.Context;
 import android.util.Log;
 
 import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
 
 import com.google.gson.Gson;
 import com.google.gson.reflect.TypeToken;
 
-import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import java.io.IOException;
+import java.beans.PropertyChangeEvent;
+import java.beans.PropertyChangeListener;
 import java.lang.reflect.Type;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -58,12 +75,15 @@ import java.util.Set;
 
 import de.blinkt.openvpn.VpnProfile;
 import de.blinkt.openvpn.core.ConfigParser;
+import de.blinkt.openvpn.core.DeviceStateReceiver;
 import de.blinkt.openvpn.core.VpnStatus;
 import de.blinkt.openvpn.core.connection.Connection;
 import de.blinkt.openvpn.core.connection.Connection.TransportType;
 import se.leap.bitmaskclient.BuildConfig;
 import se.leap.bitmaskclient.R;
+import se.leap.bitmaskclient.base.models.EipServiceJson;
 import se.leap.bitmaskclient.base.models.GatewayJson;
+import se.leap.bitmaskclient.base.models.GeoIpJson;
 import se.leap.bitmaskclient.base.models.Location;
 import se.leap.bitmaskclient.base.models.Provider;
 import se.leap.bitmaskclient.base.models.ProviderObservable;
@@ -109,19 +129,132 @@ public class GatewaysManager {
     private static final String TAG = GatewaysManager.class.getSimpleName();
     public static final String PINNED_OBFUSCATION_PROXY = "pinned.obfuscation.proxy";
 
+    // preferences that are baked into the generated VpnProfiles or that filter the gateway list
+    private static final Set<String> PROFILE_PREFERENCES = new HashSet<>(Arrays.asList(
+            PREFER_UDP,
+            EXCLUDED_APPS,
+            USE_BRIDGES,
+            ALLOW_EXPERIMENTAL_TRANSPORTS,
+            GATEWAY_PINNING,
+            USE_OBFUSCATION_PINNING,
+            OBFUSCATION_PINNING_IP,
+            OBFUSCATION_PINNING_PORT,
+            OBFUSCATION_PINNING_CERT,
+            OBFUSCATION_PINNING_KCP,
+            OBFUSCATION_PINNING_LOCATION));
+
+    private static GatewaysManager sharedInstance;
+    private static SnapshotInvalidator snapshotInvalidator;
+
     private final Context context;
+    private final String profileSettings;
+    private final String eipServiceJson;
+    private final String geoIpJson;
+    private final String caCert;
+    private final String vpnCertificate;
     private final LinkedHashMap<String, Gateway> gateways = new LinkedHashMap<>();
     private final Type listType = new TypeToken<ArrayList<Gateway>>() {}.getType();
     private final ArrayList<Gateway> presortedList = new ArrayList<>();
     private ArrayList<Location> locations = new ArrayList<>();
+    private HashMap<String, Location> locationsByName;
+    private HashMap<String, String> locationNamesByIp;
     private TransportType selectedTransport;
 
-    GatewaySelector gatewaySelector;
+    private RankedGatewayIndex rankedIndex;
+    private int rankedIndexLatencyGeneration;
+    private int rankedIndexHistoryGeneration;
+    private String rankedIndexNetwork;
+    // profile to use for the next attempt after a transport layer protocol failed
+    private VpnProfile transportLayerFallback;
+    private int transportLayerFallbackNClosest;
 
 
     public GatewaysManager(Context context) {
+        this(context, ProviderObservable.getInstance().getCurrentProvider());
+    }
+
+    private GatewaysManager(Context context, Provider provider) {
         this.context = context;
-        configureFromCurrentProvider();
+        this.profileSettings = currentProfileSettings();
+        this.eipServiceJson = provider != null ? provider.getEipServiceJsonString() : null;
+        this.geoIpJson = provider != null ? provider.getGeoIpJsonString() : null;
+        this.caCert = provider != null ? provider.getCaCert() : "";
+        this.vpnCertificate = provider != null ? provider.getVpnCertificate() : "";
+        configureFromProvider(provider);
+    }
+
+    /**
+     * Returns the process-wide gateway snapshot of the current provider. The snapshot is built
+     * lazily and reused until the provider's eip-service.json, geoip json or certificates, or
+     * one of the preferences affecting the VpnProfile generation change.
+     * @param context any context, only the application context is retained
+     * @return shared GatewaysManager instance
+     */
+    public static synchronized GatewaysManager getInstance(Context context) {
+        if (snapshotInvalidator == null) {
+            snapshotInvalidator = new SnapshotInvalidator();
+            ProviderObservable.getInstance().addObserver(snapshotInvalidator);
+        }
+        if (sharedInstance == null) {
+            sharedInstance = new GatewaysManager(context.getApplicationContext(), ProviderObservable.getInstance().getCurrentProvider());
+        }
+        return sharedInstance;
+    }
+
+    /**
+     * Drops the shared gateway snapshot if one of the given preferences changed a value the
+     * snapshot was built from. PreferenceHelper calls this as soon as changes are applied, so
+     * that the next {@link #getInstance(Context)} sees them before they are written and the
+     * SharedPreference listeners are notified.
+     * @param keys keys of the applied preference changes
+     */
+    public static synchronized void onPreferencesChanged(Collection<String> keys) {
+        if (sharedInstance == null) {
+            return;
+        }
+        if (keys.contains(PREFERRED_CITY)) {
+            sharedInstance.clearLocations();
+        }
+        for (String key : keys) {
+            if (PROFILE_PREFERENCES.contains(key)) {
+                if (!sharedInstance.profileSettings.equals(currentProfileSettings())) {
+                    Log.d(TAG, "gateway snapshot invalidated by preference " + key);
+                    sharedInstance = null;
+                }
+                return;
+            }
+        }
+    }
+
+    private static synchronized void onProviderChanged(Provider provider) {
+        if (sharedInstance != null && !sharedInstance.isBuiltFrom(provider)) {
+            Log.d(TAG, "gateway snapshot invalidated by provider update");
+            sharedInstance = null;
+        }
+    }
+
+    private boolean isBuiltFrom(@Nullable Provider provider) {
+        if (provider == null || eipServiceJson == null) {
+            return provider == null && eipServiceJson == null;
+        }
+        return caCert.equals(provider.getCaCert()) &&
+                vpnCertificate.equals(provider.getVpnCertificate()) &&
+                eipServiceJson.equals(provider.getEipServiceJsonString()) &&
+                geoIpJson.equals(provider.getGeoIpJsonString());
+    }
+
+    private static String currentProfileSettings() {
+        return getPreferUDP() + "|" +
+                getExcludedApps() + "|" +
+                getUseBridges() + "|" +
+                allowExperimentalTransports() + "|" +
+                getPinnedGateway() + "|" +
+                useObfuscationPinning() + "|" +
+                getObfuscationPinningIP() + "|" +
+                getObfuscationPinningPort() + "|" +
+                getObfuscationPinningCert() + "|" +
+                getObfuscationPinningKCP() + "|" +
+                getObfuscationPinningGatewayLocation();
     }
 
     /**
@@ -144,6 +277,30 @@ public class GatewaysManager {
         return selectVpnProfile(nClosestGateway, selectedCity);
     }
 
+    /**
+     * Selects the profile to launch for the nClosestGateway-th connection attempt. A prepared
+     * transport layer fallback for this attempt comes first. Otherwise, if gateway racing is
+     * enabled and a previous attempt failed, the next candidates are checked concurrently and the
+     * first reachable one is used. The first attempt launches the best ranked gateway right away.
+     * @return VpnProfile to launch or null if no remaining VpnProfiles available
+     */
+    public @Nullable VpnProfile selectVpnProfileToLaunch(int nClosestGateway) {
+        // the racer would return its cached candidate for a retried attempt, i.e. the failed profile
+        VpnProfile fallback = pollTransportLayerFallback(nClosestGateway);
+        if (fallback != null) {
+            return fallback;
+        }
+        if (nClosestGateway == 0) {
+            // a race blocks the launch for up to CONNECT_TIMEOUT_MS, it only pays off after a failure
+            GatewayRacer.getInstance().reset();
+            return selectVpnProfile(nClosestGateway);
+        }
+        if (!PreferenceHelper.useGatewayRacing() || useObfuscationPinning()) {
+            return selectVpnProfile(nClosestGateway);
+        }
+        return GatewayRacer.getInstance().select(nClosestGateway, this::selectVpnProfile);
+    }
+
     /**
      * Selects a VPN profile, filtered by distance to the user, transportType and
      * optionally by city and transport layer protocol
@@ -152,14 +309,55 @@ public class GatewaysManager {
      * @return VpnProfile of the n closest Gateway or null if no remaining VpnProfiles available
      */
     public @Nullable VpnProfile selectVpnProfile(int nClosestGateway, String city) {
-        TransportType[] transportTypes = getUseBridges() ? new TransportType[]{OBFS4, OBFS4_HOP} : new TransportType[]{OPENVPN};
+        TransportType[] transportTypes = getTransportTypes();
         Set<String> obfuscationTransportLayerProtocols = getObfuscationTransportLayerProtocols();
-        if (presortedList.size() > 0) {
-            return getVpnProfileFromPresortedList(nClosestGateway, transportTypes, obfuscationTransportLayerProtocols, city);
+        // EIP walks the ranking by index, so it may only change when a new connection starts
+        return getRankedIndex(nClosestGateway == 0).select(nClosestGateway, transportTypes, obfuscationTransportLayerProtocols, city);
+    }
+
+    /**
+     * Looks for a profile of the same gateway as the failed obfuscated profile that uses the other
+     * transport layer protocol, e.g. TCP if KCP failed. If there is one, the next call of
+     * {@link #selectVpnProfileToLaunch(int)} returns it if it's for the same nClosestGateway.
+     * @param failedProfile profile that couldn't connect
+     * @param nClosestGateway the position the failed profile was selected for
+     * @return true if there's a profile to fall back to
+     */
+    public synchronized boolean prepareTransportLayerFallback(VpnProfile failedProfile, int nClosestGateway) {
+        transportLayerFallback = null;
+        String failedProtocol = failedProfile.getObfuscationTransportLayerProtocol();
+        if (failedProtocol == null || PreferenceHelper.useObfuscationPinning()) {
+            return false;
         }
+        Gateway gateway = getRankedIndex().getGateway(failedProfile);
+        if (gateway == null) {
+            return false;
+        }
+        Set<String> otherProtocols = new HashSet<>(Arrays.asList(TCP, KCP));
+        otherProtocols.remove(failedProtocol);
+        VpnProfile fallback = gateway.getProfile(failedProfile.getTransportType(), otherProtocols);
+        if (fallback == null) {
+            return false;
+        }
+        transportLayerFallback = fallback;
+        transportLayerFallbackNClosest = nClosestGateway;
+        return true;
+    }
 
-        return getVpnProfileFromTimezoneCalculation(nClosestGateway, transportTypes, obfuscationTransportLayerProtocols, city);
+    private synchronized @Nullable VpnProfile pollTransportLayerFallback(int nClosestGateway) {
+        VpnProfile fallback = transportLayerFallback;
+        // only valid for the very next attempt, a fallback for another one is stale
+        transportLayerFallback = null;
+        if (fallback == null || transportLayerFallbackNClosest != nClosestGateway) {
+            return null;
+        }
+        return fallback;
     }
+
+    private static TransportType[] getTransportTypes() {
+        return getUseBridges() ? new TransportType[]{OBFS4, OBFS4_HOP} : new TransportType[]{OPENVPN};
+    }
+
     @Nullable
     private static Set<String> getObfuscationTransportLayerProtocols() {
         Set<String> obfuscationTransportLayerProtocols = null;
@@ -169,7 +367,7 @@ public class GatewaysManager {
         return obfuscationTransportLayerProtocols;
     }
 
-    public void updateTransport(TransportType transportType) {
+    public synchronized void updateTransport(TransportType transportType) {
         if (this.selectedTransport == null || transportType != this.selectedTransport) {
             this.selectedTransport = transportType;
             locations.clear();
@@ -197,9 +395,13 @@ public class GatewaysManager {
         return getSortedGatewayLocations(null);
     }
 
-    public List<Location> getSortedGatewayLocations(@Nullable TransportType selectedTransport) {
+    /**
+     * Returns the gateway locations, sorted by average load if a transport type is given.
+     * Since the GatewaysManager is shared, callers receive copies they are free to modify.
+     */
+    public synchronized List<Location> getSortedGatewayLocations(@Nullable TransportType selectedTransport) {
         if (locations.size() > 0) {
-            return locations;
+            return copyOf(locations);
         }
 
         HashMap<String, Integer> locationNames = new HashMap<>();
@@ -227,10 +429,32 @@ public class GatewaysManager {
         if (selectedTransport != null) {
             Collections.sort(locations, new Location.SortByAverageLoad(selectedTransport));
             this.locations = locations;
+            return copyOf(locations);
         }
         return locations;
     }
 
+    private static List<Location> copyOf(List<Location> locations) {
+        ArrayList<Location> copy = new ArrayList<>(locations.size());
+        for (Location location : locations) {
+            copy.add(copyOf(location));
+        }
+        return copy;
+    }
+
+    private static Location copyOf(Location location) {
+        try {
+            return location.clone();
+        } catch (CloneNotSupportedException e) {
+            return location;
+        }
+    }
+
+    private synchronized void clearLocations() {
+        locations.clear();
+        locationsByName = null;
+    }
+
     private Location initLocation(String name, Gateway gateway, String preferredCity) {
         HashMap<TransportType, Double> averageLoadMap = new HashMap<>();
         HashMap<TransportType, Integer> numberOfGatewaysMap = new HashMap<>();
@@ -261,23 +485,36 @@ public class GatewaysManager {
     }
 
     public String getLocationNameForIP(String ip, Context context) {
-        for (Gateway gateway : gateways.values()) {
-            if (gateway.getRemoteIP().equals(ip)) {
-                return gateway.getName();
-            }
+        String name = getLocationNamesByIp().get(ip);
+        if (name != null) {
+            return name;
         }
         return context.getString(R.string.unknown_location);
     }
 
+    private synchronized HashMap<String, String> getLocationNamesByIp() {
+        if (locationNamesByIp == null) {
+            locationNamesByIp = new HashMap<>();
+            for (Gateway gateway : gateways.values()) {
+                String ip = gateway.getRemoteIP();
+                if (ip != null && gateway.getName() != null && !locationNamesByIp.containsKey(ip)) {
+                    locationNamesByIp.put(ip, gateway.getName());
+                }
+            }
+        }
+        return locationNamesByIp;
+    }
+
     @Nullable
-    public Location getLocation(String name) {
-        List <Location> locations = getGatewayLocations();
-        for (Location location : locations) {
-            if (location.getName().equals(name)) {
-                return location;
+    public synchronized Location getLocation(String name) {
+        if (locationsByName == null) {
+            locationsByName = new HashMap<>();
+            for (Location location : getSortedGatewayLocations(null)) {
+                locationsByName.put(location.getName(), location);
             }
         }
-        return null;
+        Location location = locationsByName.get(name);
+        return location != null ? copyOf(location) : null;
     }
 
     public Load getLoadForLocation(@Nullable String name, TransportType transportType) {
@@ -288,83 +525,87 @@ public class GatewaysManager {
         return Load.getLoadByValue(location.getAverageLoad(transportType));
     }
 
-    private VpnProfile getVpnProfileFromTimezoneCalculation(int nClosest, TransportType[] transportTypes, @Nullable Set<String> protocols, @Nullable String city) {
-        List<Gateway> list = new ArrayList<>(gateways.values());
-        if (gatewaySelector == null) {
-            gatewaySelector = new GatewaySelector(list);
-        }
-        Gateway gateway;
-        int found  = 0;
-        int i = 0;
-        while ((gateway = gatewaySelector.select(i)) != null) {
-            for (TransportType transportType : transportTypes) {
-                if ((city == null && gateway.supportsTransport(transportType, protocols)) ||
-                        (gateway.getName().equals(city) && gateway.supportsTransport(transportType, protocols))) {
-                    if (found == nClosest) {
-                        return gateway.getProfile(transportType, protocols);
-                    }
-                    found++;
-                }
-            }
-            i++;
-        }
-        return null;
+    /**
+     * Get position of the gateway from a sorted set (along the distance of the gw to your time zone)
+     * @param profile profile belonging to a gateway
+     * @return position of the gateway owning to the profile
+     */
+    public int getPosition(VpnProfile profile) {
+        return getRankedIndex().getPosition(profile);
     }
 
-    private VpnProfile getVpnProfileFromPresortedList(int nClosest, TransportType[] transportTypes, @Nullable Set<String> protocols, @Nullable String city) {
-        int found = 0;
-        for (Gateway gateway : presortedList) {
-            for (TransportType transportType : transportTypes) {
-                if ((city == null && gateway.supportsTransport(transportType, protocols)) ||
-                        (gateway.getName().equals(city) && gateway.supportsTransport(transportType, protocols))) {
-                    if (found == nClosest) {
-                        return gateway.getProfile(transportType, protocols);
-                    }
-                    found++;
-                }
+    private RankedGatewayIndex getRankedIndex() {
+        return getRankedIndex(false);
+    }
+
+    /**
+     * Returns the index of the ranked gateways. The ranking is either the provider's sorted list or
+     * calculated by the GatewaySelector. It stays the same during a sequence of connection attempts,
+     * otherwise a gateway failing at attempt n could move to position n + 1 and be tried again,
+     * while another one is skipped. The index is only rebuilt if the network type changed or, when
+     * a new connection starts, if latency measurements or the connection history changed.
+     * @param newConnection true if the ranking is used for the first attempt of a connection
+     */
+    @VisibleForTesting
+    synchronized RankedGatewayIndex getRankedIndex(boolean newConnection) {
+        GatewayHistory history = GatewayHistory.getInstance();
+        int historyGeneration = history != null ? history.getGeneration() : 0;
+        String network = history != null ? DeviceStateReceiver.getNetworkType(context) : "";
+        int latencyGeneration = presortedList.size() > 0 ? 0 : GatewayLatencyProber.getInstance().getGeneration();
+        if (rankedIndex == null ||
+                !network.equals(rankedIndexNetwork) ||
+                (newConnection && (rankedIndexLatencyGeneration != latencyGeneration ||
+                        rankedIndexHistoryGeneration != historyGeneration))) {
+            List<Gateway> ranked;
+            if (presortedList.size() > 0) {
+                ranked = getRankedPresortedList(history, network);
+            } else {
+                GatewaySelector gatewaySelector = new GatewaySelector(new ArrayList<>(gateways.values()),
+                        GatewayLatencyProber.getInstance(), history, network, Arrays.asList(getTransportTypes()));
+                ranked = gatewaySelector.getGatewaysSortedByDistance();
             }
+            rankedIndex = new RankedGatewayIndex(ranked, history != null ? new TransportLayerSelector(history, network) : null);
+            rankedIndexLatencyGeneration = latencyGeneration;
+            rankedIndexHistoryGeneration = historyGeneration;
+            rankedIndexNetwork = network;
         }
-        return null;
+        return rankedIndex;
     }
 
     /**
-     * Get position of the gateway from a sorted set (along the distance of the gw to your time zone)
-     * @param profile profile belonging to a gateway
-     * @return position of the gateway owning to the profile
+     * Keeps the order of the provider's sorted gateway list, but moves gateways that failed
+     * repeatedly on the current network to the end.
      */
-    public int getPosition(VpnProfile profile) {
-        if (presortedList.size() > 0) { 
-            return getPositionFromPresortedList(profile);
-        } 
-        
-        return getPositionFromTimezoneCalculatedList(profile);
-    }
-    
-    private int getPositionFromPresortedList(VpnProfile profile) {
-        int nClosestGateway = 0;
+    private List<Gateway> getRankedPresortedList(@Nullable GatewayHistory history, String network) {
+        if (history == null) {
+            return presortedList;
+        }
+        List<TransportType> transportTypes = Arrays.asList(getTransportTypes());
+        ArrayList<Gateway> ranked = new ArrayList<>(presortedList.size());
+        ArrayList<Gateway> failing = new ArrayList<>();
         for (Gateway gateway : presortedList) {
-            if (gateway.hasProfile(profile)) {
-                return nClosestGateway;
+            if (history.isFailingRepeatedly(gateway.getRemoteIP(), network, transportTypes)) {
+                failing.add(gateway);
+            } else {
+                ranked.add(gateway);
             }
-            nClosestGateway++;
         }
-        return -1;
+        ranked.addAll(failing);
+        return ranked;
     }
 
-    private int getPositionFromTimezoneCalculatedList(VpnProfile profile) {
-        if (gatewaySelector == null) {
-            gatewaySelector = new GatewaySelector(new ArrayList<>(gateways.values()));
-        }
-        Gateway gateway;
-        int nClosestGateway = 0;
-        int i = 0;
-        while ((gateway = gatewaySelector.select(nClosestGateway)) != null) {
-            if (gateway.hasProfile(profile)) {
-                return nClosestGateway;
-            }
-            nClosestGateway++;
+    /**
+     * Measures the latency to the gateways in the background, so that they can be ranked by it
+     * instead of the timezone distance. Only applies if the provider doesn't send a sorted list
+     * of gateways. Obfuscated gateways are not probed, plain connection attempts to them would
+     * stand out. Never waits for the results: until there are measurements the gateways are
+     * ranked by the timezone distance, new results are used by the next connection.
+     */
+    public void probeGatewayLatencies() {
+        if (presortedList.size() > 0 || getUseBridges() || PreferenceHelper.useObfuscationPinning() || VpnStatus.isVPNActive()) {
+            return;
         }
-        return -1;
+        GatewayLatencyProber.getInstance().probe(new ArrayList<>(gateways.values()));
     }
 
     /**
@@ -392,15 +633,13 @@ public class GatewaysManager {
      * @param provider
      */
      private void parseDefaultGateways(Provider provider) {
+         EipServiceJson eipService = provider.getEipService();
+         if (eipService == null) {
+             VpnStatus.logError("Unable to parse gateway config!");
+             return;
+         }
          try {
-             JSONObject eipDefinition = provider.getEipServiceJson();
-             JSONObject secrets = secretsConfigurationFromCurrentProvider();
-             JSONArray gatewaysDefined = new JSONArray();
-             try {
-                 gatewaysDefined = eipDefinition.getJSONArray(GATEWAYS);
-             } catch (Exception e) {
-                 e.printStackTrace();
-             }
+             JSONObject secrets = secretsConfigurationFromProvider(provider);
 
              if (PreferenceHelper.useObfuscationPinning()) {
                  try {
@@ -413,22 +652,18 @@ public class GatewaysManager {
                      GatewayJson gatewayJson = new GatewayJson(context.getString(R.string.unknown_location), getObfuscationPinningIP(
 
                      ), null, PINNED_OBFUSCATION_PROXY, capabilities);
-                     Gateway gateway = new Gateway(eipDefinition, secrets, new JSONObject(gatewayJson.toString()));
+                     Gateway gateway = new Gateway(eipService, secrets, gatewayJson);
                      addGateway(gateway);
-                 } catch (JSONException | ConfigParser.ConfigParseError | IOException e) {
+                 } catch (ConfigParser.ConfigParseError e) {
                      e.printStackTrace();
                  }
              } else {
-                 for (int i = 0; i < gatewaysDefined.length(); i++) {
+                 for (GatewayJson gw : eipService.getGateways()) {
                      try {
-                         JSONObject gw = gatewaysDefined.getJSONObject(i);
-                         Gateway aux = new Gateway(eipDefinition, secrets, gw);
+                         Gateway aux = new Gateway(eipService, secrets, gw);
                          if (gateways.get(aux.getHost()) == null) {
                              addGateway(aux);
                          }
-                     } catch (JSONException | IOException e) {
-                         e.printStackTrace();
-                         VpnStatus.logError("Unable to parse gateway config!");
                      } catch (ConfigParser.ConfigParseError e) {
                          VpnStatus.logError("Unable to parse gateway config: " + e.getLocalizedMessage());
                      }
@@ -439,59 +674,39 @@ public class GatewaysManager {
          }
     }
 
-    private void parseSimpleGatewayList(Provider provider) {
-         try {
-             JSONObject geoIpJson = provider.getGeoIpJson();
-             JSONArray gatewaylist = geoIpJson.getJSONArray(GATEWAYS);
-
-             for (int i = 0; i < gatewaylist.length(); i++) {
-                 try {
-                     String key = gatewaylist.getString(i);
-                     if (gateways.containsKey(key)) {
-                         presortedList.add(gateways.get(key));
-                     }
-                 } catch (JSONException e) {
-                     e.printStackTrace();
-                 }
-             }
-         } catch (NullPointerException | JSONException npe) {
-             Log.d(TAG, "No valid geoip json found: " + npe.getLocalizedMessage());
+    @Nullable
+    private GeoIpJson parseGeoIpJson(@Nullable Provider provider) {
+         if (provider == null || !provider.hasGeoIpJson()) {
+             return null;
          }
+         GeoIpJson geoIp = provider.getGeoIp();
+         if (geoIp == null) {
+             Log.d(TAG, "No valid geoip json found");
+         }
+         return geoIp;
     }
 
-    private boolean hasSortedGatewaysWithLoad(@Nullable Provider provider) {
-         if (provider == null) {
-             return false;
+    private void parseSimpleGatewayList(GeoIpJson geoIpJson) {
+         for (String key : geoIpJson.getGateways()) {
+             Gateway gateway = gateways.get(key);
+             if (gateway != null) {
+                 presortedList.add(gateway);
+             }
          }
-         JSONObject geoIpJson = provider.getGeoIpJson();
-         return geoIpJson.has(SORTED_GATEWAYS);
     }
 
-    private void parseGatewaysWithLoad(Provider provider) {
-        try {
-            JSONObject geoIpJson = provider.getGeoIpJson();
-            JSONArray gatewaylist = geoIpJson.getJSONArray(SORTED_GATEWAYS);
-            for (int i = 0; i < gatewaylist.length(); i++) {
-                try {
-                    JSONObject load = gatewaylist.getJSONObject(i);
-                    String hostName = load.getString(HOST);
-                    if (gateways.containsKey(hostName)) {
-                        Gateway gateway = gateways.get(hostName);
-                        gateway.updateLoad(load);
-                        presortedList.add(gateway);
-                    }
-                } catch (JSONException e) {
-                    e.printStackTrace();
-                }
+    private void parseGatewaysWithLoad(GeoIpJson geoIpJson) {
+        for (GeoIpJson.GatewayLoad load : geoIpJson.getSortedGateways()) {
+            Gateway gateway = gateways.get(load.getHost());
+            if (gateway != null) {
+                gateway.updateLoad(load);
+                presortedList.add(gateway);
             }
-        } catch (NullPointerException | JSONException npe) {
-            npe.printStackTrace();
         }
     }
 
-    private JSONObject secretsConfigurationFromCurrentProvider() {
+    private JSONObject secretsConfigurationFromProvider(Provider provider) {
         JSONObject result = new JSONObject();
-        Provider provider = ProviderObservable.getInstance().getCurrentProvider();
         try {
             result.put(Provider.CA_CERT, provider.getCaCert());
             result.put(PROVIDER_VPN_CERTIFICATE, provider.getVpnCertificate());
@@ -505,16 +720,19 @@ public class GatewaysManager {
         gateways.put(gateway.getHost(), gateway);
     }
 
-    private void configureFromCurrentProvider() {
-         Provider provider = ProviderObservable.getInstance().getCurrentProvider();
+    private void configureFromProvider(Provider provider) {
          parseDefaultGateways(provider);
          if (BuildConfig.BUILD_TYPE.equals("debug") && handleGatewayPinning()) {
              return;
          }
-         if (hasSortedGatewaysWithLoad(provider)) {
-             parseGatewaysWithLoad(provider);
+         GeoIpJson geoIpJson = parseGeoIpJson(provider);
+         if (geoIpJson == null) {
+             return;
+         }
+         if (geoIpJson.hasSortedGateways()) {
+             parseGatewaysWithLoad(geoIpJson);
          } else {
-             parseSimpleGatewayList(provider);
+             parseSimpleGatewayList(geoIpJson);
          }
 
     }
@@ -532,4 +750,14 @@ public class GatewaysManager {
          return true;
     }
 
+    private static class SnapshotInvalidator implements PropertyChangeListener {
+
+        @Override
+        public void propertyChange(PropertyChangeEvent evt) {
+            if (ProviderObservable.PROPERTY_CHANGE.equals(evt.getPropertyName())) {
+                onProviderChanged((Provider) evt.getNewValue());
+            }
+        }
+    }
+
 }
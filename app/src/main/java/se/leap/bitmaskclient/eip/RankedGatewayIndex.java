@@ -0,0 +1,164 @@
+/**
+ * Copyright (c) 2023 LEAP Encryption Access Project and contributors
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.leap.bitmaskclient.eip;
+
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+import de.blinkt.openvpn.VpnProfile;
+import de.blinkt.openvpn.core.connection.Connection.TransportType;
+
+/**
+ * Flat, precomputed view of a ranked gateway list. For every combination of transport types,
+ * transport layer protocols and city that is asked for, the matching gateways are collected once
+ * into an array, so that selecting the n-th profile and looking up the rank of a profile are
+ * constant time. The rank of every profile handed out is remembered by its UUID. An index is
+ * immutable apart from these lazily built lookups, build a new one if the ranking changes.
+ */
+class RankedGatewayIndex {
+
+    private static class Entry {
+        final Gateway gateway;
+        final int rank;
+        final TransportType transportType;
+
+        Entry(Gateway gateway, int rank, TransportType transportType) {
+            this.gateway = gateway;
+            this.rank = rank;
+            this.transportType = transportType;
+        }
+    }
+
+    private final Gateway[] ranked;
+    // ranks of the gateways sharing an ip, gateways without a known ip are listed under null
+    private final Map<String, List<Integer>> ranksByIp = new HashMap<>();
+    private final Map<UUID, Integer> rankByUuid = new ConcurrentHashMap<>();
+    private final Map<String, Entry[]> entriesByFilter = new ConcurrentHashMap<>();
+    private final @Nullable TransportLayerSelector transportLayerSelector;
+
+    RankedGatewayIndex(List<Gateway> rankedGateways) {
+        this(rankedGateways, null);
+    }
+
+    /**
+     * @param transportLayerSelector chooses between the transport layer protocols of a gateway's
+     *                               obfuscated transport, chosen randomly if null
+     */
+    RankedGatewayIndex(List<Gateway> rankedGateways, @Nullable TransportLayerSelector transportLayerSelector) {
+        this.transportLayerSelector = transportLayerSelector;
+        ranked = rankedGateways.toArray(new Gateway[0]);
+        for (int i = 0; i < ranked.length; i++) {
+            String ip = ranked[i].getRemoteIP();
+            List<Integer> ranks = ranksByIp.get(ip);
+            if (ranks == null) {
+                ranks = new ArrayList<>(1);
+                ranksByIp.put(ip, ranks);
+            }
+            ranks.add(i);
+        }
+    }
+
+    /**
+     * @return the profile of the nClosest gateway supporting one of the transport types and
+     * protocols, optionally filtered by city, or null if there are not enough gateways
+     */
+    @Nullable VpnProfile select(int nClosest, TransportType[] transportTypes, @Nullable Set<String> protocols, @Nullable String city) {
+        String filter = filterKey(transportTypes, protocols, city);
+        Entry[] entries = entriesByFilter.get(filter);
+        if (entries == null) {
+            entries = collectEntries(transportTypes, protocols, city);
+            entriesByFilter.put(filter, entries);
+        }
+        if (nClosest < 0 || nClosest >= entries.length) {
+            return null;
+        }
+        Entry entry = entries[nClosest];
+        VpnProfile profile = entry.gateway.getProfile(entry.transportType, protocols, transportLayerSelector);
+        if (profile != null && profile.getUUID() != null) {
+            rankByUuid.put(profile.getUUID(), entry.rank);
+        }
+        return profile;
+    }
+
+    /**
+     * @return the first gateway owning the profile or null
+     */
+    @Nullable Gateway getGateway(VpnProfile profile) {
+        int position = getPosition(profile);
+        return position < 0 ? null : ranked[position];
+    }
+
+    /**
+     * @return the rank of the first gateway owning the profile or -1
+     */
+    int getPosition(VpnProfile profile) {
+        Integer rank = profile.getUUID() != null ? rankByUuid.get(profile.getUUID()) : null;
+        if (rank != null) {
+            return rank;
+        }
+        // profiles that weren't selected from this index, e.g. before the ranking changed, can only
+        // belong to a gateway with the same ip or one without a known ip
+        int position = findOwner(ranksByIp.get(profile.mGatewayIp), profile);
+        if (profile.mGatewayIp != null) {
+            int withoutIp = findOwner(ranksByIp.get(null), profile);
+            if (withoutIp >= 0 && (position < 0 || withoutIp < position)) {
+                position = withoutIp;
+            }
+        }
+        return position;
+    }
+
+    private int findOwner(@Nullable List<Integer> ranks, VpnProfile profile) {
+        if (ranks != null) {
+            for (int i : ranks) {
+                if (ranked[i].hasProfile(profile)) {
+                    return i;
+                }
+            }
+        }
+        return -1;
+    }
+
+    private Entry[] collectEntries(TransportType[] transportTypes, @Nullable Set<String> protocols, @Nullable String city) {
+        ArrayList<Entry> entries = new ArrayList<>();
+        for (int i = 0; i < ranked.length; i++) {
+            Gateway gateway = ranked[i];
+            if (city != null && !city.equals(gateway.getName())) {
+                continue;
+            }
+            for (TransportType transportType : transportTypes) {
+                if (gateway.supportsTransport(transportType, protocols)) {
+                    entries.add(new Entry(gateway, i, transportType));
+                }
+            }
+        }
+        return entries.toArray(new Entry[0]);
+    }
+
+    private static String filterKey(TransportType[] transportTypes, @Nullable Set<String> protocols, @Nullable String city) {
+        return Arrays.toString(transportTypes) + "|" + (protocols == null ? null : new TreeSet<>(protocols)) + "|" + city;
+    }
+}
@@ -0,0 +1,107 @@
+/**
+ * Copyright (c) 2023 LEAP Encryption Access Project and contributors
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.leap.bitmaskclient.eip;
+
+import static se.leap.bitmaskclient.base.models.Constants.KCP;
+import static se.leap.bitmaskclient.base.models.Constants.TCP;
+
+import androidx.annotation.Nullable;
+
+import de.blinkt.openvpn.core.connection.Connection.TransportType;
+
+/**
+ * Decides which transport layer protocol (TCP or KCP) an obfuscated transport of a gateway
+ * should use, based on the GatewayHistory of the current network:
+ * <ol>
+ *     <li>a protocol whose last attempt succeeded comes first, the one with the higher
+ *     throughput or, if that is unknown, the faster connection setup wins</li>
+ *     <li>then protocols that weren't used yet on the network</li>
+ *     <li>protocols that failed last come last, so that a failing protocol falls back to the
+ *     other one</li>
+ * </ol>
+ * Without any history KCP is preferred on mobile networks, where it copes better with packet
+ * loss, and TCP everywhere else, since UDP is more often throttled or blocked there.
+ */
+class TransportLayerSelector {
+
+    static final String MOBILE_NETWORK = "MOBILE";
+    private static final int WORKING = 0;
+    private static final int UNKNOWN = 1;
+    private static final int FAILING = 2;
+
+    private final GatewayHistory history;
+    private final String network;
+
+    TransportLayerSelector(GatewayHistory history, String network) {
+        this.history = history;
+        this.network = network;
+    }
+
+    /**
+     * Compares two transport layer protocols of a gateway's transport
+     * @return a negative number if protocol1 should be used rather than protocol2, a positive
+     * number for the opposite and 0 if neither is preferable
+     */
+    int compare(String ip, TransportType transportType, @Nullable String protocol1, @Nullable String protocol2) {
+        if (protocol1 == null || protocol2 == null || protocol1.equals(protocol2)) {
+            return 0;
+        }
+        int failures1 = history.getConsecutiveFailures(ip, transportType, protocol1, network);
+        int failures2 = history.getConsecutiveFailures(ip, transportType, protocol2, network);
+        int result = Integer.compare(getState(failures1), getState(failures2));
+        if (result != 0) {
+            return result;
+        }
+        if (failures1 > 0) {
+            return Integer.compare(failures1, failures2);
+        }
+        if (failures1 == 0) {
+            result = compareMeasurements(ip, transportType, protocol1, protocol2);
+            if (result != 0) {
+                return result;
+            }
+        }
+        return Integer.compare(getDefaultRank(protocol1), getDefaultRank(protocol2));
+    }
+
+    private int compareMeasurements(String ip, TransportType transportType, String protocol1, String protocol2) {
+        long throughput1 = history.getThroughput(ip, transportType, protocol1, network);
+        long throughput2 = history.getThroughput(ip, transportType, protocol2, network);
+        if (throughput1 > 0 && throughput2 > 0) {
+            // higher throughput first
+            return Long.compare(throughput2, throughput1);
+        }
+        long connectTime1 = history.getMedianConnectTime(ip, transportType, protocol1, network);
+        long connectTime2 = history.getMedianConnectTime(ip, transportType, protocol2, network);
+        if (connectTime1 >= 0 && connectTime2 >= 0) {
+            return Long.compare(connectTime1, connectTime2);
+        }
+        return 0;
+    }
+
+    private static int getState(int consecutiveFailures) {
+        if (consecutiveFailures < 0) {
+            return UNKNOWN;
+        }
+        return consecutiveFailures == 0 ? WORKING : FAILING;
+    }
+
+    private int getDefaultRank(String protocol) {
+        String preferred = MOBILE_NETWORK.equals(network) ? KCP : TCP;
+        return preferred.equals(protocol) ? 0 : 1;
+    }
+}
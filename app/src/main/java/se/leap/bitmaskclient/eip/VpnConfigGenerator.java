@@ -19,36 +19,38 @@ package se.leap.bitmaskclient.eip;
 import static de.blinkt.openvpn.core.connection.Connection.TransportType.OBFS4;
 import static de.blinkt.openvpn.core.connection.Connection.TransportType.OBFS4_HOP;
 import static de.blinkt.openvpn.core.connection.Connection.TransportType.OPENVPN;
-import static se.leap.bitmaskclient.base.models.Constants.CAPABILITIES;
-import static se.leap.bitmaskclient.base.models.Constants.IP_ADDRESS;
-import static se.leap.bitmaskclient.base.models.Constants.IP_ADDRESS6;
 import static se.leap.bitmaskclient.base.models.Constants.KCP;
-import static se.leap.bitmaskclient.base.models.Constants.PORTS;
-import static se.leap.bitmaskclient.base.models.Constants.PROTOCOLS;
 import static se.leap.bitmaskclient.base.models.Constants.PROVIDER_VPN_CERTIFICATE;
-import static se.leap.bitmaskclient.base.models.Constants.REMOTE;
 import static se.leap.bitmaskclient.base.models.Constants.TCP;
-import static se.leap.bitmaskclient.base.models.Constants.TRANSPORT;
 import static se.leap.bitmaskclient.base.models.Constants.UDP;
 
 import androidx.annotation.Nullable;
 import androidx.annotation.VisibleForTesting;
 
-import org.json.JSONArray;
+import com.google.gson.JsonParseException;
+
 import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.io.IOException;
 import java.io.StringReader;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.Vector;
 
 import de.blinkt.openvpn.VpnProfile;
+import de.blinkt.openvpn.core.CertificateStore;
 import de.blinkt.openvpn.core.ConfigParser;
 import de.blinkt.openvpn.core.VpnStatus;
 import de.blinkt.openvpn.core.connection.Connection.TransportType;
+import se.leap.bitmaskclient.base.models.GatewayJson;
 import se.leap.bitmaskclient.base.models.Provider;
 import se.leap.bitmaskclient.base.models.Transport;
 import se.leap.bitmaskclient.base.utils.ConfigHelper;
@@ -56,8 +58,8 @@ import se.leap.bitmaskclient.pluggableTransports.ObfsvpnClient;
 import se.leap.bitmaskclient.pluggableTransports.models.Obfs4Options;
 
 public class VpnConfigGenerator {
-    private final JSONObject generalConfiguration;
-    private final JSONObject gateway;
+    private final ConfigurationFragments fragments;
+    private final GatewayJson gateway;
     private final JSONObject secrets;
     Vector<Transport> transports = new Vector<>();
     private final int apiVersion;
@@ -71,10 +73,15 @@ public class VpnConfigGenerator {
     private final String remoteGatewayIP;
     private final String profileName;
     private final Set<String> excludedApps;
+    // references into the CertificateStore
+    private String caCertificate;
+    private String vpnCertificate;
 
 
     public final static String TAG = VpnConfigGenerator.class.getSimpleName();
-    private final String newLine = System.getProperty("line.separator"); // Platform new line
+    private static final String newLine = System.getProperty("line.separator"); // Platform new line
+    // average length of a remote or route line, used to size the gateway part of the config
+    private static final int GATEWAY_LINE_LENGTH = 48;
 
     public static class Configuration {
         int apiVersion;
@@ -92,7 +99,15 @@ public class VpnConfigGenerator {
     }
 
     public VpnConfigGenerator(JSONObject generalConfiguration, JSONObject secrets, JSONObject gateway, Configuration config) throws ConfigParser.ConfigParseError {
-        this.generalConfiguration = generalConfiguration;
+        this(toMap(generalConfiguration), secrets, toGatewayJson(gateway, config.apiVersion), config);
+    }
+
+    /**
+     * @param generalConfiguration openvpn options shared by all gateways, in the order they are written to the config
+     * @param gateway the parsed gateway definition of eip-service.json
+     */
+    public VpnConfigGenerator(Map<String, String> generalConfiguration, JSONObject secrets, GatewayJson gateway, Configuration config) throws ConfigParser.ConfigParseError {
+        this.fragments = ConfigurationFragments.get(generalConfiguration);
         this.gateway = gateway;
         this.secrets = secrets;
         this.apiVersion = config.apiVersion;
@@ -109,27 +124,71 @@ public class VpnConfigGenerator {
         checkCapabilities();
     }
 
-    public void checkCapabilities() throws ConfigParser.ConfigParseError {
+    private static Map<String, String> toMap(JSONObject json) {
+        LinkedHashMap<String, String> map = new LinkedHashMap<>();
         try {
-            if (apiVersion >= 3) {
-                JSONArray supportedTransports = gateway.getJSONObject(CAPABILITIES).getJSONArray(TRANSPORT);
-                for (int i = 0; i < supportedTransports.length(); i++) {
-                    Transport transport = Transport.fromJson(supportedTransports.getJSONObject(i));
-                    transports.add(transport);
-                }
+            Iterator<String> keys = json.keys();
+            while (keys.hasNext()) {
+                String key = keys.next();
+                map.put(key, String.valueOf(json.get(key)));
             }
-        } catch (Exception e) {
+        } catch (JSONException e) {
+            e.printStackTrace();
+        }
+        return map;
+    }
+
+    private static GatewayJson toGatewayJson(JSONObject gateway, int apiVersion) throws ConfigParser.ConfigParseError {
+        try {
+            return GatewayJson.fromJson(gateway);
+        } catch (JsonParseException e) {
             throw new ConfigParser.ConfigParseError("Api version ("+ apiVersion +") did not match required JSON fields");
         }
     }
 
+    public void checkCapabilities() throws ConfigParser.ConfigParseError {
+        if (apiVersion >= 3) {
+            GatewayJson.Capabilities capabilities = gateway.getCapabilities();
+            Transport[] supportedTransports = capabilities != null ? capabilities.getTransport() : null;
+            if (supportedTransports == null) {
+                throw new ConfigParser.ConfigParseError("Api version ("+ apiVersion +") did not match required JSON fields");
+            }
+            for (Transport transport : supportedTransports) {
+                if (transport == null || transport.getType() == null) {
+                    throw new ConfigParser.ConfigParseError("Api version ("+ apiVersion +") did not match required JSON fields");
+                }
+                transports.add(transport);
+            }
+        }
+    }
+
     public Vector<VpnProfile> generateVpnProfiles() throws
             ConfigParser.ConfigParseError,
             NumberFormatException {
         Vector<VpnProfile> profiles = new Vector<>();
+        for (Transport transport : getSupportedTransports()) {
+            try {
+                profiles.add(createVpnProfile(transport));
+            } catch (ConfigParser.ConfigParseError | NumberFormatException | JSONException | IOException e) {
+                e.printStackTrace();
+            }
+        }
+        if (profiles.isEmpty()) {
+            throw new ConfigParser.ConfigParseError("No supported transports detected.");
+        }
+        return profiles;
+    }
 
+    /**
+     * Determines the transports a VpnProfile can be created for, without generating and parsing
+     * the OpenVPN configurations. API v1 gateways are represented by a single openvpn transport.
+     * @return transports supported by the gateway and allowed by the current settings
+     * @throws ConfigParser.ConfigParseError if no transport is supported
+     */
+    public Vector<Transport> getSupportedTransports() throws ConfigParser.ConfigParseError {
+        Vector<Transport> supportedTransports = new Vector<>();
         if (apiVersion >= 3) {
-            for (Transport transport : transports){
+            for (Transport transport : transports) {
                 if (transport.getTransportType().isPluggableTransport()) {
                     Transport.Options transportOptions = transport.getOptions();
                     if (!experimentalTransports && transportOptions != null && transportOptions.isExperimental()) {
@@ -138,68 +197,164 @@ public class VpnConfigGenerator {
                 } else if (transport.getTransportType() == OPENVPN && useObfuscationPinning) {
                     continue;
                 }
-                try {
-                    profiles.add(createProfile(transport));
-                } catch (ConfigParser.ConfigParseError | NumberFormatException | JSONException | IOException e) {
-                    e.printStackTrace();
+                if (!getGatewayConfiguration(transport).isEmpty()) {
+                    supportedTransports.addAll(splitByTransportLayerProtocol(transport));
                 }
             }
         } else if (supportsOpenvpn()) {
             // API v1 - TODO: let's remove support for API v1 soon
-            try {
-                profiles.add(createApiv1OpenvpnProfile());
-            } catch (ConfigParser.ConfigParseError | NumberFormatException | JSONException | IOException e) {
-                e.printStackTrace();
-            }
+            supportedTransports.add(new Transport(OPENVPN.toString(), null, null, (Transport.Options) null));
         }
-        if (profiles.isEmpty()) {
+        if (supportedTransports.isEmpty()) {
             throw new ConfigParser.ConfigParseError("No supported transports detected.");
         }
-        return profiles;
+        return supportedTransports;
+    }
+
+    /**
+     * A pluggable transport offering both TCP and KCP is split into one transport per protocol, so
+     * that each VpnProfile uses exactly one transport layer protocol and the better working one
+     * can be chosen when connecting.
+     */
+    private List<Transport> splitByTransportLayerProtocol(Transport transport) {
+        String[] protocols = transport.getProtocols();
+        if (!transport.getTransportType().isPluggableTransport() || useObfuscationPinning ||
+                protocols == null || protocols.length < 2) {
+            return Collections.singletonList(transport);
+        }
+        List<Transport> result = new ArrayList<>();
+        for (String protocol : protocols) {
+            if (isAllowedProtocol(transport.getTransportType(), protocol)) {
+                result.add(new Transport(transport.getType(), new String[]{protocol}, transport.getPorts(), transport.getOptions()));
+            }
+        }
+        return result.isEmpty() ? Collections.singletonList(transport) : result;
+    }
+
+    /**
+     * Creates the VpnProfile for a transport returned by {@link #getSupportedTransports()}
+     */
+    public VpnProfile createVpnProfile(Transport transport) throws IOException, ConfigParser.ConfigParseError, JSONException {
+        if (apiVersion >= 3) {
+            return createProfile(transport);
+        }
+        return createApiv1OpenvpnProfile();
+    }
+
+    /**
+     * @return the transport layer protocol (TCP or KCP) a pluggable transport profile created
+     * for the given transport will use, or null for plain openvpn transports
+     */
+    public @Nullable String getObfuscationTransportLayerProtocol(Transport transport) {
+        if (!transport.getTransportType().isPluggableTransport()) {
+            return null;
+        }
+        if (useObfuscationPinning) {
+            return obfuscationPinningKCP ? KCP : TCP;
+        }
+        String[] protocols = transport.getProtocols();
+        return protocols != null && protocols.length > 0 ? protocols[0] : null;
     }
 
     private boolean supportsOpenvpn() {
         return !useObfuscationPinning &&
                 ((apiVersion >= 3 && getTransport(OPENVPN) != null) ||
-                        (apiVersion < 3 && !gatewayConfiguration(null).isEmpty()));
+                        (apiVersion < 3 && !getGatewayConfiguration(null).isEmpty()));
+    }
+
+    /**
+     * The parts of the config that are the same for all gateways of a provider. They are rendered
+     * once and reused by all generators as long as the provider's openvpn options don't change.
+     */
+    private static class ConfigurationFragments {
+        private static ConfigurationFragments cached;
+
+        // copy of the options, in their order
+        final List<Map.Entry<String, String>> options;
+        final String generalConfiguration;
+        final String androidCustomizations;
+        final String commonConfiguration;
+
+        private ConfigurationFragments(List<Map.Entry<String, String>> options) {
+            this.options = options;
+            this.generalConfiguration = renderGeneralConfiguration(options);
+            this.androidCustomizations = renderAndroidCustomizations();
+            this.commonConfiguration = generalConfiguration + newLine + androidCustomizations;
+        }
+
+        static synchronized ConfigurationFragments get(Map<String, String> generalConfiguration) {
+            List<Map.Entry<String, String>> options = new ArrayList<>(generalConfiguration.size());
+            for (Map.Entry<String, String> option : generalConfiguration.entrySet()) {
+                options.add(new AbstractMap.SimpleImmutableEntry<>(option));
+            }
+            if (cached == null || !cached.options.equals(options)) {
+                cached = new ConfigurationFragments(Collections.unmodifiableList(options));
+            }
+            return cached;
+        }
     }
 
-    private String getConfigurationString(Transport transport) {
-        return generalConfiguration()
-                + newLine
-                + gatewayConfiguration(transport)
-                + newLine
-                + androidCustomizations()
-                + newLine
-                + secretsConfiguration();
+    private String commonConfiguration() {
+        return fragments.commonConfiguration;
+    }
+
+    private String getConfigurationString(@Nullable Transport transport) {
+        String gatewayConfiguration = gatewayConfiguration(transport);
+        return new StringBuilder(fragments.commonConfiguration.length() + gatewayConfiguration.length() + 2 * newLine.length())
+                .append(fragments.generalConfiguration)
+                .append(newLine)
+                .append(gatewayConfiguration)
+                .append(newLine)
+                .append(fragments.androidCustomizations)
+                .toString();
     }
 
     @VisibleForTesting
     protected VpnProfile createProfile(Transport transport) throws IOException, ConfigParser.ConfigParseError, JSONException {
+        VpnProfileBuilder builder = VpnProfileBuilder.getInstance(commonConfiguration());
+        if (!builder.isApplicable()) {
+            return parseProfile(transport);
+        }
         TransportType transportType = transport.getTransportType();
-        String configuration = getConfigurationString(transport);
-        ConfigParser icsOpenvpnConfigParser = new ConfigParser();
-        icsOpenvpnConfigParser.parseConfig(new StringReader(configuration));
+        Obfs4Options obfs4Options = null;
         if (transportType == OBFS4 || transportType == OBFS4_HOP) {
-            icsOpenvpnConfigParser.setObfs4Options(getObfs4Options(transport));
+            obfs4Options = getObfs4Options(transport);
         }
+        GatewayConfiguration configuration = getGatewayConfiguration(transport);
+        return completeProfile(builder.build(transportType, obfs4Options, configuration.remotes, configuration.routes));
+    }
 
-        VpnProfile profile = icsOpenvpnConfigParser.convertProfile(transportType);
-        profile.mName = profileName;
-        profile.mGatewayIp = remoteGatewayIP;
-        if (excludedApps != null) {
-            profile.mAllowedAppsVpn = new HashSet<>(excludedApps);
+    @VisibleForTesting
+    protected VpnProfile createApiv1OpenvpnProfile() throws IOException, ConfigParser.ConfigParseError, JSONException {
+        VpnProfileBuilder builder = VpnProfileBuilder.getInstance(commonConfiguration());
+        if (!builder.isApplicable()) {
+            return parseProfile(null);
         }
-        return profile;
+        GatewayConfiguration configuration = getGatewayConfiguration(null);
+        return completeProfile(builder.build(OPENVPN, null, configuration.remotes, configuration.routes));
     }
 
+    /**
+     * Creates a profile by generating the OpenVPN configuration and parsing it with the
+     * ConfigParser, like an imported config file. Used if the provider's options can't be applied
+     * by the VpnProfileBuilder.
+     * @param transport the transport to configure, null for API v1 gateways
+     */
     @VisibleForTesting
-    protected VpnProfile createApiv1OpenvpnProfile() throws IOException, ConfigParser.ConfigParseError, JSONException {
-        String configuration = getConfigurationString(null);
+    protected VpnProfile parseProfile(@Nullable Transport transport) throws IOException, ConfigParser.ConfigParseError, JSONException {
+        TransportType transportType = transport != null ? transport.getTransportType() : OPENVPN;
+        String configuration = getConfigurationString(transport);
         ConfigParser icsOpenvpnConfigParser = new ConfigParser();
         icsOpenvpnConfigParser.parseConfig(new StringReader(configuration));
+        if (transportType == OBFS4 || transportType == OBFS4_HOP) {
+            icsOpenvpnConfigParser.setObfs4Options(getObfs4Options(transport));
+        }
+
+        return completeProfile(icsOpenvpnConfigParser.convertProfile(transportType));
+    }
 
-        VpnProfile profile = icsOpenvpnConfigParser.convertProfile(OPENVPN);
+    private VpnProfile completeProfile(VpnProfile profile) {
+        addCertificates(profile);
         profile.mName = profileName;
         profile.mGatewayIp = remoteGatewayIP;
         if (excludedApps != null) {
@@ -209,7 +364,10 @@ public class VpnConfigGenerator {
     }
 
     private Obfs4Options getObfs4Options(Transport transport) throws JSONException {
-        String ip = gateway.getString(IP_ADDRESS);
+        String ip = gateway.getIpAddress();
+        if (ip == null) {
+            throw new JSONException("No value for ip address");
+        }
         if (useObfuscationPinning) {
             transport = new Transport(OBFS4.toString(),
                     new String[]{obfuscationPinningKCP ? KCP : TCP},
@@ -220,74 +378,97 @@ public class VpnConfigGenerator {
         return new Obfs4Options(ip, transport);
     }
 
-    private String generalConfiguration() {
-        String commonOptions = "";
-        try {
-            Iterator keys = generalConfiguration.keys();
-            while (keys.hasNext()) {
-                String key = keys.next().toString();
+    private static String renderGeneralConfiguration(List<Map.Entry<String, String>> options) {
+        int length = 0;
+        for (Map.Entry<String, String> option : options) {
+            length += option.getKey().length() + option.getValue().length() + 2 + newLine.length();
+        }
+        StringBuilder commonOptions = new StringBuilder(length + "client".length());
+        for (Map.Entry<String, String> option : options) {
+            commonOptions.append(option.getKey()).append(' ');
+            for (String word : option.getValue().split(" "))
+                commonOptions.append(word).append(' ');
+            commonOptions.append(newLine);
+        }
 
-                commonOptions += key + " ";
-                for (String word : String.valueOf(generalConfiguration.get(key)).split(" "))
-                    commonOptions += word + " ";
-                commonOptions += newLine;
+        commonOptions.append("client");
 
-            }
-        } catch (JSONException e) {
-            // TODO Auto-generated catch block
-            e.printStackTrace();
-        }
+        return commonOptions.toString();
+    }
 
-        commonOptions += "client";
+    /**
+     * Remotes and routes of a gateway, in the order they are written to the config
+     */
+    private static class GatewayConfiguration {
+        final List<String> routes = new ArrayList<>();
+        final List<VpnProfileBuilder.Remote> remotes = new ArrayList<>();
 
-        return commonOptions;
+        boolean isEmpty() {
+            return routes.isEmpty() && remotes.isEmpty();
+        }
     }
 
     private String gatewayConfiguration(@Nullable Transport transport) {
-        String configs = "";
+        GatewayConfiguration configuration = getGatewayConfiguration(transport);
+        StringBuilder stringBuilder = new StringBuilder((configuration.routes.size() + configuration.remotes.size()) * GATEWAY_LINE_LENGTH);
+        for (String ipAddress : configuration.routes) {
+            stringBuilder.append(getRoute(ipAddress)).append(newLine);
+        }
+        for (VpnProfileBuilder.Remote remote : configuration.remotes) {
+            stringBuilder.append(remote).append(newLine);
+        }
+
+        if (stringBuilder.length() > 0) {
+            stringBuilder.setLength(stringBuilder.length() - newLine.length());
+        }
 
-        StringBuilder stringBuilder = new StringBuilder();
+        return stringBuilder.toString();
+    }
+
+    private GatewayConfiguration getGatewayConfiguration(@Nullable Transport transport) {
+        GatewayConfiguration configuration = new GatewayConfiguration();
         try {
             String ipAddress = null;
-            JSONObject capabilities = gateway.getJSONObject(CAPABILITIES);
+            GatewayJson.Capabilities capabilities = gateway.getCapabilities();
+            if (capabilities == null) {
+                throw new JSONException("No value for capabilities");
+            }
             switch (apiVersion) {
                 default:
                 case 1:
                 case 2:
-                    ipAddress = gateway.getString(IP_ADDRESS);
-                    gatewayConfigApiv1(stringBuilder, ipAddress, capabilities);
+                    ipAddress = gateway.getIpAddress();
+                    if (ipAddress == null) {
+                        throw new JSONException("No value for ip address");
+                    }
+                    gatewayConfigApiv1(configuration, ipAddress, capabilities);
                     break;
                 case 3:
                 case 4:
-                    ipAddress = gateway.optString(IP_ADDRESS);
-                    String ipAddress6 = gateway.optString(IP_ADDRESS6);
+                    ipAddress = gateway.getIpAddress() != null ? gateway.getIpAddress() : "";
+                    String ipAddress6 = gateway.getIpAddress6() != null ? gateway.getIpAddress6() : "";
                     String[] ipAddresses = ipAddress6.isEmpty()  ?
                             new String[]{ipAddress} :
                             new String[]{ipAddress6, ipAddress};
                     if (transport == null) {
                         throw new NullPointerException("Transport is not allowed to be null in APIv3+");
                     }
-                    gatewayConfigMinApiv3(transport, stringBuilder, ipAddresses);
+                    gatewayConfigMinApiv3(transport, configuration, ipAddresses);
                     break;
             }
-        } catch (JSONException | NullPointerException e) {
+        } catch (JSONException | NullPointerException | NumberFormatException e) {
             // TODO Auto-generated catch block
             e.printStackTrace();
         }
 
-        configs = stringBuilder.toString();
-        if (configs.endsWith(newLine)) {
-            configs = configs.substring(0, configs.lastIndexOf(newLine));
-        }
-
-        return configs;
+        return configuration;
     }
 
-    private void gatewayConfigMinApiv3(Transport transport, StringBuilder stringBuilder, String[] ipAddresses) throws JSONException {
+    private void gatewayConfigMinApiv3(Transport transport, GatewayConfiguration configuration, String[] ipAddresses) throws JSONException {
         if (transport.getTransportType().isPluggableTransport()) {
-            ptGatewayConfigMinApiv3(stringBuilder, ipAddresses, transport);
+            ptGatewayConfigMinApiv3(configuration, ipAddresses, transport);
         } else {
-            ovpnGatewayConfigMinApi3(stringBuilder, ipAddresses, transport);
+            ovpnGatewayConfigMinApi3(configuration, ipAddresses, transport);
         }
     }
 
@@ -300,49 +481,46 @@ public class VpnConfigGenerator {
         return null;
     }
 
-    private void gatewayConfigApiv1(StringBuilder stringBuilder, String ipAddress, JSONObject capabilities) throws JSONException {
+    private void gatewayConfigApiv1(GatewayConfiguration configuration, String ipAddress, GatewayJson.Capabilities capabilities) throws JSONException {
         int port;
-        String protocol;
-        JSONArray ports = capabilities.getJSONArray(PORTS);
-        JSONArray protocols = capabilities.getJSONArray(PROTOCOLS);
-        for (int i = 0; i < ports.length(); i++) {
-            port = ports.getInt(i);
-            for (int j = 0; j < protocols.length(); j++) {
-                protocol = protocols.optString(j);
-                String newRemote = REMOTE + " " + ipAddress + " " + port + " " + protocol + newLine;
-                stringBuilder.append(newRemote);
+        String[] ports = capabilities.getPorts();
+        String[] protocols = capabilities.getProtocols();
+        if (ports == null || protocols == null) {
+            throw new JSONException("No value for ports or protocols");
+        }
+        for (int i = 0; i < ports.length; i++) {
+            port = Integer.parseInt(ports[i]);
+            for (int j = 0; j < protocols.length; j++) {
+                configuration.remotes.add(new VpnProfileBuilder.Remote(ipAddress, String.valueOf(port), protocols[j]));
             }
         }
     }
 
-    private void ovpnGatewayConfigMinApi3(StringBuilder stringBuilder, String[] ipAddresses, @Nullable Transport transport) {
+    private void ovpnGatewayConfigMinApi3(GatewayConfiguration configuration, String[] ipAddresses, @Nullable Transport transport) {
         if (transport == null || transport.getProtocols() == null || transport.getPorts() == null) {
             VpnStatus.logError("Misconfigured provider: missing details for transport openvpn on gateway " + ipAddresses[0]);
             return;
         }
         if (preferUDP) {
-            StringBuilder udpRemotes = new StringBuilder();
-            StringBuilder tcpRemotes = new StringBuilder();
+            List<VpnProfileBuilder.Remote> tcpRemotes = new ArrayList<>();
             for (String protocol : transport.getProtocols()) {
                 for (String port : transport.getPorts()) {
                     for (String ipAddress : ipAddresses) {
-                        String newRemote = REMOTE + " " + ipAddress + " " + port + " " + protocol + newLine;
+                        VpnProfileBuilder.Remote newRemote = new VpnProfileBuilder.Remote(ipAddress, port, protocol);
                         if (UDP.equals(protocol)) {
-                            udpRemotes.append(newRemote);
+                            configuration.remotes.add(newRemote);
                         } else {
-                            tcpRemotes.append(newRemote);
+                            tcpRemotes.add(newRemote);
                         }
                     }
                 }
             }
-            stringBuilder.append(udpRemotes.toString());
-            stringBuilder.append(tcpRemotes.toString());
+            configuration.remotes.addAll(tcpRemotes);
         } else {
             for (String protocol : transport.getProtocols()) {
                 for (String port : transport.getPorts()) {
                     for (String ipAddress : ipAddresses) {
-                        String newRemote = REMOTE + " " + ipAddress + " " + port + " " + protocol + newLine;
-                        stringBuilder.append(newRemote);
+                        configuration.remotes.add(new VpnProfileBuilder.Remote(ipAddress, port, protocol));
                     }
                 }
             }
@@ -360,7 +538,7 @@ public class VpnConfigGenerator {
         return false;
     }
 
-    private void ptGatewayConfigMinApiv3(StringBuilder stringBuilder, String[] ipAddresses, Transport transport) {
+    private void ptGatewayConfigMinApiv3(GatewayConfiguration configuration, String[] ipAddresses, Transport transport) {
 
         //for now only use ipv4 gateway the syntax route remote_host 255.255.255.255 net_gateway is not yet working
         // https://community.openvpn.net/openvpn/ticket/1161
@@ -406,9 +584,8 @@ public class VpnConfigGenerator {
             return;
         }
 
-        stringBuilder.append(getRouteString(ipAddress, transport));
-        String transparentProxyRemote = REMOTE + " " + ObfsvpnClient.IP + " " + ObfsvpnClient.PORT + " udp" + newLine;
-        stringBuilder.append(transparentProxyRemote);
+        configuration.routes.addAll(getRoutes(ipAddress, transport));
+        configuration.remotes.add(new VpnProfileBuilder.Remote(ObfsvpnClient.IP, String.valueOf(ObfsvpnClient.PORT), UDP));
     }
 
     // TODO: figure out if any of these configs still make sense (
@@ -423,25 +600,40 @@ public class VpnConfigGenerator {
     }
 
     public String getRouteString(String ipAddress, Transport transport) {
+        StringBuilder routes = new StringBuilder();
+        for (String route : getRoutes(ipAddress, transport)) {
+            routes.append(getRoute(route)).append(newLine);
+        }
+        return routes.toString();
+    }
+
+    /**
+     * @return the ip addresses that need to be routed outside of the VPN to reach the bridge
+     */
+    private List<String> getRoutes(String ipAddress, Transport transport) {
         if (useObfuscationPinning) {
-            return "route " + obfuscationPinningIP + " 255.255.255.255 net_gateway" + newLine;
+            return Collections.singletonList(obfuscationPinningIP);
         }
         switch (transport.getTransportType()) {
             case OBFS4:
-                return "route " + ipAddress + " 255.255.255.255 net_gateway" + newLine;
+                return Collections.singletonList(ipAddress);
             case OBFS4_HOP:
                 if (transport.getOptions().getEndpoints() != null)  {
-                    StringBuilder routes = new StringBuilder();
+                    List<String> routes = new ArrayList<>();
                     for (Transport.Endpoint endpoint : transport.getOptions().getEndpoints()) {
-                        routes.append("route " + endpoint.getIp() + " 255.255.255.255 net_gateway" + newLine);
+                        routes.add(endpoint.getIp());
                     }
-                    return routes.toString();
+                    return routes;
                 } else {
-                    return "route " + ipAddress + " 255.255.255.255 net_gateway" + newLine;
+                    return Collections.singletonList(ipAddress);
                 }
         }
 
-        return "";
+        return Collections.emptyList();
+    }
+
+    private static String getRoute(String ipAddress) {
+        return "route " + ipAddress + " 255.255.255.255 net_gateway";
     }
 
     // With obfsvpn 1.0.0 openvpn is always required to run in UDP to work with any obfs4 based pluggable transport.
@@ -489,30 +681,34 @@ public class VpnConfigGenerator {
         return false;
     }
 
-    private String secretsConfiguration() {
-        try {
-            String ca =
-                    "<ca>"
-                            + newLine
-                            + secrets.getString(Provider.CA_CERT)
-                            + newLine
-                            + "</ca>";
-
-            String openvpnCert =
-                    "<cert>"
-                            + newLine
-                            + secrets.getString(PROVIDER_VPN_CERTIFICATE)
-                            + newLine
-                            + "</cert>";
-
-            return ca + newLine + openvpnCert;
-        } catch (JSONException e) {
-            e.printStackTrace();
-            return "";
+    /**
+     * All profiles of a provider use the same CA and client certificate. Instead of passing them
+     * through the ConfigParser for each profile, profiles reference a shared copy in the
+     * CertificateStore, which is inlined when the config file is written.
+     */
+    private synchronized void addCertificates(VpnProfile profile) {
+        if (caCertificate == null) {
+            try {
+                String ca = CertificateStore.store(inline(secrets.getString(Provider.CA_CERT)));
+                String openvpnCert = CertificateStore.store(inline(secrets.getString(PROVIDER_VPN_CERTIFICATE)));
+                caCertificate = ca;
+                vpnCertificate = openvpnCert;
+            } catch (JSONException e) {
+                e.printStackTrace();
+                return;
+            }
         }
+        profile.mCaFilename = caCertificate;
+        profile.mClientCertFilename = vpnCertificate;
+        profile.mAuthenticationType = VpnProfile.TYPE_CERTIFICATES;
+    }
+
+    // the same content ConfigParser reads from an inline <ca> or <cert> block
+    private static String inline(String pem) {
+        return VpnProfile.INLINE_TAG + pem.replace("\r\n", "\n").replace('\r', '\n');
     }
 
-    private String androidCustomizations() {
+    private static String renderAndroidCustomizations() {
         return
                 "remote-cert-tls server"
                         + newLine
@@ -0,0 +1,174 @@
+/**
+ * Copyright (c) 2023 LEAP Encryption Access Project and contributors
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.leap.bitmaskclient.eip;
+
+import static se.leap.bitmaskclient.base.models.Constants.REMOTE;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import de.blinkt.openvpn.VpnProfile;
+import de.blinkt.openvpn.core.ConfigParser;
+import de.blinkt.openvpn.core.connection.Connection;
+import de.blinkt.openvpn.core.connection.Connection.TransportType;
+import de.blinkt.openvpn.core.connection.Obfs4Connection;
+import se.leap.bitmaskclient.pluggableTransports.models.Obfs4Options;
+
+/**
+ * Creates VpnProfiles without generating and parsing an OpenVPN config for each of them.
+ * The provider-wide options are the same for all gateways, they are parsed by the ConfigParser
+ * only once per transport type into a template profile. The remotes and routes of a gateway
+ * are then set directly on the connections of a copy of that template.
+ */
+class VpnProfileBuilder {
+
+    private static final String PLACEHOLDER_REMOTE = REMOTE + " 0.0.0.0";
+    private static final String HOST_PREFIX = "/32";
+    // options changing the remotes in a way that can't be applied to a copy of the template
+    private static final Set<String> UNSUPPORTED_OPTIONS = new HashSet<>(Arrays.asList(REMOTE, "connection", "<connection>", "proto-force"));
+
+    private static VpnProfileBuilder instance;
+
+    private final String commonConfiguration;
+    private final boolean applicable;
+    private final Map<TransportType, VpnProfile> templates = new EnumMap<>(TransportType.class);
+
+    static class Remote {
+        final String host;
+        final String port;
+        final String protocol;
+
+        Remote(String host, String port, @Nullable String protocol) {
+            this.host = host;
+            this.port = port;
+            this.protocol = protocol != null ? protocol : "";
+        }
+
+        @NonNull
+        @Override
+        public String toString() {
+            return REMOTE + " " + host + " " + port + " " + protocol;
+        }
+    }
+
+    /**
+     * @param commonConfiguration the OpenVPN options shared by all gateways of a provider
+     * @return a builder for the given options, reusing the last one if the options didn't change
+     */
+    static synchronized VpnProfileBuilder getInstance(String commonConfiguration) {
+        if (instance == null || !instance.commonConfiguration.equals(commonConfiguration)) {
+            instance = new VpnProfileBuilder(commonConfiguration);
+        }
+        return instance;
+    }
+
+    private VpnProfileBuilder(String commonConfiguration) {
+        this.commonConfiguration = commonConfiguration;
+        this.applicable = supportsOptions(commonConfiguration);
+    }
+
+    private static boolean supportsOptions(String configuration) {
+        for (String line : configuration.split("\\r?\\n")) {
+            String option = line.trim().split("\\s+")[0];
+            if (UNSUPPORTED_OPTIONS.contains(option)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return false if the provider's options need to be parsed together with the remotes
+     */
+    boolean isApplicable() {
+        return applicable;
+    }
+
+    /**
+     * Creates a profile equal to the one the ConfigParser returns for the common configuration
+     * followed by the given routes and remotes.
+     * @param obfs4Options options of pluggable transport profiles, null for plain openvpn profiles
+     * @param excludedRoutes ip addresses routed outside of the VPN
+     */
+    synchronized VpnProfile build(TransportType transportType, @Nullable Obfs4Options obfs4Options, List<Remote> remotes, List<String> excludedRoutes) throws IOException, ConfigParser.ConfigParseError {
+        if (remotes.isEmpty()) {
+            throw new ConfigParser.ConfigParseError("No --remote or <connection> block found.");
+        }
+
+        VpnProfile template = getTemplate(transportType);
+        VpnProfile profile = template.copy(template.mName);
+        profile.mLastUsed = System.currentTimeMillis();
+        profile.mConnections = new Connection[remotes.size()];
+        for (int i = 0; i < remotes.size(); i++) {
+            profile.mConnections[i] = createConnection(template.mConnections[0], obfs4Options, remotes.get(i));
+        }
+
+        if (!excludedRoutes.isEmpty()) {
+            StringBuilder routes = new StringBuilder(template.mExcludedRoutes != null ? template.mExcludedRoutes : "");
+            for (String ipAddress : excludedRoutes) {
+                // what ConfigParser stores for "route <ip> 255.255.255.255 net_gateway"
+                routes.append(ipAddress).append(HOST_PREFIX).append(' ');
+            }
+            profile.mExcludedRoutes = routes.toString();
+            if (profile.mCustomRoutes == null) {
+                profile.mCustomRoutes = "";
+            }
+        }
+        return profile;
+    }
+
+    private Connection createConnection(Connection defaultConnection, @Nullable Obfs4Options obfs4Options, Remote remote) throws ConfigParser.ConfigParseError {
+        Connection connection;
+        try {
+            if (defaultConnection instanceof Obfs4Connection) {
+                connection = ((Obfs4Connection) defaultConnection).copy(obfs4Options);
+            } else {
+                connection = defaultConnection.clone();
+            }
+        } catch (CloneNotSupportedException e) {
+            throw new ConfigParser.ConfigParseError(e.getLocalizedMessage());
+        }
+        connection.setServerName(remote.host);
+        connection.setServerPort(remote.port);
+        if (!remote.protocol.isEmpty()) {
+            connection.setUseUdp(ConfigParser.isUdpProto(remote.protocol));
+        }
+        return connection;
+    }
+
+    private VpnProfile getTemplate(TransportType transportType) throws IOException, ConfigParser.ConfigParseError {
+        VpnProfile template = templates.get(transportType);
+        if (template == null) {
+            // ConfigParser requires a remote, the template's connection is only used to copy the
+            // connection options from
+            ConfigParser configParser = new ConfigParser();
+            configParser.parseConfig(new StringReader(commonConfiguration + "\n" + PLACEHOLDER_REMOTE));
+            template = configParser.convertProfile(transportType);
+            templates.put(transportType, template);
+        }
+        return template;
+    }
+}
@@ -0,0 +1,288 @@
+/**
+ * Copyright (c) 2023 LEAP Encryption Access Project and contributors
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.leap.bitmaskclient.pluggableTransports;
+
+import static de.blinkt.openvpn.core.VpnStatus.BYTECOUNT_INTERVAL_POWER_SAVE;
+
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import de.blinkt.openvpn.core.VpnStatus;
+import se.leap.bitmaskclient.base.models.Transport;
+
+/**
+ * Adapts the hopping of obfs4-hop bridges to how well the current endpoint performs. Each hop
+ * stalls the tunnel for a moment, so the hop interval is doubled after a few intervals of
+ * healthy traffic, up to MAX_HOP_SECONDS. If the endpoint stalls or its throughput collapses,
+ * the obfsvpn client is asked to hop right away, the endpoint is skipped for a while and the
+ * interval starts again at MIN_HOP_SECONDS. The jitter stays half of the interval.
+ * <p>
+ * The obfsvpn client hops on its own once it was started, the interval therefore only changes
+ * for the next client, e.g. after an early hop or a reconnect. Hops and the throughput around
+ * them are written to the VPN log, prefixed with [hop-scheduler].
+ */
+public class HopScheduler implements VpnStatus.ByteCountListener {
+
+    static final int MIN_HOP_SECONDS = 10;
+    static final int MAX_HOP_SECONDS = 160;
+    static final int MIN_HOP_JITTER = 10;
+    // healthy hop intervals before the interval is doubled
+    static final int HEALTHY_INTERVALS = 3;
+    // data was sent but nothing was received for that long
+    static final long STALL_TIMEOUT_MS = 15_000;
+    // incoming throughput below that fraction of the average counts as degraded ...
+    static final double DEGRADED_FRACTION = 0.1;
+    // ... if it lasts that many byte count updates while data is being sent
+    static final int DEGRADED_UPDATES = 3;
+    // sending less than that is considered idle, e.g. keepalive packets
+    static final long MIN_ACTIVE_RATE = 2048;
+    static final long ENDPOINT_PENALTY_MS = 10 * 60 * 1000;
+    private static final double RATE_ALPHA = 0.2;
+    private static final String LOG_PREFIX = "[hop-scheduler] ";
+
+    public interface Callback {
+        /**
+         * Called if the current endpoint performs badly and a new one should be used.
+         */
+        void hop();
+    }
+
+    private static HopScheduler instance;
+
+    private int hopSeconds = MIN_HOP_SECONDS;
+    private final Map<String, Long> penalizedEndpoints = new HashMap<>();
+
+    private long healthyMs;
+    // the byte count listener is registered, start() is called again for each hop of a client
+    private boolean listening;
+
+    // state of the current client and endpoint
+    private Callback callback;
+    private List<String> remotes = new ArrayList<>();
+    private String currentEndpoint;
+    private long stalledMs;
+    private int degradedUpdates;
+    private double averageRate;
+    private long lastHop;
+    private boolean logRateAfterHop;
+
+    public static synchronized HopScheduler getInstance() {
+        if (instance == null) {
+            instance = new HopScheduler();
+        }
+        return instance;
+    }
+
+    @VisibleForTesting
+    HopScheduler() {
+    }
+
+    public synchronized int getMinHopSeconds() {
+        return hopSeconds;
+    }
+
+    public synchronized int getHopJitter() {
+        return Math.max(MIN_HOP_JITTER, hopSeconds / 2);
+    }
+
+    /**
+     * @return the endpoints that didn't perform badly recently, all endpoints if every one of
+     * them did, null if the transport only hops between ports
+     */
+    public synchronized @Nullable Transport.Endpoint[] selectEndpoints(@Nullable Transport.Endpoint[] endpoints, long now) {
+        if (endpoints == null) {
+            return null;
+        }
+        List<Transport.Endpoint> selected = new ArrayList<>(endpoints.length);
+        for (Transport.Endpoint endpoint : endpoints) {
+            Long penalizedSince = penalizedEndpoints.get(endpoint.getIp());
+            if (penalizedSince == null || now - penalizedSince >= ENDPOINT_PENALTY_MS) {
+                selected.add(endpoint);
+            }
+        }
+        if (selected.isEmpty()) {
+            return endpoints;
+        }
+        return selected.toArray(new Transport.Endpoint[0]);
+    }
+
+    /**
+     * Starts observing the traffic of a client hopping between the given remotes. Calling it
+     * again while observing only replaces the client and its remotes.
+     */
+    public void start(Callback callback, String[] remotes) {
+        boolean register;
+        synchronized (this) {
+            this.callback = callback;
+            this.remotes = Arrays.asList(remotes);
+            currentEndpoint = null;
+            resetMeasurements();
+            lastHop = System.currentTimeMillis();
+            register = !listening;
+            listening = true;
+        }
+        log(String.format(Locale.US, "start remotes=%d min_hop_s=%d jitter_s=%d", remotes.length, getMinHopSeconds(), getHopJitter()));
+        if (register) {
+            VpnStatus.requestByteCountInterval(this, BYTECOUNT_INTERVAL_POWER_SAVE, false);
+            VpnStatus.addByteCountListener(this);
+        }
+    }
+
+    public void stop(Callback callback) {
+        synchronized (this) {
+            if (this.callback != callback) {
+                return;
+            }
+            this.callback = null;
+            listening = false;
+        }
+        VpnStatus.removeByteCountListener(this);
+        VpnStatus.releaseByteCountInterval(this);
+    }
+
+    /**
+     * Detects hops in the log messages of the obfsvpn client, which mention the remote it
+     * connects to.
+     */
+    public void onClientLog(String message) {
+        String metric;
+        synchronized (this) {
+            String endpoint = findRemote(message);
+            if (endpoint == null || endpoint.equals(currentEndpoint)) {
+                return;
+            }
+            long now = System.currentTimeMillis();
+            metric = String.format(Locale.US, "hop from=%s to=%s after_s=%d rate_before=%d",
+                    currentEndpoint, endpoint, (now - lastHop) / 1000, Math.round(averageRate));
+            currentEndpoint = endpoint;
+            lastHop = now;
+            resetMeasurements();
+            logRateAfterHop = true;
+        }
+        log(metric);
+    }
+
+    @Override
+    public void updateByteCount(long in, long out, long diffIn, long diffOut) {
+        Callback hopCallback = null;
+        String metric = null;
+        synchronized (this) {
+            if (callback == null) {
+                return;
+            }
+            long periodMs = VpnStatus.getLastByteCountPeriod() * 1000;
+            if (logRateAfterHop && diffIn > 0) {
+                logRateAfterHop = false;
+                metric = String.format(Locale.US, "after_hop to=%s rate=%d", currentEndpoint, diffIn * 1000 / periodMs);
+            }
+            if (onTraffic(diffIn, diffOut, periodMs, System.currentTimeMillis())) {
+                hopCallback = callback;
+                metric = String.format(Locale.US, "early_hop from=%s after_s=%d min_hop_s=%d",
+                        currentEndpoint, (System.currentTimeMillis() - lastHop) / 1000, hopSeconds);
+            }
+        }
+        if (metric != null) {
+            log(metric);
+        }
+        if (hopCallback != null) {
+            hopCallback.hop();
+        }
+    }
+
+    /**
+     * Updates the policy with the traffic of one byte count period
+     * @return true if the client should hop right away
+     */
+    @VisibleForTesting
+    synchronized boolean onTraffic(long diffIn, long diffOut, long periodMs, long now) {
+        long outRate = diffOut * 1000 / periodMs;
+        if (outRate < MIN_ACTIVE_RATE) {
+            // idle, nothing to learn from
+            stalledMs = 0;
+            degradedUpdates = 0;
+            return false;
+        }
+        if (diffIn == 0) {
+            stalledMs += periodMs;
+            return stalledMs >= STALL_TIMEOUT_MS && degrade(now);
+        }
+        stalledMs = 0;
+
+        double rate = diffIn * 1000.0 / periodMs;
+        if (averageRate > 0 && rate < averageRate * DEGRADED_FRACTION) {
+            degradedUpdates++;
+            return degradedUpdates >= DEGRADED_UPDATES && degrade(now);
+        }
+        degradedUpdates = 0;
+        averageRate = averageRate == 0 ? rate : RATE_ALPHA * rate + (1 - RATE_ALPHA) * averageRate;
+        healthyMs += periodMs;
+        if (healthyMs >= hopSeconds * 1000L * HEALTHY_INTERVALS && hopSeconds < MAX_HOP_SECONDS) {
+            hopSeconds = Math.min(MAX_HOP_SECONDS, hopSeconds * 2);
+            healthyMs = 0;
+        }
+        return false;
+    }
+
+    private boolean degrade(long now) {
+        if (currentEndpoint != null) {
+            penalizedEndpoints.put(currentEndpoint, now);
+        }
+        hopSeconds = MIN_HOP_SECONDS;
+        healthyMs = 0;
+        resetMeasurements();
+        return true;
+    }
+
+    /**
+     * Resets the measurements of the current endpoint. The time of healthy traffic is kept
+     * across hops, otherwise short intervals could never grow.
+     */
+    private void resetMeasurements() {
+        stalledMs = 0;
+        degradedUpdates = 0;
+        averageRate = 0;
+        logRateAfterHop = false;
+    }
+
+    private @Nullable String findRemote(String message) {
+        if (message == null) {
+            return null;
+        }
+        for (String remote : remotes) {
+            if (message.contains(remote)) {
+                return remote;
+            }
+        }
+        return null;
+    }
+
+    @VisibleForTesting
+    synchronized void setCurrentEndpoint(String endpoint) {
+        currentEndpoint = endpoint;
+    }
+
+    private static void log(String metric) {
+        VpnStatus.logDebug(LOG_PREFIX + metric);
+    }
+}
@@ -2,80 +2,320 @@ package se.leap.bitmaskclient.pluggableTransports;
 
 import android.util.Log;
 
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
 import client.Client;
 import client.Client_;
 import client.EventLogger;
 import de.blinkt.openvpn.core.VpnStatus;
 import de.blinkt.openvpn.core.connection.Connection;
 import se.leap.bitmaskclient.base.models.Constants;
+import se.leap.bitmaskclient.base.models.Transport;
+import se.leap.bitmaskclient.eip.GatewayHistory;
 import se.leap.bitmaskclient.pluggableTransports.models.HoppingConfig;
 import se.leap.bitmaskclient.pluggableTransports.models.KcpConfig;
 import se.leap.bitmaskclient.pluggableTransports.models.Obfs4Options;
 import se.leap.bitmaskclient.pluggableTransports.models.ObfsvpnConfig;
 
-public class ObfsvpnClient implements EventLogger {
+public class ObfsvpnClient implements EventLogger, HopScheduler.Callback {
 
     public static final int PORT = 8080;
     public static final String IP = "127.0.0.1";
+    // network type as returned by DeviceStateReceiver.getNetworkType()
+    private static final String MOBILE_NETWORK = "MOBILE";
+    // State the obfsvpn client passes to EventLogger.log() once its local proxy listens, see
+    // the unexported clientState constants in obfsvpn's client/client.go:
+    // starting = "STARTING", running = "RUNNING", stopping = "STOPPING", stopped = "STOPPED".
+    // gomobile doesn't generate bindings for them.
+    @VisibleForTesting
+    static final String STATE_RUNNING = "RUNNING";
+    // a prepared client isn't used after that long, the KCP and hopping settings may be outdated
+    private static final long PREPARED_CLIENT_MAX_AGE_MS = 60_000;
     private final Object LOCK = new Object();
 
 
     private static final String TAG = ObfsvpnClient.class.getSimpleName();
 
-    public final Client_ client;
+    // runs the preparation, start and hops of all clients
+    private static final ExecutorService executor = Executors.newCachedThreadPool();
+    private static PreparedClient preparedClient;
+
+    private final Obfs4Options options;
+    private final KcpConfig kcpConfig;
+    private final boolean hoppingEnabled;
+    private Client_ client;
+    private String[] hoppingRemotes;
+    private volatile Readiness readiness;
+
+    private static class PreparedClient {
+        final String key;
+        final long created = System.currentTimeMillis();
+        final Future<ObfsvpnClient> client;
+
+        PreparedClient(String key, Future<ObfsvpnClient> client) {
+            this.key = key;
+            this.client = client;
+        }
+
+        boolean isUsableFor(String key) {
+            return this.key.equals(key) && System.currentTimeMillis() - created < PREPARED_CLIENT_MAX_AGE_MS;
+        }
+    }
+
+    /**
+     * Completes as soon as the local proxy of a started client is up.
+     */
+    @VisibleForTesting
+    static class Readiness implements Future<Integer> {
+        private final CountDownLatch latch = new CountDownLatch(1);
+        private volatile Throwable error;
+
+        void ready() {
+            latch.countDown();
+        }
+
+        /**
+         * @param state state the client passed to EventLogger.log()
+         */
+        void onClientState(String state) {
+            if (STATE_RUNNING.equals(state)) {
+                ready();
+            }
+        }
+
+        void fail(Throwable throwable) {
+            if (latch.getCount() > 0) {
+                error = throwable;
+                latch.countDown();
+            }
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            return false;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+
+        @Override
+        public boolean isDone() {
+            return latch.getCount() == 0;
+        }
+
+        @Override
+        public Integer get() throws InterruptedException, ExecutionException {
+            latch.await();
+            return getPort();
+        }
+
+        @Override
+        public Integer get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+            if (!latch.await(timeout, unit)) {
+                throw new TimeoutException("obfsvpn client not running after " + unit.toMillis(timeout) + " ms");
+            }
+            return getPort();
+        }
+
+        private Integer getPort() throws ExecutionException {
+            if (error != null) {
+                throw new ExecutionException(error);
+            }
+            return PORT;
+        }
+    }
+
+    /**
+     * Creates the client for a bridge profile in the background, so that it's ready once the
+     * VPN is launched with that profile, see {@link #obtain(Obfs4Options, String, String)}.
+     * @param gatewayIp ip of the gateway the profile belongs to
+     * @param network type of the network the client connects through, e.g. "WIFI"
+     */
+    public static void prepare(Obfs4Options options, @Nullable String gatewayIp, @Nullable String network) {
+        String key = getKey(options);
+        synchronized (ObfsvpnClient.class) {
+            if (preparedClient != null && preparedClient.isUsableFor(key)) {
+                return;
+            }
+            preparedClient = new PreparedClient(key, executor.submit(() -> new ObfsvpnClient(options, gatewayIp, network)));
+        }
+    }
+
+    /**
+     * @return the client prepared for the given options, or a newly created one if there is none
+     * @throws IllegalStateException if the client can't be created
+     */
+    public static ObfsvpnClient obtain(Obfs4Options options, @Nullable String gatewayIp, @Nullable String network) throws IllegalStateException {
+        PreparedClient prepared;
+        synchronized (ObfsvpnClient.class) {
+            prepared = preparedClient;
+            preparedClient = null;
+        }
+        if (prepared != null && prepared.isUsableFor(getKey(options))) {
+            try {
+                return prepared.client.get();
+            } catch (ExecutionException e) {
+                Log.w(TAG, "prepared obfsvpn client failed, creating a new one", e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return new ObfsvpnClient(options, gatewayIp, network);
+    }
+
+    private static String getKey(Obfs4Options options) {
+        return options.bridgeIP + " " + options.transport;
+    }
 
-    public ObfsvpnClient(Obfs4Options options) throws IllegalStateException {
+    /**
+     * @param gatewayIp ip of the gateway the profile belongs to, used to look up how KCP worked before
+     * @param network type of the network the client connects through, e.g. "WIFI"
+     */
+    public ObfsvpnClient(Obfs4Options options, @Nullable String gatewayIp, @Nullable String network) throws IllegalStateException {
 
-        //FIXME: use a different strategy here
-        //Basically we would want to track if the more performant transport protocol (KCP?/TCP?) usage was successful
-        //if so, we stick to it, otherwise we flip the flag
-        boolean kcpEnabled = Constants.KCP.equals(options.transport.getProtocols()[0]);
-        boolean hoppingEnabled = options.transport.getTransportType() == Connection.TransportType.OBFS4_HOP;
+        // Each profile uses exactly one transport layer protocol. If a bridge offers both TCP and
+        // KCP, the GatewaysManager picks the profile based on how well each protocol worked before
+        // (see TransportLayerSelector) and falls back to the other one if the handshake fails.
+        String[] protocols = options.transport.getProtocols();
+        boolean kcpEnabled = protocols != null && protocols.length > 0 && Constants.KCP.equals(protocols[0]);
+        hoppingEnabled = options.transport.getTransportType() == Connection.TransportType.OBFS4_HOP;
         if (!hoppingEnabled && (options.transport.getPorts() == null || options.transport.getPorts().length == 0)) {
             throw new IllegalStateException("obf4 based transport has no bridge ports configured");
         }
-        KcpConfig kcpConfig = new KcpConfig(kcpEnabled);
-        HoppingConfig hoppingConfig = new HoppingConfig(hoppingEnabled,IP+":"+PORT, options, 10, 10);
+        this.options = options;
+        this.kcpConfig = kcpEnabled ?
+                new KcpConfig(true, selectKcpPreset(options, gatewayIp, network)) :
+                new KcpConfig(false);
+        client = createClient();
+    }
+
+    private Client_ createClient() throws IllegalStateException {
+        HoppingConfig hoppingConfig;
+        if (hoppingEnabled) {
+            // the hop interval and the endpoints adapt to how well hopping worked so far
+            HopScheduler hopScheduler = HopScheduler.getInstance();
+            Transport.Endpoint[] endpoints = hopScheduler.selectEndpoints(options.transport.getOptions().getEndpoints(), System.currentTimeMillis());
+            hoppingConfig = new HoppingConfig(true, IP+":"+PORT, options, endpoints, hopScheduler.getMinHopSeconds(), hopScheduler.getHopJitter());
+        } else {
+            hoppingConfig = new HoppingConfig(false, IP+":"+PORT, options, 10, 10);
+        }
         ObfsvpnConfig obfsvpnConfig = new ObfsvpnConfig(IP+":"+PORT, hoppingConfig, kcpConfig, options.bridgeIP, options.transport.getPorts()[0], options.transport.getOptions().getCert() );
+        Client_ newClient;
         try {
             Log.d(TAG, obfsvpnConfig.toString());
-            client = Client.newFFIClient(obfsvpnConfig.toString());
+            newClient = Client.newFFIClient(obfsvpnConfig.toString());
         } catch (Exception e) {
             throw new IllegalStateException(e);
         }
+        hoppingRemotes = hoppingConfig.getRemotes();
+        return newClient;
+    }
+
+    private static KcpConfig.Preset selectKcpPreset(Obfs4Options options, @Nullable String gatewayIp, @Nullable String network) {
+        int consecutiveFailures = -1;
+        GatewayHistory history = GatewayHistory.getInstance();
+        if (history != null && gatewayIp != null && network != null) {
+            consecutiveFailures = history.getConsecutiveFailures(gatewayIp, options.transport.getTransportType(), Constants.KCP, network);
+        }
+        String providerHint = options.transport.getOptions() != null ? options.transport.getOptions().getKcpProfile() : null;
+        KcpConfig.Preset preset = KcpConfig.Preset.select(providerHint, MOBILE_NETWORK.equals(network), consecutiveFailures);
+        VpnStatus.logDebug("[obfs4-client] using KCP preset " + preset.name().toLowerCase(Locale.US));
+        return preset;
     }
 
-    public int start() {
+    /**
+     * Starts the client in the background
+     * @return a future that completes with the port of the local proxy once it is up, or fails
+     * if the client couldn't be started
+     */
+    public Future<Integer> start() {
         synchronized (LOCK) {
-            new Thread(() -> {
+            Client_ client = this.client;
+            Readiness readiness = new Readiness();
+            this.readiness = readiness;
+            if (hoppingEnabled) {
+                HopScheduler.getInstance().start(this, hoppingRemotes);
+            }
+            executor.execute(() -> {
                 try {
                     if (client.isStarted()) {
+                        readiness.ready();
                         return;
                     }
                     client.setEventLogger(this);
                     client.start();
+                    // start() returns when the client stopped running, or right away if the
+                    // client runs in the background
+                    if (client.isStarted()) {
+                        readiness.ready();
+                    } else {
+                        readiness.fail(new IllegalStateException("obfsvpn client stopped"));
+                    }
                 } catch (Exception e) {
                     e.printStackTrace();
+                    readiness.fail(e);
                 }
-            }).start();
-            return PORT;
+            });
+            return readiness;
         }
     }
 
     public void stop() {
         synchronized (LOCK) {
-            try {
-                client.stop();
-            } catch (Exception e) {
-                e.printStackTrace();
-            } finally {
-                client.setEventLogger(null);
-            }
+            HopScheduler.getInstance().stop(this);
+            stopClient();
+        }
+    }
+
+    private void stopClient() {
+        try {
+            client.stop();
+        } catch (Exception e) {
+            e.printStackTrace();
+        } finally {
+            client.setEventLogger(null);
         }
     }
 
     public boolean isStarted() {
-        return client.isStarted();
+        synchronized (LOCK) {
+            return client.isStarted();
+        }
+    }
+
+    /**
+     * Replaces the client by one that hops to a different endpoint, e.g. because the current
+     * endpoint stalled.
+     */
+    @Override
+    public void hop() {
+        executor.execute(() -> {
+            synchronized (LOCK) {
+                if (!client.isStarted()) {
+                    return;
+                }
+                stopClient();
+                try {
+                    client = createClient();
+                } catch (IllegalStateException e) {
+                    VpnStatus.logError("[obfs4-client] could not hop: " + e.getLocalizedMessage());
+                    return;
+                }
+            }
+            start();
+        });
     }
 
     @Override
@@ -87,5 +327,12 @@ public class ObfsvpnClient implements EventLogger {
     @Override
     public void log(String state, String message) {
         VpnStatus.logDebug("[obfs4-client] " + state + ": " + message);
+        Readiness readiness = this.readiness;
+        if (readiness != null) {
+            readiness.onClientState(state);
+        }
+        if (hoppingEnabled) {
+            HopScheduler.getInstance().onClientLog(message);
+        }
     }
 }
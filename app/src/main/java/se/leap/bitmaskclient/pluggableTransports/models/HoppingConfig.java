@@ -1,6 +1,7 @@
 package se.leap.bitmaskclient.pluggableTransports.models;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 
 import com.google.gson.FieldNamingPolicy;
 import com.google.gson.Gson;
@@ -35,10 +36,21 @@ public class HoppingConfig {
                          Obfs4Options options,
                          int minHopSeconds,
                          int hopJitter) {
+        this(enabled, proxyAddr, options, options.transport.getOptions().getEndpoints(), minHopSeconds, hopJitter);
+    }
+
+    /**
+     * @param endpoints the endpoints to hop between, a subset of the transport's endpoints
+     */
+    public HoppingConfig(boolean enabled,
+                         String proxyAddr,
+                         Obfs4Options options,
+                         @Nullable Transport.Endpoint[] endpoints,
+                         int minHopSeconds,
+                         int hopJitter) {
         this.enabled = enabled;
         this.proxyAddr = proxyAddr;
         Transport transport = options.transport;
-        Transport.Endpoint[] endpoints = transport.getOptions().getEndpoints();
         if (endpoints == null) {
             // only port hopping, we assume the gateway IP as hopping PT's IP
             this.remotes = new String[]{ options.bridgeIP };
@@ -58,6 +70,10 @@ public class HoppingConfig {
         this.hopJitter = hopJitter;
     }
 
+    public String[] getRemotes() {
+        return remotes;
+    }
+
     @NonNull
     @Override
     public String toString() {
@@ -1,31 +1,130 @@
 package se.leap.bitmaskclient.pluggableTransports.models;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 
 import com.google.gson.FieldNamingPolicy;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 
+import java.util.Locale;
+
 public class KcpConfig {
 
+    /**
+     * type KCPConfig struct {
+     * 	Enabled            bool `json:"enabled"`
+     * 	SendWindowSize     int  `json:"send_window_size"`
+     * 	ReceiveWindowSize  int  `json:"receive_window_size"`
+     * 	ReadBuffer         int  `json:"read_buffer"`
+     * 	WriteBuffer        int  `json:"write_buffer"`
+     * 	NoDelay            bool `json:"no_delay"`
+     * 	DisableFlowControl bool `json:"disable_flow_control"`
+     * 	Interval           int  `json:"interval"`
+     * 	Resend             int  `json:"resend"`
+     * 	MTU                int  `json:"mtu"`
+     * }
+     *
+     * The tuning fields from no_delay on are left out for the normal preset, so that obfsvpn
+     * keeps its own defaults for them.
+     */
+
     // check OpenVPN's --sndbuf size and --rcvbuf size
     public static final int DEFAULT_KCP_SEND_WINDOW_SIZE = 32;
     public static final int DEFAULT_KCP_RECEIVE_WINDOW_SIZE = 32;
     public static final int DEFAULT_KCP_READ_BUFFER = 16 * 1024 * 1024;
     public static final int DEFAULT_KCP_WRITE_BUFFER = 16 * 1024 * 1024;
+    public static final int DEFAULT_KCP_MTU = 1400;
+
+    /**
+     * KCP tuning presets, ordered from the most conservative to the most aggressive one. The
+     * more aggressive presets retransmit lost packets faster and keep more packets in flight,
+     * which keeps lossy links usable at the cost of more bandwidth and battery. The normal preset
+     * only sets the window sizes and leaves the rest to obfsvpn.
+     */
+    public enum Preset {
+        NORMAL(DEFAULT_KCP_SEND_WINDOW_SIZE, DEFAULT_KCP_RECEIVE_WINDOW_SIZE, null, null, null, null),
+        FAST(128, 128, false, 30, 2, true),
+        TURBO(512, 512, true, 10, 2, true);
+
+        final int sendWindowSize;
+        final int receiveWindowSize;
+        final Boolean noDelay;
+        final Integer interval;
+        final Integer resend;
+        final Boolean disableFlowControl;
+
+        Preset(int sendWindowSize, int receiveWindowSize, Boolean noDelay, Integer interval, Integer resend, Boolean disableFlowControl) {
+            this.sendWindowSize = sendWindowSize;
+            this.receiveWindowSize = receiveWindowSize;
+            this.noDelay = noDelay;
+            this.interval = interval;
+            this.resend = resend;
+            this.disableFlowControl = disableFlowControl;
+        }
+
+        /**
+         * @param name preset name as used by providers, e.g. "fast"
+         * @return the preset with the given name or null if the name is unknown
+         */
+        public static @Nullable Preset fromName(@Nullable String name) {
+            if (name == null) {
+                return null;
+            }
+            try {
+                return valueOf(name.trim().toUpperCase(Locale.US));
+            } catch (IllegalArgumentException e) {
+                return null;
+            }
+        }
+
+        /**
+         * Picks the preset for a connection attempt. A preset recommended by the provider is
+         * used as is. Otherwise lossy networks start with the fast preset, and the turbo preset
+         * is used after KCP failed to connect to the bridge on the current network.
+         * @param providerHint preset name recommended by the provider, may be null
+         * @param lossyNetwork true for networks that tend to lose packets, e.g. mobile networks
+         * @param consecutiveFailures failed KCP attempts since the last successful one, -1 if unknown
+         */
+        public static @NonNull Preset select(@Nullable String providerHint, boolean lossyNetwork, int consecutiveFailures) {
+            Preset preset = fromName(providerHint);
+            if (preset != null) {
+                return preset;
+            }
+            if (consecutiveFailures > 0) {
+                return TURBO;
+            }
+            return lossyNetwork ? FAST : NORMAL;
+        }
+    }
 
     final boolean enabled;
     final int sendWindowSize;
     final int receiveWindowSize;
     final int readBuffer;
     final int writeBuffer;
+    // null values aren't serialized
+    final Boolean noDelay;
+    final Boolean disableFlowControl;
+    final Integer interval;
+    final Integer resend;
+    final Integer mtu;
 
     public KcpConfig(boolean enabled) {
+        this(enabled, Preset.NORMAL);
+    }
+
+    public KcpConfig(boolean enabled, @NonNull Preset preset) {
         this.enabled = enabled;
-        this.sendWindowSize = DEFAULT_KCP_SEND_WINDOW_SIZE;
-        this.receiveWindowSize = DEFAULT_KCP_RECEIVE_WINDOW_SIZE;
+        this.sendWindowSize = preset.sendWindowSize;
+        this.receiveWindowSize = preset.receiveWindowSize;
         this.readBuffer = DEFAULT_KCP_READ_BUFFER;
         this.writeBuffer = DEFAULT_KCP_WRITE_BUFFER;
+        this.noDelay = preset.noDelay;
+        this.disableFlowControl = preset.disableFlowControl;
+        this.interval = preset.interval;
+        this.resend = preset.resend;
+        this.mtu = preset == Preset.NORMAL ? null : DEFAULT_KCP_MTU;
     }
 
     @NonNull
@@ -75,11 +75,13 @@ import android.util.Log;
 import android.util.Pair;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 
 import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.io.IOException;
+import java.io.StringReader;
 import java.net.ConnectException;
 import java.net.MalformedURLException;
 import java.net.SocketTimeoutException;
@@ -93,6 +95,12 @@ import java.security.cert.CertificateNotYetValidException;
 import java.security.cert.X509Certificate;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
 import javax.net.ssl.SSLHandshakeException;
@@ -101,6 +109,8 @@ import javax.net.ssl.SSLPeerUnverifiedException;
 import de.blinkt.openvpn.core.VpnStatus;
 import okhttp3.OkHttpClient;
 import se.leap.bitmaskclient.R;
+import se.leap.bitmaskclient.base.models.EipServiceJson;
+import se.leap.bitmaskclient.base.models.GeoIpJson;
 import se.leap.bitmaskclient.base.models.Provider;
 import se.leap.bitmaskclient.base.models.ProviderObservable;
 import se.leap.bitmaskclient.base.utils.ConfigHelper;
@@ -121,6 +131,12 @@ public class ProviderApiManagerV3 extends ProviderApiManagerBase implements IPro
 
     private static final String TAG = ProviderApiManagerV3.class.getSimpleName();
 
+    // runs provider bootstrap downloads that don't depend on each other in parallel, idle threads time out
+    private static final ThreadPoolExecutor bootstrapExecutor = new ThreadPoolExecutor(2, 2, 30L, TimeUnit.SECONDS, new LinkedBlockingQueue<>());
+    static {
+        bootstrapExecutor.allowCoreThreadTimeOut(true);
+    }
+
     OkHttpClientGenerator clientGenerator;
 
     public ProviderApiManagerV3(Resources resources, OkHttpClientGenerator clientGenerator, ProviderApiServiceCallback callback) {
@@ -136,7 +152,6 @@ public class ProviderApiManagerV3 extends ProviderApiManagerBase implements IPro
                 ProviderObservable.getInstance().setProviderForDns(provider);
                 result = setupProvider(provider, parameters);
                 if (result.getBoolean(BROADCAST_RESULT_KEY)) {
-                    getGeoIPJson(provider);
                     if (provider.hasGeoIpJson()) {
                         ProviderSetupObservable.updateProgress(DOWNLOADED_GEOIP_JSON);
                     }
@@ -256,7 +271,7 @@ public class ProviderApiManagerV3 extends ProviderApiManagerBase implements IPro
             }
             if (provider.hasCaCert() || (currentDownload.containsKey(BROADCAST_RESULT_KEY) && currentDownload.getBoolean(BROADCAST_RESULT_KEY))) {
                 ProviderSetupObservable.updateProgress(DOWNLOADED_CA_CERT);
-                currentDownload = getAndSetEipServiceJson(provider);
+                currentDownload = getAndSetEipServiceAndGeoIpJson(provider);
             }
 
             if (provider.hasEIP() && !provider.allowsRegistered() && !provider.allowsAnonymous()) {
@@ -269,6 +284,46 @@ public class ProviderApiManagerV3 extends ProviderApiManagerBase implements IPro
         return currentDownload;
     }
 
+    /**
+     * Downloads eip-service.json and the geoip json concurrently. Both only depend on provider.json
+     * and the provider's CA certificate, so the geoip request is started on the bootstrap executor
+     * while the eip-service.json is fetched on the calling thread. The geoip json is only applied
+     * to the provider on the calling thread, and only if the eip-service.json download succeeded.
+     * @return the result bundle of the eip-service.json download, geoip failures are not fatal
+     */
+    private Bundle getAndSetEipServiceAndGeoIpJson(Provider provider) {
+        Future<Pair<String, GeoIpJson>> geoIpDownload = null;
+        if (shouldDownloadGeoIpJson(provider)) {
+            try {
+                geoIpDownload = bootstrapExecutor.submit(() -> downloadGeoIpJson(provider));
+            } catch (RejectedExecutionException e) {
+                e.printStackTrace();
+            }
+        }
+
+        Bundle result = getAndSetEipServiceJson(provider);
+        if (!result.getBoolean(BROADCAST_RESULT_KEY, false)) {
+            if (geoIpDownload != null) {
+                geoIpDownload.cancel(true);
+            }
+            return result;
+        }
+
+        if (geoIpDownload == null) {
+            getGeoIPJson(provider);
+            return result;
+        }
+        try {
+            setGeoIpJson(provider, geoIpDownload.get());
+        } catch (ExecutionException e) {
+            e.printStackTrace();
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+            Thread.currentThread().interrupt();
+        }
+        return result;
+    }
+
     private Bundle getAndSetProviderJson(Provider provider) {
         Bundle result = new Bundle();
 
@@ -316,15 +371,15 @@ public class ProviderApiManagerV3 extends ProviderApiManagerBase implements IPro
             if (DEBUG_MODE) {
                 VpnStatus.logDebug("[API] EIP SERVICE JSON: " + eipServiceJsonString);
             }
-            JSONObject eipServiceJson = new JSONObject(eipServiceJsonString);
-            if (eipServiceJson.has(ERRORS)) {
+            EipServiceJson eipService = EipServiceJson.parse(new StringReader(eipServiceJsonString));
+            if (eipService.hasErrors()) {
                 eventSender.setErrorResult(result, eipServiceJsonString);
             } else {
-                provider.setEipServiceJson(eipServiceJson);
+                provider.setEipServiceJson(eipServiceJsonString, eipService);
                 provider.setLastEipServiceUpdate(System.currentTimeMillis());
                 result.putBoolean(BROADCAST_RESULT_KEY, true);
             }
-        } catch (NullPointerException | JSONException e) {
+        } catch (NullPointerException | IOException e) {
             eventSender.setErrorResult(result, R.string.error_json_exception_user_message, null);
         }
         return result;
@@ -365,13 +420,25 @@ public class ProviderApiManagerV3 extends ProviderApiManagerBase implements IPro
      * @return
      */
     private Bundle getGeoIPJson(Provider provider) {
-        Bundle result = new Bundle();
-
-        if (!provider.shouldUpdateGeoIpJson() || provider.getGeoipUrl().isDefault() || VpnStatus.isVPNActive() || TorStatusObservable.getStatus() != OFF) {
+        if (!shouldDownloadGeoIpJson(provider)) {
+            Bundle result = new Bundle();
             result.putBoolean(BROADCAST_RESULT_KEY, false);
             return result;
         }
+        return setGeoIpJson(provider, downloadGeoIpJson(provider));
+    }
 
+    private boolean shouldDownloadGeoIpJson(Provider provider) {
+        return provider.shouldUpdateGeoIpJson() && !provider.getGeoipUrl().isDefault() && !VpnStatus.isVPNActive() && TorStatusObservable.getStatus() == OFF;
+    }
+
+    /**
+     * Downloads and parses the geoip json without modifying the provider, so that it can run
+     * concurrently to other downloads.
+     * @return the geoip json and the model parsed from it or null if the download failed
+     */
+    @Nullable
+    private Pair<String, GeoIpJson> downloadGeoIpJson(Provider provider) {
         try {
             URL geoIpUrl = provider.getGeoipUrl().getUrl();
 
@@ -379,19 +446,21 @@ public class ProviderApiManagerV3 extends ProviderApiManagerBase implements IPro
             if (DEBUG_MODE) {
                 VpnStatus.logDebug("[API] MENSHEN JSON: " + geoipJsonString);
             }
-            JSONObject geoipJson = new JSONObject(geoipJsonString);
-
-            if (geoipJson.has(ERRORS)) {
-                result.putBoolean(BROADCAST_RESULT_KEY, false);
-            } else{
-                provider.setGeoIpJson(geoipJson);
-                provider.setLastGeoIpUpdate(System.currentTimeMillis());
-                result.putBoolean(BROADCAST_RESULT_KEY, true);
-            }
+            return new Pair<>(geoipJsonString, GeoIpJson.parse(new StringReader(geoipJsonString)));
+        } catch (IOException | NullPointerException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
 
-        } catch (JSONException | NullPointerException e) {
+    private Bundle setGeoIpJson(Provider provider, @Nullable Pair<String, GeoIpJson> geoIpDownload) {
+        Bundle result = new Bundle();
+        if (geoIpDownload == null || geoIpDownload.second.hasErrors()) {
             result.putBoolean(BROADCAST_RESULT_KEY, false);
-            e.printStackTrace();
+        } else {
+            provider.setGeoIpJson(geoIpDownload.first, geoIpDownload.second);
+            provider.setLastGeoIpUpdate(System.currentTimeMillis());
+            result.putBoolean(BROADCAST_RESULT_KEY, true);
         }
         return result;
     }
@@ -405,6 +474,10 @@ public class ProviderApiManagerV3 extends ProviderApiManagerBase implements IPro
             String certString = downloadWithCommercialCA(caCertUrl, provider);
 
             if (validCertificate(provider, certString)) {
+                if (!certString.equals(provider.getCaCert())) {
+                    // don't reuse clients and connections trusting the previous CA
+                    OkHttpClientGenerator.clearCache();
+                }
                 provider.setCaCert(certString);
                 if (DEBUG_MODE) {
                     VpnStatus.logDebug("[API] CA CERT: " + certString);
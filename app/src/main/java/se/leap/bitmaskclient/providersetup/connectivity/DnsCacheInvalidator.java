@@ -0,0 +1,74 @@
+/**
+ * Copyright (c) 2023 LEAP Encryption Access Project and contributors
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.leap.bitmaskclient.providersetup.connectivity;
+
+import static de.blinkt.openvpn.core.ConnectionStatus.LEVEL_CONNECTED;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.util.Log;
+
+import de.blinkt.openvpn.core.ConnectionStatus;
+import de.blinkt.openvpn.core.VpnStatus;
+
+/**
+ * Drops the answers cached by the DnsResolver whenever they might have become wrong: if the
+ * network changed or the VPN tunnel, which routes the DNS queries, came up or went down.
+ */
+public class DnsCacheInvalidator extends BroadcastReceiver implements VpnStatus.StateListener {
+
+    private static final String TAG = DnsCacheInvalidator.class.getSimpleName();
+    private static DnsCacheInvalidator instance;
+
+    private volatile boolean vpnConnected;
+
+    private DnsCacheInvalidator() { }
+
+    public static synchronized void init(Context context) {
+        if (instance != null) {
+            return;
+        }
+        instance = new DnsCacheInvalidator();
+        context.getApplicationContext().registerReceiver(instance, new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
+        VpnStatus.addStateListener(instance);
+    }
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        if (ConnectivityManager.CONNECTIVITY_ACTION.equals(intent.getAction())) {
+            Log.d(TAG, "network changed, clearing DNS cache");
+            DnsResolver.clearCache();
+        }
+    }
+
+    @Override
+    public void updateState(String state, String logmessage, int localizedResId, ConnectionStatus level) {
+        boolean connected = level == LEVEL_CONNECTED;
+        if (connected != vpnConnected) {
+            vpnConnected = connected;
+            Log.d(TAG, "vpn " + (connected ? "connected" : "disconnected") + ", clearing DNS cache");
+            DnsResolver.clearCache();
+        }
+    }
+
+    @Override
+    public void setConnectedVPN(String uuid) {
+    }
+}
@@ -2,14 +2,30 @@ package se.leap.bitmaskclient.providersetup.connectivity;
 
 import static java.net.InetAddress.getByName;
 
+import android.os.SystemClock;
 import android.util.Log;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
 
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import de.blinkt.openvpn.core.VpnStatus;
 import okhttp3.Dns;
@@ -22,12 +38,60 @@ import se.leap.bitmaskclient.base.utils.IPAddress;
 import se.leap.bitmaskclient.tor.TorStatusObservable;
 
 public class DnsResolver implements Dns {
+
+    // neither the system resolver nor okhttp's DoH client expose the TTL of an answer,
+    // so we use conservative fixed lifetimes instead
+    private static final long POSITIVE_TTL_MS = TimeUnit.MINUTES.toMillis(5);
+    private static final long NEGATIVE_TTL_MS = TimeUnit.SECONDS.toMillis(30);
+    private static final int MAX_CACHE_ENTRIES = 64;
+
+    private static final String SYSTEM_DNS = "system DNS";
+
+    private static final Map<String, CacheEntry> cache = new ConcurrentHashMap<>();
+    private static final AtomicLong cacheHits = new AtomicLong();
+    private static final AtomicLong cacheMisses = new AtomicLong();
+    // name of the DoH resolver that answered last, it will be asked first next time
+    private static volatile String lastWorkingResolver;
+
+    private static final ThreadPoolExecutor raceExecutor = new ThreadPoolExecutor(4, 4, 30L, TimeUnit.SECONDS, new LinkedBlockingQueue<>());
+    static {
+        raceExecutor.allowCoreThreadTimeOut(true);
+    }
+
     OkHttpClient dohHttpClient;
     boolean preferDoH;
+    boolean raceResolvers;
+    private final Dns systemDns;
+    private List<NamedResolver> dohResolvers;
 
     public DnsResolver(OkHttpClient dohHttpClient, boolean preferDoH) {
+        this(dohHttpClient, preferDoH, false);
+    }
+
+    /**
+     * @param raceResolvers if true all DoH endpoints and the system resolver are queried concurrently
+     *                      and the first valid answer wins, instead of trying them one after another
+     */
+    public DnsResolver(OkHttpClient dohHttpClient, boolean preferDoH, boolean raceResolvers) {
         this.dohHttpClient = dohHttpClient;
         this.preferDoH = preferDoH;
+        this.raceResolvers = raceResolvers;
+        this.systemDns = Dns.SYSTEM;
+    }
+
+    /**
+     * @param dohResolvers DoH resolvers by name, in the order they are tried
+     */
+    @VisibleForTesting
+    DnsResolver(boolean preferDoH, boolean raceResolvers, Dns systemDns, Map<String, Dns> dohResolvers) {
+        this.preferDoH = preferDoH;
+        this.raceResolvers = raceResolvers;
+        this.systemDns = systemDns;
+        List<NamedResolver> resolvers = new ArrayList<>();
+        for (Map.Entry<String, Dns> entry : dohResolvers.entrySet()) {
+            resolvers.add(new NamedResolver(entry.getKey(), entry.getValue()));
+        }
+        this.dohResolvers = Collections.unmodifiableList(resolvers);
     }
 
     @NonNull
@@ -35,14 +99,28 @@ public class DnsResolver implements Dns {
     public List<InetAddress> lookup(@NonNull String hostname) throws UnknownHostException {
         Log.d("DNS", "trying to resolve DNS for " + hostname);
         List<InetAddress> list = null;
-        if (preferDoH && !"127.0.0.1".equals(hostname)) {
-            if ((list = tryLookupDoH(hostname)) == null) {
-                list  = tryLookupSystemDNS(hostname);
+        CacheEntry cached = getCachedEntry(hostname);
+        if (cached != null) {
+            cacheHits.incrementAndGet();
+            if (!cached.isNegative()) {
+                Log.d("DNS", "cache hit for " + hostname);
+                return cached.addresses;
             }
+            Log.d("DNS", "negative cache hit for " + hostname);
         } else {
-            if ((list = tryLookupSystemDNS(hostname)) == null) {
-                list = tryLookupDoH(hostname);
+            cacheMisses.incrementAndGet();
+            if (raceResolvers && !"127.0.0.1".equals(hostname)) {
+                list = raceLookup(hostname);
+            } else if (preferDoH && !"127.0.0.1".equals(hostname)) {
+                if ((list = tryLookupDoH(hostname)) == null) {
+                    list  = tryLookupSystemDNS(hostname);
+                }
+            } else {
+                if ((list = tryLookupSystemDNS(hostname)) == null) {
+                    list = tryLookupDoH(hostname);
+                }
             }
+            putCacheEntry(hostname, list);
         }
 
         if (list != null) {
@@ -56,7 +134,7 @@ public class DnsResolver implements Dns {
         if (observable.getProviderForDns() != null) {
             currentProvider = observable.getProviderForDns();
         } else {
-            currentProvider = observable.getCurrentProvider();
+            currentProvider = observable.awaitCurrentProvider();
         }
         String ip = currentProvider.getIpForHostname(hostname);
         if (!ip.isEmpty()) {
@@ -70,10 +148,60 @@ public class DnsResolver implements Dns {
         }
     }
 
+    /**
+     * @return number of lookups answered from the cache, including cached failures
+     */
+    public static long getCacheHits() {
+        return cacheHits.get();
+    }
+
+    /**
+     * @return number of lookups that had to query a resolver
+     */
+    public static long getCacheMisses() {
+        return cacheMisses.get();
+    }
+
+    /**
+     * Drops all cached answers, e.g. after the network changed or the VPN was (dis-)connected.
+     * See {@link DnsCacheInvalidator}.
+     */
+    public static void clearCache() {
+        cache.clear();
+        lastWorkingResolver = null;
+    }
+
+    @Nullable
+    private static CacheEntry getCachedEntry(String hostname) {
+        CacheEntry entry = cache.get(hostname);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.isExpired()) {
+            cache.remove(hostname, entry);
+            return null;
+        }
+        return entry;
+    }
+
+    private static void putCacheEntry(String hostname, @Nullable List<InetAddress> addresses) {
+        if (cache.size() >= MAX_CACHE_ENTRIES) {
+            for (Iterator<CacheEntry> iterator = cache.values().iterator(); iterator.hasNext(); ) {
+                if (iterator.next().isExpired()) {
+                    iterator.remove();
+                }
+            }
+            if (cache.size() >= MAX_CACHE_ENTRIES) {
+                cache.clear();
+            }
+        }
+        cache.put(hostname, new CacheEntry(addresses));
+    }
+
     private List<InetAddress> tryLookupSystemDNS(@NonNull String hostname) throws RuntimeException, UnknownHostException {
         try {
             Log.d("DNS", "trying to resolve " + hostname + " with system DNS");
-            return Dns.SYSTEM.lookup(hostname);
+            return systemDns.lookup(hostname);
         } catch (UnknownHostException e) {
             e.printStackTrace();
             return null;
@@ -81,42 +209,143 @@ public class DnsResolver implements Dns {
     }
 
     private List<InetAddress> tryLookupDoH(@NonNull String hostname) throws UnknownHostException {
-        DnsOverHttps njallaDoH = new DnsOverHttps.Builder().client(dohHttpClient)
-                .url(HttpUrl.get("https://dns.njal.la/dns-query"))
-                .bootstrapDnsHosts(getByName("95.215.19.53"), getByName("2001:67c:2354:2::53"))
-                .build();
+        for (NamedResolver resolver : getOrderedDoHResolvers()) {
+            try {
+                Log.d("DNS", "DoH via " + resolver.name);
+                List<InetAddress> result = resolver.dns.lookup(hostname);
+                lastWorkingResolver = resolver.name;
+                return result;
+            } catch (UnknownHostException e) {
+                e.printStackTrace();
+                Log.e("DNS", "DoH via " + resolver.name + " failed");
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Queries all DoH endpoints and the system resolver concurrently and returns the first non-empty answer.
+     * Falls back to a sequential lookup if the lookups can't be scheduled.
+     */
+    private List<InetAddress> raceLookup(@NonNull String hostname) throws UnknownHostException {
+        List<NamedResolver> resolvers = new ArrayList<>(getOrderedDoHResolvers());
+        resolvers.add(new NamedResolver(SYSTEM_DNS, systemDns));
+
+        CompletionService<NamedResult> completionService = new ExecutorCompletionService<>(raceExecutor);
+        List<Future<NamedResult>> futures = new ArrayList<>();
         try {
-            Log.d("DNS", "DoH via dns.njal.la");
-            return njallaDoH.lookup(hostname);
-        } catch (UnknownHostException e) {
+            for (NamedResolver resolver : resolvers) {
+                futures.add(completionService.submit(() -> new NamedResult(resolver.name, resolver.dns.lookup(hostname))));
+            }
+        } catch (RejectedExecutionException e) {
             e.printStackTrace();
-            Log.e("DNS", "DoH via dns.njal.la failed");
+            cancelAll(futures);
+            return preferDoH ? tryLookupDoH(hostname) : tryLookupSystemDNS(hostname);
         }
 
-        DnsOverHttps quad9 = new DnsOverHttps.Builder().client(dohHttpClient)
-                .url(HttpUrl.get("https://dns.quad9.net/dns-query"))
-                .bootstrapDnsHosts(getByName("9.9.9.9"), getByName("149.112.112.112"), getByName("2620:fe::fe"), getByName("2620:fe::9"))
-                .build();
         try {
-            Log.d("DNS", "DoH via dns.quad9.net");
-            return quad9.lookup(hostname);
-        } catch (UnknownHostException e) {
-            e.printStackTrace();
-            Log.e("DNS", "DoH via dns.quad9.net failed");
+            for (int i = 0; i < futures.size(); i++) {
+                try {
+                    NamedResult result = completionService.take().get();
+                    if (result.addresses != null && !result.addresses.isEmpty()) {
+                        Log.d("DNS", "race won by " + result.name);
+                        if (!SYSTEM_DNS.equals(result.name)) {
+                            lastWorkingResolver = result.name;
+                        }
+                        return result.addresses;
+                    }
+                } catch (ExecutionException e) {
+                    Log.e("DNS", "racing lookup failed: " + e.getCause());
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new UnknownHostException("Interrupted while resolving " + hostname);
+        } finally {
+            cancelAll(futures);
         }
+        return null;
+    }
+
+    private static void cancelAll(List<Future<NamedResult>> futures) {
+        for (Future<NamedResult> future : futures) {
+            future.cancel(true);
+        }
+    }
 
-        DnsOverHttps cloudFlareDoHClient = new DnsOverHttps.Builder().client(dohHttpClient)
+    private List<NamedResolver> getOrderedDoHResolvers() throws UnknownHostException {
+        List<NamedResolver> resolvers = new ArrayList<>(getDoHResolvers());
+        String preferred = lastWorkingResolver;
+        if (preferred != null) {
+            for (int i = 0; i < resolvers.size(); i++) {
+                if (preferred.equals(resolvers.get(i).name)) {
+                    resolvers.add(0, resolvers.remove(i));
+                    break;
+                }
+            }
+        }
+        return resolvers;
+    }
+
+    private synchronized List<NamedResolver> getDoHResolvers() throws UnknownHostException {
+        if (dohResolvers != null) {
+            return dohResolvers;
+        }
+        List<NamedResolver> resolvers = new ArrayList<>();
+        resolvers.add(new NamedResolver("dns.njal.la", new DnsOverHttps.Builder().client(dohHttpClient)
+                .url(HttpUrl.get("https://dns.njal.la/dns-query"))
+                .bootstrapDnsHosts(getByName("95.215.19.53"), getByName("2001:67c:2354:2::53"))
+                .build()));
+        resolvers.add(new NamedResolver("dns.quad9.net", new DnsOverHttps.Builder().client(dohHttpClient)
+                .url(HttpUrl.get("https://dns.quad9.net/dns-query"))
+                .bootstrapDnsHosts(getByName("9.9.9.9"), getByName("149.112.112.112"), getByName("2620:fe::fe"), getByName("2620:fe::9"))
+                .build()));
+        resolvers.add(new NamedResolver("cloudflare 1.1.1.1", new DnsOverHttps.Builder().client(dohHttpClient)
                 .url(HttpUrl.get("https://1.1.1.1/dns-query"))
                 .bootstrapDnsHosts(getByName("1.1.1.1"), getByName("1.0.0.1"))
-                .build();
+                .build()));
+        dohResolvers = Collections.unmodifiableList(resolvers);
+        return dohResolvers;
+    }
 
-        try {
-            Log.d("DNS", "DoH via cloudflare 1.1.1.1");
-            return cloudFlareDoHClient.lookup(hostname);
-        } catch (UnknownHostException e) {
-            e.printStackTrace();
-            Log.e("DNS", "DoH via cloudflare failed");
+    private static class NamedResolver {
+        final String name;
+        final Dns dns;
+
+        NamedResolver(String name, Dns dns) {
+            this.name = name;
+            this.dns = dns;
+        }
+    }
+
+    private static class NamedResult {
+        final String name;
+        final List<InetAddress> addresses;
+
+        NamedResult(String name, List<InetAddress> addresses) {
+            this.name = name;
+            this.addresses = addresses;
+        }
+    }
+
+    private static class CacheEntry {
+        @Nullable final List<InetAddress> addresses;
+        final long expiresAt;
+
+        CacheEntry(@Nullable List<InetAddress> addresses) {
+            if (addresses != null && addresses.isEmpty()) {
+                addresses = null;
+            }
+            this.addresses = addresses == null ? null : Collections.unmodifiableList(new ArrayList<>(addresses));
+            this.expiresAt = SystemClock.elapsedRealtime() + (addresses == null ? NEGATIVE_TTL_MS : POSITIVE_TTL_MS);
+        }
+
+        boolean isNegative() {
+            return addresses == null;
+        }
+
+        boolean isExpired() {
+            return SystemClock.elapsedRealtime() >= expiresAt;
         }
-        return null;
     }
 }
@@ -24,22 +24,28 @@ import static se.leap.bitmaskclient.R.string.error_no_such_algorithm_exception_u
 import static se.leap.bitmaskclient.R.string.keyChainAccessError;
 import static se.leap.bitmaskclient.R.string.server_unreachable_message;
 import static se.leap.bitmaskclient.base.utils.ConfigHelper.getProviderFormattedString;
+import static se.leap.bitmaskclient.base.utils.PreferenceHelper.getUseBridges;
 import static se.leap.bitmaskclient.providersetup.ProviderAPI.ERRORS;
 
 import android.content.res.Resources;
 import android.os.Build;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.VisibleForTesting;
 
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.beans.PropertyChangeEvent;
+import java.beans.PropertyChangeListener;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.Proxy;
 import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
 import java.security.KeyManagementException;
 import java.security.KeyStoreException;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.NoSuchProviderException;
 import java.security.cert.CertificateException;
@@ -47,16 +53,23 @@ import java.time.Duration;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.TimeUnit;
 
 import okhttp3.CipherSuite;
+import okhttp3.ConnectionPool;
 import okhttp3.ConnectionSpec;
 import okhttp3.Cookie;
 import okhttp3.CookieJar;
+import okhttp3.Dispatcher;
 import okhttp3.HttpUrl;
 import okhttp3.OkHttpClient;
 import okhttp3.TlsVersion;
+import se.leap.bitmaskclient.base.models.Provider;
+import se.leap.bitmaskclient.base.models.ProviderObservable;
 
 /**
  * Created by cyberta on 08.01.18.
@@ -66,9 +79,27 @@ public class OkHttpClientGenerator {
 
     Resources resources;
     private final static String PROXY_HOST = "127.0.0.1";
+    private final static String COMMERCIAL_CA = "commercial";
+    private final static int MAX_CACHED_CLIENTS = 4;
+
+    // Clients are expensive to configure (CA parsing, KeyStore and SSLContext setup) and every new
+    // client starts without pooled connections, so configured clients are reused across requests.
+    // All cached clients derive from one base client and share its ConnectionPool and Dispatcher.
+    // Each request gets its own CookieJar on top of a cached client, cookies are never shared.
+    private static final Object CACHE_LOCK = new Object();
+    private static final LinkedHashMap<String, OkHttpClient> clientCache = new LinkedHashMap<>(MAX_CACHED_CLIENTS, 0.75f, true);
+    private static OkHttpClient baseClient;
+    private static String lastCaCertFingerprint;
+    private static ProviderChangeListener providerChangeListener;
 
     public OkHttpClientGenerator(Resources resources) {
         this.resources = resources;
+        synchronized (CACHE_LOCK) {
+            if (providerChangeListener == null) {
+                providerChangeListener = new ProviderChangeListener();
+                ProviderObservable.getInstance().addObserver(providerChangeListener);
+            }
+        }
     }
 
     public OkHttpClient initCommercialCAHttpClient(JSONObject initError, int proxyPort) {
@@ -81,7 +112,7 @@ public class OkHttpClientGenerator {
 
     public OkHttpClient init() {
         try {
-            return createClient(null, -1);
+            return getOrCreateClient(null, -1);
         } catch (Exception e) {
             e.printStackTrace();
         }
@@ -93,7 +124,7 @@ public class OkHttpClientGenerator {
             return null;
         }
         try {
-            return createClient(certificate, proxyPort);
+            return getOrCreateClient(certificate, proxyPort);
         } catch (IllegalArgumentException e) {
             e.printStackTrace();
             // TODO ca cert is invalid - show better error ?!
@@ -122,24 +153,131 @@ public class OkHttpClientGenerator {
         return null;
     }
 
-    private OkHttpClient createClient(String certificate, int proxyPort) throws Exception {
+    /**
+     * Returns a cached client for the given CA certificate and proxy port or creates a new one.
+     * Cached clients for a self-signed CA are dropped as soon as a client for a different CA is
+     * requested, e.g. after switching the provider or after a CA update.
+     */
+    private OkHttpClient getOrCreateClient(String certificate, int proxyPort) throws Exception {
+        // users of bridges are likely on a censored network, where blocked resolvers would
+        // time out one after another
+        boolean raceResolvers = getUseBridges();
+        String key = getCacheKey(certificate, proxyPort, raceResolvers);
+        OkHttpClient client = getCachedClient(key);
+        if (client == null) {
+            client = createClient(certificate, proxyPort, raceResolvers);
+            cacheClient(key, client);
+        }
+        return client.newBuilder().cookieJar(getCookieJar()).build();
+    }
+
+    @VisibleForTesting
+    static String getCacheKey(String certificate, int proxyPort, boolean raceResolvers) {
+        return (isEmpty(certificate) ? COMMERCIAL_CA : getFingerprint(certificate)) + "@" + proxyPort + (raceResolvers ? "+race" : "");
+    }
+
+    /**
+     * @return the cached client for the key or null. Requesting a client for a self-signed CA
+     * drops the clients of the previously requested one.
+     */
+    @VisibleForTesting
+    static OkHttpClient getCachedClient(String key) {
+        String caCertFingerprint = key.substring(0, key.lastIndexOf('@'));
+        synchronized (CACHE_LOCK) {
+            if (!COMMERCIAL_CA.equals(caCertFingerprint) && !caCertFingerprint.equals(lastCaCertFingerprint)) {
+                if (lastCaCertFingerprint != null) {
+                    invalidateClients(lastCaCertFingerprint);
+                }
+                lastCaCertFingerprint = caCertFingerprint;
+            }
+            return clientCache.get(key);
+        }
+    }
+
+    @VisibleForTesting
+    static void cacheClient(String key, OkHttpClient client) {
+        synchronized (CACHE_LOCK) {
+            clientCache.put(key, client);
+            Iterator<String> iterator = clientCache.keySet().iterator();
+            while (clientCache.size() > MAX_CACHED_CLIENTS && iterator.hasNext()) {
+                iterator.next();
+                iterator.remove();
+            }
+        }
+    }
+
+    private static void invalidateClients(String caCertFingerprint) {
+        Iterator<Map.Entry<String, OkHttpClient>> iterator = clientCache.entrySet().iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().getKey().startsWith(caCertFingerprint + "@")) {
+                iterator.remove();
+            }
+        }
+        if (baseClient != null) {
+            // connections that were established trusting the old CA must not be reused
+            baseClient.connectionPool().evictAll();
+        }
+    }
+
+    /**
+     * Drops all cached clients and pooled connections, called whenever the current provider or
+     * its CA certificate changes.
+     */
+    public static void clearCache() {
+        synchronized (CACHE_LOCK) {
+            clientCache.clear();
+            lastCaCertFingerprint = null;
+            DnsResolver.clearCache();
+            if (baseClient != null) {
+                baseClient.connectionPool().evictAll();
+            }
+        }
+    }
+
+    private static OkHttpClient getBaseClient() {
+        synchronized (CACHE_LOCK) {
+            if (baseClient == null) {
+                baseClient = new OkHttpClient.Builder()
+                        .connectionPool(new ConnectionPool())
+                        .dispatcher(new Dispatcher())
+                        .build();
+            }
+            return baseClient;
+        }
+    }
+
+    private static String getFingerprint(String certificate) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] hash = digest.digest(certificate.trim().getBytes(StandardCharsets.UTF_8));
+            StringBuilder fingerprint = new StringBuilder(hash.length * 2);
+            for (byte b : hash) {
+                fingerprint.append(String.format("%02x", b));
+            }
+            return fingerprint.toString();
+        } catch (NoSuchAlgorithmException e) {
+            e.printStackTrace();
+            return Integer.toHexString(certificate.hashCode()) + ":" + certificate.length();
+        }
+    }
+
+    private OkHttpClient createClient(String certificate, int proxyPort, boolean raceResolvers) throws Exception {
         TLSCompatSocketFactory sslCompatFactory;
         ConnectionSpec spec = getConnectionSpec();
-        OkHttpClient.Builder clientBuilder = new OkHttpClient.Builder();
+        OkHttpClient.Builder clientBuilder = getBaseClient().newBuilder();
 
         if (!isEmpty(certificate)) {
             sslCompatFactory = new TLSCompatSocketFactory(certificate);
         } else {
             sslCompatFactory = new TLSCompatSocketFactory();
         }
-        clientBuilder.cookieJar(getCookieJar())
-                .connectionSpecs(Collections.singletonList(spec));
+        clientBuilder.connectionSpecs(Collections.singletonList(spec));
 
         if (proxyPort != -1) {
             clientBuilder.proxy(new Proxy(Proxy.Type.HTTP, new InetSocketAddress(PROXY_HOST, proxyPort)));
         }
 
-        clientBuilder.dns(new DnsResolver(clientBuilder.build(), true));
+        clientBuilder.dns(new DnsResolver(clientBuilder.build(), true, raceResolvers));
         sslCompatFactory.initSSLSocketFactory(clientBuilder);
         clientBuilder.connectTimeout(45L, TimeUnit.SECONDS);
         clientBuilder.readTimeout(45L, TimeUnit.SECONDS);
@@ -184,6 +322,28 @@ public class OkHttpClientGenerator {
         };
     }
 
+    /**
+     * Clears the cache if the current provider or its CA certificate changed
+     */
+    private static class ProviderChangeListener implements PropertyChangeListener {
+        private String lastProvider;
+
+        @Override
+        public void propertyChange(PropertyChangeEvent evt) {
+            if (!ProviderObservable.PROPERTY_CHANGE.equals(evt.getPropertyName())) {
+                return;
+            }
+            Provider provider = (Provider) evt.getNewValue();
+            String current = provider.getDomain() + "|" + provider.getCaCert();
+            synchronized (this) {
+                if (lastProvider != null && !lastProvider.equals(current)) {
+                    clearCache();
+                }
+                lastProvider = current;
+            }
+        }
+    }
+
     private void addErrorMessageToJson(JSONObject jsonObject, String errorMessage) {
         try {
             jsonObject.put(ERRORS, errorMessage);
@@ -0,0 +1,65 @@
+package de.blinkt.openvpn.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static de.blinkt.openvpn.core.connection.Connection.TransportType.OPENVPN;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import de.blinkt.openvpn.VpnProfile;
+import de.blinkt.openvpn.core.connection.OpenvpnConnection;
+
+public class CertificateStoreTest {
+
+    private static final String CA = VpnProfile.INLINE_TAG + "-----BEGIN CERTIFICATE-----\nCA\n-----END CERTIFICATE-----";
+    private static final String CERT = VpnProfile.INLINE_TAG + "-----BEGIN CERTIFICATE-----\nCLIENT\n-----END CERTIFICATE-----";
+
+    private static VpnProfile profile() {
+        VpnProfile profile = new VpnProfile("profile", OPENVPN);
+        profile.mConnections[0] = new OpenvpnConnection();
+        profile.mCaFilename = CA;
+        profile.mClientCertFilename = CERT;
+        return profile;
+    }
+
+    @Test
+    public void testStore_sameContent_sameReference() {
+        String reference = CertificateStore.store(CA);
+        assertTrue(CertificateStore.isReference(reference));
+        assertEquals(reference, CertificateStore.store(new String(CA)));
+        assertFalse(reference.equals(CertificateStore.store(CERT)));
+        assertEquals(CA, CertificateStore.resolve(reference));
+    }
+
+    @Test
+    public void testStore_notEmbedded_unchanged() {
+        assertEquals("/sdcard/ca.crt", CertificateStore.store("/sdcard/ca.crt"));
+        assertNull(CertificateStore.store(null));
+        assertEquals("/sdcard/ca.crt", CertificateStore.resolve("/sdcard/ca.crt"));
+        assertNull(CertificateStore.resolve(CertificateStore.REFERENCE_TAG + "unknown"));
+    }
+
+    @Test
+    public void testInsertFileData_reference_inlinesContent() {
+        assertEquals(VpnProfile.insertFileData("ca", CA), VpnProfile.insertFileData("ca", CertificateStore.store(CA)));
+    }
+
+    @Test
+    public void testToJson_sharedCertificates_areInlined() throws JSONException {
+        VpnProfile profile = profile();
+        profile.shareCertificates();
+        assertTrue(CertificateStore.isReference(profile.mCaFilename));
+
+        JSONObject json = new JSONObject(profile.toJson());
+        assertEquals(CA, json.getString("mCaFilename"));
+        assertEquals(CERT, json.getString("mClientCertFilename"));
+
+        VpnProfile restored = VpnProfile.fromJson(profile.toJson());
+        assertEquals(profile.mCaFilename, restored.mCaFilename);
+        assertEquals(profile.mClientCertFilename, restored.mClientCertFilename);
+    }
+}
@@ -0,0 +1,210 @@
+package de.blinkt.openvpn.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.os.Build;
+import android.os.Looper;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = {Build.VERSION_CODES.P})
+public class LogFileHandlerTest {
+
+    private static final int CAPACITY = 300;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File cacheDir;
+    private int capacity;
+
+    /**
+     * Collects the replayed items instead of handing them to VpnStatus
+     */
+    private class RecordingLogFileHandler extends LogFileHandler {
+        final List<String> restored = new ArrayList<>();
+
+        RecordingLogFileHandler() {
+            super(Looper.getMainLooper(), capacity);
+        }
+
+        @Override
+        protected void restoreLogItem(byte[] buf, int len) throws UnsupportedEncodingException {
+            restored.add(new LogItem(buf, len).getString(null));
+        }
+    }
+
+    private static LogItem item(String msg) {
+        return new LogItem(VpnStatus.LogLevel.INFO, msg);
+    }
+
+    private static int recordSize(String msg) throws UnsupportedEncodingException {
+        return LogFileHandler.RECORD_HEADER_SIZE + item(msg).getMarschaledBytes().length;
+    }
+
+    @Before
+    public void setup() {
+        cacheDir = folder.getRoot();
+        capacity = CAPACITY;
+    }
+
+    private void init(LogFileHandler handler) {
+        handler.handleMessage(handler.obtainMessage(LogFileHandler.LOG_INIT, cacheDir));
+    }
+
+    private void write(LogFileHandler handler, String... messages) {
+        for (String msg : messages) {
+            handler.handleMessage(handler.obtainMessage(LogFileHandler.LOG_MESSAGE, item(msg)));
+        }
+    }
+
+    private RecordingLogFileHandler openAndWrite(String... messages) {
+        RecordingLogFileHandler handler = new RecordingLogFileHandler();
+        init(handler);
+        write(handler, messages);
+        return handler;
+    }
+
+    private List<String> replay() {
+        RecordingLogFileHandler handler = new RecordingLogFileHandler();
+        init(handler);
+        return handler.restored;
+    }
+
+    private void patchRingFile(long offset, int value) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(new File(cacheDir, LogFileHandler.RING_LOGFILE_NAME), "rw")) {
+            file.seek(offset);
+            file.writeInt(value);
+        }
+    }
+
+    @Test
+    public void testWriteAndReplay_restoresItemsInOrder() {
+        openAndWrite("item 0", "item 1", "item 2");
+
+        assertEquals(Arrays.asList("item 0", "item 1", "item 2"), replay());
+    }
+
+    @Test
+    public void testReplay_appendsAfterReplayedRecords() {
+        openAndWrite("item 0");
+        RecordingLogFileHandler reopened = new RecordingLogFileHandler();
+        init(reopened);
+        write(reopened, "item 1");
+
+        assertEquals(Arrays.asList("item 0", "item 1"), replay());
+    }
+
+    @Test
+    public void testWrite_ringFull_wrapsAroundAndDropsOldestRecords() throws UnsupportedEncodingException {
+        int fitting = CAPACITY / recordSize("item 00");
+        List<String> written = new ArrayList<>();
+        for (int i = 0; i < 3 * fitting; i++) {
+            written.add(String.format(Locale.US, "item %02d", i));
+        }
+        openAndWrite(written.toArray(new String[0]));
+
+        // CAPACITY isn't a multiple of the record size, so some records are split at the end of the ring
+        assertEquals(written.subList(written.size() - fitting, written.size()), replay());
+    }
+
+    @Test
+    public void testTrimLogFile_movesHeadPastOldestRecords() {
+        RecordingLogFileHandler handler = openAndWrite("item 0", "item 1", "item 2", "item 3");
+
+        handler.trimLogFile(2);
+        assertEquals(Arrays.asList("item 2", "item 3"), replay());
+
+        write(handler, "item 4");
+        assertEquals(Arrays.asList("item 2", "item 3", "item 4"), replay());
+    }
+
+    @Test
+    public void testReplay_corruptRecord_stopsAndTruncatesLog() throws IOException {
+        openAndWrite("item 0", "item 1", "item 2");
+        int recordSize = recordSize("item 0");
+        // overwrite payload bytes of the second record, its CRC doesn't match anymore
+        patchRingFile(LogFileHandler.HEADER_SIZE + recordSize + LogFileHandler.RECORD_HEADER_SIZE + 4, 0xdeadbeef);
+
+        RecordingLogFileHandler reopened = new RecordingLogFileHandler();
+        init(reopened);
+        assertEquals(Arrays.asList("item 0"), reopened.restored);
+
+        write(reopened, "item 3");
+        assertEquals(Arrays.asList("item 0", "item 3"), replay());
+    }
+
+    @Test
+    public void testReplay_truncatedRecord_stopsBeforeIt() throws IOException {
+        openAndWrite("item 0", "item 1", "item 2");
+        int recordSize = recordSize("item 0");
+        // the last record claims more bytes than were written before the tail
+        patchRingFile(LogFileHandler.HEADER_SIZE + 2L * recordSize, recordSize);
+
+        assertEquals(Arrays.asList("item 0", "item 1"), replay());
+    }
+
+    @Test
+    public void testInit_legacyLogCache_migratedOnce() throws IOException {
+        // leaves room for the items VpnStatus logs itself, migration copies the whole log
+        capacity = 4096;
+        VpnStatus.clearLog();
+        File legacyLogfile = new File(cacheDir, LogFileHandler.LOGFILE_NAME);
+        writeLegacyLogCache(legacyLogfile, "legacy 0", "legacy 1");
+
+        init(new LogFileHandler(Looper.getMainLooper(), capacity));
+
+        assertFalse(legacyLogfile.exists());
+        assertTrue(new File(cacheDir, LogFileHandler.RING_LOGFILE_NAME).exists());
+        List<String> migrated = replay();
+        assertTrue(migrated.containsAll(Arrays.asList("legacy 0", "legacy 1")));
+
+        // the ring segment exists now, a legacy file appearing again is ignored
+        writeLegacyLogCache(legacyLogfile, "legacy 2");
+        List<String> replayed = replay();
+        assertEquals(migrated, replayed);
+        assertFalse(replayed.contains("legacy 2"));
+    }
+
+    /**
+     * Writes items in the format of the old log cache: a magic byte, the payload length and the
+     * marshalled LogItem with the magic byte and the escape byte escaped.
+     */
+    private static void writeLegacyLogCache(File file, String... messages) throws IOException {
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            for (String msg : messages) {
+                byte[] payload = item(msg).getMarschaledBytes();
+                out.write(LogFileHandler.MAGIC_BYTE);
+                out.write(ByteBuffer.allocate(4).putInt(payload.length).array());
+                for (byte b : payload) {
+                    if (b == LogFileHandler.MAGIC_BYTE || b == LogFileHandler.MAGIC_BYTE + 1) {
+                        out.write(LogFileHandler.MAGIC_BYTE + 1);
+                        out.write(b - LogFileHandler.MAGIC_BYTE);
+                    } else {
+                        out.write(b);
+                    }
+                }
+            }
+        }
+    }
+}
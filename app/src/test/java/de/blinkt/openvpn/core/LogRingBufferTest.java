@@ -0,0 +1,141 @@
+package de.blinkt.openvpn.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class LogRingBufferTest {
+
+    private static LogItem item(String msg) {
+        return new LogItem(VpnStatus.LogLevel.INFO, msg);
+    }
+
+    @Test
+    public void testSnapshot_notFull_returnsItemsInOrder() {
+        LogRingBuffer buffer = new LogRingBuffer(4);
+        LogItem first = item("1");
+        LogItem second = item("2");
+        buffer.add(first);
+        buffer.add(second);
+
+        LogItem[] snapshot = buffer.snapshot();
+        assertEquals(2, snapshot.length);
+        assertSame(first, snapshot[0]);
+        assertSame(second, snapshot[1]);
+    }
+
+    @Test
+    public void testSnapshot_overflow_dropsOldestItems() {
+        LogRingBuffer buffer = new LogRingBuffer(3);
+        LogItem[] items = new LogItem[5];
+        for (int i = 0; i < items.length; i++) {
+            items[i] = item(String.valueOf(i));
+            buffer.add(items[i]);
+        }
+
+        LogItem[] snapshot = buffer.snapshot();
+        assertEquals(3, snapshot.length);
+        assertSame(items[2], snapshot[0]);
+        assertSame(items[3], snapshot[1]);
+        assertSame(items[4], snapshot[2]);
+    }
+
+    @Test
+    public void testReadFrom_cursor_returnsOnlyNewItems() {
+        LogRingBuffer buffer = new LogRingBuffer(4);
+        buffer.add(item("old"));
+        long cursor = buffer.getCursor();
+        LogItem newItem = item("new");
+        buffer.add(newItem);
+
+        LogRingBuffer.Batch tail = buffer.readFrom(cursor);
+        assertEquals(1, tail.items.size());
+        assertSame(newItem, tail.items.get(0));
+        assertEquals(buffer.getCursor(), tail.next);
+        assertEquals(0, buffer.readFrom(tail.next).items.size());
+    }
+
+    @Test
+    public void testClear_dropsPreviousItems() {
+        LogRingBuffer buffer = new LogRingBuffer(4);
+        buffer.add(item("1"));
+        buffer.add(item("2"));
+        buffer.clear();
+        LogItem afterClear = item("3");
+        buffer.add(afterClear);
+
+        LogItem[] snapshot = buffer.snapshot();
+        assertEquals(1, snapshot.length);
+        assertSame(afterClear, snapshot[0]);
+    }
+
+    @Test
+    public void testAdd_concurrentWriters_keepsLastCapacityItems() throws InterruptedException {
+        LogRingBuffer buffer = new LogRingBuffer(100);
+        Thread[] writers = new Thread[4];
+        for (int t = 0; t < writers.length; t++) {
+            writers[t] = new Thread(() -> {
+                for (int i = 0; i < 1000; i++) {
+                    buffer.add(item("x"));
+                }
+            });
+            writers[t].start();
+        }
+        for (Thread writer : writers) {
+            writer.join();
+        }
+
+        assertEquals(4000, buffer.getCursor());
+        assertEquals(100, buffer.snapshot().length);
+    }
+
+    @Test
+    public void testReadFrom_concurrentWriters_tailingReaderGetsEveryItemInOrder() throws InterruptedException {
+        int writerCount = 4;
+        int itemsPerWriter = 5000;
+        LogRingBuffer buffer = new LogRingBuffer(writerCount * itemsPerWriter);
+        Thread[] writers = new Thread[writerCount];
+        for (int t = 0; t < writers.length; t++) {
+            String writer = String.valueOf(t);
+            writers[t] = new Thread(() -> {
+                for (int i = 0; i < itemsPerWriter; i++) {
+                    buffer.add(item(writer + ":" + i));
+                }
+            });
+            writers[t].start();
+        }
+
+        List<LogItem> read = new ArrayList<>();
+        long next = 0;
+        while (isAnyAlive(writers)) {
+            LogRingBuffer.Batch batch = buffer.readFrom(next);
+            read.addAll(batch.items);
+            next = batch.next;
+        }
+        for (Thread writer : writers) {
+            writer.join();
+        }
+        read.addAll(buffer.readFrom(next).items);
+
+        assertEquals(writerCount * itemsPerWriter, read.size());
+        int[] expected = new int[writerCount];
+        for (LogItem item : read) {
+            String[] message = item.getString(null).split(":");
+            int writer = Integer.parseInt(message[0]);
+            assertEquals(expected[writer]++, Integer.parseInt(message[1]));
+        }
+    }
+
+    private static boolean isAnyAlive(Thread[] threads) {
+        for (Thread thread : threads) {
+            if (thread.isAlive()) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
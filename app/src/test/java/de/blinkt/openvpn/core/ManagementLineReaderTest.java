@@ -0,0 +1,104 @@
+package de.blinkt.openvpn.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+public class ManagementLineReaderTest {
+
+    private final List<String> lines = new ArrayList<>();
+    private final ManagementLineReader.LineListener listener =
+            (buffer, start, end) -> lines.add(new String(buffer, start, end - start, StandardCharsets.UTF_8));
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void testFeed_splitLines_stripsLineEndings() {
+        ManagementLineReader reader = new ManagementLineReader();
+        byte[] input = bytes(">BYTECOUNT:1,2\r\n>STATE:1,CONNECTED,SUCCESS\n");
+        reader.feed(input, 0, input.length, listener);
+
+        assertEquals(2, lines.size());
+        assertEquals(">BYTECOUNT:1,2", lines.get(0));
+        assertEquals(">STATE:1,CONNECTED,SUCCESS", lines.get(1));
+    }
+
+    @Test
+    public void testFeed_partialLine_waitsForLineEnd() {
+        ManagementLineReader reader = new ManagementLineReader();
+        byte[] first = bytes(">LOG:1,I,");
+        byte[] second = bytes("0,hello\r");
+        byte[] third = bytes("\n>INFO");
+        reader.feed(first, 0, first.length, listener);
+        reader.feed(second, 0, second.length, listener);
+        assertEquals(0, lines.size());
+
+        reader.feed(third, 0, third.length, listener);
+        assertEquals(1, lines.size());
+        assertEquals(">LOG:1,I,0,hello", lines.get(0));
+    }
+
+    @Test
+    public void testFeed_multiByteCharacterAcrossChunks_decodedCorrectly() {
+        ManagementLineReader reader = new ManagementLineReader();
+        byte[] input = bytes(">LOG:1,I,0,ä\n");
+        int split = input.length - 2; // in the middle of the two byte character
+        reader.feed(input, 0, split, listener);
+        reader.feed(input, split, input.length - split, listener);
+
+        assertEquals(">LOG:1,I,0,ä", lines.get(0));
+    }
+
+    @Test
+    public void testReadFrom_lineLongerThanBuffer_growsBuffer() throws IOException {
+        StringBuilder longLine = new StringBuilder();
+        for (int i = 0; i < 5000; i++) {
+            longLine.append('x');
+        }
+        ManagementLineReader reader = new ManagementLineReader(16);
+        ByteArrayInputStream in = new ByteArrayInputStream(bytes(longLine + "\nshort\n"));
+        while (reader.readFrom(in) != -1) {
+            reader.processLines(listener);
+        }
+
+        assertEquals(2, lines.size());
+        assertEquals(longLine.toString(), lines.get(0));
+        assertEquals("short", lines.get(1));
+    }
+
+    @Test
+    public void testParseLong() {
+        byte[] input = bytes("x1234567890123,");
+        assertEquals(1234567890123L, ManagementLineReader.parseLong(input, 1, input.length - 1));
+    }
+
+    @Test(expected = NumberFormatException.class)
+    public void testParseLong_invalidDigit_throwsNumberFormatException() {
+        byte[] input = bytes("12a4");
+        ManagementLineReader.parseLong(input, 0, input.length);
+    }
+
+    @Test(expected = NumberFormatException.class)
+    public void testParseLong_overflow_throwsNumberFormatException() {
+        byte[] input = bytes("99999999999999999999");
+        ManagementLineReader.parseLong(input, 0, input.length);
+    }
+
+    @Test
+    public void testStartsWith() {
+        byte[] input = bytes(">BYTECOUNT:1,2");
+        assertTrue(ManagementLineReader.startsWith(input, 0, input.length, bytes(">BYTECOUNT:")));
+        assertFalse(ManagementLineReader.startsWith(input, 0, input.length, bytes(">STATE:")));
+        assertFalse(ManagementLineReader.startsWith(input, 0, 3, bytes(">BYTECOUNT:")));
+    }
+}
@@ -0,0 +1,88 @@
+package de.blinkt.openvpn.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static de.blinkt.openvpn.core.TrafficHistory.HOURS_CAPACITY;
+import static de.blinkt.openvpn.core.TrafficHistory.SECONDS_CAPACITY;
+import static de.blinkt.openvpn.core.TrafficHistory.TIME_PERIOD_HOURS;
+import static de.blinkt.openvpn.core.TrafficHistory.TIME_PERIOD_MINTUES;
+
+import org.junit.Test;
+
+public class TrafficHistoryTest {
+
+    @Test
+    public void testAdd_returnsDiffToPreviousSample() {
+        TrafficHistory history = new TrafficHistory();
+        TrafficHistory.LastDiff diff = history.add(100, 50, 1000);
+        assertEquals(100, diff.getDiffIn());
+        assertEquals(50, diff.getDiffOut());
+        assertEquals(0, diff.getDiffMillis());
+
+        diff = history.add(250, 80, 2000);
+        assertEquals(1000, diff.getDiffMillis());
+        assertEquals(150, diff.getDiffIn());
+        assertEquals(30, diff.getDiffOut());
+        assertEquals(250, diff.getIn());
+        assertEquals(80, diff.getOut());
+    }
+
+    @Test
+    public void testAdd_rollsUpMinutesAndHours() {
+        TrafficHistory history = new TrafficHistory();
+        long start = 10L * TIME_PERIOD_HOURS;
+        for (int i = 0; i < 3 * 60; i++) {
+            history.add(i, i, start + i * 1000L);
+        }
+
+        assertEquals(3, history.getMinutes().size());
+        assertEquals(1, history.getHours().size());
+        assertEquals(start + 120 * 1000L, history.getMinutes().getTimestamp(2));
+    }
+
+    @Test
+    public void testAdd_expiresOldSeconds() {
+        TrafficHistory history = new TrafficHistory();
+        long start = 10L * TIME_PERIOD_HOURS;
+        for (int i = 0; i < 10 * 60; i++) {
+            history.add(i, i, start + i * 1000L);
+        }
+
+        TrafficHistory.Series seconds = history.getSeconds();
+        long newest = seconds.getTimestamp(seconds.size() - 1);
+        long oldest = seconds.getTimestamp(0);
+        assertTrue((newest - oldest) / TIME_PERIOD_MINTUES < TrafficHistory.PERIODS_TO_KEEP + 1);
+        assertEquals(599, seconds.getIn(seconds.size() - 1));
+    }
+
+    @Test
+    public void testAdd_fullSeries_overwritesOldest() {
+        TrafficHistory history = new TrafficHistory();
+        long start = 10L * TIME_PERIOD_HOURS;
+        // all samples within the same minute, nothing gets expired
+        for (int i = 0; i < SECONDS_CAPACITY + 10; i++) {
+            history.add(i, i, start + i);
+        }
+
+        TrafficHistory.Series seconds = history.getSeconds();
+        assertEquals(SECONDS_CAPACITY, seconds.size());
+        assertEquals(10, seconds.getIn(0));
+        assertEquals(SECONDS_CAPACITY + 9, seconds.getIn(SECONDS_CAPACITY - 1));
+    }
+
+    @Test
+    public void testAdd_hoursAreNeverDropped() {
+        TrafficHistory history = new TrafficHistory();
+        long start = 10L * TIME_PERIOD_HOURS;
+        int hours = 3 * HOURS_CAPACITY + 5;
+        // one sample per minute, the hours series has to grow beyond its initial capacity
+        for (int i = 0; i <= hours * 60; i++) {
+            history.add(i, i, start + i * (long) TIME_PERIOD_MINTUES);
+        }
+
+        TrafficHistory.Series hoursSeries = history.getHours();
+        assertEquals(hours + 1, hoursSeries.size());
+        assertEquals(start, hoursSeries.getTimestamp(0));
+        assertEquals(start + hours * (long) TIME_PERIOD_HOURS, hoursSeries.getTimestamp(hours));
+    }
+}
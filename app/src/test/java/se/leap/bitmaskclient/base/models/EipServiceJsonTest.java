@@ -0,0 +1,70 @@
+package se.leap.bitmaskclient.base.models;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static se.leap.bitmaskclient.testutils.TestSetupHelper.getInputAsString;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+public class EipServiceJsonTest {
+
+    private EipServiceJson parse(String resource) throws IOException {
+        return EipServiceJson.parse(new StringReader(getInputAsString(getClass().getClassLoader().getResourceAsStream(resource))));
+    }
+
+    @Test
+    public void testParse_apiV3() throws IOException {
+        EipServiceJson eipService = parse("ptdemo_three_mixed_gateways.json");
+
+        assertEquals(3, eipService.getVersion());
+        assertEquals(3, eipService.getGateways().size());
+        GatewayJson gateway = eipService.getGateways().get(0);
+        assertEquals("pt.demo.bitmask.net", gateway.getHost());
+        assertEquals("37.218.247.60", gateway.getIpAddress());
+        assertEquals("Amsterdam", eipService.getLocation(gateway.getLocation()).getName());
+        assertEquals(-1, eipService.getLocation(gateway.getLocation()).getTimezone());
+        assertEquals(2, gateway.getCapabilities().getTransport().length);
+        // options keep the provider's order, booleans are read as strings
+        assertEquals(Arrays.asList("auth", "cipher", "keepalive"), new ArrayList<>(eipService.getOpenvpnConfiguration().keySet()).subList(0, 3));
+        assertEquals("true", eipService.getOpenvpnConfiguration().get("tun-ipv6"));
+    }
+
+    @Test
+    public void testParse_apiV1_namedTransportsAreSkipped() throws IOException {
+        EipServiceJson eipService = parse("eip-service-one-gateway.json");
+
+        assertEquals(1, eipService.getVersion());
+        GatewayJson gateway = eipService.getGateways().get(0);
+        assertEquals("443", gateway.getCapabilities().getPorts()[0]);
+        assertEquals(2, gateway.getCapabilities().getProtocols().length);
+        assertNull(gateway.getCapabilities().getTransport()[0]);
+    }
+
+    @Test
+    public void testParse_portHoppingOptions() throws IOException {
+        EipServiceJson eipService = parse("decoupled_pt_portHopping.eip-service.json");
+
+        Transport hopping = eipService.getGateways().get(0).getCapabilities().getTransport()[2];
+        assertEquals("obfs4-hop", hopping.getType());
+        assertEquals(100, hopping.getOptions().getPortCount());
+        assertTrue(hopping.getOptions().isExperimental());
+    }
+
+    @Test
+    public void testParseGeoIp() throws IOException {
+        GeoIpJson simple = GeoIpJson.parse(new StringReader(getInputAsString(getClass().getClassLoader().getResourceAsStream("ptdemo_three_mixed_gateways.geoip.json"))));
+        assertFalse(simple.hasSortedGateways());
+        assertEquals(Arrays.asList("manila.bitmask.net", "moscow.bitmask.net", "pt.demo.bitmask.net"), simple.getGateways());
+
+        GeoIpJson withLoad = GeoIpJson.parse(new StringReader(getInputAsString(getClass().getClassLoader().getResourceAsStream("ptdemo_kcp_gateways_geoip.json"))));
+        assertTrue(withLoad.hasSortedGateways());
+        assertEquals("pt.demo.bitmask.net", withLoad.getSortedGateways().get(0).getHost());
+    }
+}
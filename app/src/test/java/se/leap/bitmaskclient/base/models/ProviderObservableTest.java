@@ -0,0 +1,104 @@
+package se.leap.bitmaskclient.base.models;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+public class ProviderObservableTest {
+
+    private ProviderObservable providerObservable;
+    private List<Runnable> loaderQueue;
+    private List<String> events;
+
+    @Before
+    public void setup() {
+        providerObservable = ProviderObservable.getInstance();
+        // finishes restores left over by other tests
+        providerObservable.updateProvider(new Provider());
+        loaderQueue = new ArrayList<>();
+        events = new ArrayList<>();
+    }
+
+    @Test
+    public void testRestoreProvider_notLoadedYet_doesNotBlock() {
+        Provider initial = providerObservable.getCurrentProvider();
+        providerObservable.restoreProvider(loaderQueue::add, Provider::new);
+
+        assertTrue(providerObservable.isRestoring());
+        assertSame(initial, providerObservable.getCurrentProvider());
+    }
+
+    @Test
+    public void testRestoreProvider_loaded_publishesProviderAndRunsWaitingActions() {
+        Provider restored = new Provider();
+        providerObservable.restoreProvider(loaderQueue::add, () -> restored);
+        providerObservable.whenRestored(Runnable::run, () -> events.add("restored"));
+        assertTrue(events.isEmpty());
+
+        loaderQueue.remove(0).run();
+
+        assertFalse(providerObservable.isRestoring());
+        assertSame(restored, providerObservable.getCurrentProvider());
+        assertEquals(Collections.singletonList("restored"), events);
+
+        providerObservable.whenRestored(Runnable::run, () -> events.add("immediately"));
+        assertEquals(Arrays.asList("restored", "immediately"), events);
+    }
+
+    @Test
+    public void testRestoreProvider_updatedWhileLoading_updateWins() {
+        Provider restored = new Provider();
+        Provider updated = new Provider();
+        providerObservable.restoreProvider(loaderQueue::add, () -> restored);
+        providerObservable.whenRestored(Runnable::run, () -> events.add("restored"));
+
+        providerObservable.updateProvider(updated);
+        assertEquals(Collections.singletonList("restored"), events);
+
+        loaderQueue.remove(0).run();
+        assertSame(updated, providerObservable.getCurrentProvider());
+        assertEquals(Collections.singletonList("restored"), events);
+    }
+
+    @Test
+    public void testRestoreProvider_nothingSaved_keepsProvider() {
+        Provider initial = providerObservable.getCurrentProvider();
+        providerObservable.restoreProvider(Runnable::run, () -> null);
+
+        assertFalse(providerObservable.isRestoring());
+        assertSame(initial, providerObservable.getCurrentProvider());
+    }
+
+    @Test
+    public void testAwaitCurrentProvider_waitsForRestore() throws Exception {
+        Provider restored = new Provider();
+        providerObservable.restoreProvider(loaderQueue::add, () -> restored);
+        ExecutorService worker = Executors.newSingleThreadExecutor();
+        try {
+            Future<Provider> awaited = worker.submit(providerObservable::awaitCurrentProvider);
+            Thread.sleep(50);
+            assertFalse(awaited.isDone());
+            assertNotSame(restored, providerObservable.getCurrentProvider());
+
+            loaderQueue.remove(0).run();
+
+            assertSame(restored, awaited.get(1, TimeUnit.SECONDS));
+        } finally {
+            worker.shutdownNow();
+        }
+    }
+}
@@ -3,6 +3,9 @@ package se.leap.bitmaskclient.base.models;
 import static junit.framework.Assert.assertFalse;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
 import org.junit.Before;
@@ -133,4 +136,42 @@ public class ProviderTest {
         assertTrue(p1.supportsPluggableTransports());
     }
 
+    @Test
+    public void testParsedJson_invalidDocument_parsedOnce() {
+        int[] parsed = {0};
+        Provider.ParsedJson<EipServiceJson> document = new Provider.ParsedJson<>("{\"gateways\": ", reader -> {
+            parsed[0]++;
+            return EipServiceJson.parse(reader);
+        });
+
+        assertNull(document.getModel());
+        assertNull(document.getModel());
+        assertEquals(1, parsed[0]);
+    }
+
+    @Test
+    public void testParsedJson_validDocument_parsedOnce() {
+        int[] parsed = {0};
+        Provider.ParsedJson<EipServiceJson> document = new Provider.ParsedJson<>("{}", reader -> {
+            parsed[0]++;
+            return EipServiceJson.parse(reader);
+        });
+
+        EipServiceJson model = document.getModel();
+        assertNotNull(model);
+        assertSame(model, document.getModel());
+        assertEquals(1, parsed[0]);
+    }
+
+    @Test
+    public void testSetEipServiceJson_replacesParsedModels() {
+        Provider provider = new Provider();
+        provider.setEipServiceJson("{\"gateways\": ");
+        assertNull(provider.getEipService());
+
+        provider.setEipServiceJson("{}");
+        assertNotNull(provider.getEipService());
+        assertEquals("{}", provider.getEipServiceJsonString());
+    }
+
 }
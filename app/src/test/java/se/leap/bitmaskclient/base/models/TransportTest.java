@@ -34,6 +34,15 @@ public class TransportTest extends TestCase {
         assertFalse(transport.getOptions().isExperimental());
     }
 
+    public void test_obfs4_kcpProfile_fromJson() throws IOException, JSONException {
+        gateway = new JSONObject(TestSetupHelper.getInputAsString(getClass().getClassLoader().getResourceAsStream("ptdemo_obfs4hop_tcp_gateways.json"))).getJSONArray("gateways").getJSONObject(2);
+        JSONObject obfs4Transport = gateway.getJSONObject(CAPABILITIES).getJSONArray(TRANSPORT).getJSONObject(1);
+        assertNull(Transport.fromJson(obfs4Transport).getOptions().getKcpProfile());
+
+        obfs4Transport.getJSONObject("options").put("kcp_profile", "turbo");
+        assertEquals("turbo", Transport.fromJson(obfs4Transport).getOptions().getKcpProfile());
+    }
+
     public void test_obfs4hop_fromJson() throws IOException, JSONException {
         gateway = new JSONObject(TestSetupHelper.getInputAsString(getClass().getClassLoader().getResourceAsStream("ptdemo_obfs4hop_tcp_gateways.json"))).getJSONArray("gateways").getJSONObject(2);
         JSONObject obfs4Transport = gateway.getJSONObject(CAPABILITIES).getJSONArray(TRANSPORT).getJSONObject(2);
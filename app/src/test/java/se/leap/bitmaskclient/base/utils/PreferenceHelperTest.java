@@ -5,15 +5,30 @@ import android.content.SharedPreferences;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
 import se.leap.bitmaskclient.base.models.Provider;
 import se.leap.bitmaskclient.testutils.MockSharedPreferences;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static se.leap.bitmaskclient.base.models.Constants.EXCLUDED_APPS;
+import static se.leap.bitmaskclient.base.models.Constants.PREFERRED_CITY;
+import static se.leap.bitmaskclient.base.models.Constants.PREFER_UDP;
 import static se.leap.bitmaskclient.base.models.Constants.PROVIDER_EIP_DEFINITION;
 import static se.leap.bitmaskclient.base.models.Constants.PROVIDER_PRIVATE_KEY;
 import static se.leap.bitmaskclient.base.models.Constants.PROVIDER_VPN_CERTIFICATE;
+import static se.leap.bitmaskclient.base.utils.PreferenceHelper.getExcludedApps;
+import static se.leap.bitmaskclient.base.utils.PreferenceHelper.getPreferUDP;
+import static se.leap.bitmaskclient.base.utils.PreferenceHelper.getString;
+import static se.leap.bitmaskclient.base.utils.PreferenceHelper.hasKey;
 import static se.leap.bitmaskclient.base.utils.PreferenceHelper.preferUDP;
+import static se.leap.bitmaskclient.base.utils.PreferenceHelper.setExcludedApps;
 import static se.leap.bitmaskclient.testutils.TestSetupHelper.getInputAsString;
 import static se.leap.bitmaskclient.base.utils.PreferenceHelper.getSavedProviderFromSharedPreferences;
 
@@ -53,4 +68,82 @@ public class PreferenceHelperTest {
     }
 
 
-}
\ No newline at end of file
+    @Test
+    public void testMirror_writesAreVisibleImmediately() {
+        preferUDP(true);
+        assertTrue(getPreferUDP());
+        assertTrue(mockPreferences.getBoolean(PREFER_UDP, false));
+
+        preferUDP(false);
+        assertFalse(getPreferUDP());
+    }
+
+    @Test
+    public void testMirror_loadsExistingPreferences() {
+        SharedPreferences preferences = new MockSharedPreferences();
+        preferences.edit().putString(PREFERRED_CITY, "Paris").commit();
+        new PreferenceHelper(preferences);
+        assertEquals("Paris", getString(PREFERRED_CITY, null));
+    }
+
+    @Test
+    public void testMirror_picksUpChangesOfThePreferences() {
+        mockPreferences.edit().putString(PREFERRED_CITY, "Paris").apply();
+        assertEquals("Paris", getString(PREFERRED_CITY, null));
+
+        mockPreferences.edit().remove(PREFERRED_CITY).apply();
+        assertNull(getString(PREFERRED_CITY, null));
+        assertFalse(hasKey(PREFERRED_CITY));
+    }
+
+    @Test
+    public void testMirror_returnsCopiesOfStringSets() {
+        setExcludedApps(Collections.singleton("org.example.app"));
+        Set<String> excludedApps = getExcludedApps();
+        excludedApps.add("org.example.other");
+
+        assertEquals(Collections.singleton("org.example.app"), getExcludedApps());
+        assertEquals(Collections.singleton("org.example.app"), mockPreferences.getStringSet(EXCLUDED_APPS, null));
+    }
+
+    @Test
+    public void testTransaction_writeBehind_batchesChanges() {
+        List<Runnable> writes = new ArrayList<>();
+        new PreferenceHelper(mockPreferences, writes::add);
+
+        PreferenceHelper.putString(PREFERRED_CITY, "Paris");
+        PreferenceHelper.beginTransaction().putBoolean(PREFER_UDP, true).apply();
+
+        assertEquals("Paris", getString(PREFERRED_CITY, null));
+        assertTrue(getPreferUDP());
+        assertFalse(mockPreferences.contains(PREFERRED_CITY));
+        assertEquals(1, writes.size());
+
+        writes.get(0).run();
+        assertEquals("Paris", mockPreferences.getString(PREFERRED_CITY, null));
+        assertTrue(mockPreferences.getBoolean(PREFER_UDP, false));
+    }
+
+    @Test
+    public void testTransaction_externalChangeBeforeWrite_keepsUnwrittenChanges() {
+        List<Runnable> writes = new ArrayList<>();
+        new PreferenceHelper(mockPreferences, writes::add);
+
+        PreferenceHelper.putString(PREFERRED_CITY, "Paris");
+        mockPreferences.edit().putBoolean(PREFER_UDP, true).commit();
+
+        assertTrue(getPreferUDP());
+        assertEquals("Paris", getString(PREFERRED_CITY, null));
+    }
+
+    @Test
+    public void testFlush_writesUnwrittenChanges() {
+        List<Runnable> writes = new ArrayList<>();
+        new PreferenceHelper(mockPreferences, writes::add);
+
+        PreferenceHelper.putString(PREFERRED_CITY, "Paris");
+        PreferenceHelper.flush();
+
+        assertEquals("Paris", mockPreferences.getString(PREFERRED_CITY, null));
+    }
+}
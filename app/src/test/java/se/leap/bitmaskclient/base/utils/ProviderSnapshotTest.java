@@ -0,0 +1,62 @@
+package se.leap.bitmaskclient.base.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static se.leap.bitmaskclient.testutils.TestSetupHelper.getConfiguredProvider;
+import static se.leap.bitmaskclient.testutils.TestSetupHelper.getInputAsString;
+
+import org.json.JSONException;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+
+import se.leap.bitmaskclient.base.models.Provider;
+import se.leap.bitmaskclient.testutils.MockSharedPreferences;
+
+public class ProviderSnapshotTest {
+
+    private Provider provider;
+
+    @Before
+    public void setup() throws IOException, JSONException {
+        new PreferenceHelper(new MockSharedPreferences());
+        provider = getConfiguredProvider();
+        provider.setVpnCertificate(getInputAsString(getClass().getClassLoader().getResourceAsStream("riseup.net.vpn_cert.pem")));
+        provider.setPrivateKeyString(getInputAsString(getClass().getClassLoader().getResourceAsStream("private_rsa_key.pem")));
+        provider.setLastMotdSeen(1000L);
+        provider.setLastMotdUpdate(2000L);
+        provider.setMotdLastSeenHashes(Collections.singleton("hash"));
+    }
+
+    @Test
+    public void testDeserialize_restoresProviderLikePreferences() throws IOException {
+        PreferenceHelper.storeProviderInPreferences(provider);
+        Provider fromPreferences = PreferenceHelper.getSavedProviderFromSharedPreferences();
+
+        Provider fromSnapshot = ProviderSnapshot.deserialize(ProviderSnapshot.serialize(provider));
+
+        assertTrue(fromSnapshot.isConfigured());
+        assertEquals(fromPreferences, fromSnapshot);
+        assertEquals(fromPreferences.getMotdLastSeenHashes(), fromSnapshot.getMotdLastSeenHashes());
+        assertEquals(1000L, fromSnapshot.getLastMotdSeen());
+        assertEquals(2000L, fromSnapshot.getLastMotdUpdate());
+    }
+
+    @Test
+    public void testDeserialize_unknownVersion_returnsNull() throws IOException {
+        byte[] snapshot = ProviderSnapshot.serialize(provider);
+        // the version follows the 4 byte magic number
+        snapshot[7]++;
+        assertNull(ProviderSnapshot.deserialize(snapshot));
+    }
+
+    @Test(expected = IOException.class)
+    public void testDeserialize_truncated_throwsIOException() throws IOException {
+        byte[] snapshot = ProviderSnapshot.serialize(provider);
+        ProviderSnapshot.deserialize(Arrays.copyOf(snapshot, snapshot.length / 2));
+    }
+}
@@ -0,0 +1,123 @@
+package se.leap.bitmaskclient.eip;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static de.blinkt.openvpn.core.connection.Connection.TransportType.OBFS4;
+import static de.blinkt.openvpn.core.connection.Connection.TransportType.OPENVPN;
+import static se.leap.bitmaskclient.eip.GatewayHistory.MAX_CONSECUTIVE_FAILURES;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+
+import de.blinkt.openvpn.VpnProfile;
+import de.blinkt.openvpn.core.connection.Connection.TransportType;
+
+public class GatewayHistoryTest {
+
+    private static final String WIFI = "WIFI";
+    private static final String MOBILE = "MOBILE";
+    private static final List<TransportType> OPENVPN_ONLY = Collections.singletonList(OPENVPN);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static VpnProfile profile(String ip) {
+        VpnProfile profile = new VpnProfile(ip, OPENVPN);
+        profile.mGatewayIp = ip;
+        return profile;
+    }
+
+    private GatewayHistory newHistory() throws IOException {
+        return new GatewayHistory(new File(folder.getRoot(), GatewayHistory.FILE_NAME));
+    }
+
+    @Test
+    public void testGetSuccessRate_noHistory_isNeutral() throws IOException {
+        assertEquals(0.5, newHistory().getSuccessRate("1.1.1.1", WIFI, OPENVPN_ONLY), 0.001);
+    }
+
+    @Test
+    public void testGetSuccessRate_successesAndFailures_movesRate() throws IOException {
+        GatewayHistory history = newHistory();
+        history.recordSuccess(profile("1.1.1.1"), WIFI, 1000);
+        history.recordSuccess(profile("1.1.1.1"), WIFI, 1000);
+        history.recordFailure(profile("2.2.2.2"), WIFI);
+
+        assertTrue(history.getSuccessRate("1.1.1.1", WIFI, OPENVPN_ONLY) > 0.5);
+        assertTrue(history.getSuccessRate("2.2.2.2", WIFI, OPENVPN_ONLY) < 0.5);
+        // other networks and transports are tracked separately
+        assertEquals(0.5, history.getSuccessRate("1.1.1.1", MOBILE, OPENVPN_ONLY), 0.001);
+        assertEquals(0.5, history.getSuccessRate("1.1.1.1", WIFI, Collections.singletonList(OBFS4)), 0.001);
+    }
+
+    @Test
+    public void testIsFailingRepeatedly_successResetsFailures() throws IOException {
+        GatewayHistory history = newHistory();
+        for (int i = 0; i < MAX_CONSECUTIVE_FAILURES; i++) {
+            history.recordFailure(profile("1.1.1.1"), WIFI);
+        }
+        assertTrue(history.isFailingRepeatedly("1.1.1.1", WIFI, OPENVPN_ONLY));
+        assertFalse(history.isFailingRepeatedly("1.1.1.1", MOBILE, OPENVPN_ONLY));
+
+        history.recordSuccess(profile("1.1.1.1"), WIFI, 500);
+        assertFalse(history.isFailingRepeatedly("1.1.1.1", WIFI, OPENVPN_ONLY));
+    }
+
+    @Test
+    public void testGetMedianConnectTime() throws IOException {
+        GatewayHistory history = newHistory();
+        history.recordSuccess(profile("1.1.1.1"), WIFI, 3000);
+        history.recordSuccess(profile("1.1.1.1"), WIFI, 1000);
+        history.recordSuccess(profile("1.1.1.1"), WIFI, 90000);
+
+        assertEquals(3000, history.getMedianConnectTime("1.1.1.1", OPENVPN, WIFI));
+        assertEquals(-1, history.getMedianConnectTime("2.2.2.2", OPENVPN, WIFI));
+    }
+
+    @Test
+    public void testSaveAndLoad_keepsRecords() throws IOException {
+        GatewayHistory history = newHistory();
+        history.recordSuccess(profile("1.1.1.1"), WIFI, 2000);
+        history.recordThroughput(profile("1.1.1.1"), WIFI, 4096);
+        for (int i = 0; i < MAX_CONSECUTIVE_FAILURES; i++) {
+            history.recordFailure(profile("2.2.2.2"), MOBILE);
+        }
+        history.save();
+
+        GatewayHistory loaded = newHistory();
+        loaded.load();
+        assertEquals(2, loaded.getRecords().size());
+        assertEquals(history.getSuccessRate("1.1.1.1", WIFI, OPENVPN_ONLY), loaded.getSuccessRate("1.1.1.1", WIFI, OPENVPN_ONLY), 0.001);
+        assertEquals(2000, loaded.getMedianConnectTime("1.1.1.1", OPENVPN, WIFI));
+        assertEquals(4096, loaded.getThroughput("1.1.1.1", OPENVPN, WIFI));
+        assertTrue(loaded.isFailingRepeatedly("2.2.2.2", MOBILE, OPENVPN_ONLY));
+    }
+
+    @Test
+    public void testLoad_recordsCreatedBeforeLoading_areMerged() throws IOException {
+        GatewayHistory history = newHistory();
+        history.recordSuccess(profile("1.1.1.1"), WIFI, 2000);
+        for (int i = 0; i < MAX_CONSECUTIVE_FAILURES - 1; i++) {
+            history.recordFailure(profile("2.2.2.2"), WIFI);
+        }
+        history.save();
+
+        GatewayHistory loaded = newHistory();
+        // outcomes recorded while the history is still loading
+        loaded.recordSuccess(profile("1.1.1.1"), WIFI, 4000);
+        loaded.recordFailure(profile("2.2.2.2"), WIFI);
+        loaded.load();
+
+        assertEquals(2, loaded.getRecords().size());
+        assertEquals(4000, loaded.getMedianConnectTime("1.1.1.1", OPENVPN, WIFI));
+        assertTrue(loaded.getSuccessRate("1.1.1.1", WIFI, OPENVPN_ONLY) > history.getSuccessRate("1.1.1.1", WIFI, OPENVPN_ONLY));
+        assertTrue(loaded.isFailingRepeatedly("2.2.2.2", WIFI, OPENVPN_ONLY));
+    }
+}
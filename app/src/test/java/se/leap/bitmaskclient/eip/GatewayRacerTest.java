@@ -0,0 +1,98 @@
+package se.leap.bitmaskclient.eip;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertSame;
+import static de.blinkt.openvpn.core.connection.Connection.TransportType.OPENVPN;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import de.blinkt.openvpn.VpnProfile;
+import de.blinkt.openvpn.core.connection.Connection;
+import de.blinkt.openvpn.core.connection.OpenvpnConnection;
+
+public class GatewayRacerTest {
+
+    private static VpnProfile profile(String ip, boolean udp) {
+        VpnProfile profile = new VpnProfile(ip, OPENVPN);
+        profile.mGatewayIp = ip;
+        OpenvpnConnection connection = new OpenvpnConnection();
+        connection.setServerName(ip);
+        connection.setServerPort("1194");
+        connection.setUseUdp(udp);
+        profile.mConnections = new Connection[]{connection};
+        return profile;
+    }
+
+    private static class FakeRacer extends GatewayRacer {
+        private final Set<String> reachable;
+
+        FakeRacer(String... reachable) {
+            this.reachable = new HashSet<>(Arrays.asList(reachable));
+        }
+
+        @Override
+        protected void connect(InetSocketAddress address) throws IOException {
+            if (!reachable.contains(address.getHostString())) {
+                throw new ConnectException("failed");
+            }
+        }
+    }
+
+    @Test
+    public void testSelect_firstCandidateUnreachable_launchesReachableOneFirst() {
+        List<VpnProfile> gateways = Arrays.asList(profile("1.1.1.1", false), profile("2.2.2.2", false), profile("3.3.3.3", false));
+        GatewayRacer racer = new FakeRacer("2.2.2.2");
+        GatewayRacer.CandidateSource source = n -> n < gateways.size() ? gateways.get(n) : null;
+
+        assertSame(gateways.get(1), racer.select(0, source));
+        VpnProfile second = racer.select(1, source);
+        VpnProfile third = racer.select(2, source);
+        // unverified and slower candidates keep their order, failed ones come last
+        assertEquals(new HashSet<>(Arrays.asList(gateways.get(0), gateways.get(2))), new HashSet<>(Arrays.asList(second, third)));
+        assertNull(racer.select(3, source));
+    }
+
+    @Test
+    public void testSelect_nextRace_continuesWithNextCandidates() {
+        List<VpnProfile> gateways = Arrays.asList(profile("1.1.1.1", true), profile("2.2.2.2", true),
+                profile("3.3.3.3", true), profile("4.4.4.4", true));
+        GatewayRacer racer = new FakeRacer();
+        GatewayRacer.CandidateSource source = n -> n < gateways.size() ? gateways.get(n) : null;
+
+        for (int i = 0; i < gateways.size(); i++) {
+            assertSame(gateways.get(i), racer.select(i, source));
+        }
+        assertNull(racer.select(gateways.size(), source));
+    }
+
+    @Test
+    public void testSelect_newConnection_startsNewRace() {
+        List<VpnProfile> gateways = Arrays.asList(profile("1.1.1.1", false), profile("2.2.2.2", false));
+        GatewayRacer racer = new FakeRacer("2.2.2.2");
+        GatewayRacer.CandidateSource source = n -> n < gateways.size() ? gateways.get(n) : null;
+
+        assertSame(gateways.get(1), racer.select(0, source));
+        assertSame(gateways.get(1), racer.select(0, source));
+    }
+
+    @Test
+    public void testRank_unreachableLast_unverifiedInOriginalOrder() {
+        GatewayRacer.Attempt failed = new GatewayRacer.Attempt(profile("1.1.1.1", false));
+        failed.reachability = GatewayRacer.Reachability.UNREACHABLE;
+        GatewayRacer.Attempt udp = new GatewayRacer.Attempt(profile("2.2.2.2", true));
+        GatewayRacer.Attempt winner = new GatewayRacer.Attempt(profile("3.3.3.3", false));
+        winner.reachability = GatewayRacer.Reachability.REACHABLE;
+
+        List<VpnProfile> ranked = GatewayRacer.rank(Arrays.asList(failed, udp, winner), Arrays.asList(failed, winner));
+        assertEquals(Arrays.asList(winner.profile, udp.profile, failed.profile), ranked);
+    }
+}
@@ -174,4 +174,33 @@ public class GatewaySelectorTest {
 
         assertTrue("Frankfurt".equals(gatewaySelector.select(1).getName()));
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testSelect_measuredLatency_overridesTimezoneEstimation() {
+        TimezoneHelper timezoneHelper = new TimezoneHelper(() -> -7);
+        GatewaySelector gatewaySelector = new GatewaySelector(getGateways(), new FakeLatencyProber("Manila", 5));
+        assertEquals("Manila", gatewaySelector.select().getName());
+    }
+
+    @Test
+    public void testSelect_unreachableGateway_rankedLast() {
+        TimezoneHelper timezoneHelper = new TimezoneHelper(() -> -7);
+        GatewaySelector gatewaySelector = new GatewaySelector(getGateways(), new FakeLatencyProber("Seattle, WA", GatewayLatencyProber.UNREACHABLE));
+        assertEquals("Seattle, WA", gatewaySelector.select(3).getName());
+    }
+
+    private static class FakeLatencyProber extends GatewayLatencyProber {
+        private final String name;
+        private final long latency;
+
+        FakeLatencyProber(String name, long latency) {
+            this.name = name;
+            this.latency = latency;
+        }
+
+        @Override
+        public long getLatency(Gateway gateway) {
+            return name.equals(gateway.getName()) ? latency : UNKNOWN;
+        }
+    }
+}
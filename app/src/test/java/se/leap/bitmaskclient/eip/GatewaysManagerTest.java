@@ -4,8 +4,11 @@ import static junit.framework.Assert.assertEquals;
 import static junit.framework.Assert.assertNull;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertThrows;
 import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
 import static de.blinkt.openvpn.core.connection.Connection.TransportType.OBFS4;
 import static de.blinkt.openvpn.core.connection.Connection.TransportType.OPENVPN;
 import static se.leap.bitmaskclient.base.models.Constants.ALLOW_EXPERIMENTAL_TRANSPORTS;
@@ -31,6 +34,8 @@ import org.mockito.Answers;
 import org.mockito.Mock;
 
 import java.io.IOException;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -650,6 +655,117 @@ public class GatewaysManagerTest {
         assertEquals(3, gatewaysManager.size());
     }
 
+    @Test
+    public void testGetInstance_sameProvider_returnsSharedSnapshot() {
+        Context context = mock(Context.class, Answers.RETURNS_DEEP_STUBS);
+        Provider provider = getProvider(null, null, null, null, null, null, "ptdemo_three_mixed_gateways.json", null);
+        providerObservable.updateProvider(provider);
+        GatewaysManager gatewaysManager = GatewaysManager.getInstance(context);
+
+        provider.setShouldUpdateVpnCertificate(true);
+        providerObservable.updateProvider(provider);
+
+        assertSame(gatewaysManager, GatewaysManager.getInstance(context));
+        assertEquals(3, gatewaysManager.size());
+    }
+
+    @Test
+    public void testGetInstance_changedEipServiceJson_rebuildsSnapshot() {
+        Context context = mock(Context.class, Answers.RETURNS_DEEP_STUBS);
+        providerObservable.updateProvider(getProvider(null, null, null, null, null, null, "ptdemo_three_mixed_gateways.json", null));
+        GatewaysManager gatewaysManager = GatewaysManager.getInstance(context);
+
+        providerObservable.updateProvider(getProvider(null, null, null, null, null, null, "decoupled_pt.eip-service.json", null));
+        GatewaysManager updatedGatewaysManager = GatewaysManager.getInstance(context);
+
+        assertNotSame(gatewaysManager, updatedGatewaysManager);
+        assertEquals(2, updatedGatewaysManager.size());
+    }
+
+    @Test
+    public void testGetInstance_changedProfilePreference_rebuildsSnapshot() {
+        Context context = mock(Context.class, Answers.RETURNS_DEEP_STUBS);
+        providerObservable.updateProvider(getProvider(null, null, null, null, null, null, "decoupled_pt.eip-service.json", null));
+        GatewaysManager gatewaysManager = GatewaysManager.getInstance(context);
+
+        PreferenceHelper.useBridges(false);
+        assertSame(gatewaysManager, GatewaysManager.getInstance(context));
+
+        // invalidated as soon as the changes are applied, not when they are written
+        PreferenceHelper.beginTransaction().
+                putBoolean(USE_BRIDGES, true).
+                putBoolean(ALLOW_EXPERIMENTAL_TRANSPORTS, true).
+                apply();
+        GatewaysManager updatedGatewaysManager = GatewaysManager.getInstance(context);
+
+        assertNotSame(gatewaysManager, updatedGatewaysManager);
+        assertEquals(3, updatedGatewaysManager.size());
+    }
+
+    @Test
+    public void testSelectVpnProfileToLaunch_gatewayRacing_launchesTransportLayerFallbackOnce() {
+        Provider provider = getProvider(null, null, null, null, null, null, "multiple_pts_per_host_eip-service.json", null);
+        providerObservable.updateProvider(provider);
+        sharedPreferences.edit().putBoolean(USE_BRIDGES, true).commit();
+        // racing is enabled by default, no bridge answers the reachability checks
+        GatewayRacer.setInstance(new GatewayRacer() {
+            @Override
+            protected void connect(InetSocketAddress address) throws IOException {
+                throw new ConnectException("failed");
+            }
+        });
+        try {
+            GatewaysManager gatewaysManager = new GatewaysManager(mockContext);
+
+            // find the gateway offering obfs4 via TCP and KCP
+            int attempt = 0;
+            VpnProfile failed = gatewaysManager.selectVpnProfileToLaunch(attempt);
+            while (failed != null && !gatewaysManager.prepareTransportLayerFallback(failed, attempt)) {
+                failed = gatewaysManager.selectVpnProfileToLaunch(++attempt);
+            }
+            assertNotNull(failed);
+
+            VpnProfile fallback = gatewaysManager.selectVpnProfileToLaunch(attempt);
+            assertEquals(failed.mGatewayIp, fallback.mGatewayIp);
+            assertFalse(failed.getObfuscationTransportLayerProtocol().equals(fallback.getObfuscationTransportLayerProtocol()));
+
+            // the fallback is only launched once
+            assertSame(failed, gatewaysManager.selectVpnProfileToLaunch(attempt));
+            // and not for other attempts
+            assertTrue(gatewaysManager.prepareTransportLayerFallback(failed, attempt + 1));
+            assertSame(failed, gatewaysManager.selectVpnProfileToLaunch(attempt));
+        } finally {
+            GatewayRacer.setInstance(null);
+        }
+    }
+
+    @Test
+    public void testSelectVpnProfileToLaunch_gatewayRacing_onlyRacesAfterFailedAttempt() {
+        Provider provider = getProvider(null, null, null, null, null, null, "multiple_pts_per_host_eip-service.json", null);
+        providerObservable.updateProvider(provider);
+        sharedPreferences.edit().putBoolean(USE_BRIDGES, true).commit();
+        List<InetSocketAddress> checked = new ArrayList<>();
+        GatewayRacer.setInstance(new GatewayRacer() {
+            @Override
+            protected void connect(InetSocketAddress address) {
+                synchronized (checked) {
+                    checked.add(address);
+                }
+            }
+        });
+        try {
+            GatewaysManager gatewaysManager = new GatewaysManager(mockContext);
+
+            assertEquals(gatewaysManager.selectVpnProfile(0), gatewaysManager.selectVpnProfileToLaunch(0));
+            assertTrue(checked.isEmpty());
+
+            assertNotNull(gatewaysManager.selectVpnProfileToLaunch(1));
+            assertFalse(checked.isEmpty());
+        } finally {
+            GatewayRacer.setInstance(null);
+        }
+    }
+
     private String getJsonStringFor(String filename) throws IOException {
         return TestSetupHelper.getInputAsString(getClass().getClassLoader().getResourceAsStream(filename));
     }
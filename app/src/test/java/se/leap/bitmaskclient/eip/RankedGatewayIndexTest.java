@@ -0,0 +1,164 @@
+package se.leap.bitmaskclient.eip;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static de.blinkt.openvpn.core.connection.Connection.TransportType.OBFS4;
+import static de.blinkt.openvpn.core.connection.Connection.TransportType.OPENVPN;
+import static se.leap.bitmaskclient.base.models.Constants.GATEWAYS;
+import static se.leap.bitmaskclient.base.models.Constants.PROVIDER_PRIVATE_KEY;
+import static se.leap.bitmaskclient.base.models.Constants.PROVIDER_VPN_CERTIFICATE;
+import static se.leap.bitmaskclient.base.models.Provider.CA_CERT;
+import static se.leap.bitmaskclient.testutils.TestSetupHelper.getProvider;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Answers;
+import org.mockito.Mock;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import de.blinkt.openvpn.VpnProfile;
+import de.blinkt.openvpn.core.ConfigParser;
+import de.blinkt.openvpn.core.connection.Connection.TransportType;
+import se.leap.bitmaskclient.base.models.Provider;
+import se.leap.bitmaskclient.base.models.ProviderObservable;
+import se.leap.bitmaskclient.base.utils.PreferenceHelper;
+import se.leap.bitmaskclient.testutils.MockSharedPreferences;
+import se.leap.bitmaskclient.testutils.TestSetupHelper;
+
+public class RankedGatewayIndexTest {
+
+    private static final TransportType[] OPENVPN_ONLY = new TransportType[]{OPENVPN};
+
+    @Mock(answer = Answers.RETURNS_DEEP_STUBS)
+    private Context mockContext;
+
+    private JSONObject secrets;
+
+    @Before
+    public void setUp() throws IOException, JSONException {
+        secrets = new JSONObject(TestSetupHelper.getInputAsString(getClass().getClassLoader().getResourceAsStream("secrets.json")));
+        SharedPreferences sharedPreferences = new MockSharedPreferences();
+        sharedPreferences.edit().
+                putString(PROVIDER_PRIVATE_KEY, secrets.getString(PROVIDER_PRIVATE_KEY)).
+                putString(CA_CERT, secrets.getString(CA_CERT)).
+                putString(PROVIDER_VPN_CERTIFICATE, secrets.getString(PROVIDER_VPN_CERTIFICATE))
+                .commit();
+        new PreferenceHelper(sharedPreferences);
+    }
+
+    /**
+     * @return the gateways of ptdemo_three_mixed_gateways.json: Amsterdam (obfs4, openvpn),
+     * Moscow (obfs4, openvpn) and Manila (openvpn)
+     */
+    private List<Gateway> createGateways() throws ConfigParser.ConfigParseError, JSONException, IOException {
+        Provider provider = getProvider(null, null, null, null, null, null, "ptdemo_three_mixed_gateways.json", null);
+        JSONObject eipServiceJson = provider.getEipServiceJson();
+        JSONArray gatewaysJson = eipServiceJson.getJSONArray(GATEWAYS);
+        List<Gateway> gateways = new ArrayList<>();
+        for (int i = 0; i < gatewaysJson.length(); i++) {
+            gateways.add(new Gateway(eipServiceJson, secrets, gatewaysJson.getJSONObject(i)));
+        }
+        return gateways;
+    }
+
+    @Test
+    public void testSelect_returnsProfilesInRankedOrder() throws Exception {
+        List<Gateway> gateways = createGateways();
+        List<Gateway> ranked = Arrays.asList(gateways.get(2), gateways.get(0), gateways.get(1));
+        RankedGatewayIndex index = new RankedGatewayIndex(ranked);
+
+        for (int i = 0; i < ranked.size(); i++) {
+            VpnProfile profile = index.select(i, OPENVPN_ONLY, null, null);
+            assertNotNull(profile);
+            assertTrue(ranked.get(i).hasProfile(profile));
+        }
+        assertNull(index.select(3, OPENVPN_ONLY, null, null));
+        assertNull(index.select(-1, OPENVPN_ONLY, null, null));
+    }
+
+    @Test
+    public void testSelect_filtersByTransportAndCity() throws Exception {
+        List<Gateway> gateways = createGateways();
+        RankedGatewayIndex index = new RankedGatewayIndex(gateways);
+
+        // Manila doesn't support obfs4
+        assertTrue(gateways.get(1).hasProfile(index.select(1, new TransportType[]{OBFS4}, null, null)));
+        assertNull(index.select(2, new TransportType[]{OBFS4}, null, null));
+
+        String city = gateways.get(2).getName();
+        assertTrue(gateways.get(2).hasProfile(index.select(0, OPENVPN_ONLY, null, city)));
+        assertNull(index.select(1, OPENVPN_ONLY, null, city));
+    }
+
+    @Test
+    public void testGetPosition_selectedProfile_returnsRank() throws Exception {
+        List<Gateway> gateways = createGateways();
+        List<Gateway> ranked = Arrays.asList(gateways.get(1), gateways.get(2), gateways.get(0));
+        RankedGatewayIndex index = new RankedGatewayIndex(ranked);
+
+        for (int i = 0; i < ranked.size(); i++) {
+            VpnProfile profile = index.select(i, OPENVPN_ONLY, null, null);
+            assertEquals(i, index.getPosition(profile));
+            assertSame(ranked.get(i), index.getGateway(profile));
+        }
+    }
+
+    @Test
+    public void testGetPosition_profileNotSelectedFromIndex_matchedByIp() throws Exception {
+        List<Gateway> gateways = createGateways();
+        RankedGatewayIndex index = new RankedGatewayIndex(Arrays.asList(gateways.get(2), gateways.get(0), gateways.get(1)));
+        // same gateways, but other profile instances
+        List<Gateway> otherGateways = createGateways();
+
+        assertEquals(1, index.getPosition(otherGateways.get(0).getProfile(OBFS4, null)));
+        assertEquals(2, index.getPosition(otherGateways.get(1).getProfile(OPENVPN, null)));
+        assertEquals(0, index.getPosition(otherGateways.get(2).getProfile(OPENVPN, null)));
+    }
+
+    @Test
+    public void testGetPosition_unknownProfile_returnsMinusOne() throws Exception {
+        RankedGatewayIndex index = new RankedGatewayIndex(createGateways());
+        VpnProfile profile = new VpnProfile("unknown", OPENVPN);
+        profile.mGatewayIp = "192.0.2.1";
+
+        assertEquals(-1, index.getPosition(profile));
+        assertNull(index.getGateway(profile));
+    }
+
+    @Test
+    public void testGetRankedIndex_latencyGenerationChanged_rebuiltForNewConnectionOnly() {
+        ProviderObservable.getInstance().updateProvider(getProvider(null, null, null, null, null, null, "ptdemo_three_mixed_gateways.json", null));
+        GatewayLatencyProber prober = new GatewayLatencyProber();
+        GatewayLatencyProber.setInstance(prober);
+        try {
+            GatewaysManager gatewaysManager = new GatewaysManager(mockContext);
+
+            RankedGatewayIndex index = gatewaysManager.getRankedIndex(true);
+            assertSame(index, gatewaysManager.getRankedIndex(true));
+
+            prober.clear();
+            // the ranking stays the same during the attempts of a connection
+            assertSame(index, gatewaysManager.getRankedIndex(false));
+
+            RankedGatewayIndex rebuilt = gatewaysManager.getRankedIndex(true);
+            assertNotSame(index, rebuilt);
+            assertSame(rebuilt, gatewaysManager.getRankedIndex(false));
+        } finally {
+            GatewayLatencyProber.setInstance(null);
+        }
+    }
+}
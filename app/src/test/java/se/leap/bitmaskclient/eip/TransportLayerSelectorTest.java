@@ -0,0 +1,97 @@
+package se.leap.bitmaskclient.eip;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static de.blinkt.openvpn.core.connection.Connection.TransportType.OBFS4;
+import static se.leap.bitmaskclient.base.models.Constants.KCP;
+import static se.leap.bitmaskclient.base.models.Constants.TCP;
+import static se.leap.bitmaskclient.eip.TransportLayerSelector.MOBILE_NETWORK;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.Collections;
+
+import de.blinkt.openvpn.VpnProfile;
+import de.blinkt.openvpn.core.connection.Obfs4Connection;
+import se.leap.bitmaskclient.base.models.Transport;
+import se.leap.bitmaskclient.pluggableTransports.models.Obfs4Options;
+
+public class TransportLayerSelectorTest {
+
+    private static final String WIFI = "WIFI";
+    private static final String IP = "1.1.1.1";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static VpnProfile profile(String protocol) {
+        Transport transport = new Transport(OBFS4.toString(), new String[]{protocol}, new String[]{"23050"}, "CERT");
+        VpnProfile profile = new VpnProfile(IP, OBFS4);
+        profile.mConnections[0] = new Obfs4Connection(new Obfs4Options(IP, transport));
+        profile.mGatewayIp = IP;
+        return profile;
+    }
+
+    private GatewayHistory newHistory() {
+        return new GatewayHistory(new File(folder.getRoot(), GatewayHistory.FILE_NAME));
+    }
+
+    @Test
+    public void testCompare_noHistory_prefersKcpOnMobileNetworks() {
+        GatewayHistory history = newHistory();
+        assertTrue(new TransportLayerSelector(history, MOBILE_NETWORK).compare(IP, OBFS4, KCP, TCP) < 0);
+        assertTrue(new TransportLayerSelector(history, WIFI).compare(IP, OBFS4, KCP, TCP) > 0);
+    }
+
+    @Test
+    public void testCompare_failedProtocol_fallsBackToOtherProtocol() {
+        GatewayHistory history = newHistory();
+        history.recordFailure(profile(KCP), MOBILE_NETWORK);
+
+        TransportLayerSelector selector = new TransportLayerSelector(history, MOBILE_NETWORK);
+        assertTrue(selector.compare(IP, OBFS4, TCP, KCP) < 0);
+        // failures of a protocol are tracked per network
+        assertTrue(new TransportLayerSelector(history, "ETHERNET").compare(IP, OBFS4, TCP, KCP) > 0);
+    }
+
+    @Test
+    public void testCompare_workingProtocol_isKept() {
+        GatewayHistory history = newHistory();
+        history.recordSuccess(profile(KCP), WIFI, 2000);
+
+        assertTrue(new TransportLayerSelector(history, WIFI).compare(IP, OBFS4, KCP, TCP) < 0);
+    }
+
+    @Test
+    public void testCompare_bothWorking_higherThroughputWins() {
+        GatewayHistory history = newHistory();
+        history.recordSuccess(profile(KCP), WIFI, 3000);
+        history.recordSuccess(profile(TCP), WIFI, 1000);
+
+        TransportLayerSelector selector = new TransportLayerSelector(history, WIFI);
+        // without throughput measurements the faster connection setup wins
+        assertTrue(selector.compare(IP, OBFS4, TCP, KCP) < 0);
+
+        history.recordThroughput(profile(KCP), WIFI, 8192);
+        history.recordThroughput(profile(TCP), WIFI, 1024);
+        assertTrue(selector.compare(IP, OBFS4, KCP, TCP) < 0);
+    }
+
+    @Test
+    public void testGatewayHistory_tracksProtocolsSeparately() {
+        GatewayHistory history = newHistory();
+        for (int i = 0; i < GatewayHistory.MAX_CONSECUTIVE_FAILURES; i++) {
+            history.recordFailure(profile(KCP), WIFI);
+        }
+        history.recordSuccess(profile(TCP), WIFI, 1000);
+
+        assertEquals(GatewayHistory.MAX_CONSECUTIVE_FAILURES, history.getConsecutiveFailures(IP, OBFS4, KCP, WIFI));
+        assertEquals(0, history.getConsecutiveFailures(IP, OBFS4, TCP, WIFI));
+        // the gateway still works with tcp
+        assertFalse(history.isFailingRepeatedly(IP, WIFI, Collections.singletonList(OBFS4)));
+    }
+}
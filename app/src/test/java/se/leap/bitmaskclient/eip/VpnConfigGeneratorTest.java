@@ -13,11 +13,13 @@ import static se.leap.bitmaskclient.base.models.Constants.OPENVPN_CONFIGURATION;
 import android.content.Context;
 import android.content.SharedPreferences;
 
+import org.json.JSONArray;
 import org.json.JSONObject;
 import org.junit.Before;
 import org.junit.Test;
 
 import java.io.File;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Vector;
 
@@ -26,6 +28,7 @@ import de.blinkt.openvpn.core.ConfigParser;
 import de.blinkt.openvpn.core.connection.Connection;
 import de.blinkt.openvpn.core.connection.Obfs4Connection;
 import se.leap.bitmaskclient.base.models.ProviderObservable;
+import se.leap.bitmaskclient.base.models.Transport;
 import se.leap.bitmaskclient.base.utils.BuildConfigHelper;
 import se.leap.bitmaskclient.base.utils.PreferenceHelper;
 import se.leap.bitmaskclient.base.utils.PrivateKeyHelper;
@@ -1637,6 +1640,33 @@ public class VpnConfigGeneratorTest {
         assertTrue(containsKey(vpnProfiles, OPENVPN));
     }
 
+    @Test
+    public void testGenerateVpnProfile_obfs4TCPAndKCP_oneProfilePerProtocol() throws Exception {
+        gateway = new JSONObject(TestSetupHelper.getInputAsString(getClass().getClassLoader().getResourceAsStream("ptdemo_kcp_gateways.json"))).getJSONArray("gateways").getJSONObject(2);
+        generalConfig = new JSONObject(TestSetupHelper.getInputAsString(getClass().getClassLoader().getResourceAsStream("ptdemo_kcp_gateways.json"))).getJSONObject(OPENVPN_CONFIGURATION);
+        JSONArray transports = gateway.getJSONObject("capabilities").getJSONArray("transport");
+        for (int i = 0; i < transports.length(); i++) {
+            JSONObject transport = transports.getJSONObject(i);
+            if ("obfs4".equals(transport.getString("type"))) {
+                transport.put("protocols", new JSONArray().put("tcp").put("kcp"));
+            }
+        }
+        VpnConfigGenerator.Configuration configuration = new VpnConfigGenerator.Configuration();
+        configuration.apiVersion = 3;
+        configuration.experimentalTransports = true;
+        vpnConfigGenerator = new VpnConfigGenerator(generalConfig, secrets, gateway, configuration);
+        Vector<VpnProfile> vpnProfiles = vpnConfigGenerator.generateVpnProfiles();
+        ArrayList<String> protocols = new ArrayList<>();
+        for (VpnProfile profile : vpnProfiles) {
+            if (profile.getTransportType() == OBFS4) {
+                protocols.add(profile.getObfuscationTransportLayerProtocol());
+            }
+        }
+        assertEquals(2, protocols.size());
+        assertTrue(protocols.contains("tcp"));
+        assertTrue(protocols.contains("kcp"));
+    }
+
     @Test
     public void testGenerateVpnProfile_experimentalTransportsEnabled_KCPMisconfiguredWithUDP_SkippingObfsKCP () throws Exception {
         gateway = new JSONObject(TestSetupHelper.getInputAsString(getClass().getClassLoader().getResourceAsStream("ptdemo_misconfigured_kcp_gateways.json"))).getJSONArray("gateways").getJSONObject(2);
@@ -1827,4 +1857,55 @@ public class VpnConfigGeneratorTest {
         assertFalse(containsKey(vpnProfiles, OPENVPN));
         assertFalse(containsKey(vpnProfiles, OBFS4));
     }
-}
\ No newline at end of file
+
+    private void assertBuiltProfilesEqualParsedProfiles(VpnConfigGenerator configGenerator) throws Exception {
+        for (Transport transport : configGenerator.getSupportedTransports()) {
+            VpnProfile builtProfile = configGenerator.createVpnProfile(transport);
+            VpnProfile parsedProfile = configGenerator.parseProfile(transport);
+            assertEquals(parsedProfile, builtProfile);
+            assertEquals(parsedProfile.getConfigFile(context, false), builtProfile.getConfigFile(context, false));
+        }
+    }
+
+    @Test
+    public void testCreateVpnProfile_v1_equalsParsedProfile() throws Exception {
+        gateway = new JSONObject(TestSetupHelper.getInputAsString(getClass().getClassLoader().getResourceAsStream("gateway_tcp_udp.json")));
+        VpnConfigGenerator.Configuration configuration = new VpnConfigGenerator.Configuration();
+        configuration.apiVersion = 1;
+        assertBuiltProfilesEqualParsedProfiles(new VpnConfigGenerator(generalConfig, secrets, gateway, configuration));
+    }
+
+    @Test
+    public void testCreateVpnProfile_v3_equalsParsedProfile() throws Exception {
+        gateway = new JSONObject(TestSetupHelper.getInputAsString(getClass().getClassLoader().getResourceAsStream("ptdemo_pt_udp_tcp.eip-service.json"))).getJSONArray("gateways").getJSONObject(0);
+        VpnConfigGenerator.Configuration configuration = new VpnConfigGenerator.Configuration();
+        configuration.apiVersion = 3;
+        configuration.preferUDP = true;
+        assertBuiltProfilesEqualParsedProfiles(new VpnConfigGenerator(generalConfig, secrets, gateway, configuration));
+    }
+
+    @Test
+    public void testCreateVpnProfile_obfs4hop_equalsParsedProfile() throws Exception {
+        gateway = new JSONObject(TestSetupHelper.getInputAsString(getClass().getClassLoader().getResourceAsStream("decoupled_pt.eip-service.json"))).getJSONArray("gateways").getJSONObject(2);
+        generalConfig = new JSONObject(TestSetupHelper.getInputAsString(getClass().getClassLoader().getResourceAsStream("decoupled_pt.eip-service.json"))).getJSONObject(OPENVPN_CONFIGURATION);
+        VpnConfigGenerator.Configuration configuration = new VpnConfigGenerator.Configuration();
+        configuration.apiVersion = 3;
+        configuration.experimentalTransports = true;
+        assertBuiltProfilesEqualParsedProfiles(new VpnConfigGenerator(generalConfig, secrets, gateway, configuration));
+    }
+
+    @Test
+    public void testCreateVpnProfile_obfuscationPinning_equalsParsedProfile() throws Exception {
+        gateway = new JSONObject(TestSetupHelper.getInputAsString(getClass().getClassLoader().getResourceAsStream("ptdemo_kcp_gateways.json"))).getJSONArray("gateways").getJSONObject(0);
+        generalConfig = new JSONObject(TestSetupHelper.getInputAsString(getClass().getClassLoader().getResourceAsStream("ptdemo_kcp_gateways.json"))).getJSONObject(OPENVPN_CONFIGURATION);
+        VpnConfigGenerator.Configuration configuration = new VpnConfigGenerator.Configuration();
+        configuration.apiVersion = 3;
+        configuration.useObfuscationPinning = true;
+        configuration.obfuscationProxyKCP = true;
+        configuration.obfuscationProxyPort = "443";
+        configuration.obfuscationProxyIP = "5.6.7.8";
+        configuration.obfuscationProxyCert = "asdfasdf";
+        configuration.remoteGatewayIP = "1.2.3.4";
+        assertBuiltProfilesEqualParsedProfiles(new VpnConfigGenerator(generalConfig, secrets, gateway, configuration));
+    }
+}
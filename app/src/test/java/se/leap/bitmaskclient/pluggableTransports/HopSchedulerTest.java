@@ -0,0 +1,131 @@
+package se.leap.bitmaskclient.pluggableTransports;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static se.leap.bitmaskclient.pluggableTransports.HopScheduler.ENDPOINT_PENALTY_MS;
+import static se.leap.bitmaskclient.pluggableTransports.HopScheduler.MAX_HOP_SECONDS;
+import static se.leap.bitmaskclient.pluggableTransports.HopScheduler.MIN_HOP_JITTER;
+import static se.leap.bitmaskclient.pluggableTransports.HopScheduler.MIN_HOP_SECONDS;
+
+import android.os.Build;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import de.blinkt.openvpn.core.VpnStatus;
+import se.leap.bitmaskclient.base.models.Transport;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = {Build.VERSION_CODES.P})
+public class HopSchedulerTest {
+
+    private static final long PERIOD = 5000;
+    private static final Transport.Endpoint ENDPOINT_1 = new Transport.Endpoint("1.1.1.1", "CERT1");
+    private static final Transport.Endpoint ENDPOINT_2 = new Transport.Endpoint("2.2.2.2", "CERT2");
+
+    private static boolean healthy(HopScheduler scheduler) {
+        return scheduler.onTraffic(500_000, 50_000, PERIOD, 0);
+    }
+
+    @Test
+    public void testOnTraffic_healthy_lengthensInterval() {
+        HopScheduler scheduler = new HopScheduler();
+        assertEquals(MIN_HOP_SECONDS, scheduler.getMinHopSeconds());
+        assertEquals(MIN_HOP_JITTER, scheduler.getHopJitter());
+
+        for (int i = 0; i < 200; i++) {
+            assertFalse(healthy(scheduler));
+        }
+        assertEquals(MAX_HOP_SECONDS, scheduler.getMinHopSeconds());
+        assertEquals(MAX_HOP_SECONDS / 2, scheduler.getHopJitter());
+    }
+
+    @Test
+    public void testOnTraffic_idle_changesNothing() {
+        HopScheduler scheduler = new HopScheduler();
+        for (int i = 0; i < 200; i++) {
+            assertFalse(scheduler.onTraffic(0, 100, PERIOD, 0));
+        }
+        assertEquals(MIN_HOP_SECONDS, scheduler.getMinHopSeconds());
+    }
+
+    @Test
+    public void testOnTraffic_stall_hopsEarly() {
+        HopScheduler scheduler = new HopScheduler();
+        for (int i = 0; i < 20; i++) {
+            healthy(scheduler);
+        }
+        assertTrue(scheduler.getMinHopSeconds() > MIN_HOP_SECONDS);
+
+        assertFalse(scheduler.onTraffic(0, 50_000, PERIOD, 0));
+        assertFalse(scheduler.onTraffic(0, 50_000, PERIOD, 0));
+        assertTrue(scheduler.onTraffic(0, 50_000, PERIOD, 0));
+        assertEquals(MIN_HOP_SECONDS, scheduler.getMinHopSeconds());
+    }
+
+    @Test
+    public void testOnTraffic_degraded_hopsEarly() {
+        HopScheduler scheduler = new HopScheduler();
+        healthy(scheduler);
+        for (int i = 0; i < HopScheduler.DEGRADED_UPDATES - 1; i++) {
+            assertFalse(scheduler.onTraffic(1_000, 50_000, PERIOD, 0));
+        }
+        assertTrue(scheduler.onTraffic(1_000, 50_000, PERIOD, 0));
+    }
+
+    @Test
+    public void testSelectEndpoints_skipsDegradedEndpoint() {
+        HopScheduler scheduler = new HopScheduler();
+        Transport.Endpoint[] endpoints = new Transport.Endpoint[]{ENDPOINT_1, ENDPOINT_2};
+        scheduler.setCurrentEndpoint(ENDPOINT_1.getIp());
+        scheduler.onTraffic(0, 50_000, PERIOD, 1000);
+        scheduler.onTraffic(0, 50_000, PERIOD, 1000);
+        assertTrue(scheduler.onTraffic(0, 50_000, PERIOD, 1000));
+
+        assertArrayEquals(new Transport.Endpoint[]{ENDPOINT_2}, scheduler.selectEndpoints(endpoints, 2000));
+        assertArrayEquals(endpoints, scheduler.selectEndpoints(endpoints, 1000 + ENDPOINT_PENALTY_MS));
+        assertNull(scheduler.selectEndpoints(null, 2000));
+    }
+
+    @Test
+    public void testSelectEndpoints_allDegraded_keepsAll() {
+        HopScheduler scheduler = new HopScheduler();
+        Transport.Endpoint[] endpoints = new Transport.Endpoint[]{ENDPOINT_1};
+        scheduler.setCurrentEndpoint(ENDPOINT_1.getIp());
+        for (int i = 0; i < 3; i++) {
+            scheduler.onTraffic(0, 50_000, PERIOD, 1000);
+        }
+        assertArrayEquals(endpoints, scheduler.selectEndpoints(endpoints, 2000));
+    }
+
+    @Test
+    public void testStart_hoppingTwice_countsEachUpdateOnce() {
+        int[] updates = new int[1];
+        HopScheduler scheduler = new HopScheduler() {
+            @Override
+            public void updateByteCount(long in, long out, long diffIn, long diffOut) {
+                updates[0]++;
+                super.updateByteCount(in, out, diffIn, diffOut);
+            }
+        };
+        HopScheduler.Callback callback = () -> { };
+        String[] remotes = new String[]{ENDPOINT_1.getIp(), ENDPOINT_2.getIp()};
+        scheduler.start(callback, remotes);
+        // each hop of the obfsvpn client starts the scheduler again
+        scheduler.start(callback, remotes);
+        scheduler.start(callback, remotes);
+
+        updates[0] = 0;
+        VpnStatus.updateByteCount(1000, 1000);
+        assertEquals(1, updates[0]);
+
+        scheduler.stop(callback);
+        VpnStatus.updateByteCount(2000, 2000);
+        assertEquals(1, updates[0]);
+    }
+}
@@ -0,0 +1,69 @@
+package se.leap.bitmaskclient.pluggableTransports;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+public class ObfsvpnClientTest {
+
+    @Test
+    public void testReadiness_runningState_completesWithPort() throws Exception {
+        ObfsvpnClient.Readiness readiness = new ObfsvpnClient.Readiness();
+
+        readiness.onClientState("STARTING");
+        assertFalse(readiness.isDone());
+
+        readiness.onClientState(ObfsvpnClient.STATE_RUNNING);
+        assertTrue(readiness.isDone());
+        assertEquals(ObfsvpnClient.PORT, (int) readiness.get(0, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void testReadiness_notRunning_timesOut() throws Exception {
+        ObfsvpnClient.Readiness readiness = new ObfsvpnClient.Readiness();
+        readiness.onClientState("STARTING");
+
+        try {
+            readiness.get(10, TimeUnit.MILLISECONDS);
+            fail("expected TimeoutException");
+        } catch (TimeoutException e) {
+            assertFalse(readiness.isDone());
+        }
+    }
+
+    @Test
+    public void testReadiness_failed_throwsCause() throws Exception {
+        ObfsvpnClient.Readiness readiness = new ObfsvpnClient.Readiness();
+        IllegalStateException error = new IllegalStateException("obfsvpn client stopped");
+
+        readiness.fail(error);
+        // a late state change doesn't turn a failed start into a running one
+        readiness.onClientState(ObfsvpnClient.STATE_RUNNING);
+
+        assertTrue(readiness.isDone());
+        try {
+            readiness.get(0, TimeUnit.MILLISECONDS);
+            fail("expected ExecutionException");
+        } catch (ExecutionException e) {
+            assertSame(error, e.getCause());
+        }
+    }
+
+    @Test
+    public void testReadiness_failAfterReady_staysReady() throws Exception {
+        ObfsvpnClient.Readiness readiness = new ObfsvpnClient.Readiness();
+
+        readiness.ready();
+        readiness.fail(new IllegalStateException("obfsvpn client stopped"));
+
+        assertEquals(ObfsvpnClient.PORT, (int) readiness.get());
+    }
+}
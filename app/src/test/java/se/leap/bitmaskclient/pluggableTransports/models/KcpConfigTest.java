@@ -0,0 +1,66 @@
+package se.leap.bitmaskclient.pluggableTransports.models;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static se.leap.bitmaskclient.pluggableTransports.models.KcpConfig.Preset.FAST;
+import static se.leap.bitmaskclient.pluggableTransports.models.KcpConfig.Preset.NORMAL;
+import static se.leap.bitmaskclient.pluggableTransports.models.KcpConfig.Preset.TURBO;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+
+public class KcpConfigTest {
+
+    @Test
+    public void testFromName() {
+        assertEquals(FAST, KcpConfig.Preset.fromName("fast"));
+        assertEquals(TURBO, KcpConfig.Preset.fromName(" Turbo "));
+        assertNull(KcpConfig.Preset.fromName("fast3"));
+        assertNull(KcpConfig.Preset.fromName(null));
+    }
+
+    @Test
+    public void testSelect_providerHint_wins() {
+        assertEquals(NORMAL, KcpConfig.Preset.select("normal", true, 3));
+    }
+
+    @Test
+    public void testSelect_linkAssessment() {
+        assertEquals(NORMAL, KcpConfig.Preset.select(null, false, -1));
+        assertEquals(NORMAL, KcpConfig.Preset.select("unknown", false, 0));
+        assertEquals(FAST, KcpConfig.Preset.select(null, true, 0));
+        assertEquals(TURBO, KcpConfig.Preset.select(null, false, 1));
+        assertEquals(TURBO, KcpConfig.Preset.select(null, true, 2));
+    }
+
+    @Test
+    public void testToString_containsTuning() throws JSONException {
+        JSONObject json = new JSONObject(new KcpConfig(true, TURBO).toString());
+        assertTrue(json.getBoolean("enabled"));
+        assertEquals(512, json.getInt("send_window_size"));
+        assertEquals(512, json.getInt("receive_window_size"));
+        assertEquals(KcpConfig.DEFAULT_KCP_READ_BUFFER, json.getInt("read_buffer"));
+        assertEquals(KcpConfig.DEFAULT_KCP_WRITE_BUFFER, json.getInt("write_buffer"));
+        assertTrue(json.getBoolean("no_delay"));
+        assertTrue(json.getBoolean("disable_flow_control"));
+        assertEquals(10, json.getInt("interval"));
+        assertEquals(2, json.getInt("resend"));
+        assertEquals(KcpConfig.DEFAULT_KCP_MTU, json.getInt("mtu"));
+    }
+
+    @Test
+    public void testDefault_isNormalPreset() throws JSONException {
+        JSONObject json = new JSONObject(new KcpConfig(false).toString());
+        assertFalse(json.getBoolean("enabled"));
+        assertEquals(KcpConfig.DEFAULT_KCP_SEND_WINDOW_SIZE, json.getInt("send_window_size"));
+        assertEquals(KcpConfig.DEFAULT_KCP_RECEIVE_WINDOW_SIZE, json.getInt("receive_window_size"));
+        assertFalse(json.has("no_delay"));
+        assertFalse(json.has("disable_flow_control"));
+        assertFalse(json.has("interval"));
+        assertFalse(json.has("resend"));
+        assertFalse(json.has("mtu"));
+    }
+}
@@ -0,0 +1,213 @@
+package se.leap.bitmaskclient.providersetup.connectivity;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import android.os.Build;
+
+import androidx.annotation.NonNull;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowSystemClock;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import okhttp3.Dns;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = {Build.VERSION_CODES.P})
+public class DnsResolverTest {
+
+    private static final String HOST = "api.example.org";
+
+    private List<String> queried;
+    private InetAddress address;
+
+    @Before
+    public void setup() throws UnknownHostException {
+        DnsResolver.clearCache();
+        queried = Collections.synchronizedList(new ArrayList<>());
+        address = InetAddress.getByAddress(HOST, new byte[]{10, 0, 0, 1});
+    }
+
+    @Test
+    public void testLookup_preferDoH_firstWorkingDoHResolverAnswers() throws UnknownHostException {
+        DnsResolver resolver = new DnsResolver(true, false, answering("system"), doh(failing("doh1"), answering("doh2"), answering("doh3")));
+
+        assertEquals(Collections.singletonList(address), resolver.lookup(HOST));
+        assertEquals(Arrays.asList("doh1", "doh2"), queried);
+    }
+
+    @Test
+    public void testLookup_preferDoH_allDoHResolversFail_fallsBackToSystemDns() throws UnknownHostException {
+        DnsResolver resolver = new DnsResolver(true, false, answering("system"), doh(failing("doh1"), failing("doh2")));
+
+        assertEquals(Collections.singletonList(address), resolver.lookup(HOST));
+        assertEquals(Arrays.asList("doh1", "doh2", "system"), queried);
+    }
+
+    @Test
+    public void testLookup_systemDnsFirst_fallsBackToDoH() throws UnknownHostException {
+        DnsResolver resolver = new DnsResolver(false, false, failing("system"), doh(answering("doh1"), answering("doh2")));
+
+        assertEquals(Collections.singletonList(address), resolver.lookup(HOST));
+        assertEquals(Arrays.asList("system", "doh1"), queried);
+    }
+
+    @Test
+    public void testLookup_lastWorkingDoHResolverIsAskedFirst() throws UnknownHostException {
+        Dns doh1 = new Dns() {
+            boolean failed;
+            @NonNull
+            @Override
+            public List<InetAddress> lookup(@NonNull String hostname) throws UnknownHostException {
+                queried.add("doh1");
+                if (!failed) {
+                    failed = true;
+                    throw new UnknownHostException(hostname);
+                }
+                return Collections.singletonList(address);
+            }
+        };
+        DnsResolver resolver = new DnsResolver(true, false, answering("system"), doh(doh1, answering("doh2")));
+        resolver.lookup(HOST);
+        resolver.lookup("other.example.org");
+
+        assertEquals(Arrays.asList("doh1", "doh2", "doh2"), queried);
+    }
+
+    @Test
+    public void testLookup_cachedUntilTtlExpires() throws UnknownHostException {
+        DnsResolver resolver = new DnsResolver(true, false, answering("system"), doh(answering("doh1")));
+
+        resolver.lookup(HOST);
+        resolver.lookup(HOST);
+        assertEquals(Collections.singletonList("doh1"), queried);
+
+        ShadowSystemClock.advanceBy(Duration.ofMinutes(4));
+        resolver.lookup(HOST);
+        assertEquals(Collections.singletonList("doh1"), queried);
+
+        ShadowSystemClock.advanceBy(Duration.ofMinutes(2));
+        resolver.lookup(HOST);
+        assertEquals(Arrays.asList("doh1", "doh1"), queried);
+    }
+
+    @Test
+    public void testLookup_failuresCachedUntilNegativeTtlExpires() {
+        DnsResolver resolver = new DnsResolver(true, false, failing("system"), doh(failing("doh1")));
+
+        assertUnknownHost(resolver);
+        assertUnknownHost(resolver);
+        assertEquals(Arrays.asList("doh1", "system"), queried);
+
+        ShadowSystemClock.advanceBy(Duration.ofSeconds(31));
+        assertUnknownHost(resolver);
+        assertEquals(Arrays.asList("doh1", "system", "doh1", "system"), queried);
+    }
+
+    @Test
+    public void testClearCache_nextLookupQueriesAgain() throws UnknownHostException {
+        DnsResolver resolver = new DnsResolver(true, false, answering("system"), doh(answering("doh1")));
+
+        resolver.lookup(HOST);
+        DnsResolver.clearCache();
+        resolver.lookup(HOST);
+
+        assertEquals(Arrays.asList("doh1", "doh1"), queried);
+    }
+
+    @Test
+    public void testLookup_race_firstAnswerWins() throws UnknownHostException {
+        CountDownLatch never = new CountDownLatch(1);
+        DnsResolver resolver = new DnsResolver(true, true, blocking("system", never), doh(blocking("doh1", never), failing("doh2"), answering("doh3")));
+
+        assertEquals(Collections.singletonList(address), resolver.lookup(HOST));
+        assertTrue(queried.contains("doh3"));
+    }
+
+    @Test
+    public void testLookup_race_winningDoHResolverIsAskedFirstWithoutRace() throws UnknownHostException {
+        DnsResolver racing = new DnsResolver(true, true, failing("system"), doh(failing("doh1"), answering("doh2")));
+        racing.lookup(HOST);
+        queried.clear();
+
+        DnsResolver sequential = new DnsResolver(true, false, answering("system"), doh(answering("doh1"), answering("doh2")));
+        sequential.lookup("other.example.org");
+
+        assertEquals(Collections.singletonList("doh2"), queried);
+    }
+
+    @Test
+    public void testLookup_race_systemDnsAnswers() throws UnknownHostException {
+        DnsResolver resolver = new DnsResolver(true, true, answering("system"), doh(failing("doh1"), failing("doh2")));
+
+        assertEquals(Collections.singletonList(address), resolver.lookup(HOST));
+        assertTrue(queried.containsAll(Arrays.asList("system", "doh1", "doh2")));
+    }
+
+    @Test
+    public void testLookup_race_localhostIsNotRaced() throws UnknownHostException {
+        DnsResolver resolver = new DnsResolver(true, true, answering("system"), doh(answering("doh1")));
+
+        resolver.lookup("127.0.0.1");
+
+        assertEquals(Collections.singletonList("system"), queried);
+    }
+
+    private void assertUnknownHost(DnsResolver resolver) {
+        try {
+            resolver.lookup(HOST);
+            fail("expected UnknownHostException");
+        } catch (UnknownHostException e) {
+            assertTrue(e.getMessage().contains(HOST));
+        }
+    }
+
+    private LinkedHashMap<String, Dns> doh(Dns... resolvers) {
+        LinkedHashMap<String, Dns> result = new LinkedHashMap<>();
+        for (int i = 0; i < resolvers.length; i++) {
+            result.put("doh" + (i + 1), resolvers[i]);
+        }
+        return result;
+    }
+
+    private Dns answering(String name) {
+        return hostname -> {
+            queried.add(name);
+            return Collections.singletonList(address);
+        };
+    }
+
+    private Dns blocking(String name, CountDownLatch latch) {
+        return hostname -> {
+            queried.add(name);
+            try {
+                latch.await();
+            } catch (InterruptedException e) {
+                // cancelled after another resolver won the race
+            }
+            throw new UnknownHostException(hostname);
+        };
+    }
+
+    private Dns failing(String name) {
+        return hostname -> {
+            queried.add(name);
+            throw new UnknownHostException(hostname);
+        };
+    }
+}
@@ -0,0 +1,83 @@
+package se.leap.bitmaskclient.providersetup.connectivity;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import android.os.Build;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import okhttp3.OkHttpClient;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = {Build.VERSION_CODES.P})
+public class OkHttpClientGeneratorTest {
+
+    private static final String CA_CERT = "-----BEGIN CERTIFICATE-----\nMIIB\n-----END CERTIFICATE-----";
+    private static final String OTHER_CA_CERT = "-----BEGIN CERTIFICATE-----\nMIIC\n-----END CERTIFICATE-----";
+
+    @Before
+    public void setup() {
+        OkHttpClientGenerator.clearCache();
+    }
+
+    @Test
+    public void testGetCacheKey() {
+        assertEquals("commercial@-1", OkHttpClientGenerator.getCacheKey(null, -1, false));
+        assertEquals("commercial@-1", OkHttpClientGenerator.getCacheKey("", -1, false));
+        assertEquals(OkHttpClientGenerator.getCacheKey(CA_CERT, 8118, false), OkHttpClientGenerator.getCacheKey("\n" + CA_CERT + "\n", 8118, false));
+        assertNotEquals(OkHttpClientGenerator.getCacheKey(CA_CERT, -1, false), OkHttpClientGenerator.getCacheKey(CA_CERT, 8118, false));
+        assertNotEquals(OkHttpClientGenerator.getCacheKey(CA_CERT, -1, false), OkHttpClientGenerator.getCacheKey(OTHER_CA_CERT, -1, false));
+        assertNotEquals(OkHttpClientGenerator.getCacheKey(CA_CERT, -1, false), OkHttpClientGenerator.getCacheKey(CA_CERT, -1, true));
+    }
+
+    @Test
+    public void testCacheClient_evictsLeastRecentlyUsedClient() {
+        OkHttpClient[] clients = new OkHttpClient[5];
+        for (int i = 0; i < 4; i++) {
+            clients[i] = new OkHttpClient();
+            OkHttpClientGenerator.cacheClient(OkHttpClientGenerator.getCacheKey(null, i, false), clients[i]);
+        }
+        assertSame(clients[0], OkHttpClientGenerator.getCachedClient(OkHttpClientGenerator.getCacheKey(null, 0, false)));
+
+        clients[4] = new OkHttpClient();
+        OkHttpClientGenerator.cacheClient(OkHttpClientGenerator.getCacheKey(null, 4, false), clients[4]);
+
+        assertNull(OkHttpClientGenerator.getCachedClient(OkHttpClientGenerator.getCacheKey(null, 1, false)));
+        assertSame(clients[0], OkHttpClientGenerator.getCachedClient(OkHttpClientGenerator.getCacheKey(null, 0, false)));
+        assertSame(clients[2], OkHttpClientGenerator.getCachedClient(OkHttpClientGenerator.getCacheKey(null, 2, false)));
+        assertSame(clients[3], OkHttpClientGenerator.getCachedClient(OkHttpClientGenerator.getCacheKey(null, 3, false)));
+        assertSame(clients[4], OkHttpClientGenerator.getCachedClient(OkHttpClientGenerator.getCacheKey(null, 4, false)));
+    }
+
+    @Test
+    public void testGetCachedClient_otherCa_dropsClientsOfPreviousCa() {
+        String key = OkHttpClientGenerator.getCacheKey(CA_CERT, -1, false);
+        String commercialKey = OkHttpClientGenerator.getCacheKey(null, -1, false);
+        OkHttpClient commercialClient = new OkHttpClient();
+        assertNull(OkHttpClientGenerator.getCachedClient(key));
+        OkHttpClientGenerator.cacheClient(key, new OkHttpClient());
+        OkHttpClientGenerator.cacheClient(commercialKey, commercialClient);
+
+        assertNull(OkHttpClientGenerator.getCachedClient(OkHttpClientGenerator.getCacheKey(OTHER_CA_CERT, -1, false)));
+
+        assertNull(OkHttpClientGenerator.getCachedClient(key));
+        assertSame(commercialClient, OkHttpClientGenerator.getCachedClient(commercialKey));
+    }
+
+    @Test
+    public void testClearCache_dropsAllClients() {
+        String key = OkHttpClientGenerator.getCacheKey(null, -1, false);
+        OkHttpClientGenerator.cacheClient(key, new OkHttpClient());
+
+        OkHttpClientGenerator.clearCache();
+
+        assertNull(OkHttpClientGenerator.getCachedClient(key));
+    }
+}
@@ -20,8 +20,10 @@ package se.leap.bitmaskclient.testutils;
 import android.content.SharedPreferences;
 import androidx.annotation.Nullable;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -35,10 +37,18 @@ public class MockSharedPreferences implements SharedPreferences {
     HashMap<String, Boolean> mockedBooleanPrefs = new HashMap<>();
     HashMap<String, Long> mockedLongPrefs = new HashMap<>();
     HashMap<String, Set<String>> mockedStringSetPrefs = new HashMap<>();
+    private final List<OnSharedPreferenceChangeListener> listeners = new ArrayList<>();
 
     @Override
     public Map<String, ?> getAll() {
-        return null;
+        HashMap<String, Object> all = new HashMap<>();
+        all.putAll(mockedStringPrefs);
+        all.putAll(mockedIntPrefs);
+        all.putAll(mockedBooleanPrefs);
+        all.putAll(mockedLongPrefs);
+        all.putAll(mockedStringSetPrefs);
+        all.values().removeIf(value -> value == null);
+        return all;
     }
 
     @Nullable
@@ -93,28 +103,33 @@ public class MockSharedPreferences implements SharedPreferences {
             private HashMap<String, Boolean> tempBoolean = new HashMap<>(mockedBooleanPrefs);
             private HashMap<String, Long> tempLongs = new HashMap<>(mockedLongPrefs);
             private HashMap<String, Set<String>> tempStringSets = new HashMap<>(mockedStringSetPrefs);
+            private final Set<String> changedKeys = new HashSet<>();
 
             @Override
             public Editor putString(String key, @Nullable String value) {
                 tempStrings.put(key, value);
+                changedKeys.add(key);
                 return this;
             }
 
             @Override
             public Editor putStringSet(String key, @Nullable Set<String> values) {
                 tempStringSets.put(key, values);
+                changedKeys.add(key);
                 return this;
             }
 
             @Override
             public Editor putInt(String key, int value) {
                 tempIntegers.put(key, value);
+                changedKeys.add(key);
                 return this;
             }
 
             @Override
             public Editor putLong(String key, long value) {
                 tempLongs.put(key, value);
+                changedKeys.add(key);
                 return this;
             }
 
@@ -126,6 +141,7 @@ public class MockSharedPreferences implements SharedPreferences {
             @Override
             public Editor putBoolean(String key, boolean value) {
                 tempBoolean.put(key, value);
+                changedKeys.add(key);
                 return this;
             }
 
@@ -134,14 +150,20 @@ public class MockSharedPreferences implements SharedPreferences {
                 tempBoolean.remove(key);
                 tempStrings.remove(key);
                 tempIntegers.remove(key);
+                tempLongs.remove(key);
+                tempStringSets.remove(key);
+                changedKeys.add(key);
                 return this;
             }
 
             @Override
             public Editor clear() {
+                changedKeys.addAll(getAll().keySet());
                 tempBoolean.clear();
                 tempStrings.clear();
                 tempIntegers.clear();
+                tempLongs.clear();
+                tempStringSets.clear();
                 return this;
             }
 
@@ -150,26 +172,32 @@ public class MockSharedPreferences implements SharedPreferences {
                 mockedStringPrefs = new HashMap<>(tempStrings);
                 mockedBooleanPrefs = new HashMap<>(tempBoolean);
                 mockedIntPrefs = new HashMap<>(tempIntegers);
+                mockedLongPrefs = new HashMap<>(tempLongs);
+                mockedStringSetPrefs = new HashMap<>(tempStringSets);
+                for (OnSharedPreferenceChangeListener listener : new ArrayList<>(listeners)) {
+                    for (String key : changedKeys) {
+                        listener.onSharedPreferenceChanged(MockSharedPreferences.this, key);
+                    }
+                }
                 return true;
             }
 
             @Override
             public void apply() {
-                mockedStringPrefs = new HashMap<>(tempStrings);
-                mockedBooleanPrefs = new HashMap<>(tempBoolean);
-                mockedIntPrefs = new HashMap<>(tempIntegers);
-                mockedStringSetPrefs = new HashMap<>(tempStringSets);
+                commit();
             }
         };
     }
 
     @Override
     public void registerOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
-
+        if (!listeners.contains(listener)) {
+            listeners.add(listener);
+        }
     }
 
     @Override
     public void unregisterOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
-
+        listeners.remove(listener);
     }
 }